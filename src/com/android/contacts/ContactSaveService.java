@@ -69,9 +69,11 @@ import com.android.contacts.common.model.account.AccountWithDataSet;
 import com.android.contacts.common.util.PermissionsUtil;
 import com.android.contacts.compat.PinnedPositionsCompat;
 import com.android.contacts.activities.ContactEditorBaseActivity.ContactEditor.SaveMode;
+import com.android.contacts.util.BatchOperationExecutor;
 import com.android.contacts.util.ContactPhotoUtils;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
+import com.google.common.primitives.Longs;
 
 import java.util.ArrayList;
 import java.util.HashSet;
@@ -179,7 +181,10 @@ public class ContactSaveService extends IntentService {
 
     private static SimContactsOperation mSimContactsOperation;
     private SubscriptionManager mSubscriptionManager;
-    private static final int MAX_CONTACTS_PROVIDER_BATCH_SIZE = 499;
+    private static final int MAX_CONTACTS_PROVIDER_BATCH_SIZE =
+            BatchOperationExecutor.MAX_BATCH_SIZE;
+    // Max count of ids in one "IN (...)" selection.
+    private static final int MAX_IDS_PER_SELECTION = 500;
 
     public interface Listener {
         public void onServiceCompleted(Intent callbackIntent);
@@ -758,6 +763,9 @@ public class ContactSaveService extends IntentService {
      * Splits "diff" into subsets based on "MAX_CONTACTS_PROVIDER_BATCH_SIZE", applies each of the
      * subsets, adds the returned array to "results".
      *
+     * The subsets are not resized by a {@link BatchOperationExecutor}: the diff uses back
+     * references and version asserts, which only hold while it is applied as built.
+     *
      * @return the size of the array, if not null; -1 when the array is null.
      */
     private int applyDiffSubset(ArrayList<ContentProviderOperation> diff, int offset,
@@ -882,7 +890,7 @@ public class ContactSaveService extends IntentService {
         }
 
         // Add new group members
-        addMembersToGroup(resolver, rawContactsToAdd, ContentUris.parseId(groupUri));
+        updateGroupMembers(resolver, ContentUris.parseId(groupUri), rawContactsToAdd, null);
 
         // TODO: Move this into the contact editor where it belongs. This needs to be integrated
         // with the way other intent extras that are passed to the {@link ContactEditorActivity}.
@@ -1011,80 +1019,88 @@ public class ContactSaveService extends IntentService {
         }
 
         // Add and remove members if necessary
-        addMembersToGroup(resolver, rawContactsToAdd, groupId);
-        removeMembersFromGroup(resolver, rawContactsToRemove, groupId);
+        updateGroupMembers(resolver, groupId, rawContactsToAdd, rawContactsToRemove);
 
         Intent callbackIntent = intent.getParcelableExtra(EXTRA_CALLBACK_INTENT);
         callbackIntent.setData(groupUri);
         deliverCallback(callbackIntent);
     }
 
-    private static void addMembersToGroup(ContentResolver resolver, long[] rawContactsToAdd,
-            long groupId) {
-        if (rawContactsToAdd == null) {
+    /**
+     * Adds and removes members of a group. The members of the group are read once, so only the
+     * memberships which change are written, in a few batches.
+     */
+    private static void updateGroupMembers(ContentResolver resolver, long groupId,
+            long[] rawContactsToAdd, long[] rawContactsToRemove) {
+        final boolean hasAdditions = rawContactsToAdd != null && rawContactsToAdd.length > 0;
+        final boolean hasRemovals = rawContactsToRemove != null && rawContactsToRemove.length > 0;
+        if (!hasAdditions && !hasRemovals) {
             return;
         }
-        for (long rawContactId : rawContactsToAdd) {
-            try {
-                final ArrayList<ContentProviderOperation> rawContactOperations =
-                        new ArrayList<ContentProviderOperation>();
-
-                // Build an assert operation to ensure the contact is not already in the group
-                final ContentProviderOperation.Builder assertBuilder = ContentProviderOperation
-                        .newAssertQuery(Data.CONTENT_URI);
-                assertBuilder.withSelection(Data.RAW_CONTACT_ID + "=? AND " +
-                        Data.MIMETYPE + "=? AND " + GroupMembership.GROUP_ROW_ID + "=?",
-                        new String[] { String.valueOf(rawContactId),
-                        GroupMembership.CONTENT_ITEM_TYPE, String.valueOf(groupId)});
-                assertBuilder.withExpectedCount(0);
-                rawContactOperations.add(assertBuilder.build());
-
-                // Build an insert operation to add the contact to the group
-                final ContentProviderOperation.Builder insertBuilder = ContentProviderOperation
-                        .newInsert(Data.CONTENT_URI);
-                insertBuilder.withValue(Data.RAW_CONTACT_ID, rawContactId);
-                insertBuilder.withValue(Data.MIMETYPE, GroupMembership.CONTENT_ITEM_TYPE);
-                insertBuilder.withValue(GroupMembership.GROUP_ROW_ID, groupId);
-                rawContactOperations.add(insertBuilder.build());
-
-                if (DEBUG) {
-                    for (ContentProviderOperation operation : rawContactOperations) {
-                        Log.v(TAG, operation.toString());
-                    }
-                }
+        final HashSet<Long> members = getGroupMembers(resolver, groupId);
+        final BatchOperationExecutor executor = new BatchOperationExecutor(resolver,
+                ContactsContract.AUTHORITY);
+
+        for (int i = 0; hasAdditions && i < rawContactsToAdd.length; i++) {
+            // Skip the contacts already in the group
+            if (!members.add(rawContactsToAdd[i])) {
+                continue;
+            }
+            final ContentProviderOperation.Builder insertBuilder = ContentProviderOperation
+                    .newInsert(Data.CONTENT_URI);
+            insertBuilder.withValue(Data.RAW_CONTACT_ID, rawContactsToAdd[i]);
+            insertBuilder.withValue(Data.MIMETYPE, GroupMembership.CONTENT_ITEM_TYPE);
+            insertBuilder.withValue(GroupMembership.GROUP_ROW_ID, groupId);
+            executor.add(insertBuilder);
+        }
 
-                // Apply batch
-                if (!rawContactOperations.isEmpty()) {
-                    resolver.applyBatch(ContactsContract.AUTHORITY, rawContactOperations);
-                }
-            } catch (RemoteException e) {
-                // Something went wrong, bail without success
-                Log.e(TAG, "Problem persisting user edits for raw contact ID " +
-                        String.valueOf(rawContactId), e);
-            } catch (OperationApplicationException e) {
-                // The assert could have failed because the contact is already in the group,
-                // just continue to the next contact
-                Log.w(TAG, "Assert failed in adding raw contact ID " +
-                        String.valueOf(rawContactId) + ". Already exists in group " +
-                        String.valueOf(groupId), e);
+        final ArrayList<Long> removedMembers = new ArrayList<>();
+        for (int i = 0; hasRemovals && i < rawContactsToRemove.length; i++) {
+            // Skip the contacts which are not in the group
+            if (members.remove(rawContactsToRemove[i])) {
+                removedMembers.add(rawContactsToRemove[i]);
             }
         }
+        for (int start = 0; start < removedMembers.size(); start += MAX_IDS_PER_SELECTION) {
+            final List<Long> chunk = removedMembers.subList(start,
+                    Math.min(start + MAX_IDS_PER_SELECTION, removedMembers.size()));
+            final ContentProviderOperation.Builder deleteBuilder = ContentProviderOperation
+                    .newDelete(Data.CONTENT_URI);
+            deleteBuilder.withSelection(Data.RAW_CONTACT_ID + " IN ("
+                    + TextUtils.join(",", chunk) + ") AND " + Data.MIMETYPE + "=? AND "
+                    + GroupMembership.GROUP_ROW_ID + "=?",
+                    new String[] { GroupMembership.CONTENT_ITEM_TYPE, String.valueOf(groupId)});
+            executor.add(deleteBuilder);
+        }
+
+        executor.flush();
+        if (executor.getFailedCount() > 0) {
+            Log.e(TAG, "Failed to update " + executor.getFailedCount()
+                    + " memberships of group " + groupId);
+        }
     }
 
-    private static void removeMembersFromGroup(ContentResolver resolver, long[] rawContactsToRemove,
-            long groupId) {
-        if (rawContactsToRemove == null) {
-            return;
+    /**
+     * @return the ids of the raw contacts in the given group.
+     */
+    private static HashSet<Long> getGroupMembers(ContentResolver resolver, long groupId) {
+        final HashSet<Long> members = new HashSet<>();
+        final Cursor cursor = resolver.query(Data.CONTENT_URI,
+                new String[] { Data.RAW_CONTACT_ID },
+                Data.MIMETYPE + "=? AND " + GroupMembership.GROUP_ROW_ID + "=?",
+                new String[] { GroupMembership.CONTENT_ITEM_TYPE, String.valueOf(groupId)},
+                null);
+        if (cursor == null) {
+            return members;
         }
-        for (long rawContactId : rawContactsToRemove) {
-            // Apply the delete operation on the data row for the given raw contact's
-            // membership in the given group. If no contact matches the provided selection, then
-            // nothing will be done. Just continue to the next contact.
-            resolver.delete(Data.CONTENT_URI, Data.RAW_CONTACT_ID + "=? AND " +
-                    Data.MIMETYPE + "=? AND " + GroupMembership.GROUP_ROW_ID + "=?",
-                    new String[] { String.valueOf(rawContactId),
-                    GroupMembership.CONTENT_ITEM_TYPE, String.valueOf(groupId)});
+        try {
+            while (cursor.moveToNext()) {
+                members.add(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
         }
+        return members;
     }
 
     /**
@@ -1366,44 +1382,22 @@ public class ContactSaveService extends IntentService {
             return;
         }
 
-        // For each pair of raw contacts, insert an aggregation exception
-        final ContentResolver resolver = getContentResolver();
-        // The maximum number of operations per batch (aka yield point) is 500. See b/22480225
-        final int batchSize = MAX_CONTACTS_PROVIDER_BATCH_SIZE;
-        final ArrayList<ContentProviderOperation> operations = new ArrayList<>(batchSize);
-        for (int i = 0; i < rawContactIds.length; i++) {
-            for (int j = 0; j < rawContactIds.length; j++) {
-                if (i != j) {
-                    buildJoinContactDiff(operations, rawContactIds[i], rawContactIds[j]);
-                }
-                // Before we get to 500 we need to flush the operations list
-                if (operations.size() > 0 && operations.size() % batchSize == 0) {
-                    if (!applyJoinOperations(resolver, operations)) {
-                        return;
-                    }
-                    operations.clear();
-                }
-            }
+        // Keep every raw contact together with the first one
+        final ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        buildJoinContactsDiff(operations, rawContactIds);
+        final BatchOperationExecutor executor = new BatchOperationExecutor(getContentResolver(),
+                ContactsContract.AUTHORITY);
+        for (int i = 0; i < operations.size() && executor.getFailedCount() == 0; i++) {
+            executor.add(operations.get(i));
         }
-        if (operations.size() > 0 && !applyJoinOperations(resolver, operations)) {
+        executor.flush();
+        if (executor.getFailedCount() > 0) {
+            showToast(R.string.contactSavedErrorToast);
             return;
         }
         showToast(R.string.contactsJoinedMessage);
     }
 
-    /** Returns true if the batch was successfully applied and false otherwise. */
-    private boolean applyJoinOperations(ContentResolver resolver,
-            ArrayList<ContentProviderOperation> operations) {
-        try {
-            resolver.applyBatch(ContactsContract.AUTHORITY, operations);
-            return true;
-        } catch (RemoteException | OperationApplicationException e) {
-            Log.e(TAG, "Failed to apply aggregation exception batch", e);
-            showToast(R.string.contactSavedErrorToast);
-            return false;
-        }
-    }
-
 
     private void joinContacts(Intent intent) {
         long contactId1 = intent.getLongExtra(EXTRA_CONTACT_ID1, -1);
@@ -1419,14 +1413,8 @@ public class ContactSaveService extends IntentService {
 
         ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
 
-        // For each pair of raw contacts, insert an aggregation exception
-        for (int i = 0; i < rawContactIds.length; i++) {
-            for (int j = 0; j < rawContactIds.length; j++) {
-                if (i != j) {
-                    buildJoinContactDiff(operations, rawContactIds[i], rawContactIds[j]);
-                }
-            }
-        }
+        // Keep every raw contact together with the first one
+        buildJoinContactsDiff(operations, rawContactIds);
 
         final ContentResolver resolver = getContentResolver();
 
@@ -1535,6 +1523,44 @@ public class ContactSaveService extends IntentService {
         return getRawContactIdsForAggregation(new long[] {contactId1, contactId2});
     }
 
+    /**
+     * Construct the {@link AggregationExceptions#TYPE_KEEP_TOGETHER} ContentProviderOperations
+     * joining the raw contacts. The aggregator keeps raw contacts together transitively, so
+     * every raw contact is only kept together with the first one. The pairs of raw contacts
+     * kept separate are kept together too, as they would split the contact otherwise.
+     */
+    private void buildJoinContactsDiff(ArrayList<ContentProviderOperation> operations,
+            long[] rawContactIds) {
+        final long anchorId = rawContactIds[0];
+        for (int i = 1; i < rawContactIds.length; i++) {
+            buildJoinContactDiff(operations, anchorId, rawContactIds[i]);
+        }
+
+        final String ids = TextUtils.join(",", Longs.asList(rawContactIds));
+        final Cursor c = getContentResolver().query(AggregationExceptions.CONTENT_URI,
+                new String[] {
+                        AggregationExceptions.RAW_CONTACT_ID1,
+                        AggregationExceptions.RAW_CONTACT_ID2},
+                AggregationExceptions.TYPE + "=" + AggregationExceptions.TYPE_KEEP_SEPARATE
+                        + " AND " + AggregationExceptions.RAW_CONTACT_ID1 + " IN (" + ids + ")"
+                        + " AND " + AggregationExceptions.RAW_CONTACT_ID2 + " IN (" + ids + ")",
+                null, null);
+        if (c == null) {
+            return;
+        }
+        try {
+            while (c.moveToNext()) {
+                final long rawContactId1 = c.getLong(0);
+                final long rawContactId2 = c.getLong(1);
+                if (rawContactId1 != anchorId && rawContactId2 != anchorId) {
+                    buildJoinContactDiff(operations, rawContactId1, rawContactId2);
+                }
+            }
+        } finally {
+            c.close();
+        }
+    }
+
     /**
      * Construct a {@link AggregationExceptions#TYPE_KEEP_TOGETHER} ContentProviderOperation.
      */
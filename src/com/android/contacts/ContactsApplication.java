@@ -32,6 +32,7 @@ import android.util.Log;
 import com.android.contacts.common.testing.InjectedServices;
 import com.android.contacts.common.util.Constants;
 import com.android.contacts.commonbind.analytics.AnalyticsUtil;
+import com.android.contacts.quickcontact.ResolveCache;
 
 import com.android.contacts.common.testing.NeededForTesting;
 import com.google.common.annotations.VisibleForTesting;
@@ -132,6 +133,8 @@ public class ContactsApplication extends Application {
             // (and thus not have the get accounts permission).
             PreferenceManager.getDefaultSharedPreferences(context);
             getContentResolver().getType(ContentUris.withAppendedId(Contacts.CONTENT_URI, 1));
+            // Warm up the package manager queries of QuickContact.
+            ResolveCache.prewarm(context);
 
             return null;
         }
@@ -32,18 +32,13 @@ package com.android.contacts.activities;
 import android.app.ListActivity;
 import android.app.ProgressDialog;
 import android.content.ContentProviderOperation;
-import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.DialogInterface;
-import android.content.OperationApplicationException;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Looper;
-import android.os.RemoteException;
-import android.provider.ContactsContract;
 import android.provider.ContactsContract.RawContacts;
-import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
 import android.view.Menu;
 import android.view.MenuInflater;
@@ -57,16 +52,18 @@ import com.android.contacts.R;
 import com.android.contacts.common.MoreContactUtils;
 import com.android.contacts.common.SimContactsConstants;
 import com.android.contacts.common.SimContactsOperation;
+import com.android.contacts.util.DuplicatesMerger;
 import com.android.contacts.util.DuplicatesUtils;
+import com.android.contacts.util.PhoneNumberIndex;
 
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 
-public class MergeContactActivity extends ListActivity {
+public class MergeContactActivity extends ListActivity
+        implements DuplicatesUtils.SearchListener {
     private static final String TAG = "MergeContactActivity";
-    private static final int BATCH_SIZE = 300;
 
     private static ProgressDialog mProgressDialog;
     private ArrayList<DuplicatesUtils.MergeContacts> mMergeList;
@@ -79,12 +76,44 @@ public class MergeContactActivity extends ListActivity {
 
     private MenuItem mergeItem;
 
+    /**
+     * Shown while the search is still adding results to the list.
+     */
+    private View mSearchProgress;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.merge_list);
         mMergeList = DuplicatesUtils.getMergeRawContacts();
+        if (mMergeList == null) {
+            finish();
+            return;
+        }
         initData();
+        // the search may still be running, its next results are added to the list.
+        mSearchProgress = findViewById(R.id.search_progress);
+        if (DuplicatesUtils.mSearchState) {
+            mSearchProgress.setVisibility(View.VISIBLE);
+        }
+        DuplicatesUtils.setSearchListener(this);
+    }
+
+    @Override
+    public void onMergeContactsFound(DuplicatesUtils.MergeContacts mergeContacts) {
+        if (mergeContacts.isChecked()) {
+            mSelectCount++;
+        }
+        adapter.notifyDataSetChanged();
+        if (mSelectCount > 0 && mergeItem != null && !mergeItem.isEnabled()) {
+            mergeItem.setEnabled(true);
+        }
+    }
+
+    @Override
+    public void onSearchComplete() {
+        // all the results have already been added to the list.
+        mSearchProgress.setVisibility(View.GONE);
     }
 
     private void initData() {
@@ -107,6 +136,9 @@ public class MergeContactActivity extends ListActivity {
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
             case R.id.menu_merge: {
+                // merge the contacts found so far, stop searching the next ones.
+                DuplicatesUtils.stopSearch();
+                mSearchProgress.setVisibility(View.GONE);
                 mProgressDialog = new MyProgressDialog(MergeContactActivity.this);
                 mProgressDialog.setMessage(this.getString(R.string.merging_contacts));
                 mProgressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
@@ -156,18 +188,12 @@ public class MergeContactActivity extends ListActivity {
 
     private class MergeDuplicatedThread extends Thread {
 
-        ArrayList<ContentProviderOperation> dataInsertList = new ArrayList<>();
-        ArrayList<ContentProviderOperation> rawUpdateList = new ArrayList<>();
-        ArrayList<ContentProviderOperation> rawDelList = new ArrayList<>();
+        private DuplicatesMerger mMerger;
 
         @Override
         public void run() {
             Looper.prepare();
             joinSetContacts(mMergeList);
-
-            rawUpdateList.clear();
-            dataInsertList.clear();
-            rawDelList.clear();
             DuplicatesUtils.mMergeState = false;
             Looper.loop();
         }
@@ -177,35 +203,32 @@ public class MergeContactActivity extends ListActivity {
          */
         private void joinSetContacts(ArrayList<DuplicatesUtils.MergeContacts> mergeList) {
             mSimContactsOperation = new SimContactsOperation(MergeContactActivity.this);
+            mMerger = new DuplicatesMerger(getContentResolver());
             mMergeProgress = 0;
 
-            for (int i = 0; i < mergeList.size() && DuplicatesUtils.mMergeState; i++) {
-                DuplicatesUtils.MergeContacts mergeContacts = mergeList.get(i);
-                if (mergeContacts.getAccountType().equals(SimContactsConstants.ACCOUNT_TYPE_SIM)) {
-                    // if the set of sim contacts merged successfully.
-                    boolean result = joinSetSimContacts(mergeList.get(i));
-                    if (!result) {
-                        break;
-                    }
-                } else {
-                    boolean result = joinSetLocalContacts(false, mergeList.get(i));
-                    if (!result) {
-                        break;
-                    }
+            // keep the order of the groups: each run of local groups is merged in a pipeline,
+            // then the sim group following it on its own. Stop at the first failure, without
+            // writing the pending operations of the failed group.
+            ArrayList<DuplicatesUtils.MergeContacts> localList = new ArrayList<>();
+            boolean result = true;
+            for (int i = 0; result && i <= mergeList.size() && DuplicatesUtils.mMergeState; i++) {
+                DuplicatesUtils.MergeContacts mergeContacts = i < mergeList.size()
+                        ? mergeList.get(i) : null;
+                if (mergeContacts != null && !mergeContacts.getAccountType()
+                        .equals(SimContactsConstants.ACCOUNT_TYPE_SIM)) {
+                    localList.add(mergeContacts);
+                    continue;
                 }
-                if (mProgressDialog != null) {
-                    mProgressDialog.setProgress(++mMergeProgress);
+                result = joinLocalContacts(localList);
+                localList.clear();
+                // if the set of sim contacts merged successfully.
+                if (result && mergeContacts != null) {
+                    result = joinSetSimContacts(mergeContacts);
+                    if (result && mProgressDialog != null) {
+                        mProgressDialog.setProgress(++mMergeProgress);
+                    }
                 }
             }
-            try {
-                getContentResolver().applyBatch(ContactsContract.AUTHORITY, rawUpdateList);
-                getContentResolver().applyBatch(ContactsContract.AUTHORITY, dataInsertList);
-                getContentResolver().applyBatch(ContactsContract.AUTHORITY, rawDelList);
-            } catch (RemoteException e) {
-                e.printStackTrace();
-            } catch (OperationApplicationException e) {
-                e.printStackTrace();
-            }
 
             // no matter the join process is success or not, dismiss the dialog.
             if (mProgressDialog != null && mProgressDialog.isShowing()) {
@@ -220,6 +243,31 @@ public class MergeContactActivity extends ListActivity {
             finish();
         }
 
+        /**
+         * Merges a run of local groups and writes all their operations.
+         */
+        private boolean joinLocalContacts(ArrayList<DuplicatesUtils.MergeContacts> localList) {
+            boolean result = mMerger.mergeLocalContacts(localList,
+                    new DuplicatesMerger.Callback() {
+                        @Override
+                        public boolean isCancelled() {
+                            return !DuplicatesUtils.mMergeState;
+                        }
+
+                        @Override
+                        public void onGroupMerged(DuplicatesUtils.MergeContacts mergeContacts) {
+                            if (mProgressDialog != null) {
+                                mProgressDialog.setProgress(++mMergeProgress);
+                            }
+                        }
+                    });
+            if (!result) {
+                Toast.makeText(MergeContactActivity.this, R.string.merge_fail,
+                        Toast.LENGTH_SHORT).show();
+            }
+            return result;
+        }
+
         /**
          * if the set of contacts are Sim contacts.
          */
@@ -294,6 +342,7 @@ public class MergeContactActivity extends ListActivity {
             }
 
             // calculate the value of the new insert contact.
+            PhoneNumberIndex simNumberIndex = new PhoneNumberIndex(simNumberList);
             for (int i = 0; i < delContactIds.size(); i++) {
                 ContentValues values = mSimContactsOperation
                         .getSimAccountValues(delContactIds.get(i));
@@ -301,36 +350,17 @@ public class MergeContactActivity extends ListActivity {
                 String anr = values.getAsString(SimContactsConstants.STR_ANRS);
                 String emails = values.getAsString(SimContactsConstants.STR_EMAILS);
 
-                if (!TextUtils.isEmpty(number) && !simNumberList.contains(number)) {
-                    boolean containsNumber = false;
-                    for (int j = 0; j < simNumberList.size(); j++) {
-                        if (PhoneNumberUtils.compare(number, simNumberList.get(j))) {
-                            containsNumber = true;
-                            break;
-                        }
-                    }
-                    if (!containsNumber) {
-                        needUpdate = true;
-                        simNumberList.add(number);
-                    }
+                if (simNumberIndex.add(number)) {
+                    needUpdate = true;
+                    simNumberList.add(number);
                 }
 
                 if (!TextUtils.isEmpty(anr)) {
                     String[] splitAnr = anr.split(SimContactsConstants.ANR_SEP);
                     for (int j = 0; j < splitAnr.length; j++) {
-                        if (!TextUtils.isEmpty(splitAnr[j]) && !simNumberList
-                                .contains(splitAnr[j])) {
-                            boolean containsAnr = false;
-                            for (int k = 0; k < simNumberList.size(); k++) {
-                                if (PhoneNumberUtils.compare(splitAnr[j], simNumberList.get(k))) {
-                                    containsAnr = true;
-                                    break;
-                                }
-                            }
-                            if (!containsAnr) {
-                                needUpdate = true;
-                                simNumberList.add(splitAnr[j]);
-                            }
+                        if (simNumberIndex.add(splitAnr[j])) {
+                            needUpdate = true;
+                            simNumberList.add(splitAnr[j]);
                         }
                     }
                 }
@@ -398,8 +428,9 @@ public class MergeContactActivity extends ListActivity {
                 return false;
             }
 
-            // update local contact.
-            if (!joinSetLocalContacts(true, mergeContacts)) {
+            // update local contact, and write it before deleting the others from the sim card.
+            if (!mMerger.addGroupOperations(mMerger.buildSimGroupOperations(mergeContacts))
+                    || !mMerger.flush()) {
                 Toast.makeText(MergeContactActivity.this, R.string.merge_fail,
                         Toast.LENGTH_SHORT).show();
                 return false;
@@ -412,105 +443,25 @@ public class MergeContactActivity extends ListActivity {
                 // if it deletes sim contact successfully, add it to local delete list.
                 if (res > 0) {
                     ArrayList<Long> list = delRawIdsMap.get(contactId);
-
-                    if (rawDelList.size() + list.size() >= BATCH_SIZE) {
-                        applyBatch();
-                    }
+                    ArrayList<ContentProviderOperation> rawDelList = new ArrayList<>();
                     for (int j = 0; j < list.size(); j++) {
                         Uri uri = Uri.withAppendedPath(RawContacts
                                 .CONTENT_URI, String.valueOf(list.get(j)));
                         rawDelList.add(ContentProviderOperation.newDelete(uri).build());
                     }
+                    if (!mMerger.addGroupOperations(rawDelList)) {
+                        Toast.makeText(MergeContactActivity.this, R.string.merge_fail,
+                                Toast.LENGTH_SHORT).show();
+                        return false;
+                    }
                 } else {
                     Toast.makeText(MergeContactActivity.this, R.string.merge_fail,
                             Toast.LENGTH_SHORT).show();
                 }
             }
-            return true;
-        }
-
-        /**
-         * if the set of contacts are not sim contacts.
-         */
-        private boolean joinSetLocalContacts(boolean isSimAccount,
-            DuplicatesUtils.MergeContacts mergeContacts) {
-            ArrayList<DuplicatesUtils.ContactsInfo> contactsInfos = mergeContacts.getContacts();
-            // the id of the rawContacts which will be update.
-            long sourceId = -1;
-            ArrayList<Long> rawIds = new ArrayList<>();
-            for (int i = 0; i < contactsInfos.size(); i++) {
-                DuplicatesUtils.ContactsInfo contactsInfo = contactsInfos.get(i);
-                long rawContactId = contactsInfo.getRawContactId();
-                // keep the first rawContact as the one which will be updated later.
-                if (i == 0) {
-                    sourceId = rawContactId;
-                    continue;
-                }
-                // add the remaining rawContacts ids to the list, which will be deleted later.
-                rawIds.add(rawContactId);
-            }
-
-            if (rawUpdateList.size() + 1 >= BATCH_SIZE ||
-                rawDelList.size() + rawIds.size() >= BATCH_SIZE) {
-                if (!applyBatch()) {
-                    Toast.makeText(MergeContactActivity.this, R.string.merge_fail,
-                            Toast.LENGTH_SHORT).show();
-                    return false;
-                }
-            }
-
-            //for sim card, do delete itself.
-            //it should delete local only when it deletes sim successfully.
-            for (int i = 0; !isSimAccount && i < rawIds.size(); i++) {
-                Uri uri = ContentUris.withAppendedId(RawContacts.CONTENT_URI, rawIds.get(i));
-                // the delete operation list for the rawContacts.
-                rawDelList.add(ContentProviderOperation.newDelete(uri).build());
-            }
-
-            // build the source contact, which will be update later.
-            HashMap<String, List<String>> hashMap = DuplicatesUtils.buildSource(
-                    getContentResolver(), sourceId);
-            // build the differences among the source rawContact with the remaining ones.
-
-            ArrayList<ContentProviderOperation> dataInsertOps = DuplicatesUtils.diffRawEntity(
-                    isSimAccount, getContentResolver(), sourceId, hashMap, rawIds);
-            if (dataInsertList.size() + dataInsertOps.size() > BATCH_SIZE) {
-                try {
-                    getContentResolver().applyBatch(ContactsContract.AUTHORITY, rawUpdateList);
-                    getContentResolver().applyBatch(ContactsContract.AUTHORITY, dataInsertList);
-                    rawUpdateList.clear();
-                    dataInsertList.clear();
-                } catch (RemoteException e) {
-                    e.printStackTrace();
-                    return false;
-                } catch (OperationApplicationException e) {
-                    e.printStackTrace();
-                    return false;
-                }
-            }
-            dataInsertList.addAll(dataInsertOps);
-            // disable aggregation mode.
-            ContentValues values = new ContentValues();
-            values.put(RawContacts.AGGREGATION_MODE, RawContacts.AGGREGATION_MODE_DISABLED);
-            rawUpdateList.add(ContentProviderOperation.newUpdate(RawContacts.CONTENT_URI)
-                    .withValues(values).withSelection(RawContacts._ID.concat(" = ?"),
-                            new String[]{String.valueOf(sourceId)}).build());
-            return true;
-        }
-
-        private boolean applyBatch() {
-            try {
-                getContentResolver().applyBatch(ContactsContract.AUTHORITY, rawUpdateList);
-                getContentResolver().applyBatch(ContactsContract.AUTHORITY, dataInsertList);
-                getContentResolver().applyBatch(ContactsContract.AUTHORITY, rawDelList);
-                rawUpdateList.clear();
-                dataInsertList.clear();
-                rawDelList.clear();
-            } catch (RemoteException e) {
-                e.printStackTrace();
-                return false;
-            } catch (OperationApplicationException e) {
-                e.printStackTrace();
+            if (!mMerger.flush()) {
+                Toast.makeText(MergeContactActivity.this, R.string.merge_fail,
+                        Toast.LENGTH_SHORT).show();
                 return false;
             }
             return true;
@@ -546,6 +497,8 @@ public class MergeContactActivity extends ListActivity {
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        DuplicatesUtils.removeSearchListener(this);
+        DuplicatesUtils.stopSearch();
         DuplicatesUtils.mMergeState = false;
         DuplicatesUtils.clearMergeRawContacts();
         mProgressDialog = null;
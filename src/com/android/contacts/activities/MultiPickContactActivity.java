@@ -38,6 +38,7 @@ import android.accounts.AccountManager;
 import android.content.AsyncQueryHandler;
 import android.content.BroadcastReceiver;
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.ContentProviderOperation;
@@ -46,14 +47,14 @@ import android.content.IntentFilter;
 import android.content.DialogInterface.OnCancelListener;
 import android.content.DialogInterface.OnClickListener;
 import android.content.Intent;
-import android.content.OperationApplicationException;
+import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.net.Uri.Builder;
 import android.os.AsyncTask;
 import android.os.Bundle;
-import android.os.RemoteException;
+import android.provider.BaseColumns;
 import android.provider.CallLog;
 import android.provider.ContactsContract;
 import android.provider.CallLog.Calls;
@@ -95,18 +96,20 @@ import com.android.contacts.R;
 import com.android.contacts.common.ContactPhotoManager;
 import com.android.contacts.common.ContactPhotoManager.DefaultImageRequest;
 import com.android.contacts.common.SimContactsConstants;
-import com.android.contacts.common.SimContactsOperation;
 import com.android.contacts.common.list.AccountFilterActivity;
 import com.android.contacts.common.list.ContactListFilter;
 import com.android.contacts.common.MoreContactUtils;
 import com.android.contacts.common.model.account.SimAccountType;
 import com.android.contacts.common.util.PhoneNumberHelper;
+import com.android.contacts.util.BatchOperationExecutor;
+import com.android.contacts.util.BulkContactsDeleter;
+import com.android.contacts.util.ChoiceSet;
+import com.android.contacts.util.ChoiceSetProvider;
+import com.android.contacts.util.SimContactsImporter;
 
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Set;
 
 public class MultiPickContactActivity extends ListActivity implements
         View.OnClickListener, TextView.OnEditorActionListener,
@@ -220,8 +223,21 @@ public class MultiPickContactActivity extends ListActivity implements
 
     private ContactItemListAdapter mAdapter;
     private QueryHandler mQueryHandler;
-    private Bundle mChoiceSet;
-    private Bundle mBackupChoiceSet;
+    private ChoiceSet mChoiceSet;
+    private ChoiceSet mBackupChoiceSet;
+    /**
+     * True if every row of the unfiltered list is selected but the ids of mExcludedSet, the
+     * rows are then not in mChoiceSet.
+     */
+    private boolean mSelectAll;
+    private boolean mBackupSelectAll;
+    private ChoiceSet mExcludedSet = new ChoiceSet();
+    private ChoiceSet mBackupExcludedSet;
+    /**
+     * Count of rows of the unfiltered list while mSelectAll is true.
+     */
+    private int mSelectAllCount;
+    private SelectAllTask mSelectAllTask;
     private EditText mSearchEditor;
     private Button mOKButton;
     private Button mCancelButton;
@@ -234,7 +250,6 @@ public class MultiPickContactActivity extends ListActivity implements
     private ArrayList<Long> mGroupIds= new ArrayList<Long>();
 
     private ProgressDialog mProgressDialog;
-    private SimContactsOperation mSimContactsOperation;
     private Context mContext;
     private Intent mIntent;
     private AccountManager accountManager;
@@ -265,7 +280,12 @@ public class MultiPickContactActivity extends ListActivity implements
 
     private int MAX_CONTACTS_NUM_TO_SELECT_ONCE = 2000;
 
-    private static final int BUFFER_LENGTH = 500;
+    /**
+     * Progress of the last sim contacts import, kept until it completes.
+     */
+    private static final String SIM_IMPORT_PREFERENCES = "sim_import";
+    private static final String KEY_IMPORT_SIGNATURE = "signature";
+    private static final String KEY_IMPORT_POSITION = "position";
 
     /** Called when the activity is first created. */
     @Override
@@ -304,11 +324,10 @@ public class MultiPickContactActivity extends ListActivity implements
         }
 
         setContentView(R.layout.pick_contact);
-        mChoiceSet = new Bundle();
+        mChoiceSet = new ChoiceSet();
         mAdapter = new ContactItemListAdapter(this);
         getListView().setAdapter(mAdapter);
         mQueryHandler = new QueryHandler(this);
-        mSimContactsOperation = new SimContactsOperation(this);
         mContext = getApplicationContext();
         accountManager = AccountManager.get(mContext);
         initResource();
@@ -379,14 +398,22 @@ public class MultiPickContactActivity extends ListActivity implements
                     };
                 }
             }
-            mChoiceSet.putStringArray(String.valueOf(id), value);
+            if (mSelectAll) {
+                mExcludedSet.remove(id);
+            } else {
+                mChoiceSet.put(id, value);
+            }
             if (!isSearchMode()) {
-                if (mChoiceSet.size() == mAdapter.getCount()) {
+                if (getSelectedCount() == mAdapter.getCount()) {
                     mSelectAllCheckBox.setChecked(true);
                 }
             }
         } else {
-            mChoiceSet.remove(String.valueOf(id));
+            if (mSelectAll) {
+                mExcludedSet.put(id, null);
+            } else {
+                mChoiceSet.remove(id);
+            }
             mSelectAllCheckBox.setChecked(false);
         }
         mOKButton.setText(getOKString());
@@ -406,21 +433,34 @@ public class MultiPickContactActivity extends ListActivity implements
     }
 
     private String getOKString() {
-        if (0 == mChoiceSet.size()) {
+        final int count = getSelectedCount();
+        if (0 == count) {
             mOKButton.setEnabled(false);
         } else {
-            mOKButton.setEnabled(true);
+            mOKButton.setEnabled(mSelectAllTask == null);
         }
 
-        return getString(android.R.string.ok) + " (" + mChoiceSet.size() + ")";
+        return getString(android.R.string.ok) + " (" + count + ")";
+    }
+
+    /**
+     * @return true if the picker was started by this app, which reads the selection from
+     * {@link ChoiceSetProvider} instead of from the result extras.
+     */
+    private boolean isInternalCaller() {
+        return getPackageName().equals(getCallingPackage());
     }
 
     private void backupChoiceSet() {
-        mBackupChoiceSet = (Bundle) mChoiceSet.clone();
+        mBackupChoiceSet = mChoiceSet.snapshot();
+        mBackupSelectAll = mSelectAll;
+        mBackupExcludedSet = mExcludedSet.snapshot();
     }
 
     private void restoreChoiceSet() {
         mChoiceSet = mBackupChoiceSet;
+        mSelectAll = mBackupSelectAll;
+        mExcludedSet = mBackupExcludedSet;
     }
 
     private void enterSearchMode() {
@@ -478,110 +518,53 @@ public class MultiPickContactActivity extends ListActivity implements
     private class DeleteContactsThread extends Thread
             implements OnCancelListener, DialogInterface.OnClickListener {
 
-        boolean mCanceled = false;
-        private String name = null;
-        private String number = null;
-        final String[] PROJECTION = new String[] {
-                Phone.CONTACT_ID,
-                Phone.NUMBER,
-                Phone.DISPLAY_NAME
-        };
-        private final int COLUMN_NUMBER = 1;
-        private final int COLUMN_NAME = 2;
-
-        private ArrayList<ContentProviderOperation> mOpsCalls = null;
-
-        private ArrayList<ContentProviderOperation> mOpsContacts = null;
+        volatile boolean mCanceled = false;
 
         public DeleteContactsThread() {
         }
 
         @Override
         public void run() {
-            final ContentResolver resolver = getContentResolver();
-
             // The mChoiceSet object will change when activity restart, but
-            // DeleteContactsThread running in background, so we need clone the
-            // choiceSet to avoid ConcurrentModificationException.
-            Bundle choiceSet = (Bundle) mChoiceSet.clone();
-            Set<String> keySet = choiceSet.keySet();
-            Iterator<String> it = keySet.iterator();
-
-            android.content.ContentProviderOperation.Builder builder = null;
-
-            ContentProviderOperation cpo = null;
-
-            // Current contact count we can delete.
-            int count = 0;
-
-            // The contacts we batch delete once.
-            final int BATCH_DELETE_CONTACT_NUMBER = 100;
+            // DeleteContactsThread running in background, so we need a snapshot
+            // of the choiceSet.
+            ChoiceSet choiceSet = mChoiceSet.snapshot();
 
-            mOpsCalls = new ArrayList<ContentProviderOperation>();
-            mOpsContacts = new ArrayList<ContentProviderOperation>();
-
-            while (!mCanceled && it.hasNext()) {
-                String id = it.next();
-                Uri uri = null;
-                if (isPickCall()) {
-                    uri = Uri.withAppendedPath(Calls.CONTENT_URI, id);
-                    builder = ContentProviderOperation.newDelete(uri);
-                    cpo = builder.build();
-                    mOpsCalls.add(cpo);
-                } else {
-                    uri = Uri.withAppendedPath(Contacts.CONTENT_URI, id);
-                    long longId = Long.parseLong(id);
-                    int subscription =
-                            mSimContactsOperation.getSimSubscription(longId);
-
-                    if (subscription == SimContactsConstants.SLOT1
-                            || subscription == SimContactsConstants.SLOT2) {
-
-                        ContentValues values =
-                                mSimContactsOperation.getSimAccountValues(longId);
-                        log("values is : " + values + "; sub is " + subscription);
-                        int result = mSimContactsOperation.delete(values, subscription);
-                        if (result == 0) {
-                            mProgressDialog.incrementProgressBy(1);
-                            continue;
-                        }
-                    }
-                    builder = ContentProviderOperation.newDelete(uri);
-                    cpo = builder.build();
-                    mOpsContacts.add(cpo);
-                }
-                // If contacts more than 2000, delete all contacts
-                // one by one will cause UI nonresponse.
-                mProgressDialog.incrementProgressBy(1);
-                // We batch delete contacts every 100.
-                if (count % BATCH_DELETE_CONTACT_NUMBER == 0) {
-                    batchDelete();
+            if (isPickCall()) {
+                deleteCalls(choiceSet);
+            } else {
+                ArrayList<Long> contactIds = new ArrayList<Long>(choiceSet.size());
+                for (int i = 0; i < choiceSet.size(); i++) {
+                    contactIds.add(choiceSet.keyAt(i));
                 }
-                count ++;
+                new BulkContactsDeleter(getApplicationContext()).delete(contactIds,
+                        new BulkContactsDeleter.Callback() {
+                            @Override
+                            public boolean isCancelled() {
+                                return mCanceled;
+                            }
+
+                            @Override
+                            public void onProgress(int count) {
+                                mProgressDialog.incrementProgressBy(count);
+                            }
+                        });
             }
 
-            batchDelete();
-            mOpsCalls = null;
-            mOpsContacts = null;
             Log.d(TAG, "DeleteContactsThread run, progress:" + mProgressDialog.getProgress());
             mProgressDialog.dismiss();
             finish();
         }
 
-        /**
-         * Batch delete contacts more efficient than one by one.
-         */
-        private void batchDelete() {
-            try {
-                 mContext.getContentResolver().applyBatch(CallLog.AUTHORITY, mOpsCalls);
-                 mContext.getContentResolver().applyBatch(ContactsContract.AUTHORITY, mOpsContacts);
-                 mOpsCalls.clear();
-                 mOpsContacts.clear();
-             } catch (RemoteException e) {
-                 e.printStackTrace();
-             } catch (OperationApplicationException e) {
-                 e.printStackTrace();
-             }
+        private void deleteCalls(ChoiceSet choiceSet) {
+            final BatchOperationExecutor executor = new BatchOperationExecutor(
+                    mContext.getContentResolver(), CallLog.AUTHORITY);
+            for (int i = 0; !mCanceled && i < choiceSet.size(); i++) {
+                Uri uri = ContentUris.withAppendedId(Calls.CONTENT_URI, choiceSet.keyAt(i));
+                executor.add(ContentProviderOperation.newDelete(uri));
+                mProgressDialog.incrementProgressBy(1);
+            }
+            executor.flush();
         }
 
         public void onCancel(DialogInterface dialog) {
@@ -661,9 +644,19 @@ public class MultiPickContactActivity extends ListActivity implements
                 if (isSearchMode()) {
                     exitSearchMode(true);
                 }
+                if (mSelectAll) {
+                    if (mSelectAllTask == null) {
+                        mSelectAllTask = new SelectAllTask();
+                        mSelectAllTask.execute();
+                    }
+                    break;
+                }
                 if (mMode == MODE_DEFAULT_CONTACT) {
                     if (SimContactsConstants.ACTION_MULTI_PICK.equals(getIntent().getAction())) {
-                        if (mChoiceSet.size() > MAX_CONTACTS_NUM_TO_SELECT_ONCE) {
+                        // the selection of this app is returned through ChoiceSetProvider, it
+                        // is only limited for other apps.
+                        if (!isInternalCaller()
+                                && mChoiceSet.size() > MAX_CONTACTS_NUM_TO_SELECT_ONCE) {
                             Toast.makeText(
                                     mContext,
                                     mContext.getString(R.string.too_many_contacts_add_to_group,
@@ -673,7 +666,13 @@ public class MultiPickContactActivity extends ListActivity implements
                             switch (getIntent().getIntExtra(ADD_MOVE_GROUP_MEMBER_KEY,
                                     ACTION_DEFAULT_VALUE)) {
                                 case ACTION_ADD_GROUP_MEMBER:
-                                    this.setResult(RESULT_OK, new Intent().putExtras(mChoiceSet));
+                                    Intent memberIntent = new Intent();
+                                    if (isInternalCaller()) {
+                                        ChoiceSetProvider.putResult(memberIntent, mChoiceSet);
+                                    } else {
+                                        memberIntent.putExtras(mChoiceSet.toBundle());
+                                    }
+                                    this.setResult(RESULT_OK, memberIntent);
                                     finish();
                                     break;
                                 case ACTION_MOVE_GROUP_MEMBER:
@@ -684,9 +683,14 @@ public class MultiPickContactActivity extends ListActivity implements
                                     break;
                                 default:
                                     Intent intent = new Intent();
-                                    Bundle bundle = new Bundle();
-                                    bundle.putBundle(SimContactsConstants.RESULT_KEY, mChoiceSet);
-                                    intent.putExtras(bundle);
+                                    if (isInternalCaller()) {
+                                        ChoiceSetProvider.putResult(intent, mChoiceSet);
+                                    } else {
+                                        Bundle bundle = new Bundle();
+                                        bundle.putBundle(SimContactsConstants.RESULT_KEY,
+                                                mChoiceSet.toBundle());
+                                        intent.putExtras(bundle);
+                                    }
                                     this.setResult(RESULT_OK, intent);
                                     finish();
                             }
@@ -697,7 +701,7 @@ public class MultiPickContactActivity extends ListActivity implements
                 } else if (mMode == MODE_DEFAULT_PHONE) {
                     Intent intent = new Intent();
                     Bundle bundle = new Bundle();
-                    bundle.putBundle(SimContactsConstants.RESULT_KEY, mChoiceSet);
+                    bundle.putBundle(SimContactsConstants.RESULT_KEY, mChoiceSet.toBundle());
                     intent.putExtras(bundle);
                     this.setResult(RESULT_OK, intent);
                     finish();
@@ -708,7 +712,7 @@ public class MultiPickContactActivity extends ListActivity implements
                 } else if (mMode == MODE_DEFAULT_EMAIL) {
                     Intent intent = new Intent();
                     Bundle bundle = new Bundle();
-                    bundle.putBundle(SimContactsConstants.RESULT_KEY, mChoiceSet);
+                    bundle.putBundle(SimContactsConstants.RESULT_KEY, mChoiceSet.toBundle());
                     intent.putExtras(bundle);
                     this.setResult(RESULT_OK, intent);
                     finish();
@@ -717,7 +721,8 @@ public class MultiPickContactActivity extends ListActivity implements
                         if (mSelectCallLog) {
                             Intent intent = new Intent();
                             Bundle bundle = new Bundle();
-                            bundle.putBundle(SimContactsConstants.RESULT_KEY, mChoiceSet);
+                            bundle.putBundle(SimContactsConstants.RESULT_KEY,
+                                    mChoiceSet.toBundle());
                             intent.putExtras(bundle);
                             this.setResult(RESULT_OK, intent);
                             finish();
@@ -751,6 +756,10 @@ public class MultiPickContactActivity extends ListActivity implements
     @Override
     public void onDestroy() {
         mQueryHandler.removeCallbacksAndMessages(QUERY_TOKEN);
+        if (mSelectAllTask != null) {
+            mSelectAllTask.cancel(true);
+            mSelectAllTask = null;
+        }
         if (mAdapter.getCursor() != null) {
             mAdapter.getCursor().close();
         }
@@ -991,6 +1000,18 @@ public class MultiPickContactActivity extends ListActivity implements
     }
 
     public void startQuery() {
+        Uri uri = getDefaultQueryUri();
+        String[] projection = getProjectionForQuery();
+        String selection = getSelectionForQuery();
+        String[] selectionArgs = getSelectionArgsForQuery();
+        mQueryHandler.startQuery(QUERY_TOKEN, null, uri, projection, selection,
+                selectionArgs, getSortOrder(projection));
+    }
+
+    /**
+     * @return the uri of the unfiltered list.
+     */
+    private Uri getDefaultQueryUri() {
         Uri uri = getUriToQuery();
         ContactListFilter filter = (ContactListFilter) getIntent().getParcelableExtra(
                           AccountFilterActivity.KEY_EXTRA_CONTACT_LIST_FILTER);
@@ -1012,11 +1033,7 @@ public class MultiPickContactActivity extends ListActivity implements
                 }
             }
         }
-        String[] projection = getProjectionForQuery();
-        String selection = getSelectionForQuery();
-        String[] selectionArgs = getSelectionArgsForQuery();
-        mQueryHandler.startQuery(QUERY_TOKEN, null, uri, projection, selection,
-                selectionArgs, getSortOrder(projection));
+        return uri;
     }
 
     @Override
@@ -1088,74 +1105,15 @@ public class MultiPickContactActivity extends ListActivity implements
         return mMode == MODE_DEFAULT_CALL || mMode == MODE_SEARCH_CALL;
     }
 
+    /**
+     * Selects or clears every row of the unfiltered list. Nothing is read from the cursor, the
+     * selected rows are only read when the selection is used, see {@link SelectAllTask}.
+     */
     private void selectAll(boolean isSelected) {
-        // update mChoiceSet.
-        // TODO: make it more efficient
-        Cursor cursor = mAdapter.getCursor();
-        if (cursor == null) {
-            log("cursor is null.");
-            return;
-        }
-
-        cursor.moveToPosition(-1);
-        while (cursor.moveToNext()) {
-            String id = null;
-            String[] value = null;
-            if (isPickContact()) {
-                id = String.valueOf(cursor.getLong(SUMMARY_ID_COLUMN_INDEX));
-                value = new String[] {
-                        cursor.getString(SUMMARY_LOOKUP_KEY_COLUMN_INDEX), id,
-                        cursor.getString(cursor.getColumnIndex(Contacts.NAME_RAW_CONTACT_ID)),
-                        cursor.getString(cursor.getColumnIndex(Contacts.PHOTO_THUMBNAIL_URI)),
-                        cursor.getString(SUMMARY_DISPLAY_NAME_PRIMARY_COLUMN_INDEX)
-                };
-            } else if (isPickPhone()) {
-                id = String.valueOf(cursor.getLong(PHONE_COLUMN_ID));
-                String name = cursor.getString(PHONE_COLUMN_DISPLAY_NAME);
-                String number = cursor.getString(PHONE_COLUMN_NUMBER);
-                String type = String.valueOf(cursor.getInt(PHONE_COLUMN_TYPE));
-                String label = cursor.getString(PHONE_COLUMN_LABEL);
-                String contact_id = String.valueOf(cursor.getLong(PHONE_COLUMN_CONTACT_ID));
-                value = new String[] {
-                        name, number, type, label, contact_id
-                };
-            } else if (isPickEmail()) {
-                id = String.valueOf(cursor.getLong(EMAIL_COLUMN_ID));
-                String name = cursor.getString(EMAIL_COLUMN_DISPLAY_NAME);
-                String email = cursor.getString(EMAIL_COLUMN_ADDRESS);
-                value = new String[] {
-                        name, email, id
-                };
-            } else if (isPickCall()) {
-                if (mSelectCallLog) {
-                    id = String.valueOf(cursor.getLong(CALL_LOG_ID_COLUMN_INDEX));
-                    String number = cursor.getString(CALL_LOG_NUMBER_COLUMN_INDEX);
-                    String name = cursor.getString(CALL_LOG_CALLER_NAME_COLUMN_INDEX);
-                    value = new String[] {
-                            name, number
-                    };
-                } else {
-                    id = String.valueOf(cursor.getLong(CALL_LOG_ID_COLUMN_INDEX));
-                    value = new String[] {
-                            id
-                    };
-                }
-            } else if (isPickSim()) {
-                id = String.valueOf(cursor.getLong(SIM_COLUMN_ID));
-                String name = cursor.getString(SIM_COLUMN_DISPLAY_NAME);
-                String number = cursor.getString(SIM_COLUMN_NUMBER);
-                String email = cursor.getString(SIM_COLUMN_EMAILS);
-                String anrs = cursor.getString(SIM_COLUMN_ANRS);
-                value = new String[] {
-                        name, number, email, anrs, id
-                };
-            }
-            if (isSelected) {
-                mChoiceSet.putStringArray(id, value);
-            } else {
-                mChoiceSet.remove(id);
-            }
-        }
+        mChoiceSet.clear();
+        mExcludedSet.clear();
+        mSelectAll = isSelected;
+        mSelectAllCount = isSelected ? mAdapter.getCount() : 0;
 
         // update UI items.
         mOKButton.setText(getOKString());
@@ -1168,6 +1126,137 @@ public class MultiPickContactActivity extends ListActivity implements
         }
     }
 
+    private boolean isSelected(long id) {
+        return mSelectAll ? !mExcludedSet.containsKey(id) : mChoiceSet.containsKey(id);
+    }
+
+    private int getSelectedCount() {
+        return mSelectAll ? Math.max(mSelectAllCount - mExcludedSet.size(), 0)
+                : mChoiceSet.size();
+    }
+
+    /**
+     * Reads the rows selected by {@link #selectAll} into mChoiceSet, then handles the click on
+     * the ok button again.
+     */
+    private class SelectAllTask extends AsyncTask<Void, Void, ChoiceSet> {
+        private final int mTaskMode = mMode;
+        private final boolean mTaskSelectCallLog = mSelectCallLog;
+        private final ChoiceSet mExcluded = mExcludedSet.snapshot();
+        private final Uri mUri = getDefaultQueryUri();
+        private final String[] mProjection = getProjectionForQuery();
+        private final String mSelection = getSelectionForQuery();
+        private final String[] mSelectionArgs = getSelectionArgsForQuery();
+        private final String mSortOrder = isPickSim() ? getSortOrder(mProjection)
+                : BaseColumns._ID;
+
+        @Override
+        protected void onPreExecute() {
+            mOKButton.setEnabled(false);
+        }
+
+        @Override
+        protected ChoiceSet doInBackground(Void... params) {
+            final ChoiceSet choiceSet = new ChoiceSet();
+            final Cursor cursor = getContentResolver().query(mUri, mProjection, mSelection,
+                    mSelectionArgs, mSortOrder);
+            if (cursor == null) {
+                return choiceSet;
+            }
+            try {
+                final int rawContactIdColumn = cursor.getColumnIndex(
+                        Contacts.NAME_RAW_CONTACT_ID);
+                final int photoUriColumn = cursor.getColumnIndex(Contacts.PHOTO_THUMBNAIL_URI);
+                while (!isCancelled() && cursor.moveToNext()) {
+                    long id = getRowId(cursor);
+                    if (!mExcluded.containsKey(id)) {
+                        choiceSet.put(id, getRowValue(cursor, id, rawContactIdColumn,
+                                photoUriColumn));
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+            return choiceSet;
+        }
+
+        @Override
+        protected void onPostExecute(ChoiceSet choiceSet) {
+            mSelectAllTask = null;
+            if (isFinishing()) {
+                return;
+            }
+            mSelectAll = false;
+            mExcludedSet.clear();
+            mChoiceSet = choiceSet;
+            mOKButton.setText(getOKString());
+            onClick(mOKButton);
+        }
+
+        private long getRowId(Cursor cursor) {
+            switch (mTaskMode) {
+                case MODE_DEFAULT_CONTACT:
+                    return cursor.getLong(SUMMARY_ID_COLUMN_INDEX);
+                case MODE_DEFAULT_PHONE:
+                    return cursor.getLong(PHONE_COLUMN_ID);
+                case MODE_DEFAULT_EMAIL:
+                    return cursor.getLong(EMAIL_COLUMN_ID);
+                case MODE_DEFAULT_CALL:
+                    return cursor.getLong(CALL_LOG_ID_COLUMN_INDEX);
+                case MODE_DEFAULT_SIM:
+                    return cursor.getLong(SIM_COLUMN_ID);
+                default:
+                    throw new IllegalArgumentException("getRowId: Incorrect mode: " + mTaskMode);
+            }
+        }
+
+        private String[] getRowValue(Cursor cursor, long rowId, int rawContactIdColumn,
+                int photoUriColumn) {
+            final String id = String.valueOf(rowId);
+            switch (mTaskMode) {
+                case MODE_DEFAULT_CONTACT:
+                    return new String[] {
+                            cursor.getString(SUMMARY_LOOKUP_KEY_COLUMN_INDEX), id,
+                            cursor.getString(rawContactIdColumn),
+                            cursor.getString(photoUriColumn),
+                            cursor.getString(SUMMARY_DISPLAY_NAME_PRIMARY_COLUMN_INDEX)
+                    };
+                case MODE_DEFAULT_PHONE:
+                    return new String[] {
+                            cursor.getString(PHONE_COLUMN_DISPLAY_NAME),
+                            cursor.getString(PHONE_COLUMN_NUMBER),
+                            String.valueOf(cursor.getInt(PHONE_COLUMN_TYPE)),
+                            cursor.getString(PHONE_COLUMN_LABEL),
+                            String.valueOf(cursor.getLong(PHONE_COLUMN_CONTACT_ID))
+                    };
+                case MODE_DEFAULT_EMAIL:
+                    return new String[] {
+                            cursor.getString(EMAIL_COLUMN_DISPLAY_NAME),
+                            cursor.getString(EMAIL_COLUMN_ADDRESS), id
+                    };
+                case MODE_DEFAULT_CALL:
+                    if (mTaskSelectCallLog) {
+                        return new String[] {
+                                cursor.getString(CALL_LOG_CALLER_NAME_COLUMN_INDEX),
+                                cursor.getString(CALL_LOG_NUMBER_COLUMN_INDEX)
+                        };
+                    }
+                    return new String[] {
+                            id
+                    };
+                case MODE_DEFAULT_SIM:
+                    return new String[] {
+                            cursor.getString(SIM_COLUMN_DISPLAY_NAME),
+                            cursor.getString(SIM_COLUMN_NUMBER),
+                            cursor.getString(SIM_COLUMN_EMAILS),
+                            cursor.getString(SIM_COLUMN_ANRS), id
+                    };
+                default:
+                    return null;
+            }
+        }
+    }
+
     private class QueryHandler extends AsyncQueryHandler {
         protected WeakReference<MultiPickContactActivity> mActivity;
 
@@ -1376,7 +1465,7 @@ public class MultiPickContactActivity extends ListActivity implements
             }
 
             CheckBox checkBox = (CheckBox) view.findViewById(R.id.pick_contact_check);
-            if (mChoiceSet.containsKey(String.valueOf(cache.id))) {
+            if (isSelected(cache.id)) {
                 checkBox.setChecked(true);
             } else {
                 checkBox.setChecked(false);
@@ -1429,7 +1518,11 @@ public class MultiPickContactActivity extends ListActivity implements
                 } else {
                     mSelectAllLabel.setEnabled(true);
                     mSelectAllCheckBox.setClickable(true);
-                    if (cursor.getCount() > mChoiceSet.size()) {
+                    if (mSelectAll) {
+                        mSelectAllCount = cursor.getCount();
+                        mOKButton.setText(getOKString());
+                    }
+                    if (cursor.getCount() > getSelectedCount()) {
                         mSelectAllCheckBox.setChecked(false);
                     } else {
                         mSelectAllCheckBox.setChecked(true);
@@ -1502,11 +1595,15 @@ public class MultiPickContactActivity extends ListActivity implements
 
     private class ImportAllSimContactsThread extends Thread
             implements OnCancelListener, DialogInterface.OnClickListener {
-        boolean mCanceled = false;
+        volatile boolean mCanceled = false;
         // The total count how many to import.
         private int mTotalCount = 0;
         // The real count have imported.
-        private int mActualCount = 0;
+        private volatile int mActualCount = 0;
+        // The count of rows imported before the first failed batch, where a cancelled import
+        // resumes. Only used by the importer writer thread.
+        private int mCheckpoint = 0;
+        private boolean mImportFailed = false;
 
         private Account mAccount;
 
@@ -1515,43 +1612,85 @@ public class MultiPickContactActivity extends ListActivity implements
 
         @Override
         public void run() {
-            final ContentValues emptyContentValues = new ContentValues();
-            final ContentResolver resolver = mContext.getContentResolver();
-
             String type = getIntent().getStringExtra(SimContactsConstants.ACCOUNT_TYPE);
             String name = getIntent().getStringExtra(SimContactsConstants.ACCOUNT_NAME);
             mAccount = new Account(name != null ? name : SimContactsConstants.PHONE_NAME,
                     type != null ? type
                             : SimContactsConstants.ACCOUNT_TYPE_PHONE);
             log("import sim contact to account: " + mAccount);
-            mTotalCount = mChoiceSet.size();
-            ArrayList<ContentProviderOperation> operationList =
-                    new ArrayList<ContentProviderOperation>();
-
-            for (String key : mChoiceSet.keySet()) {
-                if (mCanceled) {
-                    if (operationList.size() > 0) {
-                        doApplyBatch(operationList, resolver);
+
+            // The mChoiceSet object will change when activity restart, but
+            // ImportAllSimContactsThread running in background, so we need a snapshot
+            // of the choiceSet.
+            final ChoiceSet choiceSet = mChoiceSet.snapshot();
+            mTotalCount = choiceSet.size();
+            final ArrayList<String[]> rows = new ArrayList<String[]>(mTotalCount);
+            for (int i = 0; i < choiceSet.size(); i++) {
+                rows.add(choiceSet.valueAt(i));
+            }
+
+            // Resume where a cancelled import of the same contacts stopped.
+            final SharedPreferences prefs = getSharedPreferences(SIM_IMPORT_PREFERENCES,
+                    Context.MODE_PRIVATE);
+            final String signature = getImportSignature(choiceSet);
+            int position = 0;
+            if (signature.equals(prefs.getString(KEY_IMPORT_SIGNATURE, null))) {
+                position = Math.min(prefs.getInt(KEY_IMPORT_POSITION, 0), mTotalCount);
+                log("resume sim contacts import at " + position);
+            }
+            mActualCount = position;
+            mProgressDialog.incrementProgressBy(position);
+            mCheckpoint = position;
+
+            final SimContactsImporter importer = new SimContactsImporter(
+                    mContext.getContentResolver(), mAccount);
+            // Contacts already in the account are merged instead of duplicated.
+            importer.setMergeExisting(true);
+            importer.importContacts(rows, position, new SimContactsImporter.Callback() {
+                @Override
+                public boolean isCancelled() {
+                    return mCanceled;
+                }
+
+                @Override
+                public void onProgress(int count) {
+                    mActualCount += count;
+                    mProgressDialog.incrementProgressBy(count);
+                    if (!mImportFailed) {
+                        mCheckpoint += count;
+                        prefs.edit().putString(KEY_IMPORT_SIGNATURE, signature)
+                                .putInt(KEY_IMPORT_POSITION, mCheckpoint).apply();
                     }
-                    break;
                 }
-                String[] values = mChoiceSet.getStringArray(key);
-                int firstBatch = operationList.size();
-                buildSimContentProviderOperationList(
-                        values, resolver, mAccount, firstBatch, operationList);
-                int size = operationList.size();
-                if (size > 0 && BUFFER_LENGTH - size < 10) {
-                    doApplyBatch(operationList, resolver);
+
+                @Override
+                public void onFailure(int count) {
+                    mImportFailed = true;
+                    mProgressDialog.incrementProgressBy(count);
+                    prefs.edit().putString(KEY_IMPORT_SIGNATURE, signature)
+                            .putInt(KEY_IMPORT_POSITION, mCheckpoint).apply();
                 }
-                mActualCount++;
-                mProgressDialog.incrementProgressBy(1);
-            }
-            if (operationList.size() > 0) {
-                doApplyBatch(operationList, resolver);
+            });
+            if (mActualCount >= mTotalCount) {
+                prefs.edit().clear().apply();
             }
             finish();
         }
 
+        /**
+         * @return a string identifying the imported contacts and the target account.
+         */
+        private String getImportSignature(ChoiceSet choiceSet) {
+            int hash = 1;
+            for (int i = 0; i < choiceSet.size(); i++) {
+                long key = choiceSet.keyAt(i);
+                hash = 31 * hash + (int) (key ^ (key >>> 32));
+            }
+            return mAccount.type + "/" + mAccount.name + "/"
+                    + getIntent().getIntExtra(SimContactsConstants.SLOT_KEY, -1) + "/"
+                    + choiceSet.size() + "/" + Integer.toHexString(hash);
+        }
+
         public void onCancel(DialogInterface dialog) {
             mCanceled = true;
             // Give a toast show to tell user import termination.
@@ -1571,91 +1710,6 @@ public class MultiPickContactActivity extends ListActivity implements
         }
     }
 
-    private static void doApplyBatch(ArrayList<ContentProviderOperation> operationList,
-                ContentResolver resolver) {
-        try {
-            resolver.applyBatch(ContactsContract.AUTHORITY, operationList);
-        } catch (Exception e) {
-            Log.w(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
-        } finally {
-            operationList.clear();
-        }
-    }
-
-    private static void buildSimContentProviderOperationList(
-            String[] values, final ContentResolver resolver, Account account,
-            int backReference, ArrayList<ContentProviderOperation> operationList) {
-        final String name = values[SIM_COLUMN_DISPLAY_NAME];
-        final String phoneNumber = values[SIM_COLUMN_NUMBER];
-        final String emailAddresses = values[SIM_COLUMN_EMAILS];
-        final String anrs = values[SIM_COLUMN_ANRS];
-        final String[] emailAddressArray;
-        final String[] anrArray;
-        if (!TextUtils.isEmpty(emailAddresses)) {
-            emailAddressArray = emailAddresses.split(",");
-        } else {
-            emailAddressArray = null;
-        }
-        if (!TextUtils.isEmpty(anrs)) {
-            anrArray = anrs.split(SimContactsConstants.ANR_SEP);
-        } else {
-            anrArray = null;
-        }
-        log(" actuallyImportOneSimContact: name= " + name +
-                ", phoneNumber= " + phoneNumber + ", emails= " + emailAddresses
-                + ", anrs= " + anrs + ", account is " + account
-                + ", backReference=" + backReference);
-        ContentProviderOperation.Builder builder =
-                ContentProviderOperation.newInsert(RawContacts.CONTENT_URI);
-        builder.withValue(RawContacts.AGGREGATION_MODE, RawContacts.AGGREGATION_MODE_SUSPENDED);
-        if (account != null) {
-            builder.withValue(RawContacts.ACCOUNT_NAME, account.name);
-            builder.withValue(RawContacts.ACCOUNT_TYPE, account.type);
-        }
-        operationList.add(builder.build());
-
-        if (!TextUtils.isEmpty(name)) {
-            builder = ContentProviderOperation.newInsert(Data.CONTENT_URI);
-            builder.withValueBackReference(StructuredName.RAW_CONTACT_ID, backReference);
-            builder.withValue(Data.MIMETYPE, StructuredName.CONTENT_ITEM_TYPE);
-            builder.withValue(StructuredName.DISPLAY_NAME, name);
-            operationList.add(builder.build());
-        }
-
-        if (!TextUtils.isEmpty(phoneNumber)) {
-            builder = ContentProviderOperation.newInsert(Data.CONTENT_URI);
-            builder.withValueBackReference(Phone.RAW_CONTACT_ID, backReference);
-            builder.withValue(Data.MIMETYPE, Phone.CONTENT_ITEM_TYPE);
-            builder.withValue(Phone.TYPE, Phone.TYPE_MOBILE);
-            builder.withValue(Phone.NUMBER, phoneNumber);
-            builder.withValue(Data.IS_PRIMARY, 1);
-            operationList.add(builder.build());
-        }
-
-        if (anrArray != null) {
-            for (String anr : anrArray) {
-                builder = ContentProviderOperation.newInsert(Data.CONTENT_URI);
-                builder.withValueBackReference(Phone.RAW_CONTACT_ID, backReference);
-                builder.withValue(Data.MIMETYPE, Phone.CONTENT_ITEM_TYPE);
-                builder.withValue(Phone.TYPE, Phone.TYPE_HOME);
-                builder.withValue(Phone.NUMBER, anr);
-                operationList.add(builder.build());
-            }
-        }
-
-        if (emailAddresses != null) {
-            for (String emailAddress : emailAddressArray) {
-                builder = ContentProviderOperation.newInsert(Data.CONTENT_URI);
-                builder.withValueBackReference(Email.RAW_CONTACT_ID, backReference);
-                builder.withValue(Data.MIMETYPE, Email.CONTENT_ITEM_TYPE);
-                builder.withValue(Email.TYPE, Email.TYPE_MOBILE);
-                builder.withValue(Email.ADDRESS, emailAddress);
-                operationList.add(builder.build());
-            }
-        }
-
-    }
-
     /**
      * After turn on airplane mode, cancel import sim contacts operation.
      */
@@ -1715,7 +1769,7 @@ public class MultiPickContactActivity extends ListActivity implements
 
     private class ChooseActionListener implements DialogInterface.OnClickListener {
         public void onClick(DialogInterface dialog, int which) {
-            new MoveGroupMemberTask(mChoiceSet,
+            new MoveGroupMemberTask(mChoiceSet.snapshot(),
                     getIntent().getLongExtra(KEY_GROUP_ID, -1),
                     mGroupIds.get(which)).execute();
         }
@@ -1737,16 +1791,15 @@ public class MultiPickContactActivity extends ListActivity implements
                 + GroupMembership.GROUP_ROW_ID
                 + "=?";
 
-        private Bundle mChoiceSet;
+        private ChoiceSet mChoiceSet;
         private long mDestGroupId;
         private long mSrcGroupId;
         private boolean mCanceled = false;
 
-        private ArrayList<ContentProviderOperation> mAddOrMoveOperation;
-        private ArrayList<ContentProviderOperation> mDeleteOperation;
+        private BatchOperationExecutor mExecutor;
         private ArrayList<String> mGroupMemberList = new ArrayList<String>();
 
-        public MoveGroupMemberTask(Bundle choiceSet,
+        public MoveGroupMemberTask(ChoiceSet choiceSet,
                 long srcGroupId, long destGroupId) {
             mChoiceSet = choiceSet;
             mSrcGroupId = srcGroupId;
@@ -1759,7 +1812,7 @@ public class MultiPickContactActivity extends ListActivity implements
             mProgressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
             mProgressDialog.setTitle(getProgressDialogTitle());
             mProgressDialog.setMessage(getProgressDialogMessage());
-            mProgressDialog.setMax(mChoiceSet != null ? mChoiceSet.keySet().size() : 100);
+            mProgressDialog.setMax(mChoiceSet != null ? mChoiceSet.size() : 100);
             mProgressDialog.setProgress(0);
             mProgressDialog.setCanceledOnTouchOutside(false);
             mProgressDialog.setOnCancelListener(new OnCancelListener() {
@@ -1803,18 +1856,14 @@ public class MultiPickContactActivity extends ListActivity implements
                 }
             }
 
-            Set<String> keySet = mChoiceSet.keySet();
-            Iterator<String> it = keySet.iterator();
-
             ContentProviderOperation.Builder builder;
 
-            mAddOrMoveOperation = new ArrayList<ContentProviderOperation>();
-            mDeleteOperation = new ArrayList<ContentProviderOperation>();
+            mExecutor = new BatchOperationExecutor(resolver, ContactsContract.AUTHORITY);
             String id;
             int count = 0;
-            int maxSize = mChoiceSet.keySet().size();
-            while (!mCanceled && it.hasNext()) {
-                id = it.next();
+            int maxSize = mChoiceSet.size();
+            for (int i = 0; !mCanceled && i < maxSize; i++) {
+                id = String.valueOf(mChoiceSet.keyAt(i));
                 ++count;
 
                 if (mDestGroupId <= 0) {
@@ -1836,7 +1885,7 @@ public class MultiPickContactActivity extends ListActivity implements
                             GroupMembership.CONTENT_ITEM_TYPE,
                             String.valueOf(mSrcGroupId)
                     });
-                    mDeleteOperation.add(builder.build());
+                    mExecutor.add(builder);
                     continue;
                 }
                 ContentValues values = new ContentValues();
@@ -1849,33 +1898,10 @@ public class MultiPickContactActivity extends ListActivity implements
                                 String.valueOf(mSrcGroupId)
                         });
                 builder.withValues(values);
-                mAddOrMoveOperation.add(builder.build());
+                mExecutor.add(builder);
             }
 
-            if (mDeleteOperation.size() > 0) {
-                if (mDeleteOperation.size() > BUFFER_LENGTH) {
-                    addOrMoveApplyBatchByBuffer(mDeleteOperation, resolver);
-                } else {
-                    try {
-                        resolver.applyBatch(ContactsContract.AUTHORITY, mDeleteOperation);
-                    } catch (RemoteException e) {
-                        e.printStackTrace();
-                    } catch (OperationApplicationException e) {
-                        e.printStackTrace();
-                    }
-                }
-            }
-            if (mAddOrMoveOperation.size() > BUFFER_LENGTH) {
-                addOrMoveApplyBatchByBuffer(mAddOrMoveOperation, resolver);
-            } else {
-                try {
-                    resolver.applyBatch(ContactsContract.AUTHORITY, mAddOrMoveOperation);
-                } catch (RemoteException e) {
-                    e.printStackTrace();
-                } catch (OperationApplicationException e) {
-                    e.printStackTrace();
-                }
-            }
+            mExecutor.flush();
             return null;
         }
 
@@ -1887,33 +1913,6 @@ public class MultiPickContactActivity extends ListActivity implements
             }
         }
 
-        private void addOrMoveApplyBatchByBuffer(ArrayList<ContentProviderOperation> list,
-                ContentResolver cr) {
-            final ArrayList<ContentProviderOperation> temp
-                = new ArrayList<ContentProviderOperation>(BUFFER_LENGTH);
-            int bufferSize = list.size() / BUFFER_LENGTH;
-            for (int index = 0; index <= bufferSize; index++) {
-                temp.clear();
-                if (index == bufferSize) {
-                    for (int i = index * BUFFER_LENGTH; i < list.size(); i++) {
-                        temp.add(list.get(i));
-                    }
-                } else {
-                    for (int i = index * BUFFER_LENGTH;
-                            i < index * BUFFER_LENGTH + BUFFER_LENGTH; i++) {
-                        temp.add(list.get(i));
-                    }
-                }
-                if (!temp.isEmpty()) {
-                    try {
-                        cr.applyBatch(ContactsContract.AUTHORITY, temp);
-                    } catch (Exception e) {
-                        Log.e(TAG, "apply batch by buffer error:" + e);
-                    }
-                }
-            }
-        }
-
         private String getProgressDialogTitle() {
             return getString(R.string.title_move_members);
         }
@@ -47,7 +47,6 @@ import android.content.DialogInterface.OnCancelListener;
 import android.content.DialogInterface.OnClickListener;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.graphics.drawable.ColorDrawable;
 import android.net.Uri;
@@ -56,7 +55,6 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
 import android.os.Environment;
-import android.os.RemoteException;
 import android.provider.CallLog;
 import android.provider.CallLog.Calls;
 import android.provider.ContactsContract;
@@ -104,6 +102,10 @@ import com.android.contacts.multipicker.SearchFragment;
 import com.android.contacts.list.ContactsPickMode;
 import com.android.contacts.list.OnCheckListActionListener;
 import com.android.contacts.R;
+import com.android.contacts.util.BatchOperationExecutor;
+import com.android.contacts.util.ChoiceSet;
+import com.android.contacts.util.ChoiceSetProvider;
+import com.android.contacts.util.SimContactsImporter;
 import com.android.vcard.VCardComposer;
 import com.android.vcard.VCardConfig;
 
@@ -120,7 +122,6 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -184,10 +185,10 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
     private static final String CONTACT_SEP_RIGHT = "]";
 
     // contains data ids
-    private Bundle mChoiceSet;
+    private ChoiceSet mChoiceSet;
     // contains call log ids
-    private Bundle mChoiceNumberSet;
-    private Bundle mBackupChoiceSet;
+    private ChoiceSet mChoiceNumberSet;
+    private ChoiceSet mBackupChoiceSet;
 
     private TextView mOKButton;
     private LinearLayout mButton_view;
@@ -218,8 +219,6 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
 
     private int MAX_CONTACTS_NUM_TO_GROUP = 100;
 
-    private static final int BUFFER_LENGTH = 400;
-
     public class ViewPagerAdapter extends FragmentPagerAdapter {
 
         public ViewPagerAdapter(FragmentManager fm) {
@@ -348,7 +347,7 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
 
         setContentView(R.layout.multi_pick_activity);
 
-        mChoiceSet = new Bundle();
+        mChoiceSet = new ChoiceSet();
         mContext = getApplicationContext();
 
         Intent intent = getIntent();
@@ -363,7 +362,7 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
         mPickMode.setMode(getIntent());
 
         if (mPickMode.isPickPhone()) {
-            mChoiceNumberSet = new Bundle();
+            mChoiceNumberSet = new ChoiceSet();
             mGroupSelected = new ArrayList<Long>();
             mForSearchCallLog = new StringBuilder();
         }
@@ -513,12 +512,7 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
                     break;
                 case TAB_INDEX_GROUP:
                     checkNum = mGroupFragment.getAllCheckedListSize();
-                    Cursor allContactsInGroups = mGroupFragment.getAllContactsInGroups();
-                    if (allContactsInGroups == null) {
-                        num = 0;
-                    } else {
-                        num = allContactsInGroups.getCount();
-                    }
+                    num = mGroupFragment.getAllContactsInGroupsCount();
                     if (checkNum < num) {
                         selectAll = true;
                     }
@@ -549,12 +543,7 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
                         break;
                     case TAB_INDEX_GROUP:
                         checkNum = mGroupFragment.getAllCheckedListSize();
-                        Cursor allContactsInGroups = mGroupFragment.getAllContactsInGroups();
-                        if (allContactsInGroups == null) {
-                            num = 0;
-                        } else {
-                            num = allContactsInGroups.getCount();
-                        }
+                        num = mGroupFragment.getAllContactsInGroupsCount();
                         break;
                     default:
                         break;
@@ -613,38 +602,35 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
 
         @Override
         public boolean onContainsKey(String key) {
-            return mChoiceSet.containsKey(key);
+            return mChoiceSet.containsKey(Long.parseLong(key));
         }
 
         @Override
         public boolean onContainsNumberKey(String key) {
-            return mChoiceNumberSet.containsKey(key);
+            return mChoiceNumberSet.containsKey(Long.parseLong(key));
         }
 
         @Override
         public void putValue(String key, String[] value) {
-            mChoiceSet.putStringArray(key, value);
+            mChoiceSet.put(Long.parseLong(key), value);
             setOkStatus();
         }
 
         @Override
         public void putNumberValue(String key, String[] value) {
-            mChoiceNumberSet.putStringArray(key, value);
+            mChoiceNumberSet.put(Long.parseLong(key), value);
             setOkStatus();
         }
 
         @Override
         public void onRemove(String key) {
-            mChoiceSet.remove(key);
-            if (mPickMode.isPickPhone() && !TextUtils.isEmpty(key)) {
-                long id = Long.valueOf(key);
-            }
+            mChoiceSet.remove(Long.parseLong(key));
             setOkStatus();
         }
 
         @Override
         public void onNumberRemove(String key) {
-            mChoiceNumberSet.remove(key);
+            mChoiceNumberSet.remove(Long.parseLong(key));
             setOkStatus();
         }
 
@@ -863,8 +849,16 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
         }
     }
 
+    /**
+     * @return true if the picker was started by this app, which reads the selection from
+     * {@link ChoiceSetProvider} instead of from the result extras.
+     */
+    private boolean isInternalCaller() {
+        return getPackageName().equals(getCallingPackage());
+    }
+
     private void backupChoiceSet() {
-        mBackupChoiceSet = (Bundle) mChoiceSet.clone();
+        mBackupChoiceSet = mChoiceSet.snapshot();
     }
 
     private void restoreChoiceSet() {
@@ -985,9 +979,9 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
 
         boolean mCanceled = false;
 
-        private ArrayList<ContentProviderOperation> mOpsCalls = null;
+        private BatchOperationExecutor mCallsExecutor = null;
 
-        private ArrayList<ContentProviderOperation> mOpsContacts = null;
+        private BatchOperationExecutor mContactsExecutor = null;
 
         public DeleteContactsThread() {
         }
@@ -995,37 +989,24 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
         @Override
         public void run() {
             // The mChoiceSet object will change when activity restart, but
-            // DeleteContactsThread running in background, so we need clone the
-            // choiceSet to avoid ConcurrentModificationException.
-            Bundle choiceSet = (Bundle) mChoiceSet.clone();
-            Set<String> keySet = choiceSet.keySet();
-
-            Iterator<String> it = keySet.iterator();
+            // DeleteContactsThread running in background, so we need a snapshot
+            // of the choiceSet.
+            ChoiceSet choiceSet = mChoiceSet.snapshot();
 
-            android.content.ContentProviderOperation.Builder builder = null;
+            mCallsExecutor = new BatchOperationExecutor(mContext.getContentResolver(),
+                    CallLog.AUTHORITY);
+            mContactsExecutor = new BatchOperationExecutor(mContext.getContentResolver(),
+                    ContactsContract.AUTHORITY);
 
-            ContentProviderOperation cpo = null;
-
-            // Current contact count we can delete.
-            int count = 0;
-
-            // The contacts we batch delete once.
-            final int BATCH_DELETE_CONTACT_NUMBER = 100;
-
-            mOpsCalls = new ArrayList<ContentProviderOperation>();
-            mOpsContacts = new ArrayList<ContentProviderOperation>();
-
-            while (!mCanceled && it.hasNext()) {
+            for (int i = 0; !mCanceled && i < choiceSet.size(); i++) {
                 // Get value by key
-                String[] ids = choiceSet.getStringArray(it.next());
+                String[] ids = choiceSet.valueAt(i);
                 // Iterates ids array.
                 for (String id : ids) {
                     Uri uri = null;
                     if (mPickMode.isPickCall()) {
                         uri = Uri.withAppendedPath(Calls.CONTENT_URI, String.valueOf(id));
-                        builder = ContentProviderOperation.newDelete(uri);
-                        cpo = builder.build();
-                        mOpsCalls.add(cpo);
+                        mCallsExecutor.add(ContentProviderOperation.newDelete(uri));
                     } else {
                         uri = Uri.withAppendedPath(Contacts.CONTENT_URI, id);
                         long longId = Long.parseLong(id);
@@ -1042,51 +1023,23 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
                                 continue;
                             }
                         }
-                        builder = ContentProviderOperation.newDelete(uri);
-                        cpo = builder.build();
-                        mOpsContacts.add(cpo);
+                        mContactsExecutor.add(ContentProviderOperation.newDelete(uri));
                     }
                 }
-
-                // If contacts more than 2000, delete all contacts
-                // one by one will cause UI nonresponse.
                 mProgressDialog.incrementProgressBy(1);
-                // We batch delete contacts every 100.
-                if (count % BATCH_DELETE_CONTACT_NUMBER == 0) {
-                    batchDelete();
-                }
-                count++;
-            }
-
-            if (mCanceled) {
-                finish();
-                return;
             }
 
-            batchDelete();
-            mOpsCalls = null;
-            mOpsContacts = null;
+            // Apply the queued deletes even if cancelled: the sim contacts among them have
+            // already been deleted from their sim card.
+            mCallsExecutor.flush();
+            mContactsExecutor.flush();
+            mCallsExecutor = null;
+            mContactsExecutor = null;
             Log.d(TAG, "DeleteContactsThread run, progress:" + mProgressDialog.getProgress());
             mProgressDialog.dismiss();
             finish();
         }
 
-        /**
-         * Batch delete contacts more efficient than one by one.
-         */
-        private void batchDelete() {
-            try {
-                mContext.getContentResolver().applyBatch(CallLog.AUTHORITY, mOpsCalls);
-                mContext.getContentResolver().applyBatch(ContactsContract.AUTHORITY, mOpsContacts);
-                mOpsCalls.clear();
-                mOpsContacts.clear();
-            } catch (RemoteException e) {
-                e.printStackTrace();
-            } catch (OperationApplicationException e) {
-                e.printStackTrace();
-            }
-        }
-
         public void onCancel(DialogInterface dialog) {
             mCanceled = true;
             Log.d(TAG, "DeleteContactsThread onCancel, progress:" + mProgressDialog.getProgress());
@@ -1178,7 +1131,13 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
                                                 Toast.LENGTH_SHORT).show();
                                         return;
                                     }
-                                    this.setResult(RESULT_OK, new Intent().putExtras(mChoiceSet));
+                                    Intent memberIntent = new Intent();
+                                    if (isInternalCaller()) {
+                                        ChoiceSetProvider.putResult(memberIntent, mChoiceSet);
+                                    } else {
+                                        memberIntent.putExtras(mChoiceSet.toBundle());
+                                    }
+                                    this.setResult(RESULT_OK, memberIntent);
                                     finish();
                                     break;
                                 case ACTION_MOVE_GROUP_MEMBER:
@@ -1196,6 +1155,15 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
                                             getIntent().getLongExtra(KEY_GROUP_ID, -1));
                                     break;
                                 default:
+                                    // the selection of this app is returned through
+                                    // ChoiceSetProvider, it is only limited for other apps.
+                                    if (isInternalCaller()) {
+                                        Intent intent = new Intent();
+                                        ChoiceSetProvider.putResult(intent, mChoiceSet);
+                                        this.setResult(RESULT_OK, intent);
+                                        finish();
+                                        break;
+                                    }
                                     if (mChoiceSet.size() > MAX_CONTACTS_NUM_TO_SELECT_ONCE) {
                                         Toast.makeText(mContext,
                                                 mContext.getString(
@@ -1206,7 +1174,8 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
                                     }
                                     Intent intent = new Intent();
                                     Bundle bundle = new Bundle();
-                                    bundle.putBundle(SimContactsConstants.RESULT_KEY, mChoiceSet);
+                                    bundle.putBundle(SimContactsConstants.RESULT_KEY,
+                                            mChoiceSet.toBundle());
                                     intent.putExtras(bundle);
                                     this.setResult(RESULT_OK, intent);
                                     finish();
@@ -1217,9 +1186,9 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
                 } else if (mPickMode.isPickPhone()) {
                     Intent intent = new Intent();
                     Bundle bundle = new Bundle();
-                    bundle.putBundle(SimContactsConstants.RESULT_KEY, mChoiceSet);
+                    bundle.putBundle(SimContactsConstants.RESULT_KEY, mChoiceSet.toBundle());
                     bundle.putBundle(SimContactsConstants.RESULT_KEY_ONLY_NUMBER,
-                            mChoiceNumberSet);
+                            mChoiceNumberSet.toBundle());
                     intent.putExtras(bundle);
                     this.setResult(RESULT_OK, intent);
                     finish();
@@ -1230,7 +1199,7 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
                 } else if (mPickMode.isPickEmail()) {
                     Intent intent = new Intent();
                     Bundle bundle = new Bundle();
-                    bundle.putBundle(SimContactsConstants.RESULT_KEY, mChoiceSet);
+                    bundle.putBundle(SimContactsConstants.RESULT_KEY, mChoiceSet.toBundle());
                     intent.putExtras(bundle);
                     this.setResult(RESULT_OK, intent);
                     finish();
@@ -1239,7 +1208,8 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
                         if (mPickMode.isSelectCallLog()) {
                             Intent intent = new Intent();
                             Bundle bundle = new Bundle();
-                            bundle.putBundle(SimContactsConstants.RESULT_KEY, mChoiceSet);
+                            bundle.putBundle(SimContactsConstants.RESULT_KEY,
+                                    mChoiceSet.toBundle());
                             intent.putExtras(bundle);
                             this.setResult(RESULT_OK, intent);
                             finish();
@@ -1276,12 +1246,12 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
         }
     }
 
-    private String getLookupKey(Set<String> mSelectedIds) {
+    private String getLookupKey(ChoiceSet selectedIds) {
         StringBuilder sb = new StringBuilder();
         sb.append(Contacts._ID);
         sb.append(" IN ( ");
-        for (String contactId : mSelectedIds) {
-            sb.append(contactId);
+        for (int i = 0; i < selectedIds.size(); i++) {
+            sb.append(selectedIds.keyAt(i));
             sb.append(",");
         }
         sb.deleteCharAt(sb.length()-1);
@@ -1309,17 +1279,14 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
     }
 
     private String getSelectedContactVcard() {
-        Set<String> keySet = mChoiceSet.keySet();
         Uri uri = null;
         if (mChoiceSet.size() == 1) {
-            for (String key : keySet) {
-                // 1, represent lookupkey
-                String result = mChoiceSet.getStringArray(key)[1];
-                uri = Uri.withAppendedPath(Contacts.CONTENT_VCARD_URI, result);
-            }
+            // 1, represent lookupkey
+            String result = mChoiceSet.valueAt(0)[1];
+            uri = Uri.withAppendedPath(Contacts.CONTENT_VCARD_URI, result);
         } else {
             uri = Uri.withAppendedPath(Contacts.CONTENT_MULTI_VCARD_URI,
-                    Uri.encode(getLookupKey(keySet)));
+                    Uri.encode(getLookupKey(mChoiceSet)));
         }
         return uri.toString();
     }
@@ -1336,9 +1303,8 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
     }
 
     private String getSelectedContactInfo(HashMap<String, List<String[]>> map) {
-        Set<String> keySet = mChoiceSet.keySet();
-        for (String key : keySet) {
-            String[] value = mChoiceSet.getStringArray(key);
+        for (int i = 0; i < mChoiceSet.size(); i++) {
+            String[] value = mChoiceSet.valueAt(i);
             String contactId = value[0];
             if (map.containsKey(contactId)) {
                 map.get(contactId).add(value);
@@ -1396,11 +1362,11 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
 
     private class ImportAllSimContactsThread extends Thread
             implements OnCancelListener, DialogInterface.OnClickListener {
-        boolean mCanceled = false;
+        volatile boolean mCanceled = false;
         // The total count how many to import.
         private int mTotalCount = 0;
         // The real count have imported.
-        private int mActualCount = 0;
+        private volatile int mActualCount = 0;
 
         private Account mAccount;
 
@@ -1409,39 +1375,40 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
 
         @Override
         public void run() {
-            final ContentValues emptyContentValues = new ContentValues();
-            final ContentResolver resolver = mContext.getContentResolver();
-
             String type = getIntent().getStringExtra(SimContactsConstants.ACCOUNT_TYPE);
             String name = getIntent().getStringExtra(SimContactsConstants.ACCOUNT_NAME);
             mAccount = new Account(name != null ? name : SimContactsConstants.PHONE_NAME,
                     type != null ? type : SimContactsConstants.ACCOUNT_TYPE_PHONE);
             log("import sim contact to account: " + mAccount);
-            mTotalCount = mChoiceSet.size();
-            ArrayList<ContentProviderOperation> operationList =
-                    new ArrayList<ContentProviderOperation>();
-
-            for (String key : mChoiceSet.keySet()) {
-                if (mCanceled) {
-                    if (operationList.size() > 0) {
-                        doApplyBatch(operationList, resolver);
-                    }
-                    break;
-                }
-                String[] values = mChoiceSet.getStringArray(key);
-                int firstBatch = operationList.size();
-                buildSimContentProviderOperationList(values, resolver, mAccount, firstBatch,
-                        operationList);
-                int size = operationList.size();
-                if (size > 0 && BUFFER_LENGTH - size < 10) {
-                    doApplyBatch(operationList, resolver);
-                }
-                mActualCount++;
-                mProgressDialog.incrementProgressBy(1);
-            }
-            if (operationList.size() > 0) {
-                doApplyBatch(operationList, resolver);
+
+            // The mChoiceSet object will change when activity restart, but
+            // ImportAllSimContactsThread running in background, so we need a snapshot
+            // of the choiceSet.
+            final ChoiceSet choiceSet = mChoiceSet.snapshot();
+            mTotalCount = choiceSet.size();
+            final ArrayList<String[]> rows = new ArrayList<String[]>(mTotalCount);
+            for (int i = 0; i < choiceSet.size(); i++) {
+                rows.add(choiceSet.valueAt(i));
             }
+
+            new SimContactsImporter(mContext.getContentResolver(), mAccount).importContacts(rows,
+                    new SimContactsImporter.Callback() {
+                        @Override
+                        public boolean isCancelled() {
+                            return mCanceled;
+                        }
+
+                        @Override
+                        public void onProgress(int count) {
+                            mActualCount += count;
+                            mProgressDialog.incrementProgressBy(count);
+                        }
+
+                        @Override
+                        public void onFailure(int count) {
+                            mProgressDialog.incrementProgressBy(count);
+                        }
+                    });
             finish();
         }
 
@@ -1463,90 +1430,6 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
         }
     }
 
-    private static void doApplyBatch(ArrayList<ContentProviderOperation> operationList,
-            ContentResolver resolver) {
-        try {
-            resolver.applyBatch(ContactsContract.AUTHORITY, operationList);
-        } catch (Exception e) {
-            Log.w(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
-        } finally {
-            operationList.clear();
-        }
-    }
-
-    private static void buildSimContentProviderOperationList(String[] values,
-            final ContentResolver resolver, Account account, int backReference,
-            ArrayList<ContentProviderOperation> operationList) {
-        final String name = values[SIM_COLUMN_DISPLAY_NAME];
-        final String phoneNumber = values[SIM_COLUMN_NUMBER];
-        final String emailAddresses = values[SIM_COLUMN_EMAILS];
-        final String anrs = values[SIM_COLUMN_ANRS];
-        final String[] emailAddressArray;
-        final String[] anrArray;
-        if (!TextUtils.isEmpty(emailAddresses)) {
-            emailAddressArray = emailAddresses.split(",");
-        } else {
-            emailAddressArray = null;
-        }
-        if (!TextUtils.isEmpty(anrs)) {
-            anrArray = anrs.split(SimContactsConstants.ANR_SEP);
-        } else {
-            anrArray = null;
-        }
-        log(" actuallyImportOneSimContact: name= " + name + ", phoneNumber= " + phoneNumber
-                + ", emails= " + emailAddresses + ", anrs= " + anrs + ", account is " + account
-                + ", backReference=" + backReference);
-        ContentProviderOperation.Builder builder = ContentProviderOperation
-                .newInsert(RawContacts.CONTENT_URI);
-        builder.withValue(RawContacts.AGGREGATION_MODE, RawContacts.AGGREGATION_MODE_SUSPENDED);
-        if (account != null) {
-            builder.withValue(RawContacts.ACCOUNT_NAME, account.name);
-            builder.withValue(RawContacts.ACCOUNT_TYPE, account.type);
-        }
-        operationList.add(builder.build());
-
-        if (!TextUtils.isEmpty(name)) {
-            builder = ContentProviderOperation.newInsert(Data.CONTENT_URI);
-            builder.withValueBackReference(StructuredName.RAW_CONTACT_ID, backReference);
-            builder.withValue(Data.MIMETYPE, StructuredName.CONTENT_ITEM_TYPE);
-            builder.withValue(StructuredName.DISPLAY_NAME, name);
-            operationList.add(builder.build());
-        }
-
-        if (!TextUtils.isEmpty(phoneNumber)) {
-            builder = ContentProviderOperation.newInsert(Data.CONTENT_URI);
-            builder.withValueBackReference(Phone.RAW_CONTACT_ID, backReference);
-            builder.withValue(Data.MIMETYPE, Phone.CONTENT_ITEM_TYPE);
-            builder.withValue(Phone.TYPE, Phone.TYPE_MOBILE);
-            builder.withValue(Phone.NUMBER, phoneNumber);
-            builder.withValue(Data.IS_PRIMARY, 1);
-            operationList.add(builder.build());
-        }
-
-        if (anrArray != null) {
-            for (String anr : anrArray) {
-                builder = ContentProviderOperation.newInsert(Data.CONTENT_URI);
-                builder.withValueBackReference(Phone.RAW_CONTACT_ID, backReference);
-                builder.withValue(Data.MIMETYPE, Phone.CONTENT_ITEM_TYPE);
-                builder.withValue(Phone.TYPE, Phone.TYPE_HOME);
-                builder.withValue(Phone.NUMBER, anr);
-                operationList.add(builder.build());
-            }
-        }
-
-        if (emailAddresses != null) {
-            for (String emailAddress : emailAddressArray) {
-                builder = ContentProviderOperation.newInsert(Data.CONTENT_URI);
-                builder.withValueBackReference(Email.RAW_CONTACT_ID, backReference);
-                builder.withValue(Data.MIMETYPE, Email.CONTENT_ITEM_TYPE);
-                builder.withValue(Email.TYPE, Email.TYPE_MOBILE);
-                builder.withValue(Email.ADDRESS, emailAddress);
-                operationList.add(builder.build());
-            }
-        }
-
-    }
-
     /**
      * After turn on airplane mode, cancel import sim contacts operation.
      */
@@ -1607,8 +1490,8 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
 
     private class ChooseActionListener implements DialogInterface.OnClickListener {
         public void onClick(DialogInterface dialog, int which) {
-            new MoveGroupMemberTask(mChoiceSet, getIntent().getLongExtra(KEY_GROUP_ID, -1),
-                    mGroupIds.get(which)).execute();
+            new MoveGroupMemberTask(mChoiceSet.snapshot(),
+                    getIntent().getLongExtra(KEY_GROUP_ID, -1), mGroupIds.get(which)).execute();
         }
     }
 
@@ -1623,16 +1506,15 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
         private static final String GROUP_DELETE_MEMBER_SELECTION = Data.CONTACT_ID + "=? AND "
                 + Data.MIMETYPE + "=? AND " + GroupMembership.GROUP_ROW_ID + "=?";
 
-        private Bundle mChoiceSet;
+        private ChoiceSet mChoiceSet;
         private long mDestGroupId;
         private long mSrcGroupId;
         private boolean mCanceled = false;
 
-        private ArrayList<ContentProviderOperation> mAddOrMoveOperation;
-        private ArrayList<ContentProviderOperation> mDeleteOperation;
+        private BatchOperationExecutor mExecutor;
         private ArrayList<String> mGroupMemberList = new ArrayList<String>();
 
-        public MoveGroupMemberTask(Bundle choiceSet, long srcGroupId, long destGroupId) {
+        public MoveGroupMemberTask(ChoiceSet choiceSet, long srcGroupId, long destGroupId) {
             mChoiceSet = choiceSet;
             mSrcGroupId = srcGroupId;
             mDestGroupId = destGroupId;
@@ -1644,7 +1526,7 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
             mProgressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
             mProgressDialog.setTitle(getProgressDialogTitle());
             mProgressDialog.setMessage(getProgressDialogMessage());
-            mProgressDialog.setMax(mChoiceSet != null ? mChoiceSet.keySet().size() : 100);
+            mProgressDialog.setMax(mChoiceSet != null ? mChoiceSet.size() : 100);
             mProgressDialog.setProgress(0);
             mProgressDialog.setCanceledOnTouchOutside(false);
             mProgressDialog.setOnCancelListener(new OnCancelListener() {
@@ -1685,18 +1567,14 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
                 }
             }
 
-            Set<String> keySet = mChoiceSet.keySet();
-            Iterator<String> it = keySet.iterator();
-
             ContentProviderOperation.Builder builder;
 
-            mAddOrMoveOperation = new ArrayList<ContentProviderOperation>();
-            mDeleteOperation = new ArrayList<ContentProviderOperation>();
+            mExecutor = new BatchOperationExecutor(resolver, ContactsContract.AUTHORITY);
             String id;
             int count = 0;
-            int maxSize = mChoiceSet.keySet().size();
-            while (!mCanceled && it.hasNext()) {
-                id = it.next();
+            int maxSize = mChoiceSet.size();
+            for (int i = 0; !mCanceled && i < maxSize; i++) {
+                id = String.valueOf(mChoiceSet.keyAt(i));
                 ++count;
 
                 if (mDestGroupId <= 0) {
@@ -1716,7 +1594,7 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
                             id,
                             GroupMembership.CONTENT_ITEM_TYPE, String.valueOf(mSrcGroupId)
                     });
-                    mDeleteOperation.add(builder.build());
+                    mExecutor.add(builder);
                     continue;
                 }
                 ContentValues values = new ContentValues();
@@ -1727,33 +1605,10 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
                         GroupMembership.CONTENT_ITEM_TYPE, String.valueOf(mSrcGroupId)
                 });
                 builder.withValues(values);
-                mAddOrMoveOperation.add(builder.build());
+                mExecutor.add(builder);
             }
 
-            if (mDeleteOperation.size() > 0) {
-                if (mDeleteOperation.size() > BUFFER_LENGTH) {
-                    addOrMoveApplyBatchByBuffer(mDeleteOperation, resolver);
-                } else {
-                    try {
-                        resolver.applyBatch(ContactsContract.AUTHORITY, mDeleteOperation);
-                    } catch (RemoteException e) {
-                        e.printStackTrace();
-                    } catch (OperationApplicationException e) {
-                        e.printStackTrace();
-                    }
-                }
-            }
-            if (mAddOrMoveOperation.size() > BUFFER_LENGTH) {
-                addOrMoveApplyBatchByBuffer(mAddOrMoveOperation, resolver);
-            } else {
-                try {
-                    resolver.applyBatch(ContactsContract.AUTHORITY, mAddOrMoveOperation);
-                } catch (RemoteException e) {
-                    e.printStackTrace();
-                } catch (OperationApplicationException e) {
-                    e.printStackTrace();
-                }
-            }
+            mExecutor.flush();
             return null;
         }
 
@@ -1765,33 +1620,6 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
             }
         }
 
-        private void addOrMoveApplyBatchByBuffer(ArrayList<ContentProviderOperation> list,
-                ContentResolver cr) {
-            final ArrayList<ContentProviderOperation> temp =
-                    new ArrayList<ContentProviderOperation>(BUFFER_LENGTH);
-            int bufferSize = list.size() / BUFFER_LENGTH;
-            for (int index = 0; index <= bufferSize; index++) {
-                temp.clear();
-                if (index == bufferSize) {
-                    for (int i = index * BUFFER_LENGTH; i < list.size(); i++) {
-                        temp.add(list.get(i));
-                    }
-                } else {
-                    for (int i = index * BUFFER_LENGTH; i < index * BUFFER_LENGTH
-                            + BUFFER_LENGTH; i++) {
-                        temp.add(list.get(i));
-                    }
-                }
-                if (!temp.isEmpty()) {
-                    try {
-                        cr.applyBatch(ContactsContract.AUTHORITY, temp);
-                    } catch (Exception e) {
-                        Log.e(TAG, "apply batch by buffer error:" + e);
-                    }
-                }
-            }
-        }
-
         private String getProgressDialogTitle() {
             return getString(R.string.title_move_members);
         }
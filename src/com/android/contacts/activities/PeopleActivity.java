@@ -108,13 +108,14 @@ import com.android.contacts.common.model.account.AccountType;
 import com.android.contacts.common.SimContactsConstants;
 import com.android.contacts.common.vcard.ExportVCardActivity;
 import com.android.contacts.common.vcard.VCardCommonArguments;
+import com.android.contacts.util.ChoiceSet;
+import com.android.contacts.util.ChoiceSetProvider;
 import com.android.contacts.util.DialogManager;
 import com.android.contacts.util.PhoneCapabilityTester;
 import com.android.contactsbind.HelpUtils;
 
 import java.util.List;
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.Locale;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -1651,13 +1652,10 @@ public class PeopleActivity extends ContactsActivity implements
             case ImportExportDialogFragment.SUBACTIVITY_MULTI_PICK_CONTACT:
                 if (resultCode == RESULT_OK) {
                     mContactList = new ArrayList<String[]>();
-                    Bundle b = data.getExtras();
-                    Bundle choiceSet = b.getBundle(SimContactsConstants.RESULT_KEY);
-                    Set<String> set = choiceSet.keySet();
-                    Iterator<String> i = set.iterator();
-                    while (i.hasNext()) {
-                        String contactInfo[] = choiceSet.getStringArray(i.next());
-                        mContactList.add(contactInfo);
+                    ChoiceSet choiceSet = ChoiceSetProvider.readResult(this, data,
+                            SimContactsConstants.RESULT_KEY);
+                    for (int i = 0; choiceSet != null && i < choiceSet.size(); i++) {
+                        mContactList.add(choiceSet.valueAt(i));
                     }
                     Log.d(TAG, "return " + mContactList.size() + " contacts");
                     if (!mContactList.isEmpty()) {
@@ -1674,18 +1672,18 @@ public class PeopleActivity extends ContactsActivity implements
                 break;
             case ImportExportDialogFragment.SUBACTIVITY_EXPORT_CONTACTS:
                 if (resultCode == RESULT_OK) {
-                    Bundle result = data.getExtras().getBundle(
+                    ChoiceSet result = ChoiceSetProvider.readResult(this, data,
                         SimContactsConstants.RESULT_KEY);
-                    Set<String> keySet = result.keySet();
-                    Iterator<String> it = keySet.iterator();
+                    if (result == null) {
+                        break;
+                    }
                     StringBuilder selExportBuilder = new StringBuilder();
-                    while (it.hasNext()) {
-                        String id = it.next();
+                    for (int i = 0; i < result.size(); i++) {
                         if (0 != selExportBuilder.length()) {
-                        selExportBuilder.append(",");
+                            selExportBuilder.append(",");
+                        }
+                        selExportBuilder.append(result.keyAt(i));
                     }
-                    selExportBuilder.append(id);
-                }
                     selExportBuilder.insert(0, "_id IN (");
                     selExportBuilder.append(")");
                     Intent exportIntent = new Intent(this,
@@ -1699,11 +1697,14 @@ public class PeopleActivity extends ContactsActivity implements
                 break;
             case ImportExportDialogFragment.SUBACTIVITY_SHARE_VISILBLE_CONTACTS:
                 if (resultCode == RESULT_OK) {
-                    Bundle result = data.getExtras().getBundle(
+                    ChoiceSet result = ChoiceSetProvider.readResult(this, data,
                         SimContactsConstants.RESULT_KEY);
+                    if (result == null) {
+                        break;
+                    }
                     StringBuilder uriListBuilder = new StringBuilder();
                     int index = 0;
-                    int size = result.keySet().size();
+                    int size = result.size();
                     // The premise of allowing to share contacts is that the
                     // amount of those contacts which have been selected to
                     // append and will be put into intent as extra data to
@@ -1714,15 +1715,13 @@ public class PeopleActivity extends ContactsActivity implements
                             Toast.LENGTH_SHORT).show();
                     return;
                 }
-                Iterator<String> it = result.keySet().iterator();
                 String[] values = null;
-                while (it.hasNext()) {
+                for (; index < size; index++) {
                     if (index != 0) {
                         uriListBuilder.append(':');
                     }
-                    values = result.getStringArray(it.next());
+                    values = result.valueAt(index);
                     uriListBuilder.append(values[0]);
-                    index++;
                 }
                 Uri uri = Uri.withAppendedPath(
                         Contacts.CONTENT_MULTI_VCARD_URI,
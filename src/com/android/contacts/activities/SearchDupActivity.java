@@ -37,8 +37,6 @@ import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
 import android.os.Bundle;
-import android.os.Handler;
-import android.os.Message;
 import android.provider.ContactsContract.RawContacts;
 import android.view.Window;
 import android.widget.Toast;
@@ -51,14 +49,16 @@ import com.android.contacts.util.DuplicatesUtils;
 import java.util.ArrayList;
 import java.util.List;
 
-public class SearchDupActivity extends Activity {
+public class SearchDupActivity extends Activity implements DuplicatesUtils.SearchListener {
 
     private ProgressDialog mProgressDialog;
-    private MyHandler handler = new MyHandler();
 
     private final String[] RAWCONTACTS_ID_PROJECTION = new String[] {RawContacts._ID};
-    private final int FIND_DUPLICATED = 1;
-    private final int NO_DUPLICATED = 0;
+
+    /**
+     * Whether MergeContactActivity has been started to show the results of the search.
+     */
+    private boolean mShowingResults = false;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -69,20 +69,31 @@ public class SearchDupActivity extends Activity {
 
     @Override
     protected void onUserLeaveHint() {
-        // If MergeContactActivity starts or user presses home key, end searching.
-        DuplicatesUtils.mSearchState = false;
+        // If user presses home key, end searching.
+        // If MergeContactActivity starts, it shows the next results of the search.
+        if (!mShowingResults) {
+            DuplicatesUtils.stopSearch();
+        }
         if (mProgressDialog != null && mProgressDialog.isShowing()) {
             finish();
         }
         super.onUserLeaveHint();
     }
 
+    @Override
+    protected void onDestroy() {
+        DuplicatesUtils.removeSearchListener(this);
+        DuplicatesUtils.setDialog(null);
+        super.onDestroy();
+    }
+
     @Override
     protected Dialog onCreateDialog(int id) {
         switch (id) {
             case R.id.search_dup_dialog: {
                 mProgressDialog = initSearchingDialog();
                 DuplicatesUtils.setDialog(mProgressDialog);
+                DuplicatesUtils.setSearchListener(this);
                 Thread thread = new SearchDuplicatedThread();
                 DuplicatesUtils.mSearchState = true;
                 thread.start();
@@ -92,6 +103,28 @@ public class SearchDupActivity extends Activity {
         return super.onCreateDialog(id);
     }
 
+    @Override
+    public void onMergeContactsFound(DuplicatesUtils.MergeContacts mergeContacts) {
+        // show the first results at once, the next ones are added while they are found.
+        if (!mShowingResults) {
+            mShowingResults = true;
+            Intent intent = new Intent(SearchDupActivity.this, MergeContactActivity.class);
+            startActivity(intent);
+            finish();
+        }
+    }
+
+    @Override
+    public void onSearchComplete() {
+        if (!mShowingResults) {
+            Toast.makeText(SearchDupActivity.this, R.string.no_duplicated_contacts,
+                    Toast.LENGTH_LONG).show();
+            if (mProgressDialog != null && mProgressDialog.isShowing()) {
+                finish();
+            }
+        }
+    }
+
     private class SearchDuplicatedThread extends Thread {
         @Override
         public void run() {
@@ -103,42 +136,8 @@ public class SearchDupActivity extends Activity {
             }
 
             /* calculate the contacts which can be merged. */
-            boolean isComplete = DuplicatesUtils
-                    .calculateMergeRawContacts(SearchDupActivity.this, accountsList,
-                            getContentResolver());
-            Message msg = Message.obtain();
-            if (isComplete) {
-                ArrayList<DuplicatesUtils.MergeContacts> mergeRawContacts =
-                        DuplicatesUtils.getMergeRawContacts();
-                if (mergeRawContacts != null && mergeRawContacts.size() > 0) {
-                    msg.what = FIND_DUPLICATED;
-                } else {
-                    msg.what = NO_DUPLICATED;
-                }
-                handler.sendMessage(msg);
-            }
-        }
-    }
-
-    private class MyHandler extends Handler {
-        @Override
-        public void handleMessage(Message msg) {
-            switch (msg.what) {
-                case NO_DUPLICATED:
-                    Toast.makeText(SearchDupActivity.this, R.string.no_duplicated_contacts,
-                            Toast.LENGTH_LONG).show();
-                    if (mProgressDialog != null && mProgressDialog.isShowing()) {
-                        finish();
-                    }
-                    break;
-                case FIND_DUPLICATED:
-                    Intent intent = new Intent(SearchDupActivity.this, MergeContactActivity.class);
-                    startActivity(intent);
-                    if (mProgressDialog != null && mProgressDialog.isShowing()) {
-                        finish();
-                    }
-                    break;
-            }
+            DuplicatesUtils.calculateMergeRawContacts(getApplicationContext(), accountsList,
+                    getContentResolver());
         }
     }
 
@@ -172,7 +171,7 @@ public class SearchDupActivity extends Activity {
 
         @Override
         public void onBackPressed() {
-            DuplicatesUtils.mSearchState = false;
+            DuplicatesUtils.stopSearch();
             DuplicatesUtils.clearMergeRawContacts();
             finish();
         }
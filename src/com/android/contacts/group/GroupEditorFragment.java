@@ -75,13 +75,13 @@ import com.android.contacts.common.model.AccountTypeManager;
 import com.android.contacts.common.util.AccountsListAdapter.AccountListFilter;
 import com.android.contacts.common.util.ViewUtil;
 import com.android.contacts.common.SimContactsConstants;
+import com.android.contacts.util.ChoiceSet;
+import com.android.contacts.util.ChoiceSetProvider;
 
 import com.google.common.base.Objects;
 
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Set;
 
 public class GroupEditorFragment extends Fragment implements SelectAccountDialogFragment.Listener {
     private static final String TAG = "GroupEditorFragment";
@@ -271,6 +271,19 @@ public class GroupEditorFragment extends Fragment implements SelectAccountDialog
         }
     }
 
+    @Override
+    public void onDestroy() {
+        closeAutoCompleteAdapter();
+        super.onDestroy();
+    }
+
+    private void closeAutoCompleteAdapter() {
+        if (mAutoCompleteAdapter != null) {
+            mAutoCompleteAdapter.close();
+            mAutoCompleteAdapter = null;
+        }
+    }
+
     private void startGroupMetaDataLoader() {
         mStatus = Status.LOADING;
         getLoaderManager().initLoader(LOADER_GROUP_METADATA, null,
@@ -430,7 +443,7 @@ public class GroupEditorFragment extends Fragment implements SelectAccountDialog
             }
             editorView = mLayoutInflater.inflate(newGroupEditorId, mRootView, false);
             editorView.setTag(CURRENT_EDITOR_TAG);
-            mAutoCompleteAdapter = null;
+            closeAutoCompleteAdapter();
             mLastGroupEditorId = newGroupEditorId;
             isNewEditor = true;
         } else {
@@ -466,6 +479,7 @@ public class GroupEditorFragment extends Fragment implements SelectAccountDialog
         // account name and type. For groups that cannot have membership edited, there will be no
         // autocomplete text view.
         if (mAutoCompleteTextView != null) {
+            closeAutoCompleteAdapter();
             mAutoCompleteAdapter = new SuggestedMemberListAdapter(mContext,
                     android.R.layout.simple_dropdown_item_1line);
             mAutoCompleteTextView.setThreshold(2);
@@ -530,10 +544,10 @@ public class GroupEditorFragment extends Fragment implements SelectAccountDialog
             return;
         }
         if (requestCode == REQUEST_CODE_PICK_GROUP_MEM) {
-            Bundle mChoiceSet = data.getExtras();
-            Set<String> keys = mChoiceSet.keySet();
-            Iterator<String> iterator = keys.iterator();
-            String key;
+            ChoiceSet choiceSet = ChoiceSetProvider.readResult(mContext, data, null);
+            if (choiceSet == null) {
+                return;
+            }
             String[] info;
             String contactId;
             String nameRawContactId;
@@ -541,9 +555,8 @@ public class GroupEditorFragment extends Fragment implements SelectAccountDialog
             String lookupKey;
             String photoUri;
 
-            while (iterator.hasNext()) {
-                key = iterator.next();
-                info = mChoiceSet.getStringArray(key);
+            for (int i = 0; i < choiceSet.size(); i++) {
+                info = choiceSet.valueAt(i);
 
                 contactId = info[1];
 
@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.group;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.provider.ContactsContract.RawContacts;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * In-memory index of the names of the raw contacts of an account, to suggest group members
+ * without querying the contacts provider on each keystroke.
+ *
+ * Both display names of every raw contact are kept in one sorted array, so the names starting
+ * with a prefix are found with a binary search.
+ */
+class RawContactNameIndex {
+
+    private static final String[] PROJECTION = new String[] {
+        RawContacts._ID,                        // 0
+        RawContacts.CONTACT_ID,                 // 1
+        RawContacts.DISPLAY_NAME_PRIMARY,       // 2
+        RawContacts.DISPLAY_NAME_ALTERNATIVE    // 3
+    };
+
+    /**
+     * A raw contact of the index.
+     */
+    static class Entry {
+        final long rawContactId;
+        final long contactId;
+        final String displayName;
+        final String alternativeName;
+
+        Entry(long rawContactId, long contactId, String displayName, String alternativeName) {
+            this.rawContactId = rawContactId;
+            this.contactId = contactId;
+            this.displayName = displayName;
+            this.alternativeName = alternativeName;
+        }
+    }
+
+    /**
+     * The raw contacts, in display order.
+     */
+    private final Entry[] mEntries;
+    /**
+     * The lower case names of the raw contacts in ascending order, along with the position of
+     * their raw contact in {@link #mEntries}.
+     */
+    private final String[] mNames;
+    private final int[] mPositions;
+
+    /**
+     * @param entries the raw contacts, in the order suggestions are displayed.
+     */
+    RawContactNameIndex(List<Entry> entries) {
+        mEntries = entries.toArray(new Entry[entries.size()]);
+        final ArrayList<String> names = new ArrayList<>(mEntries.length * 2);
+        final ArrayList<Integer> positions = new ArrayList<>(mEntries.length * 2);
+        for (int i = 0; i < mEntries.length; i++) {
+            String name = normalize(mEntries[i].displayName);
+            String alternativeName = normalize(mEntries[i].alternativeName);
+            if (name != null) {
+                names.add(name);
+                positions.add(i);
+            }
+            if (alternativeName != null && !alternativeName.equals(name)) {
+                names.add(alternativeName);
+                positions.add(i);
+            }
+        }
+
+        final Integer[] order = new Integer[names.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                return names.get(lhs).compareTo(names.get(rhs));
+            }
+        });
+        mNames = new String[order.length];
+        mPositions = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            mNames[i] = names.get(order[i]);
+            mPositions[i] = positions.get(order[i]);
+        }
+    }
+
+    /**
+     * Reads the raw contacts of an account, ordered by display name.
+     *
+     * @return the index, or null if the query failed.
+     */
+    static RawContactNameIndex query(ContentResolver resolver, String accountName,
+            String accountType, String dataSet) {
+        String selection = RawContacts.ACCOUNT_NAME + "=? AND " +
+                RawContacts.ACCOUNT_TYPE + "=? AND " + RawContacts.DELETED + "!= 1";
+        String[] args;
+        if (dataSet == null) {
+            selection += " AND " + RawContacts.DATA_SET + " IS NULL";
+            args = new String[] {accountName, accountType};
+        } else {
+            selection += " AND " + RawContacts.DATA_SET + "=?";
+            args = new String[] {accountName, accountType, dataSet};
+        }
+        final Cursor cursor = resolver.query(RawContacts.CONTENT_URI, PROJECTION, selection,
+                args, RawContacts.DISPLAY_NAME_PRIMARY + " COLLATE LOCALIZED ASC");
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            final ArrayList<Entry> entries = new ArrayList<>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                entries.add(new Entry(cursor.getLong(0), cursor.getLong(1), cursor.getString(2),
+                        cursor.getString(3)));
+            }
+            return new RawContactNameIndex(entries);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return at most limit raw contacts, in display order, whose display name or alternative
+     * display name starts with the prefix, ignoring case. Raw contacts of the excluded contacts
+     * are skipped.
+     */
+    List<Entry> find(String prefix, int limit, Set<Long> excludedContactIds) {
+        final String key = normalize(prefix);
+        if (key == null || limit <= 0) {
+            return Collections.emptyList();
+        }
+        // the smallest positions found so far, in ascending order.
+        final int[] best = new int[limit];
+        int count = 0;
+        for (int i = lowerBound(key); i < mNames.length && mNames[i].startsWith(key); i++) {
+            int position = mPositions[i];
+            if (count == limit && position >= best[count - 1]) {
+                continue;
+            }
+            if (excludedContactIds.contains(mEntries[position].contactId)) {
+                continue;
+            }
+            int insert = Arrays.binarySearch(best, 0, count, position);
+            if (insert >= 0) {
+                // both names of the raw contact match.
+                continue;
+            }
+            insert = -insert - 1;
+            int moved = Math.min(count, limit - 1) - insert;
+            System.arraycopy(best, insert, best, insert + 1, moved);
+            best[insert] = position;
+            count = Math.min(count + 1, limit);
+        }
+        final ArrayList<Entry> entries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            entries.add(mEntries[best[i]]);
+        }
+        return entries;
+    }
+
+    int size() {
+        return mEntries.length;
+    }
+
+    /**
+     * @return the position of the first name not lower than the key.
+     */
+    private int lowerBound(String key) {
+        int low = 0;
+        int high = mNames.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mNames[mid].compareTo(key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static String normalize(String name) {
+        return name == null || name.isEmpty() ? null : name.toLowerCase(Locale.ROOT);
+    }
+}
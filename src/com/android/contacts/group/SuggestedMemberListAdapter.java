@@ -17,6 +17,7 @@ package com.android.contacts.group;
 
 import android.content.ContentResolver;
 import android.content.Context;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
@@ -27,6 +28,7 @@ import android.provider.ContactsContract.Contacts.Data;
 import android.provider.ContactsContract.RawContacts;
 import android.provider.ContactsContract.RawContactsEntity;
 import android.text.TextUtils;
+import android.util.LruCache;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -43,7 +45,9 @@ import com.android.contacts.group.SuggestedMemberListAdapter.SuggestedMember;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * This adapter provides suggested contacts that can be added to a group for an
@@ -51,15 +55,7 @@ import java.util.List;
  */
 public class SuggestedMemberListAdapter extends ArrayAdapter<SuggestedMember> {
 
-    private static final String[] PROJECTION_FILTERED_MEMBERS = new String[] {
-        RawContacts._ID,                        // 0
-        RawContacts.CONTACT_ID,                 // 1
-        RawContacts.DISPLAY_NAME_PRIMARY        // 2
-    };
-
     private static final int RAW_CONTACT_ID_COLUMN_INDEX = 0;
-    private static final int CONTACT_ID_COLUMN_INDEX = 1;
-    private static final int DISPLAY_NAME_PRIMARY_COLUMN_INDEX = 2;
 
     private static final String[] PROJECTION_MEMBER_DATA = new String[] {
         RawContacts._ID,                        // 0
@@ -81,12 +77,41 @@ public class SuggestedMemberListAdapter extends ArrayAdapter<SuggestedMember> {
     private String mAccountName;
     private String mDataSet;
 
-    // TODO: Make this a Map for better performance when we check if a new contact is in the list
-    // or not
-    private final List<Long> mExistingMemberContactIds = new ArrayList<Long>();
+    /**
+     * Replaced on each change, as it is read by the filter thread.
+     */
+    private volatile Set<Long> mExistingMemberContactIds = new HashSet<Long>();
 
     private static final int SUGGESTIONS_LIMIT = 5;
 
+    private static final int MEMBER_DATA_CACHE_SIZE = 100;
+
+    // Only used by the filter thread.
+    private RawContactNameIndex mIndex;
+    private final LruCache<Long, MemberData> mMemberDataCache =
+            new LruCache<Long, MemberData>(MEMBER_DATA_CACHE_SIZE);
+
+    /**
+     * Set when the raw contacts of the account may have changed since the index was built.
+     */
+    private volatile boolean mIndexStale = true;
+    private boolean mObserving = false;
+
+    private final ContentObserver mObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            mIndexStale = true;
+        }
+    };
+
+    /**
+     * The photo and extra info of a suggested raw contact.
+     */
+    private static class MemberData {
+        byte[] photo;
+        String extraInfo;
+    }
+
     public SuggestedMemberListAdapter(Context context, int textViewResourceId) {
         super(context, textViewResourceId);
         mInflater = (LayoutInflater) context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
@@ -94,30 +119,52 @@ public class SuggestedMemberListAdapter extends ArrayAdapter<SuggestedMember> {
 
     public void setAccountType(String accountType) {
         mAccountType = accountType;
+        mIndexStale = true;
     }
 
     public void setAccountName(String accountName) {
         mAccountName = accountName;
+        mIndexStale = true;
     }
 
     public void setDataSet(String dataSet) {
         mDataSet = dataSet;
+        mIndexStale = true;
     }
 
     public void setContentResolver(ContentResolver resolver) {
+        close();
         mContentResolver = resolver;
+        mIndexStale = true;
+        if (resolver != null) {
+            resolver.registerContentObserver(RawContacts.CONTENT_URI, true, mObserver);
+            mObserving = true;
+        }
+    }
+
+    /**
+     * Stops observing the raw contacts, once the adapter is no longer used.
+     */
+    public void close() {
+        if (mObserving) {
+            mContentResolver.unregisterContentObserver(mObserver);
+            mObserving = false;
+        }
     }
 
     public void updateExistingMembersList(List<GroupEditorFragment.Member> list) {
-        mExistingMemberContactIds.clear();
+        final Set<Long> contactIds = new HashSet<Long>(list.size());
         for (GroupEditorFragment.Member member : list) {
-            mExistingMemberContactIds.add(member.getContactId());
+            contactIds.add(member.getContactId());
         }
+        mExistingMemberContactIds = contactIds;
     }
 
     public void addNewMember(long contactId) {
         if (!containsMember(contactId)) {
-            mExistingMemberContactIds.add(contactId);
+            final Set<Long> contactIds = new HashSet<Long>(mExistingMemberContactIds);
+            contactIds.add(contactId);
+            mExistingMemberContactIds = contactIds;
         }
     }
 
@@ -126,8 +173,10 @@ public class SuggestedMemberListAdapter extends ArrayAdapter<SuggestedMember> {
     }
 
     public void removeMember(long contactId) {
-        if (mExistingMemberContactIds.contains(contactId)) {
-            mExistingMemberContactIds.remove(contactId);
+        if (containsMember(contactId)) {
+            final Set<Long> contactIds = new HashSet<Long>(mExistingMemberContactIds);
+            contactIds.remove(contactId);
+            mExistingMemberContactIds = contactIds;
         }
     }
 
@@ -169,8 +218,8 @@ public class SuggestedMemberListAdapter extends ArrayAdapter<SuggestedMember> {
     }
 
     /**
-     * This filter queries for raw contacts that match the given account name and account type,
-     * as well as the search query.
+     * This filter suggests raw contacts that match the given account name and account type,
+     * as well as the search query, from an in-memory index of their names.
      */
     public class SuggestedMemberFilter extends Filter {
 
@@ -181,73 +230,70 @@ public class SuggestedMemberListAdapter extends ArrayAdapter<SuggestedMember> {
                 return results;
             }
 
+            // The raw contacts of the account are read once, suggestions are then found in
+            // memory. The index is built again after the raw contacts changed.
+            if (mIndexStale || mIndex == null) {
+                mIndexStale = false;
+                mMemberDataCache.evictAll();
+                mIndex = RawContactNameIndex.query(mContentResolver, mAccountName, mAccountType,
+                        mDataSet);
+                if (mIndex == null) {
+                    mIndexStale = true;
+                    return results;
+                }
+            }
+
             // Create a list to store the suggested contacts (which will be alphabetically ordered),
             // but also keep a map of raw contact IDs to {@link SuggestedMember}s to make it easier
             // to add supplementary data to the contact (photo, phone, email) to the members based
-            // on raw contact IDs after the second query is completed.
+            // on raw contact IDs.
             List<SuggestedMember> suggestionsList = new ArrayList<SuggestedMember>();
             HashMap<Long, SuggestedMember> suggestionsMap = new HashMap<Long, SuggestedMember>();
-
-            // First query for all the raw contacts that match the given search query
-            // and have the same account name and type as specified in this adapter
-            String searchQuery = prefix.toString() + "%";
-            String accountClause = RawContacts.ACCOUNT_NAME + "=? AND " +
-                    RawContacts.ACCOUNT_TYPE + "=? AND " + RawContacts.DELETED + "!= 1";
-            String[] args;
-            if (mDataSet == null) {
-                accountClause += " AND " + RawContacts.DATA_SET + " IS NULL";
-                args = new String[] {mAccountName, mAccountType, searchQuery, searchQuery};
-            } else {
-                accountClause += " AND " + RawContacts.DATA_SET + "=?";
-                args = new String[] {
-                        mAccountName, mAccountType, mDataSet, searchQuery, searchQuery
-                };
+            for (RawContactNameIndex.Entry entry : mIndex.find(prefix.toString(),
+                    SUGGESTIONS_LIMIT, mExistingMemberContactIds)) {
+                SuggestedMember member = new SuggestedMember(entry.rawContactId,
+                        entry.displayName, entry.contactId);
+                suggestionsList.add(member);
+                suggestionsMap.put(entry.rawContactId, member);
             }
 
-            Cursor cursor = mContentResolver.query(
-                    RawContacts.CONTENT_URI, PROJECTION_FILTERED_MEMBERS,
-                    accountClause + " AND (" +
-                    RawContacts.DISPLAY_NAME_PRIMARY + " LIKE ? OR " +
-                    RawContacts.DISPLAY_NAME_ALTERNATIVE + " LIKE ? )",
-                    args, RawContacts.DISPLAY_NAME_PRIMARY + " COLLATE LOCALIZED ASC");
-
-            if (cursor == null) {
+            if (suggestionsList.isEmpty()) {
                 return results;
             }
 
-            // Read back the results from the cursor and filter out existing group members.
-            // For valid suggestions, add them to the hash map of suggested members.
-            try {
-                cursor.moveToPosition(-1);
-                while (cursor.moveToNext() && suggestionsMap.keySet().size() < SUGGESTIONS_LIMIT) {
-                    long rawContactId = cursor.getLong(RAW_CONTACT_ID_COLUMN_INDEX);
-                    long contactId = cursor.getLong(CONTACT_ID_COLUMN_INDEX);
-                    // Filter out contacts that have already been added to this group
-                    if (mExistingMemberContactIds.contains(contactId)) {
-                        continue;
-                    }
-                    // Otherwise, add the contact as a suggested new group member
-                    String displayName = cursor.getString(DISPLAY_NAME_PRIMARY_COLUMN_INDEX);
-                    SuggestedMember member = new SuggestedMember(rawContactId, displayName,
-                            contactId);
-                    // Store the member in the list of suggestions and add it to the hash map too.
-                    suggestionsList.add(member);
-                    suggestionsMap.put(rawContactId, member);
+            // Only query the supplementary data of the members which have not been suggested
+            // on a previous keystroke.
+            final HashMap<Long, MemberData> memberDataMap = new HashMap<Long, MemberData>();
+            for (Long rawContactId : suggestionsMap.keySet()) {
+                MemberData data = mMemberDataCache.get(rawContactId);
+                if (data == null) {
+                    memberDataMap.put(rawContactId, new MemberData());
+                } else {
+                    setMemberData(suggestionsMap.get(rawContactId), data);
                 }
-            } finally {
-                cursor.close();
             }
-
-            int numSuggestions = suggestionsMap.keySet().size();
-            if (numSuggestions == 0) {
-                return results;
+            if (!memberDataMap.isEmpty() && queryMemberData(memberDataMap)) {
+                for (Long rawContactId : memberDataMap.keySet()) {
+                    MemberData data = memberDataMap.get(rawContactId);
+                    mMemberDataCache.put(rawContactId, data);
+                    setMemberData(suggestionsMap.get(rawContactId), data);
+                }
             }
+            results.values = suggestionsList;
+            return results;
+        }
 
-            // Create a part of the selection string for the next query with the pattern (?, ?, ?)
+        /**
+         * Reads a photo and possibly a phone number or email address for the given raw contacts.
+         *
+         * @return false if the query failed.
+         */
+        private boolean queryMemberData(HashMap<Long, MemberData> memberDataMap) {
+            // Create a part of the selection string for the query with the pattern (?, ?, ?)
             // where the number of comma-separated question marks represent the number of raw
-            // contact IDs found in the previous query (while respective the SUGGESTION_LIMIT)
+            // contact IDs.
             final StringBuilder rawContactIdSelectionBuilder = new StringBuilder();
-            final String[] questionMarks = new String[numSuggestions];
+            final String[] questionMarks = new String[memberDataMap.size()];
             Arrays.fill(questionMarks, "?");
             rawContactIdSelectionBuilder.append(RawContacts._ID + " IN (")
                     .append(TextUtils.join(",", questionMarks))
@@ -259,48 +305,49 @@ public class SuggestedMemberListAdapter extends ArrayAdapter<SuggestedMember> {
             selectionArgs.add(Photo.CONTENT_ITEM_TYPE);
             selectionArgs.add(Email.CONTENT_ITEM_TYPE);
             selectionArgs.add(Phone.CONTENT_ITEM_TYPE);
-            for (Long rawContactId : suggestionsMap.keySet()) {
+            for (Long rawContactId : memberDataMap.keySet()) {
                 selectionArgs.add(String.valueOf(rawContactId));
             }
 
-            // Perform a second query to retrieve a photo and possibly a phone number or email
-            // address for the suggested contact
             Cursor memberDataCursor = mContentResolver.query(
                     RawContactsEntity.CONTENT_URI, PROJECTION_MEMBER_DATA,
                     "(" + Data.MIMETYPE + "=? OR " + Data.MIMETYPE + "=? OR " + Data.MIMETYPE +
                     "=?) AND " + rawContactIdSelectionBuilder.toString(),
                     selectionArgs.toArray(new String[0]), null);
 
-            if (memberDataCursor != null) {
-                try {
-                    memberDataCursor.moveToPosition(-1);
-                    while (memberDataCursor.moveToNext()) {
-                        long rawContactId = memberDataCursor.getLong(RAW_CONTACT_ID_COLUMN_INDEX);
-                        SuggestedMember member = suggestionsMap.get(rawContactId);
-                        if (member == null) {
-                            continue;
-                        }
-                        String mimetype = memberDataCursor.getString(MIMETYPE_COLUMN_INDEX);
-                        if (Photo.CONTENT_ITEM_TYPE.equals(mimetype)) {
-                            // Set photo
-                            byte[] bitmapArray = memberDataCursor.getBlob(PHOTO_COLUMN_INDEX);
-                            member.setPhotoByteArray(bitmapArray);
-                        } else if (Email.CONTENT_ITEM_TYPE.equals(mimetype) ||
-                                Phone.CONTENT_ITEM_TYPE.equals(mimetype)) {
-                            // Set at most 1 extra piece of contact info that can be a phone number or
-                            // email
-                            if (!member.hasExtraInfo()) {
-                                String info = memberDataCursor.getString(DATA_COLUMN_INDEX);
-                                member.setExtraInfo(info);
-                            }
+            if (memberDataCursor == null) {
+                return false;
+            }
+            try {
+                memberDataCursor.moveToPosition(-1);
+                while (memberDataCursor.moveToNext()) {
+                    long rawContactId = memberDataCursor.getLong(RAW_CONTACT_ID_COLUMN_INDEX);
+                    MemberData data = memberDataMap.get(rawContactId);
+                    if (data == null) {
+                        continue;
+                    }
+                    String mimetype = memberDataCursor.getString(MIMETYPE_COLUMN_INDEX);
+                    if (Photo.CONTENT_ITEM_TYPE.equals(mimetype)) {
+                        // Set photo
+                        data.photo = memberDataCursor.getBlob(PHOTO_COLUMN_INDEX);
+                    } else if (Email.CONTENT_ITEM_TYPE.equals(mimetype) ||
+                            Phone.CONTENT_ITEM_TYPE.equals(mimetype)) {
+                        // Set at most 1 extra piece of contact info that can be a phone number or
+                        // email
+                        if (data.extraInfo == null) {
+                            data.extraInfo = memberDataCursor.getString(DATA_COLUMN_INDEX);
                         }
                     }
-                } finally {
-                    memberDataCursor.close();
                 }
+            } finally {
+                memberDataCursor.close();
             }
-            results.values = suggestionsList;
-            return results;
+            return true;
+        }
+
+        private void setMemberData(SuggestedMember member, MemberData data) {
+            member.setPhotoByteArray(data.photo);
+            member.setExtraInfo(data.extraInfo);
         }
 
         @Override
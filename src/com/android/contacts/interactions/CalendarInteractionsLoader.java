@@ -1,5 +1,6 @@
 package com.android.contacts.interactions;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 
 import com.android.contacts.common.util.PermissionsUtil;
@@ -9,6 +10,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Set;
 
 import android.Manifest.permission;
@@ -18,7 +20,6 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.provider.CalendarContract;
-import android.provider.CalendarContract.Calendars;
 import android.util.Log;
 
 
@@ -62,41 +63,79 @@ public class CalendarInteractionsLoader extends AsyncTaskLoader<List<ContactInte
                 || mEmailAddresses == null || mEmailAddresses.size() < 1) {
             return Collections.emptyList();
         }
-        // Perform separate calendar queries for events in the past and future.
-        Cursor cursor = getSharedEventsCursor(/* isFuture= */ true, mMaxFutureToRetrieve);
-        List<ContactInteraction> interactions = getInteractionsFromEventsCursor(cursor);
-        cursor = getSharedEventsCursor(/* isFuture= */ false, mMaxPastToRetrieve);
-        List<ContactInteraction> interactions2 = getInteractionsFromEventsCursor(cursor);
-
-        ArrayList<ContactInteraction> allInteractions = new ArrayList<ContactInteraction>(
-                interactions.size() + interactions2.size());
-        allInteractions.addAll(interactions);
-        allInteractions.addAll(interactions2);
+        // Query the events of both the past and the future at once, then pick the closest ones
+        // of each side.
+        final long timeMillis = System.currentTimeMillis();
+        final Cursor cursor = getSharedEventsCursor(timeMillis);
+        if (cursor == null) {
+            return Collections.emptyList();
+        }
+        final List<ContactInteraction> allInteractions;
+        try {
+            final int dtstartIndex = cursor.getColumnIndex(CalendarContract.Attendees.DTSTART);
+            final int eventIdIndex = cursor.getColumnIndex(CalendarContract.Attendees.EVENT_ID);
+            // The events are sorted by ascending start, find the first one of the future.
+            int firstFuture = 0;
+            while (cursor.moveToPosition(firstFuture)
+                    && cursor.getLong(dtstartIndex) < timeMillis) {
+                firstFuture++;
+            }
+            final Set<Long> uniqueEventIds = new HashSet<Long>();
+            allInteractions = new ArrayList<ContactInteraction>(
+                    mMaxFutureToRetrieve + mMaxPastToRetrieve);
+            // Future events, the closest ones picked first but returned latest first, so the
+            // whole list is sorted by descending start like the other interaction loaders.
+            int futureCount = 0;
+            for (int position = firstFuture; futureCount < mMaxFutureToRetrieve
+                    && cursor.moveToPosition(position); position++) {
+                if (cursor.getLong(dtstartIndex) > timeMillis
+                        && uniqueEventIds.add(cursor.getLong(eventIdIndex))) {
+                    allInteractions.add(newInteraction(cursor));
+                    futureCount++;
+                }
+            }
+            Collections.reverse(allInteractions);
+            // Past events, the closest first.
+            int pastCount = 0;
+            for (int position = firstFuture - 1; pastCount < mMaxPastToRetrieve
+                    && cursor.moveToPosition(position); position--) {
+                if (uniqueEventIds.add(cursor.getLong(eventIdIndex))) {
+                    allInteractions.add(newInteraction(cursor));
+                    pastCount++;
+                }
+            }
+        } finally {
+            cursor.close();
+        }
 
         Log.v(TAG, "# ContactInteraction Loaded: " + allInteractions.size());
         return allInteractions;
     }
 
     /**
-     * @return events inside phone owners' calendars, that are shared with people inside mEmails
+     * @return events inside phone owners' calendars, that are shared with people inside mEmails,
+     * from the past cutoff to the future cutoff, sorted by ascending start.
      */
-    private Cursor getSharedEventsCursor(boolean isFuture, int limit) {
-        List<String> calendarIds = getOwnedCalendarIds();
+    private Cursor getSharedEventsCursor(long timeMillis) {
+        List<String> calendarIds =
+                OwnedCalendarIdsCache.getInstance(getContext()).getOwnedCalendarIds();
         if (calendarIds == null) {
             return null;
         }
-        long timeMillis = System.currentTimeMillis();
 
+        List<String> emails = normalizeEmails(mEmailAddresses);
+        if (emails.isEmpty()) {
+            return null;
+        }
         List<String> selectionArgs = new ArrayList<>();
-        selectionArgs.addAll(mEmailAddresses);
+        selectionArgs.addAll(emails);
         selectionArgs.addAll(calendarIds);
 
         // Add time constraints to selectionArgs
-        String timeOperator = isFuture ? " > " : " < ";
         long pastTimeCutoff = timeMillis - mNumberPastMillisecondToSearchLocalCalendar;
         long futureTimeCutoff = timeMillis
                 + mNumberFutureMillisecondToSearchLocalCalendar;
-        String[] timeArguments = {String.valueOf(timeMillis), String.valueOf(pastTimeCutoff),
+        String[] timeArguments = {String.valueOf(pastTimeCutoff),
                 String.valueOf(futureTimeCutoff)};
         selectionArgs.addAll(Arrays.asList(timeArguments));
 
@@ -104,11 +143,10 @@ public class CalendarInteractionsLoader extends AsyncTaskLoader<List<ContactInte
         String IS_NOT_TEMPORARY_COPY_OF_LOCAL_EVENT
                 = CalendarContract.Attendees.LAST_SYNCED + " = 0";
 
-        String orderBy = CalendarContract.Attendees.DTSTART + (isFuture ? " ASC " : " DESC ");
-        String selection = caseAndDotInsensitiveEmailComparisonClause(mEmailAddresses.size())
+        String orderBy = CalendarContract.Attendees.DTSTART + " ASC ";
+        String selection = caseAndDotInsensitiveEmailComparisonClause(emails.size())
                 + " AND " + CalendarContract.Attendees.CALENDAR_ID
                 + " IN " + ContactInteractionUtil.questionMarks(calendarIds.size())
-                + " AND " + CalendarContract.Attendees.DTSTART + timeOperator + " ? "
                 + " AND " + CalendarContract.Attendees.DTSTART + " > ? "
                 + " AND " + CalendarContract.Attendees.DTSTART + " < ? "
                 + " AND " + IS_NOT_TEMPORARY_COPY_OF_LOCAL_EVENT;
@@ -116,12 +154,34 @@ public class CalendarInteractionsLoader extends AsyncTaskLoader<List<ContactInte
         return getContext().getContentResolver().query(CalendarContract.Attendees.CONTENT_URI,
                 /* projection = */ null, selection,
                 selectionArgs.toArray(new String[selectionArgs.size()]),
-                orderBy + " LIMIT " + limit);
+                orderBy);
+    }
+
+    /**
+     * @return the distinct email addresses, without dots, as compared by
+     * {@link #caseAndDotInsensitiveEmailComparisonClause}.
+     */
+    @VisibleForTesting
+    static List<String> normalizeEmails(List<String> emailAddresses) {
+        final Set<String> uniqueEmails = new HashSet<String>();
+        final List<String> emails = new ArrayList<>(emailAddresses.size());
+        for (String email : emailAddresses) {
+            if (email == null) {
+                continue;
+            }
+            final String normalized = email.replace(".", "");
+            if (uniqueEmails.add(normalized.toLowerCase(Locale.US))) {
+                emails.add(normalized);
+            }
+        }
+        return emails;
     }
 
     /**
      * Returns a clause that checks whether an attendee's email is equal to one of
-     * {@param count} values. The comparison is insensitive to dots and case.
+     * {@param count} values, which must have been normalized by {@link #normalizeEmails}.
+     * The comparison is insensitive to dots and case, the dots of the attendee's email are only
+     * removed once per attendee.
      *
      * NOTE #1: This function is only needed for supporting non google accounts. For calendars
      * synced by a google account, attendee email values will be be modified by the server to ensure
@@ -133,68 +193,14 @@ public class CalendarInteractionsLoader extends AsyncTaskLoader<List<ContactInte
      */
     private String caseAndDotInsensitiveEmailComparisonClause(int count) {
         Preconditions.checkArgument(count > 0, "Count needs to be positive");
-        final String COMPARISON
-                = " REPLACE(" + CalendarContract.Attendees.ATTENDEE_EMAIL
-                + ", '.', '') = REPLACE(?, '.', '') COLLATE NOCASE";
-        StringBuilder sb = new StringBuilder("( " + COMPARISON);
-        for (int i = 1; i < count; i++) {
-            sb.append(" OR " + COMPARISON);
-        }
-        return sb.append(")").toString();
+        return " REPLACE(" + CalendarContract.Attendees.ATTENDEE_EMAIL + ", '.', '')"
+                + " COLLATE NOCASE IN " + ContactInteractionUtil.questionMarks(count);
     }
 
-    /**
-     * @return A list with upto one Card. The Card contains events from {@param Cursor}.
-     * Only returns unique events.
-     */
-    private List<ContactInteraction> getInteractionsFromEventsCursor(Cursor cursor) {
-        try {
-            if (cursor == null || cursor.getCount() == 0) {
-                return Collections.emptyList();
-            }
-            Set<String> uniqueUris = new HashSet<String>();
-            ArrayList<ContactInteraction> interactions = new ArrayList<ContactInteraction>();
-            while (cursor.moveToNext()) {
-                ContentValues values = new ContentValues();
-                DatabaseUtils.cursorRowToContentValues(cursor, values);
-                CalendarInteraction calendarInteraction = new CalendarInteraction(values);
-                if (!uniqueUris.contains(calendarInteraction.getIntent().getData().toString())) {
-                    uniqueUris.add(calendarInteraction.getIntent().getData().toString());
-                    interactions.add(calendarInteraction);
-                }
-            }
-
-            return interactions;
-        } finally {
-            if (cursor != null) {
-                cursor.close();
-            }
-        }
-    }
-
-    /**
-     * @return the Ids of calendars that are owned by accounts on the phone.
-     */
-    private List<String> getOwnedCalendarIds() {
-        String[] projection = new String[] {Calendars._ID, Calendars.CALENDAR_ACCESS_LEVEL};
-        Cursor cursor = getContext().getContentResolver().query(Calendars.CONTENT_URI, projection,
-                Calendars.VISIBLE + " = 1 AND " + Calendars.CALENDAR_ACCESS_LEVEL + " = ? ",
-                new String[] {String.valueOf(Calendars.CAL_ACCESS_OWNER)}, null);
-        try {
-            if (cursor == null || cursor.getCount() < 1) {
-                return null;
-            }
-            cursor.moveToPosition(-1);
-            List<String> calendarIds = new ArrayList<>(cursor.getCount());
-            while (cursor.moveToNext()) {
-                calendarIds.add(String.valueOf(cursor.getInt(0)));
-            }
-            return calendarIds;
-        } finally {
-            if (cursor != null) {
-                cursor.close();
-            }
-        }
+    private static ContactInteraction newInteraction(Cursor cursor) {
+        ContentValues values = new ContentValues();
+        DatabaseUtils.cursorRowToContentValues(cursor, values);
+        return new CalendarInteraction(values);
     }
 
     @Override
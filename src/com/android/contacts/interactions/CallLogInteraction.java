@@ -130,6 +130,10 @@ public class CallLogInteraction implements ContactInteraction {
         return callArrow;
     }
 
+    public Long getId() {
+        return mValues.getAsLong(Calls._ID);
+    }
+
     public String getCachedName() {
         return mValues.getAsString(Calls.CACHED_NAME);
     }
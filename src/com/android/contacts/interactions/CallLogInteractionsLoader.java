@@ -21,21 +21,32 @@ import android.content.Context;
 import android.content.pm.PackageManager;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteException;
 import android.net.Uri;
 import android.provider.CallLog.Calls;
 import android.text.TextUtils;
+import android.util.Log;
 
 import com.google.common.annotations.VisibleForTesting;
 
 import com.android.contacts.common.compat.PhoneNumberUtilsCompat;
 import com.android.contacts.common.util.PermissionsUtil;
+import com.android.contacts.util.PhoneNumberIndex;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
 
 public class CallLogInteractionsLoader extends AsyncTaskLoader<List<ContactInteraction>> {
+    private static final String TAG = "CallLogInteractionsLoader";
+
+    /**
+     * Same fuzzy comparison as the one {@link Calls#CONTENT_FILTER_URI} uses.
+     */
+    private static final String NUMBER_EQUAL_SELECTION =
+            "PHONE_NUMBERS_EQUAL(" + Calls.NUMBER + ", ?)";
 
     private final String[] mPhoneNumbers;
     private final int mMaxToRetrieve;
@@ -57,8 +68,20 @@ public class CallLogInteractionsLoader extends AsyncTaskLoader<List<ContactInter
             return Collections.emptyList();
         }
 
+        final List<String> numbers = getDistinctNormalizedNumbers(mPhoneNumbers);
+        if (numbers.isEmpty()) {
+            return Collections.emptyList();
+        }
+        try {
+            // A single query already returns every matching call once, newest first.
+            return getCallLogInteractions(numbers);
+        } catch (SQLiteException | IllegalArgumentException e) {
+            // the provider may not accept the selection, query the numbers one by one.
+            Log.w(TAG, "Failed to query the calls of all numbers at once", e);
+        }
+
         final List<ContactInteraction> interactions = new ArrayList<>();
-        for (String number : mPhoneNumbers) {
+        for (String number : numbers) {
             interactions.addAll(getCallLogInteractions(number));
         }
         // Sort the call log interactions by date for duplicate removal
@@ -74,18 +97,13 @@ public class CallLogInteractionsLoader extends AsyncTaskLoader<List<ContactInter
                 }
             }
         });
-        // Duplicates only occur because of fuzzy matching. No need to dedupe a single number.
-        if (mPhoneNumbers.length == 1) {
-            return interactions;
-        }
         return pruneDuplicateCallLogInteractions(interactions, mMaxToRetrieve);
     }
 
     /**
      * Two different phone numbers can match the same call log entry (since phone number
-     * matching is inexact). Therefore, we need to remove duplicates. In a reasonable call log,
-     * every entry should have a distinct date. Therefore, we can assume duplicate entries are
-     * adjacent entries.
+     * matching is inexact). Therefore, we need to remove duplicates, which share the same
+     * call id.
      * @param interactions The interaction list potentially containing duplicates
      * @return The list with duplicates removed
      */
@@ -93,12 +111,15 @@ public class CallLogInteractionsLoader extends AsyncTaskLoader<List<ContactInter
     static List<ContactInteraction> pruneDuplicateCallLogInteractions(
             List<ContactInteraction> interactions, int maxToRetrieve) {
         final List<ContactInteraction> subsetInteractions = new ArrayList<>();
+        final HashSet<Long> callIds = new HashSet<>();
         for (int i = 0; i < interactions.size(); i++) {
-            if (i >= 1 && interactions.get(i).getInteractionDate() ==
-                    interactions.get(i-1).getInteractionDate()) {
+            final ContactInteraction interaction = interactions.get(i);
+            final Long callId = interaction instanceof CallLogInteraction
+                    ? ((CallLogInteraction) interaction).getId() : null;
+            if (callId != null && !callIds.add(callId)) {
                 continue;
             }
-            subsetInteractions.add(interactions.get(i));
+            subsetInteractions.add(interaction);
             if (subsetInteractions.size() >= maxToRetrieve) {
                 break;
             }
@@ -106,12 +127,41 @@ public class CallLogInteractionsLoader extends AsyncTaskLoader<List<ContactInter
         return subsetInteractions;
     }
 
-    private List<ContactInteraction> getCallLogInteractions(String phoneNumber) {
-        final String normalizedNumber = PhoneNumberUtilsCompat.normalizeNumber(phoneNumber);
-        // If the number contains only symbols, we can skip it
-        if (TextUtils.isEmpty(normalizedNumber)) {
-            return Collections.emptyList();
+    /**
+     * @return the normalized numbers, without the empty ones and without the ones equal to
+     * a previous number.
+     */
+    private static List<String> getDistinctNormalizedNumbers(String[] phoneNumbers) {
+        final List<String> numbers = new ArrayList<>(phoneNumbers.length);
+        final PhoneNumberIndex index = new PhoneNumberIndex();
+        for (String phoneNumber : phoneNumbers) {
+            final String normalizedNumber = PhoneNumberUtilsCompat.normalizeNumber(phoneNumber);
+            // If the number contains only symbols, we can skip it
+            if (!TextUtils.isEmpty(normalizedNumber) && index.add(normalizedNumber)) {
+                numbers.add(normalizedNumber);
+            }
+        }
+        return numbers;
+    }
+
+    /**
+     * Queries the most recent calls matching any of the normalized numbers.
+     */
+    private List<ContactInteraction> getCallLogInteractions(List<String> normalizedNumbers) {
+        final StringBuilder selection = new StringBuilder();
+        for (int i = 0; i < normalizedNumbers.size(); i++) {
+            if (i > 0) {
+                selection.append(" OR ");
+            }
+            selection.append(NUMBER_EQUAL_SELECTION);
         }
+        final Cursor cursor = getContext().getContentResolver().query(Calls.CONTENT_URI, null,
+                selection.toString(), normalizedNumbers.toArray(new String[0]),
+                Calls.DATE + " DESC LIMIT " + mMaxToRetrieve);
+        return pruneDuplicateCallLogInteractions(readInteractions(cursor), mMaxToRetrieve);
+    }
+
+    private List<ContactInteraction> getCallLogInteractions(String normalizedNumber) {
         final Uri uri = Uri.withAppendedPath(Calls.CONTENT_FILTER_URI,
                 Uri.encode(normalizedNumber));
         // Append the LIMIT clause onto the ORDER BY clause. This won't cause crashes as long
@@ -120,6 +170,10 @@ public class CallLogInteractionsLoader extends AsyncTaskLoader<List<ContactInter
         final String orderByAndLimit = Calls.DATE + " DESC LIMIT " + mMaxToRetrieve;
         final Cursor cursor = getContext().getContentResolver().query(uri, null, null, null,
                 orderByAndLimit);
+        return readInteractions(cursor);
+    }
+
+    private static List<ContactInteraction> readInteractions(Cursor cursor) {
         try {
             if (cursor == null || cursor.getCount() < 1) {
                 return Collections.emptyList();
@@ -21,11 +21,9 @@ import com.google.common.collect.Sets;
 import com.android.contacts.ContactSaveService;
 import com.android.contacts.R;
 import com.android.contacts.activities.PeopleActivity;
-import com.android.contacts.common.MoreContactUtils;
 import com.android.contacts.common.model.AccountTypeManager;
 import com.android.contacts.common.model.account.AccountType;
-import com.android.contacts.common.SimContactsOperation;
-import com.android.contacts.common.SimContactsConstants;
+import com.android.contacts.util.BulkContactsDeleter;
 
 import android.app.Activity;
 import android.app.AlertDialog;
@@ -33,25 +31,17 @@ import android.app.Fragment;
 import android.app.FragmentManager;
 import android.app.LoaderManager.LoaderCallbacks;
 import android.app.ProgressDialog;
-import android.content.ContentProviderOperation;
-import android.content.ContentValues;
 import android.content.Context;
 import android.content.CursorLoader;
 import android.content.DialogInterface;
 import android.content.DialogInterface.OnDismissListener;
 import android.content.Loader;
-import android.content.OperationApplicationException;
 import android.database.Cursor;
-import android.net.Uri;
 import android.os.Bundle;
-import android.os.RemoteException;
-import android.provider.ContactsContract;
 import android.provider.ContactsContract.RawContacts;
 import android.util.Log;
 
-import java.util.ArrayList;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.TreeSet;
 
 /**
@@ -90,7 +80,6 @@ public class ContactMultiDeletionInteraction extends Fragment
     private AlertDialog mDialog;
 
     private ProgressDialog mProgressDialog;
-    private SimContactsOperation mSimContactsOperation;
 
     private DeleteContactsThread mDeleteContactsThread;
 
@@ -125,7 +114,6 @@ public class ContactMultiDeletionInteraction extends Fragment
     public void onAttach(Activity activity) {
         super.onAttach(activity);
         mContext = activity;
-        mSimContactsOperation = new SimContactsOperation(mContext);
     }
 
     @Override
@@ -334,90 +322,32 @@ public class ContactMultiDeletionInteraction extends Fragment
             implements DialogInterface.OnCancelListener, DialogInterface.OnClickListener {
 
         // Use to judge whether is cancel delete contacts.
-        boolean mCanceled = false;
-
-        // Use to save the operated contacts.
-        private ArrayList<ContentProviderOperation> mOpsContacts = null;
+        volatile boolean mCanceled = false;
 
         public DeleteContactsThread() {
         }
 
         @Override
         public void run() {
-
             TreeSet<Long> contactsIdSet = (TreeSet<Long>) mContactIds.clone();
-            Iterator<Long> iterator = contactsIdSet.iterator();
-
-            ContentProviderOperation cpo = null;
-            ContentProviderOperation.Builder builder = null;
-
-            // Current contact count we can delete.
-            int count = 0;
-
-            // The contacts we batch delete once.
-            final int BATCH_DELETE_CONTACT_NUMBER = 200;
-
-            mOpsContacts = new ArrayList<ContentProviderOperation>();
-
-            while (!mCanceled & iterator.hasNext()) {
-                // Set the progress of progress dialog.
-                mProgressDialog.setProgress(count);
-                String id = String.valueOf(iterator.next());
-                long longId = Long.parseLong(id);
-                // Get contacts Uri
-                Uri uri = Uri.withAppendedPath(ContactsContract.Contacts.CONTENT_URI, id);
-
-                // Judge the contacts whether is the SIM card contacts
-                ContentValues values = mSimContactsOperation
-                        .getSimAccountValues(longId);
-                String accountType = values
-                        .getAsString(SimContactsConstants.ACCOUNT_TYPE);
-                String accountName = values
-                        .getAsString(SimContactsConstants.ACCOUNT_NAME);
-                int subscription = MoreContactUtils.getSubscription(
-                        accountType, accountName);
-                if (subscription == SimContactsConstants.SLOT1
-                        || subscription == SimContactsConstants.SLOT2) {
-                    int result = mSimContactsOperation.delete(values,
-                            subscription);
-                    if (result == 0) {
-                        mProgressDialog.incrementProgressBy(1);
-                        continue;
-                    }
-                }
-                builder = ContentProviderOperation.newDelete(uri);
-                cpo = builder.build();
-                mOpsContacts.add(cpo);
-                // If contacts more than 2000, delete all contacts
-                // one by one will cause UI nonresponse.
-                mProgressDialog.incrementProgressBy(1);
-                // We batch delete contacts every 100.
-                if (count % BATCH_DELETE_CONTACT_NUMBER == 0) {
-                    batchDelete();
-                }
-                count++;
-            }
-            batchDelete();
-            mOpsContacts = null;
+            new BulkContactsDeleter(mContext.getApplicationContext()).delete(contactsIdSet,
+                    new BulkContactsDeleter.Callback() {
+                        @Override
+                        public boolean isCancelled() {
+                            return mCanceled;
+                        }
+
+                        @Override
+                        public void onProgress(int count) {
+                            // Set the progress of progress dialog.
+                            mProgressDialog.incrementProgressBy(count);
+                        }
+                    });
             dismissProgressDialog();
             // Set thread to null when complete delete.
             setDeleteContactsThread(null);
         }
 
-        /**
-         * Batch delete contacts more efficient than one by one.
-         */
-        private void batchDelete() {
-            try {
-                mContext.getContentResolver().applyBatch(
-                        android.provider.ContactsContract.AUTHORITY, mOpsContacts);
-                mOpsContacts.clear();
-            } catch (RemoteException e) {
-                e.printStackTrace();
-            } catch (OperationApplicationException e) {
-                e.printStackTrace();
-            }
-        }
         @Override
         public void onCancel(DialogInterface dialogInterface) {
             // Cancel delete operate.
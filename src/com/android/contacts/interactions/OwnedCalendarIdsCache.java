@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.interactions;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.provider.CalendarContract.Calendars;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Process-wide cache of the ids of the visible calendars owned by accounts on the phone.
+ *
+ * The ids are read again after the calendar provider notifies a change.
+ */
+class OwnedCalendarIdsCache {
+
+    private static OwnedCalendarIdsCache sInstance;
+
+    private final Context mContext;
+    private List<String> mCalendarIds;
+    /**
+     * Incremented on each invalidation, so ids read before it are not cached.
+     */
+    private int mGeneration = 0;
+
+    private final ContentObserver mObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            invalidate();
+        }
+    };
+
+    public static synchronized OwnedCalendarIdsCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new OwnedCalendarIdsCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private OwnedCalendarIdsCache(Context context) {
+        mContext = context;
+        context.getContentResolver().registerContentObserver(Calendars.CONTENT_URI, true,
+                mObserver);
+    }
+
+    /**
+     * @return the Ids of calendars that are owned by accounts on the phone, null if there are
+     * none.
+     */
+    public List<String> getOwnedCalendarIds() {
+        final int generation;
+        synchronized (this) {
+            if (mCalendarIds != null) {
+                return mCalendarIds.isEmpty() ? null : mCalendarIds;
+            }
+            generation = mGeneration;
+        }
+        final List<String> calendarIds = queryOwnedCalendarIds();
+        if (calendarIds == null) {
+            // the query failed, try again next time.
+            return null;
+        }
+        synchronized (this) {
+            if (generation == mGeneration) {
+                mCalendarIds = calendarIds;
+            }
+        }
+        return calendarIds.isEmpty() ? null : calendarIds;
+    }
+
+    public synchronized void invalidate() {
+        mGeneration++;
+        mCalendarIds = null;
+    }
+
+    private List<String> queryOwnedCalendarIds() {
+        String[] projection = new String[] {Calendars._ID, Calendars.CALENDAR_ACCESS_LEVEL};
+        Cursor cursor = mContext.getContentResolver().query(Calendars.CONTENT_URI, projection,
+                Calendars.VISIBLE + " = 1 AND " + Calendars.CALENDAR_ACCESS_LEVEL + " = ? ",
+                new String[] {String.valueOf(Calendars.CAL_ACCESS_OWNER)}, null);
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            List<String> calendarIds = new ArrayList<>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                calendarIds.add(String.valueOf(cursor.getInt(0)));
+            }
+            return Collections.unmodifiableList(calendarIds);
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -24,8 +24,6 @@ import android.database.DatabaseUtils;
 import android.provider.Telephony;
 import android.util.Log;
 
-import com.android.contacts.common.compat.TelephonyThreadsCompat;
-
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -34,8 +32,8 @@ import java.util.List;
  * Loads the most recent sms between the passed in phone numbers.
  *
  * This is a two part process. The first step is retrieving the threadIds for each of the phone
- * numbers using fuzzy matching. The next step is to run another query against these threadIds
- * to retrieve the actual sms.
+ * numbers using fuzzy matching, they are cached by {@link SmsThreadIdCache}. The next step is
+ * to run another query against these threadIds to retrieve the actual sms.
  */
 public class SmsInteractionsLoader extends AsyncTaskLoader<List<ContactInteraction>> {
 
@@ -65,17 +63,15 @@ public class SmsInteractionsLoader extends AsyncTaskLoader<List<ContactInteracti
             return Collections.emptyList();
         }
 
-        // Retrieve the thread IDs
+        // Retrieve the thread IDs, usually from the cache
+        final SmsThreadIdCache threadIdCache = SmsThreadIdCache.getInstance(getContext());
         List<String> threadIdStrings = new ArrayList<>();
         for (String phone : mPhoneNums) {
             // TODO: the phone numbers added to the ContactInteraction result should retain their
             // original formatting since TalkBack is not reading the normalized numbers correctly
-            try {
-                threadIdStrings.add(String.valueOf(
-                        TelephonyThreadsCompat.getOrCreateThreadId(getContext(), phone)));
-            } catch (Exception e) {
-                // Do nothing. Telephony.Threads.getOrCreateThreadId() throws exceptions when
-                // it can't find/create a threadId (b/17657656).
+            Long threadId = threadIdCache.getThreadId(phone);
+            if (threadId != null && !threadIdStrings.contains(String.valueOf(threadId))) {
+                threadIdStrings.add(String.valueOf(threadId));
             }
         }
 
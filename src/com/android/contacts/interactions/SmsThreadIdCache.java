@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.interactions;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.provider.Telephony;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.android.contacts.common.compat.TelephonyThreadsCompat;
+
+/**
+ * Process-wide cache of the sms thread id of phone numbers.
+ *
+ * Resolving a thread id is an expensive provider call, which creates the thread if it does not
+ * exist yet. The cache is cleared whenever the sms provider notifies a change, since threads
+ * may have been deleted. Creating a thread does not notify sms observers, so a miss does not
+ * clear the cache.
+ */
+class SmsThreadIdCache {
+    private static final String TAG = "SmsThreadIdCache";
+
+    private static final int MAX_ENTRIES = 200;
+
+    private static SmsThreadIdCache sInstance;
+
+    private final Context mContext;
+    private final LruCache<String, Long> mThreadIds = new LruCache<>(MAX_ENTRIES);
+    /**
+     * Incremented on each invalidation, so a thread id resolved before it is not cached.
+     */
+    private volatile int mGeneration = 0;
+
+    private final ContentObserver mObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            invalidate();
+        }
+    };
+
+    public static synchronized SmsThreadIdCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new SmsThreadIdCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private SmsThreadIdCache(Context context) {
+        mContext = context;
+        try {
+            context.getContentResolver().registerContentObserver(
+                    Telephony.Sms.CONTENT_URI, true, mObserver);
+        } catch (SecurityException e) {
+            Log.w(TAG, "Cannot observe the sms provider", e);
+        }
+    }
+
+    /**
+     * @return the thread id of the number, or null if it cannot be found nor created.
+     */
+    public Long getThreadId(String phoneNumber) {
+        Long threadId = mThreadIds.get(phoneNumber);
+        if (threadId != null) {
+            return threadId;
+        }
+        final int generation = mGeneration;
+        try {
+            threadId = TelephonyThreadsCompat.getOrCreateThreadId(mContext, phoneNumber);
+        } catch (Exception e) {
+            // Do nothing. Telephony.Threads.getOrCreateThreadId() throws exceptions when
+            // it can't find/create a threadId (b/17657656).
+            return null;
+        }
+        if (generation == mGeneration) {
+            mThreadIds.put(phoneNumber, threadId);
+        }
+        return threadId;
+    }
+
+    public void invalidate() {
+        mGeneration++;
+        mThreadIds.evictAll();
+    }
+}
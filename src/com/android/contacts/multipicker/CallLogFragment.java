@@ -38,6 +38,7 @@ import android.database.Cursor;
 import android.database.MatrixCursor;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
 import android.provider.CallLog;
 import android.provider.CallLog.Calls;
 import android.provider.ContactsContract.Contacts;
@@ -66,7 +67,12 @@ import com.google.common.collect.Sets;
 
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class CallLogFragment extends ListFragment {
 
@@ -157,6 +163,34 @@ public class CallLogFragment extends ListFragment {
 
     private ContentResolver resolver;
     private final ContentObserver mCallLogObserver = new CustomContentObserver();
+    private final ContentObserver mContactsObserver = new ContactsContentObserver();
+
+    /**
+     * Count of numbers resolved between two updates of the list.
+     */
+    private static final int RESOLVE_CHUNK_SIZE = 10;
+
+    /**
+     * Contact of each number already looked up, {@link #UNKNOWN_CALLER} for strangers.
+     * Cleared when contacts change.
+     */
+    private final ConcurrentHashMap<String, CallerInfo> mCallerInfoCache =
+            new ConcurrentHashMap<String, CallerInfo>();
+
+    private static final CallerInfo UNKNOWN_CALLER = new CallerInfo();
+
+    private final ExecutorService mResolveExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mMainHandler = new Handler();
+
+    /**
+     * Incremented on each query, so results of the previous call log are dropped.
+     */
+    private volatile int mQueryGeneration = 0;
+
+    /**
+     * Ids of the calls of strangers already passed to appendStrangeCallLogId.
+     */
+    private final Set<Long> mStrangeCallIds = new HashSet<Long>();
 
     private class CustomContentObserver extends ContentObserver {
         public CustomContentObserver() {
@@ -169,12 +203,53 @@ public class CallLogFragment extends ListFragment {
         }
     }
 
+    private class ContactsContentObserver extends ContentObserver {
+        public ContactsContentObserver() {
+            super(null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            mCallerInfoCache.clear();
+            startQuery();
+        }
+    }
+
+    /**
+     * A row of the call log, as read from the call log provider.
+     */
+    private static class CallRow {
+        long callId;
+        String number;
+        int type;
+        String cachedName;
+        int cachedNumberType;
+        String cachedNumberLabel;
+        String cachedLookupUri;
+        int cachedPhotoId;
+        String cachedPhotoUri;
+    }
+
+    /**
+     * The contact a phone number belongs to.
+     */
+    private static class CallerInfo {
+        long dataId;
+        String name;
+        int numberType;
+        String numberLabel;
+        int photoId;
+        Uri photoUri;
+        String lookupUri;
+    }
+
     @Override
     public void onActivityCreated(Bundle savedInstanceState) {
         super.onActivityCreated(savedInstanceState);
 
         resolver = mContext.getContentResolver();
         resolver.registerContentObserver(Calls.CONTENT_URI, true, mCallLogObserver);
+        resolver.registerContentObserver(Contacts.CONTENT_URI, true, mContactsObserver);
 
         if (mCheckListListener == null) {
             mCheckListListener = ((MultiPickContactsActivity) getActivity())
@@ -215,7 +290,12 @@ public class CallLogFragment extends ListFragment {
     @Override
     public void onDestroy() {
         resolver.unregisterContentObserver(mCallLogObserver);
+        resolver.unregisterContentObserver(mContactsObserver);
         mQueryHandler.removeCallbacksAndMessages(QUERY_TOKEN);
+        mResolveExecutor.shutdownNow();
+        mMainHandler.removeCallbacksAndMessages(null);
+        // drop the results of the lookups still running.
+        mQueryGeneration++;
 
         if (mCallLogListAdapter.getCursor() != null) {
             mCallLogListAdapter.getCursor().close();
@@ -307,88 +387,170 @@ public class CallLogFragment extends ListFragment {
             }
             final CallLogFragment fragment = mFragment.get();
 
-            MatrixCursor matrixCursor = new MatrixCursor(CALL_LOG_AND_DATA_PROJECTION);
-            setMatrixCursor(matrixCursor, cursor);
+            final List<CallRow> rows = readCallRows(cursor);
+            final int generation = ++mQueryGeneration;
+            // show the calls at once, with the contacts already known.
+            publishRows(rows);
+            resolveCallers(rows, generation);
+        }
+    }
 
-            mCallLogListAdapter.changeCursor(matrixCursor);
+    private static List<CallRow> readCallRows(Cursor cursor) {
+        final List<CallRow> rows = new ArrayList<CallRow>();
+        if (cursor == null) {
+            return rows;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                CallRow row = new CallRow();
+                row.callId = cursor.getLong(ID);
+                row.number = cursor.getString(NUMBER);
+                row.type = cursor.getInt(CALL_TYPE);
+                row.cachedName = cursor.getString(CACHED_NAME);
+                row.cachedNumberType = cursor.getInt(CACHED_NUMBER_TYPE);
+                row.cachedNumberLabel = cursor.getString(CACHED_NUMBER_LABEL);
+                row.cachedLookupUri = cursor.getString(CACHED_LOOKUP_URI);
+                row.cachedPhotoId = cursor.getInt(CACHED_PHOTO_ID);
+                row.cachedPhotoUri = cursor.getString(CACHED_PHOTO_URI);
+                rows.add(row);
+            }
+        } finally {
+            cursor.close();
         }
+        return rows;
     }
 
-    private void setMatrixCursor(MatrixCursor matrixCursor, Cursor cursor) {
-        if (cursor == null)
-            return;
-        if (!cursor.moveToFirst())
+    /**
+     * Looks up the contact of every distinct number not in the cache yet on a background
+     * thread, and updates the list every {@link #RESOLVE_CHUNK_SIZE} numbers.
+     */
+    private void resolveCallers(final List<CallRow> rows, final int generation) {
+        final ArrayList<String> numbers = new ArrayList<String>();
+        final Set<String> uniqueNumbers = new HashSet<String>();
+        for (CallRow row : rows) {
+            if (!TextUtils.isEmpty(row.number) && !mCallerInfoCache.containsKey(row.number)
+                    && uniqueNumbers.add(row.number)) {
+                numbers.add(row.number);
+            }
+        }
+        if (numbers.isEmpty()) {
             return;
-        Object[] tabRows = new Object[10];
+        }
+        final ContentResolver contentResolver = mContext.getContentResolver();
+        mResolveExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < numbers.size(); i++) {
+                    if (generation != mQueryGeneration) {
+                        return;
+                    }
+                    final String number = numbers.get(i);
+                    if (!mCallerInfoCache.containsKey(number)) {
+                        CallerInfo info = lookupCaller(contentResolver, number);
+                        if (info == null) {
+                            // the lookup failed, show the calls as they are.
+                            continue;
+                        }
+                        mCallerInfoCache.put(number, info);
+                    }
+                    if ((i + 1) % RESOLVE_CHUNK_SIZE == 0 || i == numbers.size() - 1) {
+                        mMainHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (generation == mQueryGeneration) {
+                                    publishRows(rows);
+                                }
+                            }
+                        });
+                    }
+                }
+            }
+        });
+    }
 
-        do {
-            long dataId = 0;
-            long callId = cursor.getLong(ID);
-            String number = cursor.getString(NUMBER);
-            int type = cursor.getInt(CALL_TYPE);
-            String name = cursor.getString(CACHED_NAME);
-            int numberType = cursor.getInt(CACHED_NUMBER_TYPE);
-            String numberLabel = cursor.getString(CACHED_NUMBER_LABEL);
-            String lookupUri = cursor.getString(CACHED_LOOKUP_URI);
-            int photoId = cursor.getInt(CACHED_PHOTO_ID);
-            Uri photoUri = UriUtils.parseUriOrNull(cursor.getString(CACHED_PHOTO_URI));
+    /**
+     * @return the contact of the number, {@link #UNKNOWN_CALLER} if there is none, or null if
+     * the lookup failed.
+     */
+    private static CallerInfo lookupCaller(ContentResolver contentResolver, String number) {
+        Uri uri = PhoneLookup.ENTERPRISE_CONTENT_FILTER_URI.buildUpon()
+                .appendPath(number).build();
+        Cursor phoneLookupCursor = null;
+        try {
+            phoneLookupCursor = contentResolver.query(
+                    uri, PHONE_LOOKUP_PROJECTION, null, null, null);
+            if (phoneLookupCursor == null
+                    || !phoneLookupCursor.moveToFirst()) {
+                return UNKNOWN_CALLER;
+            }
+            CallerInfo info = new CallerInfo();
+            info.dataId = phoneLookupCursor
+                    .getLong(PHONE_LOOKUP_DATA_ID);
+            info.name = phoneLookupCursor
+                    .getString(PHONE_LOOKUP_DISPLAY_NAME);
+            info.numberType = phoneLookupCursor
+                    .getInt(PHONE_LOOKUP_TYPE);
+            info.numberLabel = phoneLookupCursor
+                    .getString(PHONE_LOOKUP_LABEL);
+            info.photoId = phoneLookupCursor
+                    .getInt(PHONE_LOOKUP_PHOTO_ID);
+            info.photoUri = UriUtils.parseUriOrNull(phoneLookupCursor
+                    .getString(PHONE_LOOKUP_PHOTO_URI));
+            String lookupKey = phoneLookupCursor
+                    .getString(PHONE_LOOKUP_KEY);
+            long contact_id = phoneLookupCursor
+                    .getLong(PHONE_LOOKUP_CONTACT_ID);
+            info.lookupUri = Contacts
+                    .getLookupUri(contact_id, lookupKey).toString();
+            return info;
+        } catch (Exception e) {
+            return null;
+        } finally {
+            if (phoneLookupCursor != null) {
+                phoneLookupCursor.close();
+            }
+        }
+    }
 
-            if (TextUtils.isEmpty(number)) {
+    /**
+     * Shows the calls, with the contact of the numbers already resolved. The calls of numbers
+     * not resolved yet show what the call log cached.
+     */
+    private void publishRows(List<CallRow> rows) {
+        MatrixCursor matrixCursor = new MatrixCursor(CALL_LOG_AND_DATA_PROJECTION, rows.size());
+        Object[] tabRows = new Object[10];
+        for (CallRow row : rows) {
+            long dataId = 0;
+            String name = row.cachedName;
+            int numberType = row.cachedNumberType;
+            String numberLabel = row.cachedNumberLabel;
+            String lookupUri = row.cachedLookupUri;
+            int photoId = row.cachedPhotoId;
+            Uri photoUri = UriUtils.parseUriOrNull(row.cachedPhotoUri);
+
+            CallerInfo info = TextUtils.isEmpty(row.number)
+                    ? UNKNOWN_CALLER : mCallerInfoCache.get(row.number);
+            if (info == UNKNOWN_CALLER) {
                 name = null;
                 numberType = 0;
                 numberLabel = null;
                 photoId = 0;
                 photoUri = null;
-                mCheckListListener.appendStrangeCallLogId(String
-                        .valueOf(callId));
-            } else {
-                Uri uri = PhoneLookup.ENTERPRISE_CONTENT_FILTER_URI.buildUpon()
-                        .appendPath(number).build();
-                Cursor phoneLookupCursor = null;
-                try {
-                    phoneLookupCursor = mContext.getContentResolver().query(
-                            uri, PHONE_LOOKUP_PROJECTION, null, null, null);
-                    if (phoneLookupCursor == null
-                            || !phoneLookupCursor.moveToFirst()) {
-                        name = null;
-                        numberType = 0;
-                        numberLabel = null;
-                        photoId = 0;
-                        photoUri = null;
-                        mCheckListListener.appendStrangeCallLogId(String
-                                .valueOf(callId));
-                    } else {
-                        dataId = phoneLookupCursor
-                                .getLong(PHONE_LOOKUP_DATA_ID);
-                        name = phoneLookupCursor
-                                .getString(PHONE_LOOKUP_DISPLAY_NAME);
-                        numberType = phoneLookupCursor
-                                .getInt(PHONE_LOOKUP_TYPE);
-                        numberLabel = phoneLookupCursor
-                                .getString(PHONE_LOOKUP_LABEL);
-                        photoId = phoneLookupCursor
-                                .getInt(PHONE_LOOKUP_PHOTO_ID);
-                        photoUri = UriUtils.parseUriOrNull(phoneLookupCursor
-                                .getString(PHONE_LOOKUP_PHOTO_URI));
-                        String lookupKey = phoneLookupCursor
-                                .getString(PHONE_LOOKUP_KEY);
-                        long contact_id = phoneLookupCursor
-                                .getLong(PHONE_LOOKUP_CONTACT_ID);
-                        lookupUri = Contacts
-                                .getLookupUri(contact_id, lookupKey).toString();
-                    }
-
-                } catch (Exception e) {
-                    return;
-                } finally {
-                    if (phoneLookupCursor != null) {
-                        phoneLookupCursor.close();
-                    }
+                if (mStrangeCallIds.add(row.callId)) {
+                    mCheckListListener.appendStrangeCallLogId(String.valueOf(row.callId));
                 }
+            } else if (info != null) {
+                dataId = info.dataId;
+                name = info.name;
+                numberType = info.numberType;
+                numberLabel = info.numberLabel;
+                photoId = info.photoId;
+                photoUri = info.photoUri;
+                lookupUri = info.lookupUri;
             }
-            tabRows[0] = callId;
-            tabRows[1] = number;
-            tabRows[2] = type;
+            tabRows[0] = row.callId;
+            tabRows[1] = row.number;
+            tabRows[2] = row.type;
             tabRows[3] = name;
             tabRows[4] = numberType;
             tabRows[5] = numberLabel;
@@ -398,8 +560,8 @@ public class CallLogFragment extends ListFragment {
             tabRows[9] = dataId;
 
             matrixCursor.addRow(tabRows);
-
-        } while (cursor.moveToNext());
+        }
+        mCallLogListAdapter.changeCursor(matrixCursor);
     }
 
     @Override
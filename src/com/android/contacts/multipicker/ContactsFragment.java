@@ -165,6 +165,20 @@ public class ContactsFragment extends ListFragment {
     private static final int DATA_CONTACT_ID = 6;
 
     private static final int QUERY_TOKEN = 43;
+    private static final int SEARCH_QUERY_TOKEN = 44;
+
+    /**
+     * Columns a search text is looked for in, when the rows of the previous text are filtered.
+     */
+    private static final String[] SEARCH_COLUMNS = new String[] {
+            Contacts.DISPLAY_NAME_PRIMARY,
+            Contacts.DISPLAY_NAME_ALTERNATIVE,
+            Data.DATA1,
+            "name",
+            "number",
+            "emails",
+            "anrs"
+    };
 
     public static final int ACTION_ADD_GROUP_MEMBER = 0;
     public static final int ACTION_MOVE_GROUP_MEMBER = 1;
@@ -178,6 +192,7 @@ public class ContactsFragment extends ListFragment {
     private int subscription;
 
     private QueryHandler mQueryHandler;
+    private IncrementalSearch mSearch;
     private Bundle mChoiceSet;
     private TextView mSelectAllLabel;
 
@@ -265,6 +280,7 @@ public class ContactsFragment extends ListFragment {
         getListView().addHeaderView(mHeaderView, null, false);
         setListAdapter(mContactListAdapter);
         mQueryHandler = new QueryHandler(mContext);
+        mSearch = new IncrementalSearch(new SearchCallback(), SEARCH_COLUMNS);
         startQuery();
     }
 
@@ -363,6 +379,9 @@ public class ContactsFragment extends ListFragment {
     @Override
     public void onDestroy() {
         mQueryHandler.removeCallbacksAndMessages(QUERY_TOKEN);
+        if (mSearch != null) {
+            mSearch.clear();
+        }
 
         if (mContactListAdapter.getCursor() != null) {
             mContactListAdapter.getCursor().close();
@@ -631,21 +650,49 @@ public class ContactsFragment extends ListFragment {
         if (TextUtils.isEmpty(s)) {
             // mPickMode.exitSearchMode();
             // startQuery();
+            mSearch.clear();
             mContactListAdapter.changeCursor(null);
             return;
         }
+        mSearch.setText(s);
+    }
 
+    private void startFilterQuery(String s) {
         Uri uri;
         if (mPickMode.isPickContactInfo()) {
             uri = Data.CONTENT_URI;
         } else {
-            uri = Uri.withAppendedPath(getFilterUri(), Uri.encode(query));
+            uri = Uri.withAppendedPath(getFilterUri(), Uri.encode(s));
         }
         String[] projection = getProjectionForQuery();
         String selection = getSelectionForQuery();
         String[] selectionArgs = getSelectionArgsForQuery();
-        mQueryHandler.startQuery(QUERY_TOKEN, null, uri, projection, selection, selectionArgs,
-                getSortOrder(projection));
+        mQueryHandler.startQuery(SEARCH_QUERY_TOKEN, s, uri, projection, selection,
+                selectionArgs, getSortOrder(projection));
+    }
+
+    private class SearchCallback implements IncrementalSearch.Callback {
+        @Override
+        public void onCancelQueries() {
+            mQueryHandler.cancelOperation(SEARCH_QUERY_TOKEN);
+        }
+
+        @Override
+        public void onStartQuery(String text) {
+            startFilterQuery(text);
+        }
+
+        @Override
+        public void onShowCursor(Cursor cursor) {
+            if (mHeaderView != null && mPickMode.isSearchMode()) {
+                getListView().removeHeaderView(mHeaderView);
+            }
+            // the search results are closed by mSearch.
+            Cursor old = mContactListAdapter.swapCursor(cursor);
+            if (old != null && !(old instanceof FilteredCursor)) {
+                old.close();
+            }
+        }
     }
 
     private class QueryHandler extends AsyncQueryHandler {
@@ -665,6 +712,11 @@ public class ContactsFragment extends ListFragment {
                 mFragment = new WeakReference<ContactsFragment>(ContactsFragment.this);
             }
             final ContactsFragment fragment = mFragment.get();
+            if (token == SEARCH_QUERY_TOKEN) {
+                mSearch.onQueryComplete((String) cookie, cursor);
+                return;
+            }
+            mSearch.clear();
             if (mHeaderView != null && mPickMode.isSearchMode()) {
                 getListView().removeHeaderView(mHeaderView);
             }
@@ -1007,9 +1059,11 @@ public class ContactsFragment extends ListFragment {
         }
 
         @Override
-        public void changeCursor(Cursor cursor) {
-            super.changeCursor(cursor);
+        public Cursor swapCursor(Cursor cursor) {
+            // changeCursor swaps the cursor too.
+            Cursor old = super.swapCursor(cursor);
             updateIndexer(cursor);
+            return old;
         }
 
         @Override
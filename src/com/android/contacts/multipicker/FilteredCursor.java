@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.multipicker;
+
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.os.Bundle;
+import android.telephony.PhoneNumberUtils;
+import android.text.TextUtils;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * The rows of a cursor which contain a text in one of the given columns, or its digits in a
+ * phone number.
+ *
+ * Used to show the result of a longer search text right away, from the result of one of its
+ * prefixes, until the provider returns the exact result. Closing this cursor closes the
+ * wrapped one.
+ */
+class FilteredCursor extends CursorWrapper {
+
+    private final Cursor mCursor;
+    private final String[] mColumns;
+    private final String mText;
+    /**
+     * The positions of the rows in the wrapped cursor, null if all its rows are kept.
+     */
+    private final int[] mPositions;
+    private final int mCount;
+    private int mPosition = -1;
+
+    /**
+     * Keeps all the rows of the cursor, which is the exact result of the text.
+     */
+    FilteredCursor(Cursor cursor, String[] columns, String text) {
+        super(cursor);
+        mCursor = cursor;
+        mColumns = columns;
+        mText = text;
+        mPositions = null;
+        mCount = cursor.getCount();
+    }
+
+    /**
+     * Keeps the rows at the given positions of the cursor which match the text.
+     */
+    private FilteredCursor(Cursor cursor, String[] columns, String text, int[] positions,
+            int count) {
+        super(cursor);
+        mCursor = cursor;
+        mColumns = columns;
+        mText = text;
+        final String lowerText = text.toLowerCase(Locale.getDefault());
+        final String digits = PhoneNumberUtils.isGlobalPhoneNumber(text)
+                ? PhoneNumberUtils.normalizeNumber(text) : null;
+        final int[] matches = new int[count];
+        int matchCount = 0;
+        for (int i = 0; i < count; i++) {
+            int position = positions == null ? i : positions[i];
+            if (cursor.moveToPosition(position) && matches(cursor, lowerText, digits)) {
+                matches[matchCount++] = position;
+            }
+        }
+        mPositions = matchCount == count ? matches : Arrays.copyOf(matches, matchCount);
+        mCount = matchCount;
+    }
+
+    /**
+     * @return the text the rows were filtered with.
+     */
+    String getText() {
+        return mText;
+    }
+
+    /**
+     * @return the rows of the wrapped cursor which match a text extending the text of this
+     * cursor. Only the rows of this cursor are read.
+     */
+    FilteredCursor refine(String text) {
+        return new FilteredCursor(mCursor, mColumns, text, mPositions, mCount);
+    }
+
+    /**
+     * @return the cursor holding the rows, closed along with this cursor.
+     */
+    Cursor getBaseCursor() {
+        return mCursor;
+    }
+
+    private boolean matches(Cursor cursor, String lowerText, String digits) {
+        for (String column : mColumns) {
+            // the index is looked up per row, the columns of a MergeCursor vary between rows.
+            int index = cursor.getColumnIndex(column);
+            if (index < 0 || cursor.getType(index) != Cursor.FIELD_TYPE_STRING) {
+                continue;
+            }
+            String value = cursor.getString(index);
+            if (TextUtils.isEmpty(value)) {
+                continue;
+            }
+            if (value.toLowerCase(Locale.getDefault()).contains(lowerText)) {
+                return true;
+            }
+            if (!TextUtils.isEmpty(digits)
+                    && PhoneNumberUtils.normalizeNumber(value).contains(digits)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public int getCount() {
+        return mCount;
+    }
+
+    @Override
+    public int getPosition() {
+        return mPosition;
+    }
+
+    @Override
+    public boolean moveToPosition(int position) {
+        if (position >= mCount) {
+            mPosition = mCount;
+            return false;
+        }
+        if (position < 0) {
+            mPosition = -1;
+            return false;
+        }
+        mPosition = position;
+        return mCursor.moveToPosition(mPositions == null ? position : mPositions[position]);
+    }
+
+    @Override
+    public boolean move(int offset) {
+        return moveToPosition(mPosition + offset);
+    }
+
+    @Override
+    public boolean moveToFirst() {
+        return moveToPosition(0);
+    }
+
+    @Override
+    public boolean moveToLast() {
+        return moveToPosition(mCount - 1);
+    }
+
+    @Override
+    public boolean moveToNext() {
+        return moveToPosition(mPosition + 1);
+    }
+
+    @Override
+    public boolean moveToPrevious() {
+        return moveToPosition(mPosition - 1);
+    }
+
+    @Override
+    public boolean isFirst() {
+        return mCount != 0 && mPosition == 0;
+    }
+
+    @Override
+    public boolean isLast() {
+        return mCount != 0 && mPosition == mCount - 1;
+    }
+
+    @Override
+    public boolean isBeforeFirst() {
+        return mCount == 0 || mPosition == -1;
+    }
+
+    @Override
+    public boolean isAfterLast() {
+        return mCount == 0 || mPosition == mCount;
+    }
+
+    /**
+     * The extras of the wrapped cursor, like the address book index, describe all its rows.
+     */
+    @Override
+    public Bundle getExtras() {
+        return mPositions == null ? mCursor.getExtras() : Bundle.EMPTY;
+    }
+}
@@ -0,0 +1,462 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.multipicker;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.GroupMembership;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.RawContacts;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Process-wide index of the phone numbers of the members of every group, keyed by group id.
+ *
+ * The index is built on a background thread. While listeners are registered, it is refreshed
+ * after each change notified by the contacts provider, and a refresh only reads again the raw
+ * contacts which have been inserted, deleted or whose {@link RawContacts#VERSION} changed.
+ * Listeners are called on the main thread each time a new index is published.
+ */
+class GroupMemberIndex {
+    private static final String TAG = "GroupMemberIndex";
+
+    /**
+     * Max count of raw contact ids in one "IN (...)" selection.
+     */
+    private static final int QUERY_CHUNK_SIZE = 500;
+
+    private static final Member[] EMPTY = new Member[0];
+
+    private static final String[] VERSION_PROJECTION = new String[] {
+            RawContacts._ID, RawContacts.VERSION};
+
+    private static final String[] MEMBERSHIP_PROJECTION = new String[] {
+            Data.RAW_CONTACT_ID, GroupMembership.GROUP_ROW_ID};
+
+    private static final String[] PHONE_PROJECTION = new String[] {
+            Phone._ID, // 0
+            Phone.TYPE, // 1
+            Phone.LABEL, // 2
+            Phone.NUMBER, // 3
+            Phone.DISPLAY_NAME, // 4
+            Phone.CONTACT_ID, // 5
+            Phone.RAW_CONTACT_ID // 6
+    };
+
+    interface Listener {
+        void onIndexChanged(GroupMemberIndex index);
+    }
+
+    /**
+     * A phone number of a group member.
+     */
+    static class Member {
+        final long dataId;
+        final String name;
+        final String number;
+        final String type;
+        final String label;
+        final String contactId;
+
+        Member(long dataId, String name, String number, String type, String label,
+                String contactId) {
+            this.dataId = dataId;
+            this.name = name;
+            this.number = number;
+            this.type = type;
+            this.label = label;
+            this.contactId = contactId;
+        }
+
+        /**
+         * @return the key of the number in the selection of the picker.
+         */
+        String getKey() {
+            return String.valueOf(dataId);
+        }
+
+        /**
+         * @return the value of the number in the selection of the picker.
+         */
+        String[] getValue() {
+            return new String[] {name, number, type, label, contactId};
+        }
+    }
+
+    private static final Comparator<Member> DATA_ID_ORDER = new Comparator<Member>() {
+        @Override
+        public int compare(Member lhs, Member rhs) {
+            return lhs.dataId < rhs.dataId ? -1 : (lhs.dataId == rhs.dataId ? 0 : 1);
+        }
+    };
+
+    /**
+     * Immutable state published to the main thread.
+     */
+    private static class Snapshot {
+        final HashMap<Long, Member[]> groups;
+        final Member[] all;
+
+        Snapshot(HashMap<Long, Member[]> groups, Member[] all) {
+            this.groups = groups;
+            this.all = all;
+        }
+    }
+
+    private static GroupMemberIndex sInstance;
+
+    private final ContentResolver mResolver;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final ArrayList<Listener> mListeners = new ArrayList<>();
+
+    // main thread.
+    private Snapshot mSnapshot;
+    private boolean mStale = true;
+
+    // refresh thread.
+    private final HashMap<Long, Integer> mVersions = new HashMap<>();
+    private final HashMap<Long, long[]> mGroupsByRawContact = new HashMap<>();
+    private final HashMap<Long, ArrayList<Member>> mPhonesByRawContact = new HashMap<>();
+
+    /**
+     * True while a refresh is queued and has not started yet, further changes are then
+     * picked up by that refresh.
+     */
+    private boolean mRefreshQueued = false;
+
+    private final ContentObserver mObserver = new ContentObserver(mMainHandler) {
+        @Override
+        public void onChange(boolean selfChange) {
+            refresh();
+        }
+    };
+
+    public static synchronized GroupMemberIndex getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new GroupMemberIndex(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private GroupMemberIndex(Context context) {
+        mResolver = context.getContentResolver();
+    }
+
+    /**
+     * Registers a listener, on the main thread. The index is refreshed if it may have changed
+     * since the last listener was removed.
+     */
+    public void addListener(Listener listener) {
+        if (!mListeners.contains(listener)) {
+            mListeners.add(listener);
+        }
+        if (mListeners.size() == 1) {
+            mResolver.registerContentObserver(ContactsContract.AUTHORITY_URI, true, mObserver);
+            if (mStale) {
+                refresh();
+            }
+        }
+    }
+
+    /**
+     * Unregisters a listener, on the main thread. The index is no longer refreshed once there
+     * are no listeners left.
+     */
+    public void removeListener(Listener listener) {
+        if (mListeners.remove(listener) && mListeners.isEmpty()) {
+            mResolver.unregisterContentObserver(mObserver);
+            mStale = true;
+        }
+    }
+
+    /**
+     * @return true once the index has been built.
+     */
+    public boolean isReady() {
+        return mSnapshot != null;
+    }
+
+    /**
+     * @return the numbers of the members of the group, ordered by data id. Empty if the group
+     * has no members or the index is not ready yet.
+     */
+    public Member[] getMembers(long groupId) {
+        final Member[] members = mSnapshot == null ? null : mSnapshot.groups.get(groupId);
+        return members == null ? EMPTY : members;
+    }
+
+    public int getMemberCount(long groupId) {
+        return getMembers(groupId).length;
+    }
+
+    /**
+     * @return the numbers of the members of any group, each of them once.
+     */
+    public Member[] getAllMembers() {
+        return mSnapshot == null ? EMPTY : mSnapshot.all;
+    }
+
+    private void refresh() {
+        mStale = false;
+        synchronized (this) {
+            if (mRefreshQueued) {
+                return;
+            }
+            mRefreshQueued = true;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (GroupMemberIndex.this) {
+                    mRefreshQueued = false;
+                }
+                final Snapshot snapshot;
+                try {
+                    snapshot = update();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Failed to index group members", e);
+                    return;
+                }
+                if (snapshot == null) {
+                    return;
+                }
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mSnapshot = snapshot;
+                        for (Listener listener : new ArrayList<>(mListeners)) {
+                            listener.onIndexChanged(GroupMemberIndex.this);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Reads the raw contacts changed since the previous update, on the refresh thread.
+     *
+     * @return the new index, or null if it did not change.
+     */
+    private Snapshot update() {
+        final HashMap<Long, Integer> versions = queryVersions();
+        if (versions == null) {
+            return null;
+        }
+        final boolean firstUpdate = mVersions.isEmpty();
+        final ArrayList<Long> changed = new ArrayList<>();
+        for (Map.Entry<Long, Integer> entry : versions.entrySet()) {
+            if (!entry.getValue().equals(mVersions.get(entry.getKey()))) {
+                changed.add(entry.getKey());
+            }
+        }
+        boolean removed = false;
+        for (Iterator<Long> it = mVersions.keySet().iterator(); it.hasNext();) {
+            Long rawContactId = it.next();
+            if (!versions.containsKey(rawContactId)) {
+                it.remove();
+                mGroupsByRawContact.remove(rawContactId);
+                mPhonesByRawContact.remove(rawContactId);
+                removed = true;
+            }
+        }
+        if (!firstUpdate && changed.isEmpty() && !removed) {
+            return null;
+        }
+
+        boolean success = true;
+        if (firstUpdate) {
+            mGroupsByRawContact.clear();
+            mPhonesByRawContact.clear();
+            success = readMemberships(null) && readPhones(null);
+        } else {
+            for (int start = 0; success && start < changed.size(); start += QUERY_CHUNK_SIZE) {
+                List<Long> chunk = changed.subList(start,
+                        Math.min(start + QUERY_CHUNK_SIZE, changed.size()));
+                for (Long rawContactId : chunk) {
+                    mGroupsByRawContact.remove(rawContactId);
+                    mPhonesByRawContact.remove(rawContactId);
+                }
+                success = readMemberships(chunk) && readPhones(chunk);
+            }
+        }
+        if (!success) {
+            // read everything again next time.
+            mVersions.clear();
+            return null;
+        }
+        mVersions.putAll(versions);
+        return buildSnapshot();
+    }
+
+    private HashMap<Long, Integer> queryVersions() {
+        final Cursor cursor = mResolver.query(RawContacts.CONTENT_URI, VERSION_PROJECTION,
+                RawContacts.DELETED + "=0", null, null);
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            final HashMap<Long, Integer> versions = new HashMap<>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                versions.put(cursor.getLong(0), cursor.getInt(1));
+            }
+            return versions;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Reads the groups of the given raw contacts, or of every raw contact if null.
+     *
+     * @return false if the query failed.
+     */
+    private boolean readMemberships(List<Long> rawContactIds) {
+        String selection = Data.MIMETYPE + "=?";
+        if (rawContactIds != null) {
+            selection += " AND " + Data.RAW_CONTACT_ID + " IN ("
+                    + TextUtils.join(",", rawContactIds) + ")";
+        }
+        final Cursor cursor = mResolver.query(Data.CONTENT_URI, MEMBERSHIP_PROJECTION, selection,
+                new String[] {GroupMembership.CONTENT_ITEM_TYPE}, Data.RAW_CONTACT_ID);
+        if (cursor == null) {
+            return false;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                long rawContactId = cursor.getLong(0);
+                long[] groups = mGroupsByRawContact.get(rawContactId);
+                groups = groups == null ? new long[1] : Arrays.copyOf(groups, groups.length + 1);
+                groups[groups.length - 1] = cursor.getLong(1);
+                mGroupsByRawContact.put(rawContactId, groups);
+            }
+        } finally {
+            cursor.close();
+        }
+        return true;
+    }
+
+    /**
+     * Reads the numbers of the given raw contacts which are group members, or of every group
+     * member if null.
+     *
+     * @return false if the query failed.
+     */
+    private boolean readPhones(List<Long> rawContactIds) {
+        final String selection;
+        String[] selectionArgs = null;
+        if (rawContactIds == null) {
+            selection = Data.RAW_CONTACT_ID + " IN (SELECT DISTINCT " + Data.RAW_CONTACT_ID
+                    + " FROM view_data WHERE " + Data.MIMETYPE + "=?)";
+            selectionArgs = new String[] {GroupMembership.CONTENT_ITEM_TYPE};
+        } else {
+            final ArrayList<Long> members = new ArrayList<>(rawContactIds.size());
+            for (Long rawContactId : rawContactIds) {
+                if (mGroupsByRawContact.containsKey(rawContactId)) {
+                    members.add(rawContactId);
+                }
+            }
+            if (members.isEmpty()) {
+                return true;
+            }
+            selection = Data.RAW_CONTACT_ID + " IN (" + TextUtils.join(",", members) + ")";
+        }
+        final Cursor cursor = mResolver.query(Phone.CONTENT_URI, PHONE_PROJECTION, selection,
+                selectionArgs, null);
+        if (cursor == null) {
+            return false;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                long rawContactId = cursor.getLong(6);
+                ArrayList<Member> phones = mPhonesByRawContact.get(rawContactId);
+                if (phones == null) {
+                    phones = new ArrayList<>(1);
+                    mPhonesByRawContact.put(rawContactId, phones);
+                }
+                phones.add(new Member(cursor.getLong(0), cursor.getString(4),
+                        cursor.getString(3), cursor.getString(1), cursor.getString(2),
+                        cursor.getString(5)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return true;
+    }
+
+    private Snapshot buildSnapshot() {
+        final HashMap<Long, ArrayList<Member>> groups = new HashMap<>();
+        final ArrayList<Member> all = new ArrayList<>();
+        for (Map.Entry<Long, long[]> entry : mGroupsByRawContact.entrySet()) {
+            ArrayList<Member> phones = mPhonesByRawContact.get(entry.getKey());
+            if (phones == null) {
+                continue;
+            }
+            all.addAll(phones);
+            for (long groupId : entry.getValue()) {
+                ArrayList<Member> members = groups.get(groupId);
+                if (members == null) {
+                    members = new ArrayList<>();
+                    groups.put(groupId, members);
+                }
+                members.addAll(phones);
+            }
+        }
+        final HashMap<Long, Member[]> groupMembers = new HashMap<>(groups.size());
+        for (Map.Entry<Long, ArrayList<Member>> entry : groups.entrySet()) {
+            groupMembers.put(entry.getKey(), toSortedArray(entry.getValue()));
+        }
+        return new Snapshot(groupMembers, toSortedArray(all));
+    }
+
+    private static Member[] toSortedArray(ArrayList<Member> members) {
+        final Member[] array = members.toArray(new Member[members.size()]);
+        Arrays.sort(array, DATA_ID_ORDER);
+        return array;
+    }
+}
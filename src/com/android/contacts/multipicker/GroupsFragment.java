@@ -82,11 +82,8 @@ import com.android.contacts.list.OnCheckListActionListener;
 import com.google.common.base.Objects;
 
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 
@@ -100,14 +97,12 @@ public class GroupsFragment extends ExpandableListFragment implements OnGroupCli
 
     private static final int QUERY_TOKEN = 44;
 
-    private Cursor allContactsInGroups;
+    private GroupMemberIndex mMemberIndex;
 
     private ExpandableListView mList = null;
     private GroupsAdapter mAdapter = null;
     private Cursor mGroupsCursor = null;
 
-    private Map<Long, String[]> mAllContactsCurosrMap;
-
     private ArrayList<String> checkedList;
 
     private static final String[] PHONES_PROJECTION = new String[] {
@@ -192,9 +187,6 @@ public class GroupsFragment extends ExpandableListFragment implements OnGroupCli
                     .createListener();
         }
         if (mAdapter == null) {
-            if (mAllContactsCurosrMap == null) {
-                mAllContactsCurosrMap = new HashMap<Long, String[]>();
-            }
             mAdapter = new GroupsAdapter(mContext, null, R.layout.pick_group_list_item_view,
                     new String[] {}, new int[] {}, R.layout.pick_child_list_item_view,
                     new String[] {}, new int[] {});
@@ -214,8 +206,7 @@ public class GroupsFragment extends ExpandableListFragment implements OnGroupCli
     public void onAttach(Activity activity) {
         super.onAttach(activity);
         mContext = activity;
-
-        allContactsInGroups = getAllContactsCursorInGroups();
+        mMemberIndex = GroupMemberIndex.getInstance(activity);
     }
 
     @Override
@@ -227,7 +218,13 @@ public class GroupsFragment extends ExpandableListFragment implements OnGroupCli
     @Override
     public void onResume() {
         super.onResume();
-        fillAllContactsCursorMap();
+        mMemberIndex.addListener(mIndexListener);
+    }
+
+    @Override
+    public void onPause() {
+        mMemberIndex.removeListener(mIndexListener);
+        super.onPause();
     }
 
     @Override
@@ -238,20 +235,28 @@ public class GroupsFragment extends ExpandableListFragment implements OnGroupCli
             mAdapter.getCursor().close();
         }
         mAdapter.notifyDataSetInvalidated();
-        if(allContactsInGroups!=null)
-            allContactsInGroups.close();
-
-        if (mAllContactsCurosrMap != null) {
-            mAllContactsCurosrMap.clear();
-        }
 
         super.onDestroy();
     }
 
+    private final GroupMemberIndex.Listener mIndexListener = new GroupMemberIndex.Listener() {
+        @Override
+        public void onIndexChanged(GroupMemberIndex index) {
+            if (getUserVisibleHint()) {
+                syncCheckedGroups();
+            } else {
+                mAdapter.notifyDataSetChanged();
+            }
+        }
+    };
+
     @Override
     public boolean onGroupClick(ExpandableListView parent, View v, int groupPosition, long id) {
         mCheckListListener.onHideSoftKeyboard();
 
+        if (!mMemberIndex.isReady()) {
+            return false;
+        }
         GroupItemCache groupCache = (GroupItemCache) v.getTag();
 
         if (mCheckListListener.onContainsGroupId(groupCache.id)) {
@@ -262,63 +267,24 @@ public class GroupsFragment extends ExpandableListFragment implements OnGroupCli
             mCheckListListener.addGroupId(groupCache.id);
         }
 
-        // get the all contacts data in current group
-        Cursor cursor = getContactsDetailCursor(groupCache.id);
-
-        if (cursor == null) {
-            return false;
-        }
-
-        String[] dataIds = new String[cursor.getCount()];
-        for (int i = 0; i < cursor.getCount(); i++) {
-            cursor.moveToPosition(i);
-            dataIds[i] = String.valueOf(cursor.getLong(PHONE_COLUMN_ID));
-        }
-        if (!Arrays.equals(mAllContactsCurosrMap.get(groupCache.id), dataIds)) {
-            mAllContactsCurosrMap.put(groupCache.id, dataIds);
-        }
-
-        if (!cursor.moveToFirst()) {
-            return false;
-        }
-
-        try {
-            // iterate over contacts information for current group
-            do {
-                String key = String.valueOf(cursor.getLong(PHONE_COLUMN_ID));
-                ContactItemCache cache = new ContactItemCache();
-                cache.id = cursor.getLong(PHONE_COLUMN_ID);
-                cache.name = cursor.getString(PHONE_COLUMN_DISPLAY_NAME);
-                cache.number = cursor.getString(PHONE_COLUMN_NUMBER);
-                cache.type = cursor.getString(PHONE_COLUMN_TYPE);
-                cache.label = cursor.getString(PHONE_COLUMN_LABEL);
-                cache.contact_id = cursor.getString(PHONE_COLUMN_CONTACT_ID);
-                if (mCheckListListener.onContainsGroupId(groupCache.id)) {
-                    if (!mCheckListListener.onContainsKey(key)) {
-                        String[] value = null;
-                        value = new String[] {
-                                cache.name, cache.number,
-                                cache.type, cache.label,
-                                cache.contact_id
-                        };
-                        mCheckListListener.putValue(key, value);
-                        if (!checkedList.contains(key)) {
-                            checkedList.add(key);
-                        }
+        // iterate over contacts information for current group
+        final boolean checked = mCheckListListener.onContainsGroupId(groupCache.id);
+        for (GroupMemberIndex.Member member : mMemberIndex.getMembers(groupCache.id)) {
+            String key = member.getKey();
+            if (checked) {
+                if (!mCheckListListener.onContainsKey(key)) {
+                    mCheckListListener.putValue(key, member.getValue());
+                    if (!checkedList.contains(key)) {
+                        checkedList.add(key);
                     }
-                } else {
-                    if (mCheckListListener.onContainsKey(key)) {
-                        mCheckListListener.onRemove(key);
-                        if (checkedList.contains(key)) {
-                            checkedList.remove(key);
-                        }
+                }
+            } else {
+                if (mCheckListListener.onContainsKey(key)) {
+                    mCheckListListener.onRemove(key);
+                    if (checkedList.contains(key)) {
+                        checkedList.remove(key);
                     }
                 }
-            } while (cursor.moveToNext());
-
-        } finally {
-            if (cursor != null) {
-                cursor.close();
             }
         }
 
@@ -343,10 +309,9 @@ public class GroupsFragment extends ExpandableListFragment implements OnGroupCli
         // iterate list
         while (it.hasNext()) {
             long groupId = (long) it.next();
-            String[] dataIds = mAllContactsCurosrMap.get(groupId);
-            for (int i = 0; i < dataIds.length; i++) {
+            for (GroupMemberIndex.Member member : mMemberIndex.getMembers(groupId)) {
                 // group contacts not in checked items
-                if (!checkedList.contains(dataIds[i])) {
+                if (!checkedList.contains(member.getKey())) {
                     // remove group id for group list
                     it.remove();
                     break;
@@ -359,30 +324,40 @@ public class GroupsFragment extends ExpandableListFragment implements OnGroupCli
      * add checked group item for groups
      */
     private void addGroupsChecked() {
-        for (int groupPosition = 0; groupPosition < mAllContactsCurosrMap.size(); groupPosition++) {
+        if (mGroupsCursor == null) {
+            return;
+        }
+        for (int groupPosition = 0; groupPosition < mGroupsCursor.getCount(); groupPosition++) {
             mGroupsCursor.moveToPosition(groupPosition);
             long groupCacheId = mGroupsCursor.getLong(GROUP_ID);
             // group item is checked status
             if (!mCheckListListener.onContainsGroupId(groupCacheId)) {
-                boolean isGroupChecked = true;
-                // get contacts dataId for group
-                String[] dataIds = mAllContactsCurosrMap.get(groupCacheId);
-                // determine all selected status of the group contacts
-                for (int i = 0; i < dataIds.length; i++) {
-                    if (!checkedList.contains(dataIds[i])) {
-                        isGroupChecked = false;
-                        break;
-                    }
-                }
                 // is group item checked status, add checked group itme for
                 // groups
-                if (isGroupChecked) {
+                if (isGroupChecked(groupCacheId)) {
                     mCheckListListener.addGroupId(groupCacheId);
                 }
             }
         }
     }
 
+    /**
+     * @return true if every number of the group is checked. Empty groups are never checked.
+     */
+    private boolean isGroupChecked(long groupId) {
+        GroupMemberIndex.Member[] members = mMemberIndex.getMembers(groupId);
+        if (members.length == 0) {
+            return false;
+        }
+        // determine all selected status of the group contacts
+        for (GroupMemberIndex.Member member : members) {
+            if (!checkedList.contains(member.getKey())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     @Override
     public boolean onChildClick(ExpandableListView parent, View v, int groupPosition,
             int childPosition, long id) {
@@ -467,19 +442,11 @@ public class GroupsFragment extends ExpandableListFragment implements OnGroupCli
         return cursor;
     }
 
-    public Cursor getAllContactsInGroups() {
-        return allContactsInGroups;
-    }
-
-    private Cursor getAllContactsCursorInGroups() {
-        StringBuilder selection = new StringBuilder();
-        selection.append(Data.RAW_CONTACT_ID + " IN (" + " SELECT DISTINCT " + Data.RAW_CONTACT_ID
-                + " FROM view_data WHERE " + Data.MIMETYPE + "=?)");
-
-        Cursor cursor = mContext.getContentResolver().query(Phone.CONTENT_URI, PHONES_PROJECTION,
-                selection.toString(), createSelectionArgs(), null);
-
-        return cursor;
+    /**
+     * @return the count of numbers of the members of any group.
+     */
+    public int getAllContactsInGroupsCount() {
+        return mMemberIndex == null ? 0 : mMemberIndex.getAllMembers().length;
     }
 
     private String[] createSelectionArgs(long groupId) {
@@ -489,12 +456,6 @@ public class GroupsFragment extends ExpandableListFragment implements OnGroupCli
         return selectionArgs.toArray(new String[0]);
     }
 
-    private String[] createSelectionArgs() {
-        List<String> selectionArgs = new ArrayList<String>();
-        selectionArgs.add(GroupMembership.CONTENT_ITEM_TYPE);
-        return selectionArgs.toArray(new String[0]);
-    }
-
     public void setCheckListListener(OnCheckListActionListener checkListListener) {
         mCheckListListener = checkListListener;
     }
@@ -649,11 +610,7 @@ public class GroupsFragment extends ExpandableListFragment implements OnGroupCli
             tv.setText(name);
             TextView cv = (TextView) view.findViewById(R.id.number_count);
             groupCache.id = cursor.getLong(GROUP_ID);
-            if (groupCache.phone_numbers == 0) {
-                String[] dataIds = mAllContactsCurosrMap.get(groupCache.id);
-                if (dataIds != null)
-                    groupCache.phone_numbers = dataIds.length;
-            }
+            groupCache.phone_numbers = mMemberIndex.getMemberCount(groupCache.id);
             String summary_count = context.getResources().getString(R.string.summary_count_numbers,
                     String.valueOf(groupCache.phone_numbers));
             cv.setText(summary_count);
@@ -797,98 +754,55 @@ public class GroupsFragment extends ExpandableListFragment implements OnGroupCli
         public void changeCursor(Cursor cursor) {
             if (cursor != mGroupsCursor) {
                 mGroupsCursor = cursor;
-                fillAllContactsCursorMap();
                 super.changeCursor(cursor);
             }
         }
     }
 
-        /**
-         * all contacts cursor fill to map
-         */
-        private void fillAllContactsCursorMap() {
-            mAllContactsCurosrMap.clear();
-            Cursor cursor = null;
-            if (mGroupsCursor == null || mGroupsCursor.isClosed())
-                return;
-            for (int groupPosition = 0; groupPosition < mGroupsCursor.getCount(); groupPosition++) {
-                mGroupsCursor.moveToPosition(groupPosition);
-                long groupCacheId = mGroupsCursor.getLong(GROUP_ID);
-                // get the all contacts data in current group
-                cursor = getContactsDetailCursor(groupCacheId);
-                if (cursor == null) {
-                    continue;
-                }
-                if (!cursor.moveToFirst()) {
-                    continue;
-                }
-                String[] dataIds = new String[cursor.getCount()];
-                for (int i = 0; i < cursor.getCount(); i++) {
-                    cursor.moveToPosition(i);
-                    dataIds[i] = String.valueOf(cursor.getLong(PHONE_COLUMN_ID));
-                }
-                mAllContactsCurosrMap.put(groupCacheId, dataIds);
-            }
-
-            if (cursor != null) {
-                cursor.close();
-            }
-    }
-
     @Override
     public void setUserVisibleHint(boolean isVisibleToUser) {
         super.setUserVisibleHint(isVisibleToUser);
         if (isVisibleToUser) {
-            // initialization mGroupFragme page, ensure that check groups and
-            // contacts item is selected
-            if (checkedList != null && mGroupsCursor != null) {
-                Cursor cursor = allContactsInGroups;
-                if (cursor == null) {
-                    return;
+            syncCheckedGroups();
+        }
+    }
+
+    /**
+     * initialization mGroupFragme page, ensure that check groups and contacts item is selected
+     */
+    private void syncCheckedGroups() {
+        if (checkedList == null || mGroupsCursor == null || !mMemberIndex.isReady()) {
+            return;
+        }
+        for (GroupMemberIndex.Member member : mMemberIndex.getAllMembers()) {
+            String key = member.getKey();
+            if (mCheckListListener.onContainsKey(key)) {
+                if (!checkedList.contains(key)) {
+                    checkedList.add(key);
                 }
-                int count = cursor.getCount();
-                String key;
-                for (int i = 0; i < count; i++) {
-                    cursor.moveToPosition(i);
-                    long id = cursor.getLong(PHONE_COLUMN_ID);
-                    key = String.valueOf(id);
-                    if (mCheckListListener.onContainsKey(key)) {
-                        if (!checkedList.contains(key)) {
-                            checkedList.add(key);
-                        }
-                    } else {
-                        if (checkedList.contains(key)) {
-                            checkedList.remove(key);
-                        }
-                    }
+            } else {
+                if (checkedList.contains(key)) {
+                    checkedList.remove(key);
                 }
-                for (int groupPosition = 0; groupPosition < mGroupsCursor
-                        .getCount(); groupPosition++) {
-                    mGroupsCursor.moveToPosition(groupPosition);
-                    long groupCacheId = mGroupsCursor.getLong(GROUP_ID);
-                    boolean isGroupChecked = true;
-                    String[] dataIds = mAllContactsCurosrMap.get(groupCacheId);
-                    for (int i = 0; i < dataIds.length; i++) {
-                        if (!checkedList.contains(dataIds[i])) {
-                            isGroupChecked = false;
-                            break;
-                        }
-                    }
-                    if (isGroupChecked) {
-                        if (!mCheckListListener.onContainsGroupId(groupCacheId)) {
-                            mCheckListListener.addGroupId(groupCacheId);
-                        }
-                    } else {
-                        if (mCheckListListener.onContainsGroupId(groupCacheId)) {
-                            mCheckListListener.onRemoveGroupId(groupCacheId);
-                        }
-                    }
+            }
+        }
+        for (int groupPosition = 0; groupPosition < mGroupsCursor
+                .getCount(); groupPosition++) {
+            mGroupsCursor.moveToPosition(groupPosition);
+            long groupCacheId = mGroupsCursor.getLong(GROUP_ID);
+            if (isGroupChecked(groupCacheId)) {
+                if (!mCheckListListener.onContainsGroupId(groupCacheId)) {
+                    mCheckListListener.addGroupId(groupCacheId);
+                }
+            } else {
+                if (mCheckListListener.onContainsGroupId(groupCacheId)) {
+                    mCheckListListener.onRemoveGroupId(groupCacheId);
                 }
-
-                mCheckListListener.onUpdateActionBar();
-                mAdapter.notifyDataSetChanged();
             }
         }
+
+        mCheckListListener.onUpdateActionBar();
+        mAdapter.notifyDataSetChanged();
     }
 
     /**
@@ -896,13 +810,10 @@ public class GroupsFragment extends ExpandableListFragment implements OnGroupCli
      * is False, deselected all groups and contacts
      */
     public void setSelectedAll(boolean isSelectedAll) {
-        Cursor cursor = allContactsInGroups;
-        if (cursor == null) {
+        if (!mMemberIndex.isReady() || mGroupsCursor == null) {
             return;
         }
-        ContactItemCache cache = new ContactItemCache();
-        String key;
-        int count = cursor.getCount();
+        GroupMemberIndex.Member[] members = mMemberIndex.getAllMembers();
         if (isSelectedAll) {
             // all groups selected
             for (int position = 0; position < mGroupsCursor.getCount(); position++) {
@@ -913,32 +824,20 @@ public class GroupsFragment extends ExpandableListFragment implements OnGroupCli
                 }
             }
             // all contacts selected
-            for (int i = 0; i < count; i++) {
-                cursor.moveToPosition(i);
-                cache.id = cursor.getLong(PHONE_COLUMN_ID);
-                key = String.valueOf(cache.id);
+            for (GroupMemberIndex.Member member : members) {
+                String key = member.getKey();
                 if (!mCheckListListener.onContainsKey(key)) {
-                    cache.name = cursor.getString(PHONE_COLUMN_DISPLAY_NAME);
-                    cache.number = cursor.getString(PHONE_COLUMN_NUMBER);
-                    cache.type = cursor.getString(PHONE_COLUMN_TYPE);
-                    cache.label = cursor.getString(PHONE_COLUMN_LABEL);
-                    cache.contact_id = cursor.getString(PHONE_COLUMN_CONTACT_ID);
-                    String[] value = new String[] {
-                            cache.name, cache.number, cache.type,
-                            cache.label, cache.contact_id
-                    };
                     if (!checkedList.contains(key)) {
                         checkedList.add(key);
                     }
-                    mCheckListListener.putValue(key, value);
+                    mCheckListListener.putValue(key, member.getValue());
                 }
             }
         } else {
             // clear groups selected numbers
             mCheckListListener.onGroupClear();
-            for (int i = 0; i < count; i++) {
-                cursor.moveToPosition(i);
-                key = String.valueOf(cursor.getLong(PHONE_COLUMN_ID));
+            for (GroupMemberIndex.Member member : members) {
+                String key = member.getKey();
                 if (mCheckListListener.onContainsKey(key)) {
                     mCheckListListener.onRemove(key);
                 }
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.multipicker;
+
+import android.database.Cursor;
+import android.os.Handler;
+import android.text.TextUtils;
+
+import java.util.Locale;
+
+/**
+ * Runs the search queries of a picker list while the user types.
+ *
+ * The provider is only queried once the text has not changed for {@link #DEBOUNCE_MILLIS},
+ * queries of older texts are cancelled and their results dropped. Meanwhile, when the new
+ * text extends the text of the shown rows, the shown rows are filtered in memory so the list
+ * follows each key stroke. The provider result then replaces them, as the provider may match
+ * rows on data which is not in the cursor.
+ *
+ * The shown cursor is owned by this class: it must be set on the adapter with
+ * {@link android.widget.CursorAdapter#swapCursor}, and {@link #clear} must be called before
+ * the adapter shows another cursor.
+ */
+class IncrementalSearch {
+
+    static final long DEBOUNCE_MILLIS = 250;
+
+    interface Callback {
+        /**
+         * Cancels the provider queries which have not completed yet.
+         */
+        void onCancelQueries();
+
+        /**
+         * Starts the provider query of the text, its result must be passed to
+         * {@link #onQueryComplete}.
+         */
+        void onStartQuery(String text);
+
+        /**
+         * Shows the cursor, which may be null, without closing the previous one.
+         */
+        void onShowCursor(Cursor cursor);
+    }
+
+    private final Handler mHandler = new Handler();
+    private final Callback mCallback;
+    private final String[] mColumns;
+
+    private String mText;
+    /**
+     * The rows shown of the last provider result.
+     */
+    private FilteredCursor mShown;
+
+    private final Runnable mStartQuery = new Runnable() {
+        @Override
+        public void run() {
+            mCallback.onCancelQueries();
+            mCallback.onStartQuery(mText);
+        }
+    };
+
+    /**
+     * @param columns the columns the text is looked for in, when filtering in memory.
+     */
+    IncrementalSearch(Callback callback, String[] columns) {
+        mCallback = callback;
+        mColumns = columns;
+    }
+
+    /**
+     * Called each time the search text changes, an empty text clears the list.
+     */
+    void setText(String text) {
+        if (TextUtils.isEmpty(text)) {
+            clear();
+            return;
+        }
+        if (text.equals(mText)) {
+            return;
+        }
+        mText = text;
+        mHandler.removeCallbacks(mStartQuery);
+        if (mShown != null && isExtension(text, mShown.getText())) {
+            show(mShown.refine(text));
+        }
+        mHandler.postDelayed(mStartQuery, DEBOUNCE_MILLIS);
+    }
+
+    /**
+     * Called with the result of a query started by {@link Callback#onStartQuery}.
+     */
+    void onQueryComplete(String text, Cursor cursor) {
+        if (cursor == null) {
+            return;
+        }
+        if (mText == null || !isExtension(mText, text)) {
+            // the text changed since, and this result does not contain the new rows.
+            cursor.close();
+            return;
+        }
+        final Cursor previous = mShown != null ? mShown.getBaseCursor() : null;
+        final FilteredCursor result = new FilteredCursor(cursor, mColumns, text);
+        show(text.equals(mText) ? result : result.refine(mText));
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    /**
+     * Cancels the pending query and closes the shown cursor.
+     */
+    void clear() {
+        mHandler.removeCallbacks(mStartQuery);
+        mCallback.onCancelQueries();
+        mText = null;
+        if (mShown != null) {
+            mCallback.onShowCursor(null);
+            mShown.close();
+            mShown = null;
+        }
+    }
+
+    private void show(FilteredCursor cursor) {
+        mShown = cursor;
+        mCallback.onShowCursor(cursor);
+    }
+
+    private static boolean isExtension(String text, String prefix) {
+        return text.toLowerCase(Locale.getDefault()).startsWith(
+                prefix.toLowerCase(Locale.getDefault()));
+    }
+}
@@ -36,6 +36,7 @@ import android.content.AsyncQueryHandler;
 import android.content.ComponentName;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.database.MergeCursor;
 import android.graphics.Typeface;
 import android.graphics.drawable.Drawable;
@@ -44,10 +45,8 @@ import android.os.Bundle;
 import android.provider.CallLog.Calls;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.CommonDataKinds.Email;
-import android.provider.ContactsContract.CommonDataKinds.GroupMembership;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.provider.ContactsContract.Contacts;
-import android.provider.ContactsContract.Data;
 import android.provider.ContactsContract.Directory;
 import android.provider.ContactsContract.Groups;
 import android.provider.ContactsContract.QuickContact;
@@ -85,7 +84,6 @@ import com.google.common.collect.Sets;
 
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
-import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.Set;
@@ -168,10 +166,24 @@ public class SearchFragment extends ListFragment {
     private static final int GROUP_QUERY_TOKEN = 44;
     private static final int CALLLOG_QUERY_TOKEN = 45;
 
+    /**
+     * Columns a search text is looked for in, when the rows of the previous text are filtered.
+     */
+    private static final String[] SEARCH_COLUMNS = new String[] {
+            Phone.DISPLAY_NAME,
+            Phone.NUMBER,
+            Groups.TITLE,
+            Calls.NUMBER,
+            Calls.CACHED_FORMATTED_NUMBER
+    };
+
     // Include PHONE, GROUPS and CALL
     private static final int VIEW_TYPE_COUNT = 3;
 
     private QueryHandler mQueryHandler;
+    private IncrementalSearch mSearch;
+
+    private GroupMemberIndex mMemberIndex;
 
     private Context mContext;
 
@@ -184,6 +196,13 @@ public class SearchFragment extends ListFragment {
 
     private String query;
 
+    /**
+     * The text of the queries in progress, which may be older than the text of the list.
+     */
+    private String mSearchQuery;
+
+    private int mSearchMode;
+
     private String mFilter;
 
     private View mRootView;
@@ -212,6 +231,7 @@ public class SearchFragment extends ListFragment {
         }
         setListAdapter(mContactListAdapter);
         mQueryHandler = new QueryHandler(mContext);
+        mSearch = new IncrementalSearch(new SearchCallback(), SEARCH_COLUMNS);
     }
 
     @Override
@@ -220,8 +240,29 @@ public class SearchFragment extends ListFragment {
         mPickMode = ContactsPickMode.getInstance();
         mMode = mPickMode.getMode();
         mContext = (MultiPickContactsActivity) activity;
+        mMemberIndex = GroupMemberIndex.getInstance(activity);
+    }
+
+    @Override
+    public void onResume() {
+        super.onResume();
+        mMemberIndex.addListener(mIndexListener);
+    }
+
+    @Override
+    public void onPause() {
+        mMemberIndex.removeListener(mIndexListener);
+        super.onPause();
     }
 
+    private final GroupMemberIndex.Listener mIndexListener = new GroupMemberIndex.Listener() {
+        @Override
+        public void onIndexChanged(GroupMemberIndex index) {
+            // refresh the numbers count of the groups.
+            mContactListAdapter.notifyDataSetChanged();
+        }
+    };
+
     public void setCheckListListener(OnCheckListActionListener checkListListener) {
         mCheckListListener = checkListListener;
     }
@@ -231,46 +272,28 @@ public class SearchFragment extends ListFragment {
         int Type = mContactListAdapter.getItemViewType(position);
         switch (Type) {
             case TYPE_GROUP:
+                if (!mMemberIndex.isReady()) {
+                    break;
+                }
                 GroupItemCache groupCache = (GroupItemCache) v.getTag();
                 if (mCheckListListener.onContainsGroupId(groupCache.id)) {
                     mCheckListListener.onRemoveGroupId(groupCache.id);
                 } else {
                     mCheckListListener.addGroupId(groupCache.id);
                 }
-                Cursor cursor = getContactsDetailCursor(groupCache.id);
-
-                if (cursor == null) {
-                    break;
-                }
-                if (!cursor.moveToFirst()) {
-                    break;
-                }
-                do {
-                    String key = String.valueOf(cursor.getLong(PHONE_COLUMN_ID));
-                    if (mCheckListListener.onContainsGroupId(groupCache.id)) {
+                final boolean checked = mCheckListListener.onContainsGroupId(groupCache.id);
+                for (GroupMemberIndex.Member member : mMemberIndex.getMembers(groupCache.id)) {
+                    String key = member.getKey();
+                    if (checked) {
                         if (!mCheckListListener.onContainsKey(key)) {
-                            ContactItemCache cache = new ContactItemCache();
-                            cache.id = cursor.getLong(PHONE_COLUMN_ID);
-                            cache.name = cursor
-                                    .getString(PHONE_COLUMN_DISPLAY_NAME);
-                            cache.number = cursor.getString(PHONE_COLUMN_NUMBER);
-                            cache.type = cursor.getString(PHONE_COLUMN_TYPE);
-                            cache.label = cursor.getString(PHONE_COLUMN_LABEL);
-                            cache.contact_id = cursor
-                                    .getString(PHONE_COLUMN_CONTACT_ID);
-                            String[] value = null;
-                            value = new String[] {
-                                    cache.name, cache.number,
-                                    cache.type, cache.label, cache.contact_id
-                            };
-                            mCheckListListener.putValue(key, value);
+                            mCheckListListener.putValue(key, member.getValue());
                         }
                     } else {
                         if (mCheckListListener.onContainsKey(key)) {
                             mCheckListListener.onRemove(key);
                         }
                     }
-                } while (cursor.moveToNext());
+                }
                 break;
             case TYPE_CONTACTS:
                 ContactItemCache cache = (ContactItemCache) v.getTag();
@@ -325,6 +348,9 @@ public class SearchFragment extends ListFragment {
         mQueryHandler.removeCallbacksAndMessages(CONTACT_QUERY_TOKEN);
         mQueryHandler.removeCallbacksAndMessages(GROUP_QUERY_TOKEN);
         mQueryHandler.removeCallbacksAndMessages(CALLLOG_QUERY_TOKEN);
+        if (mSearch != null) {
+            mSearch.clear();
+        }
 
         if (mContactListAdapter.getCursor() != null) {
             mContactListAdapter.getCursor().close();
@@ -392,9 +418,9 @@ public class SearchFragment extends ListFragment {
                     return PHONES_SELECTION;
                 }
             case ContactsPickMode.MODE_SEARCH_GROUP:
-                return createGroupSelection(query);
+                return createGroupSelection(mSearchQuery);
             case ContactsPickMode.MODE_SEARCH_CALL:
-                return createCallLogSelection(query);
+                return createCallLogSelection(mSearchQuery);
             default:
                 return null;
         }
@@ -418,7 +444,7 @@ public class SearchFragment extends ListFragment {
             case ContactsPickMode.MODE_SEARCH_GROUP:
             case ContactsPickMode.MODE_SEARCH_PHONE:
             case ContactsPickMode.MODE_SEARCH_CALL:
-                return query;
+                return mSearchQuery;
             default:
                 return null;
         }
@@ -444,11 +470,16 @@ public class SearchFragment extends ListFragment {
 
     public void doFilter(int mode, String s) {
         query = s;
+        mSearchMode = mode;
+        mSearch.setText(s);
+    }
 
-        if (TextUtils.isEmpty(s)) {
-            mContactListAdapter.changeCursor(null);
-            return;
-        }
+    /**
+     * Queries the groups, the phones and then the call logs matching the text, one after the
+     * other, see {@link QueryHandler#onQueryComplete}.
+     */
+    private void startFilterQuery(int mode, String s) {
+        mSearchQuery = s;
 
         Uri uri = null;
         switch (mode) {
@@ -458,7 +489,7 @@ public class SearchFragment extends ListFragment {
                 break;
             case ContactsPickMode.MODE_SEARCH_PHONE:
                 mMode = mode;
-                uri = Uri.withAppendedPath(getFilterUri(), query);
+                uri = Uri.withAppendedPath(getFilterUri(), s);
                 break;
             case ContactsPickMode.MODE_SEARCH_CALL:
                 mMode = mode;
@@ -466,7 +497,7 @@ public class SearchFragment extends ListFragment {
                 break;
             default:
                 mMode = mode;
-                uri = Uri.withAppendedPath(getFilterUri(), query);
+                uri = Uri.withAppendedPath(getFilterUri(), s);
                 break;
         }
 
@@ -476,6 +507,39 @@ public class SearchFragment extends ListFragment {
 
     }
 
+    private void closeCursors() {
+        for (Cursor cursor : mCursors) {
+            cursor.close();
+        }
+        mCursors.clear();
+    }
+
+    private class SearchCallback implements IncrementalSearch.Callback {
+        @Override
+        public void onCancelQueries() {
+            mQueryHandler.cancelOperation(GROUP_QUERY_TOKEN);
+            mQueryHandler.cancelOperation(CONTACT_QUERY_TOKEN);
+            mQueryHandler.cancelOperation(CALLLOG_QUERY_TOKEN);
+            // the results of the queries already running are dropped.
+            mSearchQuery = null;
+            closeCursors();
+        }
+
+        @Override
+        public void onStartQuery(String text) {
+            startFilterQuery(mSearchMode, text);
+        }
+
+        @Override
+        public void onShowCursor(Cursor cursor) {
+            // the search results are closed by mSearch.
+            Cursor old = mContactListAdapter.swapCursor(cursor);
+            if (old != null && !(old instanceof FilteredCursor)) {
+                old.close();
+            }
+        }
+    }
+
     private class QueryHandler extends AsyncQueryHandler {
         protected WeakReference<SearchFragment> mFragment;
 
@@ -494,6 +558,13 @@ public class SearchFragment extends ListFragment {
             final SearchFragment fragment = mFragment.get();
             String filter = (String) cookie;
             // setFilterString(filter);
+            if (token != QUERY_TOKEN && (filter == null || !filter.equals(mSearchQuery))) {
+                // superseded by a newer text.
+                if (cursor != null) {
+                    cursor.close();
+                }
+                return;
+            }
             switch (token) {
                 case QUERY_TOKEN:
                     mContactListAdapter.changeCursor(cursor);
@@ -502,13 +573,13 @@ public class SearchFragment extends ListFragment {
                     if (cursor != null) {
                         mCursors.add(cursor);
                     }
-                    doFilter(ContactsPickMode.MODE_SEARCH_PHONE, filter);
+                    startFilterQuery(ContactsPickMode.MODE_SEARCH_PHONE, filter);
                     break;
                 case CONTACT_QUERY_TOKEN:
                     if (cursor != null) {
                         mCursors.add(cursor);
                     }
-                    doFilter(ContactsPickMode.MODE_SEARCH_CALL, filter);
+                    startFilterQuery(ContactsPickMode.MODE_SEARCH_CALL, filter);
                     break;
                 case CALLLOG_QUERY_TOKEN:
                     // Call log query complete.
@@ -518,6 +589,8 @@ public class SearchFragment extends ListFragment {
                     if (mCursors.size() == 0) {
                         Toast.makeText(mContext, R.string.listFoundAllContactsZero,
                                 Toast.LENGTH_SHORT).show();
+                        // replaces the rows filtered from the result of the previous text.
+                        mSearch.onQueryComplete(filter, new MatrixCursor(PHONES_PROJECTION));
                     } else {
                         Cursor[] cursors = new Cursor[mCursors.size()];
                         for (int i = 0; i < mCursors.size(); i++) {
@@ -526,10 +599,10 @@ public class SearchFragment extends ListFragment {
                         Cursor mergeCursor = new MergeCursor(cursors);
                         mMode = ContactsPickMode.MODE_SEARCH_PHONE;
                         mPickMode.setMode(mMode);
-                        mContactListAdapter.changeCursor(mergeCursor);
                         if (mCursors != null) {
                             mCursors.clear();
                         }
+                        mSearch.onQueryComplete(filter, mergeCursor);
                     }
                     break;
                 default:
@@ -876,10 +949,7 @@ public class SearchFragment extends ListFragment {
 
         private void setGroupChecked(View view, Cursor cursor, GroupItemCache groupCache,
                 int groupPosition) {
-            if (groupCache.phone_numbers == 0) {
-                Cursor c = getContactsDetailCursor(groupCache.id);
-                groupCache.phone_numbers = c.getCount();
-            }
+            groupCache.phone_numbers = mMemberIndex.getMemberCount(groupCache.id);
             String summary_count = getResources()
                     .getString(R.string.summary_count_numbers,
                             String.valueOf(groupCache.phone_numbers));
@@ -999,25 +1069,4 @@ public class SearchFragment extends ListFragment {
         return selection.toString();
     }
 
-    private Cursor getContactsDetailCursor(long groupId) {
-
-        StringBuilder selection = new StringBuilder();
-        selection.append(Data.RAW_CONTACT_ID + " IN (" + " SELECT DISTINCT " + Data.RAW_CONTACT_ID
-                + " FROM view_data WHERE " + Data.MIMETYPE + "=?" + " AND "
-                + GroupMembership.GROUP_ROW_ID + "=?)");
-
-        Cursor cursor = mContext.getContentResolver().query(Phone.CONTENT_URI, PHONES_PROJECTION,
-                selection.toString(),
-                createSelectionArgs(groupId), null);
-
-        return cursor;
-    }
-
-    private String[] createSelectionArgs(long groupId) {
-        List<String> selectionArgs = new ArrayList<String>();
-        selectionArgs.add(GroupMembership.CONTENT_ITEM_TYPE);
-        selectionArgs.add(String.valueOf(groupId));
-        return selectionArgs.toArray(new String[0]);
-    }
-
 }
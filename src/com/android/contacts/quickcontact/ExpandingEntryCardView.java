@@ -24,6 +24,7 @@ import android.app.Activity;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.res.ColorStateList;
 import android.content.res.Resources;
 import android.content.SharedPreferences;
 import android.graphics.ColorFilter;
@@ -87,6 +88,11 @@ public class ExpandingEntryCardView extends CardView {
     public static final int DURATION_EXPAND_ANIMATION_CHANGE_BOUNDS = 300;
     public static final int DURATION_COLLAPSE_ANIMATION_CHANGE_BOUNDS = 300;
     public static final int PRESENCE_AVAILABILITY_FETCH = 0;
+    /**
+     * Max count of entry views bound at once. Entries beyond it are bound over the next frames,
+     * so expanding a card with hundreds of entries does not block a single frame.
+     */
+    private static final int ENTRIES_BOUND_PER_PASS = 12;
 
     private static final String SHARE_FILE_NMAE = "video_callling_reminder";
     private boolean isSupportVideoCall = false;
@@ -304,8 +310,15 @@ public class ExpandingEntryCardView extends CardView {
     /** The ViewGroup to run the expand/collapse animation on */
     private ViewGroup mAnimationViewGroup;
     private LinearLayout mBadgeContainer;
+    /**
+     * Badge views, the first mBadgeCount of them are in use. The others are kept for the next
+     * entries.
+     */
     private final List<ImageView> mBadges;
     private final List<Integer> mBadgeIds;
+    private int mBadgeCount;
+    private boolean mBadgesBound;
+    private EntryViewPool mEntryViewPool = new EntryViewPool();
     private final int mDividerLineHeightPixels;
     /**
      * List to hold the separators. This saves us from reconstructing every expand/collapse and
@@ -314,6 +327,19 @@ public class ExpandingEntryCardView extends CardView {
     private List<View> mSeparators;
     private LinearLayout mContainer;
 
+    private final Runnable mInflateRemainingEntries = new Runnable() {
+        @Override
+        public void run() {
+            inflateMoreEntries(LayoutInflater.from(getContext()), ENTRIES_BOUND_PER_PASS);
+            if (mIsExpanded) {
+                insertEntriesIntoViewGroup();
+            }
+            if (!mAllEntriesInflated) {
+                postOnAnimation(this);
+            }
+        }
+    };
+
     private final OnClickListener mExpandCollapseButtonListener = new OnClickListener() {
         @Override
         public void onClick(View v) {
@@ -399,6 +425,9 @@ public class ExpandingEntryCardView extends CardView {
             ExpandingEntryCardViewListener listener, ViewGroup animationViewGroup,
             boolean showFirstEntryTypeTwice) {
         LayoutInflater layoutInflater = LayoutInflater.from(getContext());
+        removeCallbacks(mInflateRemainingEntries);
+        recycleEntryViews();
+        mBadgesBound = false;
         mIsExpanded = isExpanded;
         mIsAlwaysExpanded = isAlwaysExpanded;
         // If isAlwaysExpanded is true, mIsExpanded should be true
@@ -431,6 +460,30 @@ public class ExpandingEntryCardView extends CardView {
         applyColor();
     }
 
+    /**
+     * Sets the pool entry views are taken from and returned to. Cards of the same screen can
+     * share a pool, so that views are inflated once for all of them.
+     */
+    public void setEntryViewPool(EntryViewPool pool) {
+        mEntryViewPool = pool;
+    }
+
+    /**
+     * Returns the views of the previous entries to the pool.
+     */
+    private void recycleEntryViews() {
+        if (mEntryViews == null) {
+            return;
+        }
+        mEntriesViewGroup.removeAllViews();
+        for (List<View> entryViewList : mEntryViews) {
+            for (View entryView : entryViewList) {
+                mEntryViewPool.recycle((EntryView) entryView);
+            }
+        }
+        mEntryViews = null;
+    }
+
     /**
      * Sets the text for the expand button.
      *
@@ -476,17 +529,37 @@ public class ExpandingEntryCardView extends CardView {
         return viewsToRemove;
     }
 
+    /**
+     * Updates the entries view group to hold the views to display. The views to display keep
+     * their order whether the card is expanded or not, so the views already in place are left
+     * there and only the missing ones are added or the extra ones removed.
+     */
     private void insertEntriesIntoViewGroup() {
-        mEntriesViewGroup.removeAllViews();
-
-        for (View view : getViewsToDisplay(mIsExpanded)) {
-            mEntriesViewGroup.addView(view);
+        final List<View> viewsToDisplay = getViewsToDisplay(mIsExpanded);
+        for (int i = 0; i < viewsToDisplay.size(); i++) {
+            final View view = viewsToDisplay.get(i);
+            if (view.getParent() == mEntriesViewGroup) {
+                // Remove the views no longer displayed before this one.
+                while (mEntriesViewGroup.getChildAt(i) != view) {
+                    mEntriesViewGroup.removeViewAt(i);
+                }
+            } else {
+                if (view.getParent() != null) {
+                    ((ViewGroup) view.getParent()).removeView(view);
+                }
+                mEntriesViewGroup.addView(view, i);
+            }
+        }
+        while (mEntriesViewGroup.getChildCount() > viewsToDisplay.size()) {
+            mEntriesViewGroup.removeViewAt(viewsToDisplay.size());
         }
 
-        removeView(mExpandCollapseButton);
-        if (mCollapsedEntriesCount < mNumEntries
-                && mExpandCollapseButton.getParent() == null && !mIsAlwaysExpanded) {
+        final boolean showExpandCollapseButton =
+                mCollapsedEntriesCount < mNumEntries && !mIsAlwaysExpanded;
+        if (showExpandCollapseButton && mExpandCollapseButton.getParent() == null) {
             mContainer.addView(mExpandCollapseButton, -1);
+        } else if (!showExpandCollapseButton && mExpandCollapseButton.getParent() != null) {
+            ((ViewGroup) mExpandCollapseButton.getParent()).removeView(mExpandCollapseButton);
         }
     }
 
@@ -499,6 +572,10 @@ public class ExpandingEntryCardView extends CardView {
         if (isExpanded) {
             for (int i = 0; i < mEntryViews.size(); i++) {
                 List<View> viewList = mEntryViews.get(i);
+                if (viewList.isEmpty()) {
+                    // Entries are bound in order, the next lists are not bound yet either.
+                    break;
+                }
                 if (i > 0) {
                     View separator;
                     if (mSeparators.size() <= i - 1) {
@@ -679,16 +756,36 @@ public class ExpandingEntryCardView extends CardView {
     }
 
     /**
-     * Inflates all entries.
+     * Inflates all entries. The first ones are inflated right away and the others over the
+     * next frames.
      */
     private void inflateAllEntries(LayoutInflater layoutInflater) {
         if (mAllEntriesInflated) {
             return;
         }
+        inflateMoreEntries(layoutInflater, ENTRIES_BOUND_PER_PASS);
+        if (!mAllEntriesInflated) {
+            removeCallbacks(mInflateRemainingEntries);
+            postOnAnimation(mInflateRemainingEntries);
+        }
+    }
+
+    /**
+     * Inflates at most maxCount of the entries not inflated yet, in display order.
+     */
+    private void inflateMoreEntries(LayoutInflater layoutInflater, int maxCount) {
+        if (mAllEntriesInflated) {
+            return;
+        }
+        int count = 0;
         for (int i = 0; i < mEntries.size(); i++) {
             List<Entry> entryList = mEntries.get(i);
             List<View> viewList = mEntryViews.get(i);
             for (int j = viewList.size(); j < entryList.size(); j++) {
+                if (count == maxCount) {
+                    return;
+                }
+                count++;
                 final int iconVisibility;
                 final Entry entry = entryList.get(j);
                 // If the entry does not have an icon, mark gone. Else if it has an icon, show
@@ -781,8 +878,7 @@ public class ExpandingEntryCardView extends CardView {
 
     private View createEntryView(LayoutInflater layoutInflater, final Entry entry,
             int iconVisibility) {
-        final EntryView view = (EntryView) layoutInflater.inflate(
-                R.layout.expanding_entry_card_item, this, false);
+        final EntryView view = mEntryViewPool.obtain(layoutInflater, this);
 
         view.setContextMenuInfo(entry.getEntryContextMenuInfo());
         if (!TextUtils.isEmpty(entry.getPrimaryContentDescription())) {
@@ -959,41 +1055,53 @@ public class ExpandingEntryCardView extends CardView {
         if (mIsExpanded) {
             mBadgeContainer.removeAllViews();
         } else {
-            int numberOfMimeTypesShown = mCollapsedEntriesCount;
-            if (mShowFirstEntryTypeTwice && mEntries.size() > 0
-                    && mEntries.get(0).size() > 1) {
-                numberOfMimeTypesShown--;
+            // Bind badges if not yet bound for these entries, reusing the badge views
+            if (!mBadgesBound) {
+                bindBadges();
             }
-            // Inflate badges if not yet created
-            if (mBadges.size() < mEntries.size() - numberOfMimeTypesShown) {
-                for (int i = numberOfMimeTypesShown; i < mEntries.size(); i++) {
-                    Drawable badgeDrawable = mEntries.get(i).get(0).getIcon();
-                    int badgeResourceId = mEntries.get(i).get(0).getIconResourceId();
-                    // Do not add the same badge twice
-                    if (badgeResourceId != 0 && mBadgeIds.contains(badgeResourceId)) {
-                        continue;
-                    }
-                    if (badgeDrawable != null) {
-                        ImageView badgeView = new ImageView(getContext());
-                        LinearLayout.LayoutParams badgeViewParams = new LinearLayout.LayoutParams(
-                                (int) getResources().getDimension(
-                                        R.dimen.expanding_entry_card_item_icon_width),
-                                (int) getResources().getDimension(
-                                        R.dimen.expanding_entry_card_item_icon_height));
-                        badgeViewParams.setMarginEnd((int) getResources().getDimension(
-                                R.dimen.expanding_entry_card_badge_separator_margin));
-                        badgeView.setLayoutParams(badgeViewParams);
-                        badgeView.setImageDrawable(badgeDrawable);
-                        mBadges.add(badgeView);
-                        mBadgeIds.add(badgeResourceId);
-                    }
+            if (mBadgeContainer.getChildCount() != mBadgeCount) {
+                mBadgeContainer.removeAllViews();
+                for (int i = 0; i < mBadgeCount; i++) {
+                    mBadgeContainer.addView(mBadges.get(i));
                 }
             }
-            mBadgeContainer.removeAllViews();
-            for (ImageView badge : mBadges) {
-                mBadgeContainer.addView(badge);
+        }
+    }
+
+    private void bindBadges() {
+        mBadgeContainer.removeAllViews();
+        mBadgeIds.clear();
+        mBadgeCount = 0;
+        int numberOfMimeTypesShown = mCollapsedEntriesCount;
+        if (mShowFirstEntryTypeTwice && mEntries.size() > 0
+                && mEntries.get(0).size() > 1) {
+            numberOfMimeTypesShown--;
+        }
+        for (int i = numberOfMimeTypesShown; i < mEntries.size(); i++) {
+            Drawable badgeDrawable = mEntries.get(i).get(0).getIcon();
+            int badgeResourceId = mEntries.get(i).get(0).getIconResourceId();
+            // Do not add the same badge twice
+            if (badgeResourceId != 0 && mBadgeIds.contains(badgeResourceId)) {
+                continue;
+            }
+            if (badgeDrawable != null) {
+                if (mBadgeCount == mBadges.size()) {
+                    ImageView badgeView = new ImageView(getContext());
+                    LinearLayout.LayoutParams badgeViewParams = new LinearLayout.LayoutParams(
+                            (int) getResources().getDimension(
+                                    R.dimen.expanding_entry_card_item_icon_width),
+                            (int) getResources().getDimension(
+                                    R.dimen.expanding_entry_card_item_icon_height));
+                    badgeViewParams.setMarginEnd((int) getResources().getDimension(
+                            R.dimen.expanding_entry_card_badge_separator_margin));
+                    badgeView.setLayoutParams(badgeViewParams);
+                    mBadges.add(badgeView);
+                }
+                mBadges.get(mBadgeCount++).setImageDrawable(badgeDrawable);
+                mBadgeIds.add(badgeResourceId);
             }
         }
+        mBadgesBound = true;
     }
 
     private void expand() {
@@ -1151,9 +1259,50 @@ public class ExpandingEntryCardView extends CardView {
         return mEntries != null && mEntries.size() > 0;
     }
 
+    /**
+     * Entry views which are not displayed anymore, kept to display the next entries without
+     * inflating them again.
+     */
+    public static final class EntryViewPool {
+        private static final int MAX_SIZE = 100;
+
+        private final List<EntryView> mViews = new ArrayList<>();
+
+        /**
+         * @return a recycled entry view, reset to its inflated state, or a newly inflated one.
+         */
+        EntryView obtain(LayoutInflater layoutInflater, ViewGroup parent) {
+            if (mViews.isEmpty()) {
+                return (EntryView) layoutInflater.inflate(
+                        R.layout.expanding_entry_card_item, parent, false);
+            }
+            final EntryView view = mViews.remove(mViews.size() - 1);
+            view.reset();
+            return view;
+        }
+
+        void recycle(EntryView view) {
+            if (view.getParent() != null) {
+                ((ViewGroup) view.getParent()).removeView(view);
+            }
+            if (mViews.size() < MAX_SIZE) {
+                mViews.add(view);
+            }
+        }
+    }
+
     public static final class EntryView extends RelativeLayout {
         private EntryContextMenuInfo mEntryContextMenuInfo;
 
+        // The inflated state changed by createEntryView(), restored by reset().
+        private int mDefaultPaddingTop;
+        private Drawable mDefaultBackground;
+        private boolean mDefaultClickable;
+        private boolean mDefaultLongClickable;
+        private int mDefaultHeaderMarginTop;
+        private int mDefaultHeaderMarginBottom;
+        private ColorStateList mDefaultHeaderTextColors;
+
         public EntryView(Context context) {
             super(context);
         }
@@ -1162,6 +1311,74 @@ public class ExpandingEntryCardView extends CardView {
             super(context, attrs);
         }
 
+        @Override
+        protected void onFinishInflate() {
+            super.onFinishInflate();
+            mDefaultPaddingTop = getPaddingTop();
+            mDefaultBackground = getBackground();
+            mDefaultClickable = isClickable();
+            mDefaultLongClickable = isLongClickable();
+            final TextView header = (TextView) findViewById(R.id.header);
+            final RelativeLayout.LayoutParams headerLayoutParams =
+                    (RelativeLayout.LayoutParams) header.getLayoutParams();
+            mDefaultHeaderMarginTop = headerLayoutParams.topMargin;
+            mDefaultHeaderMarginBottom = headerLayoutParams.bottomMargin;
+            mDefaultHeaderTextColors = header.getTextColors();
+        }
+
+        /**
+         * Restores the state of the view as inflated, so it can display another entry.
+         */
+        void reset() {
+            animate().cancel();
+            setAlpha(1);
+            if (getLayoutParams() != null) {
+                // The collapse animation may have been interrupted.
+                getLayoutParams().height = ViewGroup.LayoutParams.WRAP_CONTENT;
+            }
+            setPaddingRelative(getPaddingStart(), mDefaultPaddingTop, getPaddingEnd(),
+                    getPaddingBottom());
+            setBackground(mDefaultBackground);
+            setContentDescription(null);
+            setOnClickListener(null);
+            setOnTouchListener(null);
+            setOnCreateContextMenuListener(null);
+            setClickable(mDefaultClickable);
+            setLongClickable(mDefaultLongClickable);
+            setTag(null);
+            mEntryContextMenuInfo = null;
+
+            final TextView header = (TextView) findViewById(R.id.header);
+            final RelativeLayout.LayoutParams headerLayoutParams =
+                    (RelativeLayout.LayoutParams) header.getLayoutParams();
+            headerLayoutParams.topMargin = mDefaultHeaderMarginTop;
+            headerLayoutParams.bottomMargin = mDefaultHeaderMarginBottom;
+            header.setLayoutParams(headerLayoutParams);
+            header.setTextColor(mDefaultHeaderTextColors);
+
+            final int[] textIds = new int[] {R.id.header, R.id.sub_header, R.id.text, R.id.home};
+            for (int id : textIds) {
+                final TextView textView = (TextView) findViewById(id);
+                textView.setText(null);
+                textView.setVisibility(View.VISIBLE);
+            }
+            final int[] imageIds = new int[] {R.id.icon, R.id.icon_sub_header, R.id.icon_text};
+            for (int id : imageIds) {
+                final ImageView imageView = (ImageView) findViewById(id);
+                imageView.setImageDrawable(null);
+                imageView.setVisibility(View.VISIBLE);
+            }
+            final int[] buttonIds = new int[] {R.id.icon_alternate, R.id.third_icon};
+            for (int id : buttonIds) {
+                final ImageView imageView = (ImageView) findViewById(id);
+                imageView.setImageDrawable(null);
+                imageView.setOnClickListener(null);
+                imageView.setTag(null);
+                imageView.setContentDescription(null);
+                imageView.setVisibility(View.GONE);
+            }
+        }
+
         public void setContextMenuInfo(EntryContextMenuInfo info) {
             mEntryContextMenuInfo = info;
         }
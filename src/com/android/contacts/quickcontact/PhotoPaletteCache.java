@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.quickcontact;
+
+import android.content.Context;
+import android.util.AtomicFile;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.android.contacts.common.util.MaterialColorMapUtils.MaterialPalette;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Process-wide cache of the header colors extracted from contact photos, keyed by a hash of
+ * the thumbnail bytes.
+ *
+ * Extracting the colors decodes the thumbnail and runs a Palette over it. The most recently
+ * used colors are kept in memory so that they can be applied on the main thread before the
+ * first frame, the others are stored on disk, one small file per photo, and only need to be
+ * read again.
+ */
+class PhotoPaletteCache {
+    private static final String TAG = "PhotoPaletteCache";
+
+    private static final String CACHE_DIR = "palettes";
+
+    /**
+     * Increment when the file format changes, old files are then ignored.
+     */
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int MAX_MEMORY_ENTRIES = 100;
+
+    /**
+     * The least recently used files are deleted above this count, once per process.
+     */
+    private static final int MAX_DISK_ENTRIES = 500;
+
+    private static PhotoPaletteCache sInstance;
+
+    private final File mDir;
+    private final LruCache<String, MaterialPalette> mPalettes =
+            new LruCache<>(MAX_MEMORY_ENTRIES);
+    private final Object mDiskLock = new Object();
+    private boolean mTrimmed = false;
+
+    public static synchronized PhotoPaletteCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PhotoPaletteCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private PhotoPaletteCache(Context context) {
+        mDir = new File(context.getCacheDir(), CACHE_DIR);
+    }
+
+    /**
+     * @return the key of the thumbnail, or null if it cannot be hashed.
+     */
+    public static String getKey(byte[] thumbnail) {
+        if (thumbnail == null || thumbnail.length == 0) {
+            return null;
+        }
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-1").digest(thumbnail);
+            final StringBuilder key = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                key.append(Character.forDigit((b >> 4) & 0xf, 16))
+                        .append(Character.forDigit(b & 0xf, 16));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            Log.w(TAG, "Cannot hash thumbnails", e);
+            return null;
+        }
+    }
+
+    /**
+     * @return the colors of the photo if they are in memory, null otherwise. Safe to call on the
+     * main thread.
+     */
+    public MaterialPalette getFromMemory(String key) {
+        return mPalettes.get(key);
+    }
+
+    /**
+     * @return the colors of the photo, read from disk if they are not in memory, or null if
+     * they have not been extracted yet.
+     */
+    public MaterialPalette get(String key) {
+        MaterialPalette palette = mPalettes.get(key);
+        if (palette == null) {
+            palette = read(key);
+            if (palette != null) {
+                mPalettes.put(key, palette);
+            }
+        }
+        return palette;
+    }
+
+    /**
+     * Stores the colors extracted from the photo, both in memory and on disk.
+     */
+    public void put(String key, MaterialPalette palette) {
+        mPalettes.put(key, palette);
+        write(key, palette);
+    }
+
+    private MaterialPalette read(String key) {
+        synchronized (mDiskLock) {
+            final File file = new File(mDir, key);
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new BufferedInputStream(
+                        new AtomicFile(file).openRead()));
+                if (in.readInt() != FORMAT_VERSION) {
+                    return null;
+                }
+                final MaterialPalette palette = new MaterialPalette(in.readInt(), in.readInt());
+                // the modification time orders the files for trimming.
+                file.setLastModified(System.currentTimeMillis());
+                return palette;
+            } catch (FileNotFoundException e) {
+                // first time this photo is shown.
+                return null;
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to read the colors of a photo", e);
+                return null;
+            } finally {
+                closeQuietly(in);
+            }
+        }
+    }
+
+    private void write(String key, MaterialPalette palette) {
+        synchronized (mDiskLock) {
+            if (!mDir.exists()) {
+                mDir.mkdirs();
+            }
+            final AtomicFile file = new AtomicFile(new File(mDir, key));
+            FileOutputStream stream = null;
+            try {
+                stream = file.startWrite();
+                DataOutputStream out = new DataOutputStream(stream);
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(palette.mPrimaryColor);
+                out.writeInt(palette.mSecondaryColor);
+                out.flush();
+                file.finishWrite(stream);
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to write the colors of a photo", e);
+                if (stream != null) {
+                    file.failWrite(stream);
+                }
+            }
+            if (!mTrimmed) {
+                mTrimmed = true;
+                trim();
+            }
+        }
+    }
+
+    /**
+     * Deletes the least recently used files above {@link #MAX_DISK_ENTRIES}.
+     */
+    private void trim() {
+        final File[] files = mDir.listFiles();
+        if (files == null || files.length <= MAX_DISK_ENTRIES) {
+            return;
+        }
+        final long[] lastModified = new long[files.length];
+        final Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            lastModified[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(lastModified[b], lastModified[a]);
+            }
+        });
+        for (int i = MAX_DISK_ENTRIES; i < order.length; i++) {
+            files[order[i]].delete();
+        }
+    }
+
+    private static void closeQuietly(DataInputStream in) {
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
@@ -189,6 +189,7 @@ import com.android.contactsbind.HelpUtils;
 
 import com.android.internal.telephony.OperatorSimInfo;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Lists;
 import com.google.common.collect.ImmutableList;
 import java.lang.SecurityException;
@@ -306,6 +307,18 @@ public class QuickContactActivity extends ContactsActivity
      * The last copy of Cp2DataCardModel that was passed to {@link #populateContactAndAboutCard}.
      */
     private Cp2DataCardModel mCachedCp2DataCardModel;
+    /**
+     * The contact card entries last passed to {@link ExpandingEntryCardView#initialize}, the
+     * card is not initialized again with the same ones.
+     */
+    private List<List<Entry>> mBoundContactCardEntries;
+    /**
+     * The phone numbers and email addresses the interaction loaders were started with, so that
+     * they are only restarted when those change.
+     */
+    private String[] mInteractionLoaderPhones;
+    private String[] mInteractionLoaderEmails;
+    private boolean mInteractionLoadersStarted;
     /**
      *  This scrim's opacity is controlled in two different ways. 1) Before the initial entrance
      *  animation finishes, the opacity is animated by a value animator. This is designed to
@@ -383,6 +396,9 @@ public class QuickContactActivity extends ContactsActivity
     private static final int MAX_CALL_LOG_RETRIEVE = 3;
     private static final int MIN_NUM_CONTACT_ENTRIES_SHOWN = 3;
     private static final int MIN_NUM_COLLAPSED_RECENT_ENTRIES_SHOWN = 3;
+    /** Max count of entries in the recent card, all the interaction loaders can return */
+    private static final int MAX_NUM_RECENT_ENTRIES_SHOWN = MAX_SMS_RETRIEVE
+            + MAX_PAST_CALENDAR_RETRIEVE + MAX_FUTURE_CALENDAR_RETRIEVE + MAX_CALL_LOG_RETRIEVE;
     private static final int CARD_ENTRY_ID_EDIT_CONTACT = -2;
 
 
@@ -974,6 +990,13 @@ public class QuickContactActivity extends ContactsActivity
         mNoContactDetailsCard = (ExpandingEntryCardView) findViewById(R.id.no_contact_data_card);
         mRecentCard = (ExpandingEntryCardView) findViewById(R.id.recent_card);
         mAboutCard = (ExpandingEntryCardView) findViewById(R.id.about_card);
+        // Cards share a pool of entry views, a view released by one card is reused by the others.
+        final ExpandingEntryCardView.EntryViewPool entryViewPool =
+                new ExpandingEntryCardView.EntryViewPool();
+        mContactCard.setEntryViewPool(entryViewPool);
+        mNoContactDetailsCard.setEntryViewPool(entryViewPool);
+        mRecentCard.setEntryViewPool(entryViewPool);
+        mAboutCard.setEntryViewPool(entryViewPool);
 
         mCollapsedSuggestionCardView = (CardView) findViewById(R.id.collapsed_suggestion_card);
         mExpandSuggestionCardView = (CardView) findViewById(R.id.expand_suggestion_card);
@@ -1229,6 +1252,7 @@ public class QuickContactActivity extends ContactsActivity
         for (int interactionLoaderId : mRecentLoaderIds) {
             getLoaderManager().destroyLoader(interactionLoaderId);
         }
+        mInteractionLoadersStarted = false;
     }
 
     private void runEntranceAnimation() {
@@ -1304,12 +1328,14 @@ public class QuickContactActivity extends ContactsActivity
         mContactCard.setEntryContactName(displayName);
         Trace.endSection();
 
+        // Only the parts of the contact which changed since the last model are rebuilt.
+        final Cp2DataCardModel previousModel = mCachedCp2DataCardModel;
         mEntriesAndActionsTask = new AsyncTask<Void, Void, Cp2DataCardModel>() {
 
             @Override
             protected Cp2DataCardModel doInBackground(
                     Void... params) {
-                return generateDataModelFromContact(data);
+                return generateDataModelFromContact(data, previousModel);
             }
 
             @Override
@@ -1328,12 +1354,17 @@ public class QuickContactActivity extends ContactsActivity
     }
 
     private void bindDataToCards(Cp2DataCardModel cp2DataCardModel) {
-        startInteractionLoaders(cp2DataCardModel);
+        startInteractionLoaders(cp2DataCardModel, /* forceReload = */ false);
         populateContactAndAboutCard(cp2DataCardModel, /* shouldAddPhoneticName */ true);
         populateSuggestionCard();
     }
 
-    private void startInteractionLoaders(Cp2DataCardModel cp2DataCardModel) {
+    /**
+     * Starts the interaction loaders. Loaders already started are only restarted if the phone
+     * numbers or email addresses they search changed, unless forceReload is set.
+     */
+    private void startInteractionLoaders(Cp2DataCardModel cp2DataCardModel,
+            boolean forceReload) {
         final Map<String, List<DataItem>> dataItemsMap = cp2DataCardModel.dataItemsMap;
         final List<DataItem> phoneDataItems = dataItemsMap.get(Phone.CONTENT_ITEM_TYPE);
         if (phoneDataItems != null && phoneDataItems.size() == 1) {
@@ -1348,19 +1379,16 @@ public class QuickContactActivity extends ContactsActivity
         }
         final Bundle phonesExtraBundle = new Bundle();
         phonesExtraBundle.putStringArray(KEY_LOADER_EXTRA_PHONES, phoneNumbers);
+        final boolean reloadPhones = forceReload || (mInteractionLoadersStarted
+                && !Arrays.equals(phoneNumbers, mInteractionLoaderPhones));
+        mInteractionLoaderPhones = phoneNumbers;
 
         Trace.beginSection("start sms loader");
-        getLoaderManager().initLoader(
-                LOADER_SMS_ID,
-                phonesExtraBundle,
-                mLoaderInteractionsCallbacks);
+        startInteractionLoader(LOADER_SMS_ID, phonesExtraBundle, reloadPhones);
         Trace.endSection();
 
         Trace.beginSection("start call log loader");
-        getLoaderManager().initLoader(
-                LOADER_CALL_LOG_ID,
-                phonesExtraBundle,
-                mLoaderInteractionsCallbacks);
+        startInteractionLoader(LOADER_CALL_LOG_ID, phonesExtraBundle, reloadPhones);
         Trace.endSection();
 
 
@@ -1378,11 +1406,21 @@ public class QuickContactActivity extends ContactsActivity
         }
         final Bundle emailsExtraBundle = new Bundle();
         emailsExtraBundle.putStringArray(KEY_LOADER_EXTRA_EMAILS, emailAddresses);
-        getLoaderManager().initLoader(
-                LOADER_CALENDAR_ID,
-                emailsExtraBundle,
-                mLoaderInteractionsCallbacks);
+        final boolean reloadEmails = forceReload || (mInteractionLoadersStarted
+                && !Arrays.equals(emailAddresses, mInteractionLoaderEmails));
+        mInteractionLoaderEmails = emailAddresses;
+        startInteractionLoader(LOADER_CALENDAR_ID, emailsExtraBundle, reloadEmails);
         Trace.endSection();
+        mInteractionLoadersStarted = true;
+    }
+
+    private void startInteractionLoader(int loaderId, Bundle args, boolean reload) {
+        if (reload) {
+            // The previous results stay bound until the new ones are delivered.
+            getLoaderManager().restartLoader(loaderId, args, mLoaderInteractionsCallbacks);
+        } else {
+            getLoaderManager().initLoader(loaderId, args, mLoaderInteractionsCallbacks);
+        }
     }
 
     private void showActivity() {
@@ -1398,19 +1436,21 @@ public class QuickContactActivity extends ContactsActivity
         }
     }
 
-    private List<List<Entry>> buildAboutCardEntries(Map<String, List<DataItem>> dataItemsMap) {
+    private List<List<Entry>> buildAboutCardEntries(Map<String, MimeTypeBucket> buckets) {
         final List<List<Entry>> aboutCardEntries = new ArrayList<>();
         for (String mimetype : SORTED_ABOUT_CARD_MIMETYPES) {
-            final List<DataItem> mimeTypeItems = dataItemsMap.get(mimetype);
-            if (mimeTypeItems == null) {
+            final MimeTypeBucket bucket = buckets.get(mimetype);
+            if (bucket == null) {
                 continue;
             }
-            // Set aboutCardTitleOut = null, since SORTED_ABOUT_CARD_MIMETYPES doesn't contain
-            // the name mimetype.
-            final List<Entry> aboutEntries = dataItemsToEntries(mimeTypeItems,
-                    /* aboutCardTitleOut = */ null);
-            if (aboutEntries.size() > 0) {
-                aboutCardEntries.add(aboutEntries);
+            if (bucket.entries == null) {
+                // Set aboutCardTitleOut = null, since SORTED_ABOUT_CARD_MIMETYPES doesn't contain
+                // the name mimetype.
+                bucket.entries = dataItemsToEntries(bucket.dataItems,
+                        /* aboutCardTitleOut = */ null);
+            }
+            if (bucket.entries.size() > 0) {
+                aboutCardEntries.add(bucket.entries);
             }
         }
         return aboutCardEntries;
@@ -1428,9 +1468,10 @@ public class QuickContactActivity extends ContactsActivity
         // When exiting the activity and resuming, we want to force a full reload of all the
         // interaction data in case something changed in the background. On screen rotation,
         // we don't need to do this. And, mCachedCp2DataCardModel will be null, so we won't.
+        // The loaders are restarted rather than destroyed, so the recent card keeps its
+        // entries until the new ones are loaded.
         if (mCachedCp2DataCardModel != null) {
-            destroyInteractionLoaders();
-            startInteractionLoaders(mCachedCp2DataCardModel);
+            startInteractionLoaders(mCachedCp2DataCardModel, /* forceReload = */ true);
         }
     }
 
@@ -1490,7 +1531,11 @@ public class QuickContactActivity extends ContactsActivity
         final List<List<Entry>> aboutCardEntries = cp2DataCardModel.aboutCardEntries;
         final String customAboutCardName = cp2DataCardModel.customAboutCardName;
 
-        if (contactCardEntries.size() > 0) {
+        if (contactCardEntries.size() > 0 && isSameEntries(contactCardEntries,
+                mBoundContactCardEntries)) {
+            // Only other mimetypes changed, the entry views are still up to date.
+            mContactCard.setVisibility(View.VISIBLE);
+        } else if (contactCardEntries.size() > 0) {
             final boolean firstEntriesArePrioritizedMimeType =
                     !TextUtils.isEmpty(mExtraPrioritizedMimeType) &&
                     mCachedCp2DataCardModel.dataItemsMap.containsKey(mExtraPrioritizedMimeType) &&
@@ -1503,8 +1548,10 @@ public class QuickContactActivity extends ContactsActivity
                     mScroller,
                     firstEntriesArePrioritizedMimeType);
             mContactCard.setVisibility(View.VISIBLE);
+            mBoundContactCardEntries = contactCardEntries;
         } else {
             mContactCard.setVisibility(View.GONE);
+            mBoundContactCardEntries = null;
         }
         Trace.endSection();
 
@@ -1566,14 +1613,32 @@ public class QuickContactActivity extends ContactsActivity
             mNoContactDetailsCard.setVisibility(View.GONE);
         }
 
-        // If the Recent card is already initialized (all recent data is loaded), show the About
-        // card if it has entries. Otherwise About card visibility will be set in bindRecentData()
-        if (isAllRecentDataLoaded() && aboutCardEntries.size() > 0) {
+        // If the Recent card is already initialized (some recent data is bound or all of it is
+        // loaded), show the About card if it has entries. Otherwise About card visibility will be
+        // set in bindRecentData()
+        if (isRecentCardReady() && aboutCardEntries.size() > 0) {
             mAboutCard.setVisibility(View.VISIBLE);
         }
         Trace.endSection();
     }
 
+    /**
+     * @return true if both cards hold the same lists of entries. Unchanged mimetypes reuse their
+     * list of entries from the previous model, so comparing the lists is enough.
+     */
+    private static boolean isSameEntries(List<List<Entry>> entries,
+            List<List<Entry>> otherEntries) {
+        if (otherEntries == null || entries.size() != otherEntries.size()) {
+            return false;
+        }
+        for (int i = 0; i < entries.size(); i++) {
+            if (entries.get(i) != otherEntries.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Maps group ID to the corresponding group name, collapses all synonymous groups. Ignores
      * default groups (e.g. My Contacts) and favorites groups.
@@ -1651,13 +1716,19 @@ public class QuickContactActivity extends ContactsActivity
 
     /**
      * Builds the {@link DataItem}s Map out of the Contact.
+     *
+     * The data items of a mimetype are only collapsed, sorted and converted into entries again
+     * if they changed since the previous model. Entries also depend on a few fields of the
+     * contact itself, and are all rebuilt if one of those changed.
+     *
      * @param data The contact to build the data from.
+     * @param previous The model of the previous copy of the contact, or null.
      * @return A pair containing a list of data items sorted within mimetype and sorted
      *  amongst mimetype. The map goes from mimetype string to the sorted list of data items within
      *  mimetype
      */
     private Cp2DataCardModel generateDataModelFromContact(
-            Contact data) {
+            Contact data, Cp2DataCardModel previous) {
         Trace.beginSection("Build data items map");
 
         final Map<String, List<DataItem>> dataItemsMap = new HashMap<>();
@@ -1699,14 +1770,36 @@ public class QuickContactActivity extends ContactsActivity
          * for that type is also sorted, based off of {super primary, primary, times used} in that
          * order.
          */
+        final List<Object> entriesSignature = getEntriesSignature(data);
+        final boolean canReuseEntries = previous != null
+                && entriesSignature.equals(previous.entriesSignature);
+        final Map<String, MimeTypeBucket> buckets = new HashMap<>();
         final List<List<DataItem>> dataItemsList = new ArrayList<>();
-        for (List<DataItem> mimeTypeDataItems : dataItemsMap.values()) {
-            // Remove duplicate data items
-            Collapser.collapseList(mimeTypeDataItems, this);
-            // Sort within mimetype
-            Collections.sort(mimeTypeDataItems, mWithinMimeTypeDataItemComparator);
+        for (Map.Entry<String, List<DataItem>> mimeTypeEntry : dataItemsMap.entrySet()) {
+            final List<DataItem> mimeTypeDataItems = mimeTypeEntry.getValue();
+            final List<ContentValues> values = new ArrayList<>(mimeTypeDataItems.size());
+            for (DataItem dataItem : mimeTypeDataItems) {
+                // Collapsing may update the values, keep the ones as loaded.
+                values.add(new ContentValues(dataItem.getContentValues()));
+            }
+            final MimeTypeBucket previousBucket = previous != null
+                    ? previous.buckets.get(mimeTypeEntry.getKey()) : null;
+            MimeTypeBucket bucket;
+            if (previousBucket != null && previousBucket.values.equals(values)) {
+                // Same data items as before, they would collapse and sort the same.
+                bucket = canReuseEntries ? previousBucket
+                        : new MimeTypeBucket(values, previousBucket.dataItems);
+            } else {
+                // Remove duplicate data items
+                Collapser.collapseList(mimeTypeDataItems, this);
+                // Sort within mimetype
+                Collections.sort(mimeTypeDataItems, mWithinMimeTypeDataItemComparator);
+                bucket = new MimeTypeBucket(values, mimeTypeDataItems);
+            }
+            buckets.put(mimeTypeEntry.getKey(), bucket);
+            mimeTypeEntry.setValue(bucket.dataItems);
             // Add to the list of data item lists
-            dataItemsList.add(mimeTypeDataItems);
+            dataItemsList.add(bucket.dataItems);
         }
         Trace.endSection();
 
@@ -1718,8 +1811,8 @@ public class QuickContactActivity extends ContactsActivity
         Trace.beginSection("cp2 data items to entries");
 
         final List<List<Entry>> contactCardEntries = new ArrayList<>();
-        final List<List<Entry>> aboutCardEntries = buildAboutCardEntries(dataItemsMap);
-        final MutableString aboutCardName = new MutableString();
+        final List<List<Entry>> aboutCardEntries = buildAboutCardEntries(buckets);
+        String aboutCardName = null;
 
         for (int i = 0; i < dataItemsList.size(); ++i) {
             final List<DataItem> dataItemsByMimeType = dataItemsList.get(i);
@@ -1728,23 +1821,56 @@ public class QuickContactActivity extends ContactsActivity
                 // About card mimetypes are built in buildAboutCardEntries, skip here
                 continue;
             } else {
-                List<Entry> contactEntries = dataItemsToEntries(dataItemsList.get(i),
-                        aboutCardName);
-                if (contactEntries.size() > 0) {
-                    contactCardEntries.add(contactEntries);
+                final MimeTypeBucket bucket = buckets.get(topDataItem.getMimeType());
+                if (bucket.entries == null) {
+                    final MutableString bucketAboutCardName = new MutableString();
+                    bucket.entries = dataItemsToEntries(bucket.dataItems, bucketAboutCardName);
+                    bucket.aboutCardName = bucketAboutCardName.value;
+                }
+                if (bucket.aboutCardName != null) {
+                    aboutCardName = bucket.aboutCardName;
+                }
+                if (bucket.entries.size() > 0) {
+                    contactCardEntries.add(bucket.entries);
                 }
             }
         }
         Trace.endSection();
 
         final Cp2DataCardModel dataModel = new Cp2DataCardModel();
-        dataModel.customAboutCardName = aboutCardName.value;
+        dataModel.customAboutCardName = aboutCardName;
         dataModel.aboutCardEntries = aboutCardEntries;
         dataModel.contactCardEntries = contactCardEntries;
         dataModel.dataItemsMap = dataItemsMap;
+        dataModel.buckets = buckets;
+        dataModel.entriesSignature = entriesSignature;
         return dataModel;
     }
 
+    /**
+     * @return the fields of the contact, besides its data items, that entries are built from.
+     */
+    private static List<Object> getEntriesSignature(Contact data) {
+        final List<Object> signature = new ArrayList<>();
+        signature.add(data.getId());
+        signature.add(data.getNameRawContactId());
+        signature.add(data.getDisplayNameSource());
+        signature.add(data.getDisplayName());
+        signature.add(data.getLookupUri());
+        signature.add(data.getPhotoId());
+        signature.add(data.getPhotoUri());
+        final List<GroupMetaData> groupMetaData = data.getGroupMetaData();
+        if (groupMetaData != null) {
+            for (GroupMetaData group : groupMetaData) {
+                signature.add(group.getGroupId());
+                signature.add(group.getTitle());
+                signature.add(group.isDefaultGroup());
+                signature.add(group.isFavorites());
+            }
+        }
+        return signature;
+    }
+
     /**
      * Class used to hold the About card and Contact cards' data model that gets generated
      * on a background thread. All data is from CP2.
@@ -1758,6 +1884,34 @@ public class QuickContactActivity extends ContactsActivity
         public List<List<Entry>> aboutCardEntries;
         public List<List<Entry>> contactCardEntries;
         public String customAboutCardName;
+        /**
+         * A map between a mimetype string and its bucket, reused by the next model when
+         * the contact changes.
+         */
+        public Map<String, MimeTypeBucket> buckets;
+        public List<Object> entriesSignature;
+    }
+
+    /**
+     * The data items of one mimetype along with the entries built from them. A bucket may be
+     * shared by several models, so it is not modified once its entries are built.
+     */
+    private static class MimeTypeBucket {
+        /**
+         * The values of the data items as loaded, before they were collapsed.
+         */
+        public final List<ContentValues> values;
+        /**
+         * The collapsed data items, sorted using mWithinMimeTypeDataItemComparator.
+         */
+        public final List<DataItem> dataItems;
+        public List<Entry> entries;
+        public String aboutCardName;
+
+        public MimeTypeBucket(List<ContentValues> values, List<DataItem> dataItems) {
+            this.values = values;
+            this.dataItems = dataItems;
+        }
     }
 
     private static class MutableString {
@@ -2339,56 +2493,60 @@ public class QuickContactActivity extends ContactsActivity
     }
 
     private static String getIntentResolveLabel(Intent intent, Context context) {
-        final List<ResolveInfo> matches = context.getPackageManager().queryIntentActivities(intent,
-                PackageManager.MATCH_DEFAULT_ONLY);
-
-        // Pick first match, otherwise best found
-        ResolveInfo bestResolve = null;
-        final int size = matches.size();
-        if (size == 1) {
-            bestResolve = matches.get(0);
-        } else if (size > 1) {
-            bestResolve = ResolveCache.getInstance(context).getBestResolve(intent, matches);
-        }
-
-        if (bestResolve == null) {
-            return null;
-        }
-
-        return String.valueOf(bestResolve.loadLabel(context.getPackageManager()));
+        return ResolveCache.getInstance(context).getLabel(/* mimeType = */ null, intent);
     }
 
     /**
      * Asynchronously extract the most vibrant color from the PhotoView. Once extracted,
      * apply this tint to {@link MultiShrinkScroller}. This operation takes about 20-30ms
-     * on a Nexus 5.
+     * on a Nexus 5, so the colors extracted from a photo are kept by {@link PhotoPaletteCache}
+     * and applied right away when they are in memory.
      */
     private void extractAndApplyTintFromPhotoViewAsynchronously() {
         if (mScroller == null) {
             return;
         }
         final Drawable imageViewDrawable = mPhotoView.getDrawable();
+        final byte[] thumbnail = mContactData != null
+                ? mContactData.getThumbnailPhotoBinaryData() : null;
+        final String paletteKey = imageViewDrawable instanceof BitmapDrawable
+                ? PhotoPaletteCache.getKey(thumbnail) : null;
+        final PhotoPaletteCache paletteCache = PhotoPaletteCache.getInstance(this);
+        if (paletteKey != null) {
+            final MaterialPalette palette = paletteCache.getFromMemory(paletteKey);
+            if (palette != null) {
+                applyExtractedTint(imageViewDrawable, palette);
+                return;
+            }
+        }
         new AsyncTask<Void, Void, MaterialPalette>() {
             @Override
             protected MaterialPalette doInBackground(Void... params) {
 
-                if (imageViewDrawable instanceof BitmapDrawable && mContactData != null
-                        && mContactData.getThumbnailPhotoBinaryData() != null
-                        && mContactData.getThumbnailPhotoBinaryData().length > 0) {
+                if (paletteKey != null) {
+                    final MaterialPalette cachedPalette = paletteCache.get(paletteKey);
+                    if (cachedPalette != null) {
+                        return cachedPalette;
+                    }
                     // Perform the color analysis on the thumbnail instead of the full sized
                     // image, so that our results will be as similar as possible to the Bugle
                     // app.
                     final Bitmap bitmap = BitmapFactory.decodeByteArray(
-                            mContactData.getThumbnailPhotoBinaryData(), 0,
-                            mContactData.getThumbnailPhotoBinaryData().length);
-                    try {
-                        final int primaryColor = colorFromBitmap(bitmap);
-                        if (primaryColor != 0) {
-                            return mMaterialColorMapUtils.calculatePrimaryAndSecondaryColor(
-                                    primaryColor);
+                            thumbnail, 0, thumbnail.length);
+                    if (bitmap != null) {
+                        final MaterialPalette palette;
+                        try {
+                            final int primaryColor = colorFromBitmap(bitmap);
+                            palette = primaryColor != 0
+                                    ? mMaterialColorMapUtils.calculatePrimaryAndSecondaryColor(
+                                            primaryColor)
+                                    : MaterialColorMapUtils.getDefaultPrimaryAndSecondaryColors(
+                                            getResources());
+                        } finally {
+                            bitmap.recycle();
                         }
-                    } finally {
-                        bitmap.recycle();
+                        paletteCache.put(paletteKey, palette);
+                        return palette;
                     }
                 }
                 if (imageViewDrawable instanceof LetterTileDrawable) {
@@ -2401,26 +2559,30 @@ public class QuickContactActivity extends ContactsActivity
             @Override
             protected void onPostExecute(MaterialPalette palette) {
                 super.onPostExecute(palette);
-                if (mHasComputedThemeColor) {
-                    // If we had previously computed a theme color from the contact photo,
-                    // then do not update the theme color. Changing the theme color several
-                    // seconds after QC has started, as a result of an updated/upgraded photo,
-                    // is a jarring experience. On the other hand, changing the theme color after
-                    // a rotation or onNewIntent() is perfectly fine.
-                    return;
-                }
-                // Check that the Photo has not changed. If it has changed, the new tint
-                // color needs to be extracted
-                if (imageViewDrawable == mPhotoView.getDrawable()) {
-                    mHasComputedThemeColor = true;
-                    setThemeColor(palette);
-                    // update color and photo in suggestion card
-                    onAggregationSuggestionChange();
-                }
+                applyExtractedTint(imageViewDrawable, palette);
             }
         }.execute();
     }
 
+    private void applyExtractedTint(Drawable imageViewDrawable, MaterialPalette palette) {
+        if (mHasComputedThemeColor) {
+            // If we had previously computed a theme color from the contact photo,
+            // then do not update the theme color. Changing the theme color several
+            // seconds after QC has started, as a result of an updated/upgraded photo,
+            // is a jarring experience. On the other hand, changing the theme color after
+            // a rotation or onNewIntent() is perfectly fine.
+            return;
+        }
+        // Check that the Photo has not changed. If it has changed, the new tint
+        // color needs to be extracted
+        if (imageViewDrawable == mPhotoView.getDrawable()) {
+            mHasComputedThemeColor = true;
+            setThemeColor(palette);
+            // update color and photo in suggestion card
+            onAggregationSuggestionChange();
+        }
+    }
+
     private void setThemeColor(MaterialPalette palette) {
         // If the color is invalid, use the predefined default
         mColorFilterColor = palette.mPrimaryColor;
@@ -2607,15 +2769,17 @@ public class QuickContactActivity extends ContactsActivity
         public void onLoadFinished(Loader<List<ContactInteraction>> loader,
                 List<ContactInteraction> data) {
             mRecentLoaderResults.put(loader.getId(), data);
-
-            if (isAllRecentDataLoaded()) {
-                bindRecentData();
-            }
+            // Bind every result as it arrives, so the slowest loader does not hold back the card.
+            bindRecentData();
         }
 
         @Override
         public void onLoaderReset(Loader<List<ContactInteraction>> loader) {
-            mRecentLoaderResults.remove(loader.getId());
+            // A restarted loader is reset once its replacement delivered, keep the new results.
+            final Loader<?> current = getLoaderManager().getLoader(loader.getId());
+            if (current == null || current == loader) {
+                mRecentLoaderResults.remove(loader.getId());
+            }
         }
     };
 
@@ -2623,43 +2787,36 @@ public class QuickContactActivity extends ContactsActivity
         return mRecentLoaderResults.size() == mRecentLoaderIds.length;
     }
 
+    private boolean isRecentCardReady() {
+        return isAllRecentDataLoaded() || mRecentCard.getVisibility() == View.VISIBLE;
+    }
+
     private void bindRecentData() {
-        final List<ContactInteraction> allInteractions = new ArrayList<>();
+        final List<List<ContactInteraction>> loaderResults = new ArrayList<>();
         final List<List<Entry>> interactionsWrapper = new ArrayList<>();
 
-        // Serialize mRecentLoaderResults into a single list. This should be done on the main
-        // thread to avoid races against mRecentLoaderResults edits.
-        for (List<ContactInteraction> loaderInteractions : mRecentLoaderResults.values()) {
-            allInteractions.addAll(loaderInteractions);
+        // Snapshot mRecentLoaderResults, in loader order so that ties are merged the same way
+        // whatever order the loaders finished in. This should be done on the main thread to
+        // avoid races against mRecentLoaderResults edits.
+        for (int loaderId : mRecentLoaderIds) {
+            final List<ContactInteraction> loaderInteractions = mRecentLoaderResults.get(loaderId);
+            if (loaderInteractions != null) {
+                loaderResults.add(loaderInteractions);
+            }
         }
+        final boolean isAllRecentDataLoaded = isAllRecentDataLoaded();
 
+        // The previous results are part of this snapshot, drop them if they are not bound yet.
+        if (mRecentDataTask != null) {
+            mRecentDataTask.cancel(/* mayInterruptIfRunning = */ false);
+        }
         mRecentDataTask = new AsyncTask<Void, Void, Void>() {
             @Override
             protected Void doInBackground(Void... params) {
-                Trace.beginSection("sort recent loader results");
+                Trace.beginSection("merge recent loader results");
 
-                // Sort the interactions by most recent
-                Collections.sort(allInteractions, new Comparator<ContactInteraction>() {
-                    @Override
-                    public int compare(ContactInteraction a, ContactInteraction b) {
-                        if (a == null && b == null) {
-                            return 0;
-                        }
-                        if (a == null) {
-                            return 1;
-                        }
-                        if (b == null) {
-                            return -1;
-                        }
-                        if (a.getInteractionDate() > b.getInteractionDate()) {
-                            return -1;
-                        }
-                        if (a.getInteractionDate() == b.getInteractionDate()) {
-                            return 0;
-                        }
-                        return 1;
-                    }
-                });
+                final List<ContactInteraction> allInteractions =
+                        mergeRecentInteractions(loaderResults, MAX_NUM_RECENT_ENTRIES_SHOWN);
 
                 Trace.endSection();
                 Trace.beginSection("contactInteractionsToEntries");
@@ -2680,12 +2837,15 @@ public class QuickContactActivity extends ContactsActivity
                 super.onPostExecute(aVoid);
                 Trace.beginSection("initialize recents card");
 
-                if (allInteractions.size() > 0) {
+                if (interactionsWrapper.size() > 0) {
                     mRecentCard.initialize(interactionsWrapper,
                     /* numInitialVisibleEntries = */ MIN_NUM_COLLAPSED_RECENT_ENTRIES_SHOWN,
                     /* isExpanded = */ mRecentCard.isExpanded(), /* isAlwaysExpanded = */ false,
                             mExpandingEntryCardViewListener, mScroller);
                     mRecentCard.setVisibility(View.VISIBLE);
+                } else {
+                    // a reloaded source may have removed the only interactions.
+                    mRecentCard.setVisibility(View.GONE);
                 }
 
                 Trace.endSection();
@@ -2693,10 +2853,12 @@ public class QuickContactActivity extends ContactsActivity
                 // About card is initialized along with the contact card, but since it appears after
                 // the recent card in the UI, we hold off until making it visible until the recent
                 // card is also ready to avoid stuttering.
-                if (mAboutCard.shouldShow()) {
-                    mAboutCard.setVisibility(View.VISIBLE);
-                } else {
-                    mAboutCard.setVisibility(View.GONE);
+                if (interactionsWrapper.size() > 0 || isAllRecentDataLoaded) {
+                    if (mAboutCard.shouldShow()) {
+                        mAboutCard.setVisibility(View.VISIBLE);
+                    } else {
+                        mAboutCard.setVisibility(View.GONE);
+                    }
                 }
                 mRecentDataTask = null;
             }
@@ -2704,6 +2866,41 @@ public class QuickContactActivity extends ContactsActivity
         mRecentDataTask.execute();
     }
 
+    /**
+     * Merges the results of the interaction loaders, each of them sorted by descending date,
+     * into a single list sorted by descending date.
+     *
+     * @param limit the max count of interactions returned, the merge stops once it is reached.
+     */
+    @VisibleForTesting
+    static List<ContactInteraction> mergeRecentInteractions(
+            List<List<ContactInteraction>> loaderResults, int limit) {
+        final int[] positions = new int[loaderResults.size()];
+        final List<ContactInteraction> merged = new ArrayList<>(limit);
+        while (merged.size() < limit) {
+            // only a few loaders, a linear scan of their heads is cheaper than a heap.
+            int newest = -1;
+            for (int i = 0; i < loaderResults.size(); i++) {
+                final List<ContactInteraction> interactions = loaderResults.get(i);
+                while (positions[i] < interactions.size()
+                        && interactions.get(positions[i]) == null) {
+                    positions[i]++;
+                }
+                if (positions[i] < interactions.size() && (newest == -1
+                        || interactions.get(positions[i]).getInteractionDate()
+                        > loaderResults.get(newest).get(positions[newest])
+                                .getInteractionDate())) {
+                    newest = i;
+                }
+            }
+            if (newest == -1) {
+                break;
+            }
+            merged.add(loaderResults.get(newest).get(positions[newest]++));
+        }
+        return merged;
+    }
+
     @Override
     protected void onStop() {
         super.onStop();
@@ -2734,6 +2931,8 @@ public class QuickContactActivity extends ContactsActivity
 
     private void reFreshContact(){
         if (mCachedCp2DataCardModel != null) {
+            // The entry views themselves need to be refreshed.
+            mBoundContactCardEntries = null;
             populateContactAndAboutCard(mCachedCp2DataCardModel,false);
         }
         if(mContactCard!=null){
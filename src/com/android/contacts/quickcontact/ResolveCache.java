@@ -17,6 +17,8 @@
 package com.android.contacts.quickcontact;
 
 import android.content.BroadcastReceiver;
+import android.content.ComponentName;
+import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
@@ -24,20 +26,29 @@ import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.graphics.drawable.Drawable;
+import android.net.Uri;
+import android.os.AsyncTask;
 import android.provider.ContactsContract.CommonDataKinds.SipAddress;
 import android.text.TextUtils;
 
 import com.android.contacts.util.PhoneCapabilityTester;
 import com.google.common.collect.Sets;
 
-import java.lang.ref.SoftReference;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Internally hold a cache of scaled icons based on {@link PackageManager}
- * queries, keyed internally on MIME-type.
+ * Internally hold a cache of icons and labels based on {@link PackageManager}
+ * queries, keyed internally on MIME-type and intent signature.
+ *
+ * The cache can be read from any thread. A package change only drops the
+ * entries that package may resolve, the others are kept.
  */
 public class ResolveCache {
     /**
@@ -75,7 +86,7 @@ public class ResolveCache {
             final Context applicationContext = context.getApplicationContext();
             sInstance = new ResolveCache(applicationContext);
 
-            // Register for package-changes so that we can flush our cache
+            // Register for package-changes so that we can invalidate our cache
             final IntentFilter filter = new IntentFilter(Intent.ACTION_PACKAGE_ADDED);
             filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
             filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
@@ -86,57 +97,132 @@ public class ResolveCache {
         return sInstance;
     }
 
-    private synchronized static void flush() {
-        sInstance = null;
+    /**
+     * Resolves the intents of the most common actions, so that the first
+     * QuickContact does not query them. Must not be called on the main thread.
+     */
+    public static void prewarm(Context context) {
+        final ResolveCache cache = getInstance(context);
+        cache.getLabel(null, new Intent(Intent.ACTION_CALL, Uri.fromParts("tel", "", null)));
+        cache.getLabel(null, new Intent(Intent.ACTION_SENDTO, Uri.fromParts("smsto", "", null)));
+        cache.getLabel(null, new Intent(Intent.ACTION_SENDTO, Uri.fromParts("mailto", "", null)));
     }
 
     /**
-     * Called anytime a package is installed, uninstalled etc, so that we can wipe our cache
+     * Called anytime a package is installed, uninstalled etc, so that we can drop the
+     * entries it may change
      */
     private BroadcastReceiver mPackageIntentReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
-            flush();
+            final Uri data = intent.getData();
+            final String packageName = data != null ? data.getSchemeSpecificPart() : null;
+            if (TextUtils.isEmpty(packageName)) {
+                clear();
+                return;
+            }
+            // The entries being resolved may predate the change, do not keep them.
+            mGeneration.incrementAndGet();
+            final boolean mayResolveMore = !Intent.ACTION_PACKAGE_REMOVED.equals(
+                    intent.getAction());
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    invalidate(packageName, mayResolveMore);
+                }
+            });
         }
     };
 
     /**
      * Cached entry holding the best {@link ResolveInfo} for a specific
-     * MIME-type, along with a {@link SoftReference} to its icon.
+     * MIME-type and intent, along with its icon and label.
      */
     private static class Entry {
-        public ResolveInfo bestResolve;
-        public Drawable icon;
+        public final Intent intent;
+        public final ResolveInfo bestResolve;
+        public final Drawable icon;
+        /**
+         * Packages of every activity the intent resolved to.
+         */
+        public final Set<String> packageNames;
+        public volatile String label;
+        public volatile boolean isLabelLoaded;
+
+        public Entry(Intent intent, ResolveInfo bestResolve, Drawable icon,
+                Set<String> packageNames) {
+            this.intent = intent;
+            this.bestResolve = bestResolve;
+            this.icon = icon;
+            this.packageNames = packageNames;
+        }
     }
 
-    private HashMap<String, Entry> mCache = new HashMap<String, Entry>();
+    private final ConcurrentHashMap<String, Entry> mCache = new ConcurrentHashMap<>();
 
+    /**
+     * Incremented on each package change, so an entry resolved before it is not cached.
+     */
+    private final AtomicInteger mGeneration = new AtomicInteger();
 
     private ResolveCache(Context context) {
         mContext = context;
         mPackageManager = context.getPackageManager();
     }
 
+    /**
+     * @return the key of the given mimetype and intent. Intents differing only by the
+     * specific part of their data are resolved the same, so share a key. Untyped content
+     * intents are the exception: they are resolved by the type of their data row, so their
+     * whole data is part of the key.
+     */
+    private static String getKey(String mimeType, Intent intent) {
+        final StringBuilder key = new StringBuilder();
+        key.append(mimeType);
+        if (intent != null) {
+            key.append('|').append(intent.getAction());
+            key.append('|').append(intent.getType());
+            key.append('|').append(intent.getScheme());
+            if (intent.getType() == null
+                    && ContentResolver.SCHEME_CONTENT.equals(intent.getScheme())) {
+                key.append('|').append(intent.getData());
+            }
+            key.append('|').append(intent.getPackage());
+            final ComponentName component = intent.getComponent();
+            key.append('|').append(component != null ? component.flattenToShortString() : null);
+            final Set<String> categories = intent.getCategories();
+            if (categories != null) {
+                final List<String> sortedCategories = new ArrayList<>(categories);
+                Collections.sort(sortedCategories);
+                key.append('|').append(TextUtils.join(",", sortedCategories));
+            }
+        }
+        return key.toString();
+    }
+
     /**
      * Get the {@link Entry} best associated with the given mimetype and intent,
      * or create and populate a new one if it doesn't exist.
      */
     protected Entry getEntry(String mimeType, Intent intent) {
-        Entry entry = mCache.get(mimeType);
+        final String key = getKey(mimeType, intent);
+        Entry entry = mCache.get(key);
         if (entry != null) return entry;
-        entry = new Entry();
 
+        final int generation = mGeneration.get();
         if (SipAddress.CONTENT_ITEM_TYPE.equals(mimeType)
                 && !PhoneCapabilityTester.isSipPhone(mContext)) {
             intent = null;
         }
 
+        ResolveInfo bestResolve = null;
+        Drawable icon = null;
+        final Set<String> packageNames = new HashSet<>();
         if (intent != null) {
             final List<ResolveInfo> matches = mPackageManager.queryIntentActivities(intent,
                     PackageManager.MATCH_DEFAULT_ONLY);
 
             // Pick first match, otherwise best found
-            ResolveInfo bestResolve = null;
             final int size = matches.size();
             if (size == 1) {
                 bestResolve = matches.get(0);
@@ -145,15 +231,43 @@ public class ResolveCache {
             }
 
             if (bestResolve != null) {
-                final Drawable icon = bestResolve.loadIcon(mPackageManager);
+                icon = bestResolve.loadIcon(mPackageManager);
+            }
+            for (ResolveInfo match : matches) {
+                packageNames.add(match.activityInfo.packageName);
+            }
+        }
 
-                entry.bestResolve = bestResolve;
-                entry.icon = icon;
+        entry = new Entry(intent != null ? new Intent(intent) : null, bestResolve, icon,
+                packageNames);
+        if (generation != mGeneration.get()) {
+            // A package changed while resolving, the entry may already be stale.
+            return entry;
+        }
+        final Entry previous = mCache.putIfAbsent(key, entry);
+        return previous != null ? previous : entry;
+    }
+
+    /**
+     * Drops the entries the given package may resolve differently now.
+     *
+     * @param mayResolveMore true if the package may now handle intents it did not handle
+     * before, false if it was removed.
+     */
+    private void invalidate(String packageName, boolean mayResolveMore) {
+        for (Map.Entry<String, Entry> cached : mCache.entrySet()) {
+            final Entry entry = cached.getValue();
+            if (entry.packageNames.contains(packageName) || (mayResolveMore
+                    && entry.intent != null && canResolve(entry.intent, packageName))) {
+                mCache.remove(cached.getKey(), entry);
             }
         }
+    }
 
-        mCache.put(mimeType, entry);
-        return entry;
+    private boolean canResolve(Intent intent, String packageName) {
+        final Intent packageIntent = new Intent(intent).setPackage(packageName);
+        return !mPackageManager.queryIntentActivities(packageIntent,
+                PackageManager.MATCH_DEFAULT_ONLY).isEmpty();
     }
 
     /**
@@ -210,7 +324,23 @@ public class ResolveCache {
         return getEntry(mimeType, intent).icon;
     }
 
+    /**
+     * Return the label of the best app for the given {@link Intent}, or null
+     * if no app handles it. The label is loaded once per entry.
+     */
+    public String getLabel(String mimeType, Intent intent) {
+        final Entry entry = getEntry(mimeType, intent);
+        if (!entry.isLabelLoaded) {
+            // Loading it twice concurrently is harmless, the label is the same.
+            entry.label = entry.bestResolve != null
+                    ? String.valueOf(entry.bestResolve.loadLabel(mPackageManager)) : null;
+            entry.isLabelLoaded = true;
+        }
+        return entry.label;
+    }
+
     public void clear() {
+        mGeneration.incrementAndGet();
         mCache.clear();
     }
 }
@@ -0,0 +1,250 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.util;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.OperationApplicationException;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.os.TransactionTooLargeException;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Applies a stream of independent {@link ContentProviderOperation}s in batches.
+ *
+ * The size of the batches follows the time the provider takes to apply them, so that a
+ * batch holds the provider for about {@link #TARGET_BATCH_MILLIS}. Operations added as
+ * builders get a yield point every {@link #YIELD_INTERVAL} operations, so other apps can use
+ * the provider during a long batch. A batch too large for one binder transaction is split
+ * in two and both halves are retried.
+ *
+ * The operations must not use back references, as a batch may be split anywhere between two
+ * calls to {@link #add} or {@link #addAll}. This class is not thread safe.
+ */
+public class BatchOperationExecutor {
+    private static final String TAG = "BatchOperationExecutor";
+
+    public static final int MIN_BATCH_SIZE = 20;
+
+    /**
+     * Max count of operations in one batch. Providers refuse more than 500 operations
+     * between two yield points, and operations added already built may not have any.
+     */
+    public static final int MAX_BATCH_SIZE = 499;
+
+    private static final int INITIAL_BATCH_SIZE = 100;
+
+    /**
+     * Count of operations between two yield points of the operations added as builders.
+     */
+    private static final int YIELD_INTERVAL = 100;
+
+    /**
+     * Batches are resized so that applying one takes about this long, so the provider is not
+     * locked for long while other apps are waiting for it.
+     */
+    private static final long TARGET_BATCH_MILLIS = 300;
+
+    private final ContentResolver mResolver;
+    private final String mAuthority;
+
+    private final ArrayList<ContentProviderOperation> mPending = new ArrayList<>();
+    /**
+     * Indexes in {@link #mPending} where a batch may be split, in ascending order.
+     */
+    private final ArrayList<Integer> mSplitPoints = new ArrayList<>();
+    private int mBatchSize = INITIAL_BATCH_SIZE;
+    private int mAppliedCount = 0;
+    private int mFailedCount = 0;
+
+    public BatchOperationExecutor(ContentResolver resolver, String authority) {
+        mResolver = resolver;
+        mAuthority = authority;
+    }
+
+    /**
+     * Queues an operation, a yield point is allowed before it if it starts a new group of
+     * {@link #YIELD_INTERVAL} operations in the batch.
+     *
+     * @return the count of operations processed by the batch applied, if any.
+     */
+    public int add(ContentProviderOperation.Builder builder) {
+        if (!mPending.isEmpty() && mPending.size() % YIELD_INTERVAL == 0) {
+            builder.withYieldAllowed(true);
+        }
+        return add(builder.build());
+    }
+
+    /**
+     * Queues an operation.
+     *
+     * @return the count of operations processed by the batch applied, if any.
+     */
+    public int add(ContentProviderOperation operation) {
+        mSplitPoints.add(mPending.size());
+        mPending.add(operation);
+        return mPending.size() >= mBatchSize ? flush() : 0;
+    }
+
+    /**
+     * Queues operations which should be applied in the same transaction. The pending
+     * operations are applied first if the batch would become too large. They are only split
+     * if they do not fit in one binder transaction, or if there are more than
+     * {@link #MAX_BATCH_SIZE} of them: they are then applied right away in several batches.
+     *
+     * @return the count of operations processed by the batches applied, if any.
+     */
+    public int addAll(List<ContentProviderOperation> operations) {
+        if (operations.isEmpty()) {
+            return 0;
+        }
+        int processed = 0;
+        if (!mPending.isEmpty() && mPending.size() + operations.size() > mBatchSize) {
+            processed += flush();
+        }
+        if (operations.size() > MAX_BATCH_SIZE) {
+            // too many operations without a yield point for one batch, and as they cannot be
+            // applied atomically anyway, each of them may start a smaller batch.
+            for (int start = 0; start < operations.size(); start += MAX_BATCH_SIZE) {
+                final int end = Math.min(start + MAX_BATCH_SIZE, operations.size());
+                for (int i = start; i < end; i++) {
+                    mSplitPoints.add(mPending.size());
+                    mPending.add(operations.get(i));
+                }
+                processed += flush();
+            }
+            return processed;
+        }
+        mSplitPoints.add(mPending.size());
+        mPending.addAll(operations);
+        if (mPending.size() >= mBatchSize) {
+            processed += flush();
+        }
+        return processed;
+    }
+
+    /**
+     * Applies the pending operations.
+     *
+     * @return the count of operations processed, whether they were applied or failed.
+     */
+    public int flush() {
+        final int size = mPending.size();
+        if (size == 0) {
+            return 0;
+        }
+        try {
+            apply(0, size);
+        } finally {
+            mPending.clear();
+            mSplitPoints.clear();
+        }
+        return size;
+    }
+
+    /**
+     * @return the count of operations queued and not applied yet.
+     */
+    public int getPendingCount() {
+        return mPending.size();
+    }
+
+    /**
+     * @return the count of operations applied since this executor was created.
+     */
+    public int getAppliedCount() {
+        return mAppliedCount;
+    }
+
+    /**
+     * @return the count of operations which failed since this executor was created.
+     */
+    public int getFailedCount() {
+        return mFailedCount;
+    }
+
+    private void apply(int start, int end) {
+        final ArrayList<ContentProviderOperation> batch =
+                new ArrayList<>(mPending.subList(start, end));
+        final long startTime = SystemClock.elapsedRealtime();
+        try {
+            mResolver.applyBatch(mAuthority, batch);
+        } catch (TransactionTooLargeException e) {
+            // nothing has been applied yet, retry in two smaller batches.
+            final int middle = findSplitPoint(start, end);
+            if (middle < 0) {
+                Log.e(TAG, "Failed to apply " + batch.size() + " operations", e);
+                mFailedCount += batch.size();
+                return;
+            }
+            mBatchSize = Math.max(batch.size() / 2, MIN_BATCH_SIZE);
+            apply(start, middle);
+            apply(middle, end);
+            return;
+        } catch (RemoteException | OperationApplicationException e) {
+            Log.e(TAG, "Failed to apply " + batch.size() + " operations", e);
+            mFailedCount += batch.size();
+            return;
+        }
+        mAppliedCount += batch.size();
+
+        final long elapsed = SystemClock.elapsedRealtime() - startTime;
+        if (elapsed < TARGET_BATCH_MILLIS / 2 && batch.size() >= mBatchSize) {
+            mBatchSize = Math.min(mBatchSize * 2, MAX_BATCH_SIZE);
+        } else if (elapsed > TARGET_BATCH_MILLIS) {
+            mBatchSize = Math.max(mBatchSize / 2, MIN_BATCH_SIZE);
+        }
+    }
+
+    /**
+     * @return the split point of the range closest to its middle, or -1 if it cannot be split.
+     */
+    private int findSplitPoint(int start, int end) {
+        final int middle = (start + end) / 2;
+        int best = -1;
+        for (int i = 0; i < mSplitPoints.size(); i++) {
+            int point = mSplitPoints.get(i);
+            if (point <= start) {
+                continue;
+            }
+            if (point >= end) {
+                break;
+            }
+            if (best < 0 || Math.abs(point - middle) < Math.abs(best - middle)) {
+                best = point;
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.util;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.RawContacts;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.contacts.common.MoreContactUtils;
+import com.android.contacts.common.SimContactsConstants;
+import com.android.contacts.common.SimContactsOperation;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Deletes many contacts at once.
+ *
+ * The account of every contact is read with a few bulk queries to split the contacts between
+ * the phone and the sim cards. Phone contacts are deleted in batches sized by a
+ * {@link BatchOperationExecutor}. Sim contacts are first deleted from their sim card, one by
+ * one, and then from the phone in the same batches.
+ */
+public class BulkContactsDeleter {
+    private static final String TAG = "BulkContactsDeleter";
+
+    public interface Callback {
+        /**
+         * @return true if the deletion should stop. The pending batch is still applied.
+         */
+        boolean isCancelled();
+
+        /**
+         * Called each time more contacts have been deleted, or skipped because they could not
+         * be deleted from their sim card.
+         */
+        void onProgress(int count);
+    }
+
+    /**
+     * Max count of contact ids in one "IN (...)" selection.
+     */
+    private static final int QUERY_CHUNK_SIZE = 1000;
+
+    private static final String[] RAW_CONTACTS_PROJECTION = new String[] {
+            RawContacts.CONTACT_ID, RawContacts.ACCOUNT_TYPE, RawContacts.ACCOUNT_NAME};
+    private static final int CONTACT_ID = 0;
+    private static final int ACCOUNT_TYPE = 1;
+    private static final int ACCOUNT_NAME = 2;
+
+    private final Context mContext;
+    private final SimContactsOperation mSimContactsOperation;
+    private final BatchOperationExecutor mExecutor;
+
+    public BulkContactsDeleter(Context context) {
+        mContext = context;
+        mSimContactsOperation = new SimContactsOperation(context);
+        mExecutor = new BatchOperationExecutor(context.getContentResolver(),
+                ContactsContract.AUTHORITY);
+    }
+
+    /**
+     * Deletes the given contacts.
+     *
+     * @return the count of deleted contacts.
+     */
+    public int delete(Collection<Long> contactIds, Callback callback) {
+        final HashMap<Long, Integer> simSlots = getSimSlots(contactIds);
+        final ArrayList<Long> phoneIds = new ArrayList<>(contactIds.size());
+        final ArrayList<Long> simIds = new ArrayList<>(simSlots.size());
+        for (Long contactId : contactIds) {
+            if (simSlots.containsKey(contactId)) {
+                simIds.add(contactId);
+            } else {
+                phoneIds.add(contactId);
+            }
+        }
+
+        final int appliedBefore = mExecutor.getAppliedCount();
+        for (int i = 0; i < phoneIds.size() && !callback.isCancelled(); i++) {
+            addDelete(phoneIds.get(i), callback);
+        }
+        for (int i = 0; i < simIds.size() && !callback.isCancelled(); i++) {
+            long contactId = simIds.get(i);
+            int slot = simSlots.get(contactId);
+            ContentValues values = mSimContactsOperation.getSimAccountValues(contactId);
+            if (mSimContactsOperation.delete(values, slot) == 0) {
+                Log.w(TAG, "Failed to delete contact " + contactId + " from sim " + slot);
+                callback.onProgress(1);
+                continue;
+            }
+            addDelete(contactId, callback);
+        }
+        reportProgress(mExecutor.flush(), callback);
+        return mExecutor.getAppliedCount() - appliedBefore;
+    }
+
+    /**
+     * @return the sim slot of every contact stored in a sim card, keyed by contact id.
+     */
+    private HashMap<Long, Integer> getSimSlots(Collection<Long> contactIds) {
+        final HashMap<Long, Integer> simSlots = new HashMap<>();
+        final List<Long> ids = new ArrayList<>(contactIds);
+        for (int start = 0; start < ids.size(); start += QUERY_CHUNK_SIZE) {
+            List<Long> chunk = ids.subList(start, Math.min(start + QUERY_CHUNK_SIZE, ids.size()));
+            Cursor cursor = mContext.getContentResolver().query(RawContacts.CONTENT_URI,
+                    RAW_CONTACTS_PROJECTION, RawContacts.DELETED + "=0 AND "
+                    + RawContacts.CONTACT_ID + " IN (" + TextUtils.join(",", chunk) + ")",
+                    null, null);
+            if (cursor == null) {
+                continue;
+            }
+            try {
+                while (cursor.moveToNext()) {
+                    int slot = MoreContactUtils.getSubscription(cursor.getString(ACCOUNT_TYPE),
+                            cursor.getString(ACCOUNT_NAME));
+                    if (slot == SimContactsConstants.SLOT1
+                            || slot == SimContactsConstants.SLOT2) {
+                        simSlots.put(cursor.getLong(CONTACT_ID), slot);
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return simSlots;
+    }
+
+    private void addDelete(long contactId, Callback callback) {
+        reportProgress(mExecutor.add(ContentProviderOperation.newDelete(
+                ContentUris.withAppendedId(Contacts.CONTENT_URI, contactId))), callback);
+    }
+
+    private static void reportProgress(int count, Callback callback) {
+        if (count > 0) {
+            callback.onProgress(count);
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.util;
+
+import android.os.Bundle;
+import android.util.Log;
+
+import java.util.Arrays;
+
+/**
+ * The items selected in a multi picker: a map from a row id to the values describing the row.
+ *
+ * Ids are kept sorted in a primitive array, so lookups are binary searches and selecting rows
+ * in id order only appends. {@link #snapshot} shares the arrays instead of copying them, the
+ * first write to either set copies them.
+ */
+public class ChoiceSet {
+    private static final String TAG = "ChoiceSet";
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private long[] mKeys;
+    private String[][] mValues;
+    private int mSize;
+    /**
+     * True if the arrays may be shared with another set and must be copied before a write.
+     */
+    private boolean mShared;
+
+    public ChoiceSet() {
+        mKeys = new long[INITIAL_CAPACITY];
+        mValues = new String[INITIAL_CAPACITY][];
+    }
+
+    private ChoiceSet(long[] keys, String[][] values, int size) {
+        mKeys = keys;
+        mValues = values;
+        mSize = size;
+        mShared = true;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public boolean containsKey(long key) {
+        return Arrays.binarySearch(mKeys, 0, mSize, key) >= 0;
+    }
+
+    /**
+     * @return the values of the key, or null if it is not in the set.
+     */
+    public String[] get(long key) {
+        final int index = Arrays.binarySearch(mKeys, 0, mSize, key);
+        return index >= 0 ? mValues[index] : null;
+    }
+
+    public void put(long key, String[] values) {
+        int index = mSize > 0 && key > mKeys[mSize - 1]
+                ? ~mSize : Arrays.binarySearch(mKeys, 0, mSize, key);
+        if (index >= 0) {
+            prepareWrite(mSize);
+            mValues[index] = values;
+            return;
+        }
+        index = ~index;
+        prepareWrite(mSize + 1);
+        System.arraycopy(mKeys, index, mKeys, index + 1, mSize - index);
+        System.arraycopy(mValues, index, mValues, index + 1, mSize - index);
+        mKeys[index] = key;
+        mValues[index] = values;
+        mSize++;
+    }
+
+    public void remove(long key) {
+        final int index = Arrays.binarySearch(mKeys, 0, mSize, key);
+        if (index < 0) {
+            return;
+        }
+        prepareWrite(mSize);
+        System.arraycopy(mKeys, index + 1, mKeys, index, mSize - index - 1);
+        System.arraycopy(mValues, index + 1, mValues, index, mSize - index - 1);
+        mSize--;
+        mValues[mSize] = null;
+    }
+
+    public void clear() {
+        if (mShared) {
+            mKeys = new long[INITIAL_CAPACITY];
+            mValues = new String[INITIAL_CAPACITY][];
+            mShared = false;
+        } else {
+            Arrays.fill(mValues, 0, mSize, null);
+        }
+        mSize = 0;
+    }
+
+    /**
+     * @return the key at the given index, keys are in ascending order.
+     */
+    public long keyAt(int index) {
+        return mKeys[index];
+    }
+
+    public String[] valueAt(int index) {
+        return mValues[index];
+    }
+
+    /**
+     * @return a copy of this set, which can be read on another thread while this set is
+     * modified. Nothing is copied until one of the sets is modified.
+     */
+    public ChoiceSet snapshot() {
+        mShared = true;
+        return new ChoiceSet(mKeys, mValues, mSize);
+    }
+
+    /**
+     * @return a bundle holding the values of every id, keyed by the id as a string, as
+     * multi pickers used to return.
+     */
+    public Bundle toBundle() {
+        final Bundle bundle = new Bundle();
+        for (int i = 0; i < mSize; i++) {
+            bundle.putStringArray(String.valueOf(mKeys[i]), mValues[i]);
+        }
+        return bundle;
+    }
+
+    /**
+     * @return the set of the values of a bundle built by {@link #toBundle}, empty if the
+     * bundle is null. Keys which are not ids are skipped.
+     */
+    public static ChoiceSet fromBundle(Bundle bundle) {
+        final ChoiceSet choiceSet = new ChoiceSet();
+        if (bundle == null) {
+            return choiceSet;
+        }
+        for (String key : bundle.keySet()) {
+            try {
+                choiceSet.put(Long.parseLong(key), bundle.getStringArray(key));
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Skipping key " + key);
+            }
+        }
+        return choiceSet;
+    }
+
+    /**
+     * Makes the arrays writable, and large enough for the given count of ids.
+     */
+    private void prepareWrite(int minCapacity) {
+        if (!mShared && minCapacity <= mKeys.length) {
+            return;
+        }
+        final int capacity = minCapacity <= mKeys.length
+                ? mKeys.length : Math.max(minCapacity, mKeys.length * 2);
+        mKeys = Arrays.copyOf(mKeys, capacity);
+        mValues = Arrays.copyOf(mValues, capacity);
+        mShared = false;
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.util;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.util.Log;
+import android.widget.Toast;
+
+import com.android.contacts.R;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.UUID;
+
+/**
+ * Hands the selection of a multi picker back to its caller without putting it in the result
+ * intent, which limits how many items can be selected at once.
+ *
+ * The picker publishes a snapshot of its {@link ChoiceSet} and returns its uri as the result
+ * data. The caller reads it back with {@link #readResult}. Only the last
+ * {@link #MAX_PUBLISHED} snapshots are kept, in memory, so the uri is only valid for a short
+ * time in this process: the selection is lost if the process dies before the caller reads it,
+ * or if more pickers publish in the meantime. The caller then tells the user to select again.
+ */
+public class ChoiceSetProvider extends ContentProvider {
+    private static final String TAG = "ChoiceSetProvider";
+
+    public static final String AUTHORITY = "com.android.contacts.choiceset";
+
+    /**
+     * Column of the id of a row.
+     */
+    public static final String COLUMN_KEY = "key";
+
+    /**
+     * Column of the count of values of a row, null if the row has no values.
+     */
+    public static final String COLUMN_VALUE_COUNT = "value_count";
+
+    /**
+     * Prefix of the columns of the values of a row, followed by the index of the value.
+     */
+    public static final String COLUMN_VALUE_PREFIX = "value";
+
+    private static final int MAX_PUBLISHED = 4;
+
+    private static final LinkedHashMap<String, ChoiceSet> sPublished =
+            new LinkedHashMap<String, ChoiceSet>();
+
+    /**
+     * Publishes a snapshot of the choice set.
+     *
+     * @return the uri to read it from.
+     */
+    public static Uri publish(ChoiceSet choiceSet) {
+        final String token = UUID.randomUUID().toString();
+        synchronized (sPublished) {
+            sPublished.put(token, choiceSet.snapshot());
+            final Iterator<String> it = sPublished.keySet().iterator();
+            while (sPublished.size() > MAX_PUBLISHED && it.hasNext()) {
+                it.next();
+                it.remove();
+            }
+        }
+        return new Uri.Builder().scheme("content").authority(AUTHORITY).appendPath(token)
+                .build();
+    }
+
+    /**
+     * Publishes the choice set and sets its uri as the data of the result intent.
+     */
+    public static void putResult(Intent intent, ChoiceSet choiceSet) {
+        intent.setData(publish(choiceSet));
+        intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+    }
+
+    /**
+     * @return the choice set returned by a multi picker: read from the result data if it was
+     * published, otherwise from the bundle extra with the given key, or from the extras
+     * themselves if the key is null. Null if there is no result, or if the published choice
+     * set is not available anymore, in which case the user is told so.
+     */
+    public static ChoiceSet readResult(Context context, Intent data, String bundleKey) {
+        if (data == null) {
+            return null;
+        }
+        final Uri uri = data.getData();
+        if (uri != null && AUTHORITY.equals(uri.getAuthority())) {
+            final ChoiceSet choiceSet = read(context, uri);
+            if (choiceSet == null) {
+                Log.w(TAG, "The published choice set is not available anymore: " + uri);
+                Toast.makeText(context, R.string.choice_set_unavailable, Toast.LENGTH_SHORT)
+                        .show();
+            }
+            return choiceSet;
+        }
+        final Bundle extras = data.getExtras();
+        if (extras == null) {
+            return null;
+        }
+        return ChoiceSet.fromBundle(bundleKey == null ? extras : extras.getBundle(bundleKey));
+    }
+
+    /**
+     * @return the published choice set, or null if it is not available anymore.
+     */
+    public static ChoiceSet read(Context context, Uri uri) {
+        final Cursor cursor = context.getContentResolver().query(uri, null, null, null, null);
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            final ChoiceSet choiceSet = new ChoiceSet();
+            final int maxLength = cursor.getColumnCount() - 2;
+            while (cursor.moveToNext()) {
+                String[] values = null;
+                if (!cursor.isNull(1)) {
+                    values = new String[Math.min(cursor.getInt(1), maxLength)];
+                    for (int i = 0; i < values.length; i++) {
+                        values[i] = cursor.getString(i + 2);
+                    }
+                }
+                choiceSet.put(cursor.getLong(0), values);
+            }
+            return choiceSet;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+            String sortOrder) {
+        final ChoiceSet choiceSet;
+        synchronized (sPublished) {
+            choiceSet = sPublished.get(uri.getLastPathSegment());
+        }
+        if (choiceSet == null) {
+            return null;
+        }
+        int maxLength = 0;
+        for (int i = 0; i < choiceSet.size(); i++) {
+            final String[] values = choiceSet.valueAt(i);
+            if (values != null) {
+                maxLength = Math.max(maxLength, values.length);
+            }
+        }
+        final String[] columns = new String[maxLength + 2];
+        columns[0] = COLUMN_KEY;
+        columns[1] = COLUMN_VALUE_COUNT;
+        for (int i = 0; i < maxLength; i++) {
+            columns[i + 2] = COLUMN_VALUE_PREFIX + i;
+        }
+        final MatrixCursor cursor = new MatrixCursor(columns, choiceSet.size());
+        final Object[] row = new Object[columns.length];
+        for (int i = 0; i < choiceSet.size(); i++) {
+            final String[] values = choiceSet.valueAt(i);
+            final int length = values == null ? 0 : values.length;
+            row[0] = choiceSet.keyAt(i);
+            row[1] = values == null ? null : length;
+            for (int j = 0; j < maxLength; j++) {
+                row[j + 2] = j < length ? values[j] : null;
+            }
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        return null;
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        return null;
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        return 0;
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        return 0;
+    }
+}
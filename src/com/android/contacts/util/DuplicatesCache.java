@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.util;
+
+import android.accounts.Account;
+import android.content.Context;
+import android.provider.ContactsContract.RawContacts;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+
+/**
+ * On-disk store of the data {@link DuplicatesFinder} reads for every raw contact of an account,
+ * along with the {@link RawContacts#VERSION} it was read at.
+ *
+ * The next search only reads the raw contacts which have been inserted or whose version
+ * changed since, and rebuilds the duplicated groups from the stored data of the other ones.
+ */
+public class DuplicatesCache {
+    private static final String TAG = "DuplicatesCache";
+
+    private static final String CACHE_DIR = "duplicates";
+
+    /**
+     * Increment when the file format changes, old files are then ignored.
+     */
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * The data of one raw contact, as of its version.
+     */
+    public static class Entry {
+        public final long rawContactId;
+        public final int version;
+        public final long photoId;
+        public final ArrayList<String> phones;
+        public final ArrayList<String> emails;
+
+        public Entry(long rawContactId, int version, long photoId, ArrayList<String> phones,
+                ArrayList<String> emails) {
+            this.rawContactId = rawContactId;
+            this.version = version;
+            this.photoId = photoId;
+            this.phones = phones;
+            this.emails = emails;
+        }
+    }
+
+    private final Context mContext;
+
+    public DuplicatesCache(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * @return the stored entries of the account keyed by raw contact id, empty if there are
+     * none or if they cannot be read.
+     */
+    public HashMap<Long, Entry> read(Account account) {
+        final HashMap<Long, Entry> entries = new HashMap<>();
+        final AtomicFile file = getFile(account);
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(file.openRead()));
+            if (in.readInt() != FORMAT_VERSION || !account.type.equals(in.readUTF())
+                    || !account.name.equals(in.readUTF())) {
+                return entries;
+            }
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                long rawContactId = in.readLong();
+                int version = in.readInt();
+                long photoId = in.readLong();
+                ArrayList<String> phones = readStrings(in);
+                ArrayList<String> emails = readStrings(in);
+                entries.put(rawContactId,
+                        new Entry(rawContactId, version, photoId, phones, emails));
+            }
+        } catch (FileNotFoundException e) {
+            // first search of this account.
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read the duplicates cache", e);
+            entries.clear();
+        } finally {
+            closeQuietly(in);
+        }
+        return entries;
+    }
+
+    /**
+     * Replaces the stored entries of the account.
+     */
+    public void write(Account account, Collection<Entry> entries) {
+        final AtomicFile file = getFile(account);
+        FileOutputStream stream = null;
+        try {
+            stream = file.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+            out.writeInt(FORMAT_VERSION);
+            out.writeUTF(account.type);
+            out.writeUTF(account.name);
+            out.writeInt(entries.size());
+            for (Entry entry : entries) {
+                out.writeLong(entry.rawContactId);
+                out.writeInt(entry.version);
+                out.writeLong(entry.photoId);
+                writeStrings(out, entry.phones);
+                writeStrings(out, entry.emails);
+            }
+            out.flush();
+            file.finishWrite(stream);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write the duplicates cache", e);
+            if (stream != null) {
+                file.failWrite(stream);
+            }
+        }
+    }
+
+    private AtomicFile getFile(Account account) {
+        final File dir = new File(mContext.getCacheDir(), CACHE_DIR);
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        // the account is written in the file too, a hash collision only costs a full search.
+        final String fileName = Integer.toHexString((account.type + "/" + account.name)
+                .hashCode());
+        return new AtomicFile(new File(dir, fileName));
+    }
+
+    private static ArrayList<String> readStrings(DataInputStream in) throws IOException {
+        final int size = in.readInt();
+        final ArrayList<String> strings = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            strings.add(in.readBoolean() ? in.readUTF() : null);
+        }
+        return strings;
+    }
+
+    private static void writeStrings(DataOutputStream out, ArrayList<String> strings)
+            throws IOException {
+        out.writeInt(strings.size());
+        for (String string : strings) {
+            out.writeBoolean(string != null);
+            if (string != null) {
+                out.writeUTF(string);
+            }
+        }
+    }
+
+    private static void closeQuietly(DataInputStream in) {
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,597 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.util;
+
+import android.accounts.Account;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.provider.ContactsContract.CommonDataKinds;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.RawContacts;
+import android.provider.ContactsContract.RawContactsEntity;
+import android.telephony.PhoneNumberUtils;
+import android.text.TextUtils;
+
+import com.android.contacts.common.MoreContactUtils;
+import com.android.contacts.common.SimContactsConstants;
+import com.android.contacts.common.SimContactsOperation;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Finds the duplicated raw contacts of one account.
+ *
+ * All raw contacts of the account are read in one streaming pass over
+ * {@link RawContactsEntity}, or from the {@link DuplicatesCache} when they have not changed
+ * since the last search, and put into buckets by blocking keys: the normalized name, the
+ * {@link PhoneNumberIndex} key of every phone number and every email address. Raw contacts
+ * sharing a bucket are joined into the same {@link DuplicatesUtils.MergeContacts} group if their
+ * names match, so the cost grows with the number of raw contacts instead of issuing provider
+ * queries for each of them.
+ */
+public class DuplicatesFinder {
+
+    /**
+     * Callback used to report the progress of a search and to stop it early.
+     */
+    public interface Callback {
+        /**
+         * @return true if the search should stop as soon as possible.
+         */
+        boolean isCancelled();
+
+        /**
+         * Called every time one more raw contact has been read.
+         */
+        void onRawContactScanned();
+
+        /**
+         * Called, on the searching thread, as soon as a group of duplicated raw contacts has
+         * been confirmed.
+         */
+        void onMergeContactsFound(DuplicatesUtils.MergeContacts mergeContacts);
+    }
+
+    /**
+     * Max count of contact ids in one "IN (...)" selection. Groups are reported to the
+     * {@link Callback} each time the contacts of that many raw contacts have been resolved.
+     */
+    private static final int QUERY_CHUNK_SIZE = 500;
+
+    private static final String ACCOUNT_SELECTION = RawContacts.DELETED + "= 0 AND "
+            + RawContacts.ACCOUNT_NAME + "=? AND " + RawContacts.ACCOUNT_TYPE + "=?";
+
+    private static final String[] RAW_CONTACTS_PROJECTION = new String[] {
+            RawContacts._ID, RawContacts.CONTACT_ID, RawContacts.DISPLAY_NAME_PRIMARY,
+            RawContacts.VERSION};
+    private static final int RAW_CONTACT_ID = 0;
+    private static final int RAW_CONTACT_CONTACT_ID = 1;
+    private static final int RAW_CONTACT_DISPLAY_NAME = 2;
+    private static final int RAW_CONTACT_VERSION = 3;
+
+    private static final String[] ENTITY_PROJECTION = new String[] {
+            RawContactsEntity._ID, RawContactsEntity.DATA_ID, RawContactsEntity.MIMETYPE,
+            RawContactsEntity.DATA1};
+    private static final int ENTITY_RAW_CONTACT_ID = 0;
+    private static final int ENTITY_DATA_ID = 1;
+    private static final int ENTITY_MIMETYPE = 2;
+    private static final int ENTITY_DATA1 = 3;
+
+    private static final String[] CONTACTS_PROJECTION = new String[] {
+            Contacts._ID, Contacts.LOOKUP_KEY, Contacts.DISPLAY_NAME_PRIMARY};
+    private static final int CONTACT_ID = 0;
+    private static final int CONTACT_LOOKUP_KEY = 1;
+    private static final int CONTACT_DISPLAY_NAME = 2;
+
+    private final Context mContext;
+    private final ContentResolver mResolver;
+    private final DuplicatesCache mCache;
+
+    public DuplicatesFinder(Context context, ContentResolver resolver) {
+        mContext = context;
+        mResolver = resolver;
+        mCache = new DuplicatesCache(context);
+    }
+
+    /**
+     * Searches the duplicated raw contacts in the given account. The groups of raw contacts
+     * which can be merged are reported through {@link Callback#onMergeContactsFound}.
+     *
+     * Only the raw contacts inserted or changed since the last search are read from
+     * {@link RawContactsEntity}, the data of the other ones comes from the {@link DuplicatesCache}.
+     *
+     * @return false if the search was cancelled.
+     */
+    public boolean findDuplicates(Account account, Callback callback) {
+        final String[] accountArgs = new String[] {account.name, account.type};
+        final ArrayList<RawContactInfo> rawContacts = new ArrayList<>();
+        final HashMap<Long, Integer> positions = new HashMap<>();
+
+        Cursor cursor = mResolver.query(RawContacts.CONTENT_URI, RAW_CONTACTS_PROJECTION,
+                ACCOUNT_SELECTION, accountArgs, null);
+        if (cursor == null) {
+            return !callback.isCancelled();
+        }
+        try {
+            while (cursor.moveToNext()) {
+                RawContactInfo info = new RawContactInfo(cursor.getLong(RAW_CONTACT_ID),
+                        cursor.getLong(RAW_CONTACT_CONTACT_ID),
+                        cursor.getString(RAW_CONTACT_DISPLAY_NAME),
+                        cursor.getInt(RAW_CONTACT_VERSION));
+                positions.put(info.rawContactId, rawContacts.size());
+                rawContacts.add(info);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        // reuse the data of the raw contacts which have not changed since the last search.
+        final HashMap<Long, DuplicatesCache.Entry> cachedEntries = mCache.read(account);
+        final HashSet<Long> changedIds = new HashSet<>();
+        for (RawContactInfo info : rawContacts) {
+            DuplicatesCache.Entry entry = cachedEntries.get(info.rawContactId);
+            if (entry != null && entry.version == info.version) {
+                info.photoId = entry.photoId;
+                info.phones.addAll(entry.phones);
+                info.emails.addAll(entry.emails);
+                callback.onRawContactScanned();
+            } else {
+                changedIds.add(info.rawContactId);
+            }
+        }
+
+        if (!readData(accountArgs, changedIds, rawContacts, positions, callback)) {
+            return false;
+        }
+        final ArrayList<DuplicatesCache.Entry> entries = new ArrayList<>(rawContacts.size());
+        for (RawContactInfo info : rawContacts) {
+            entries.add(new DuplicatesCache.Entry(info.rawContactId, info.version, info.photoId,
+                    info.phones, info.emails));
+        }
+        mCache.write(account, entries);
+
+        return emitMergeContacts(account, rawContacts, joinDuplicates(rawContacts), callback);
+    }
+
+    /**
+     * Reads the phone numbers, emails and photo of the changed raw contacts. The whole account
+     * is streamed in one pass if most of them changed, otherwise only the changed ones are read.
+     */
+    private boolean readData(String[] accountArgs, HashSet<Long> changedIds,
+            ArrayList<RawContactInfo> rawContacts, HashMap<Long, Integer> positions,
+            Callback callback) {
+        if (changedIds.isEmpty()) {
+            return !callback.isCancelled();
+        }
+        if (changedIds.size() > rawContacts.size() / 2) {
+            Cursor cursor = mResolver.query(RawContactsEntity.CONTENT_URI, ENTITY_PROJECTION,
+                    ACCOUNT_SELECTION, accountArgs, RawContactsEntity._ID);
+            return readData(cursor, changedIds, rawContacts, positions, callback);
+        }
+        final ArrayList<Long> ids = new ArrayList<>(changedIds);
+        for (int start = 0; start < ids.size(); start += QUERY_CHUNK_SIZE) {
+            List<Long> chunk = ids.subList(start, Math.min(start + QUERY_CHUNK_SIZE, ids.size()));
+            Cursor cursor = mResolver.query(RawContactsEntity.CONTENT_URI, ENTITY_PROJECTION,
+                    RawContactsEntity.DELETED + "= 0 AND " + RawContactsEntity._ID + " IN ("
+                    + TextUtils.join(",", chunk) + ")", null, RawContactsEntity._ID);
+            if (!readData(cursor, changedIds, rawContacts, positions, callback)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean readData(Cursor cursor, HashSet<Long> changedIds,
+            ArrayList<RawContactInfo> rawContacts, HashMap<Long, Integer> positions,
+            Callback callback) {
+        if (cursor == null) {
+            return !callback.isCancelled();
+        }
+        try {
+            long lastRawContactId = -1;
+            while (cursor.moveToNext()) {
+                long rawContactId = cursor.getLong(ENTITY_RAW_CONTACT_ID);
+                if (!changedIds.contains(rawContactId)) {
+                    // its data comes from the cache, or it has been inserted after the raw
+                    // contacts were read and will be found next time.
+                    continue;
+                }
+                if (rawContactId != lastRawContactId) {
+                    if (callback.isCancelled()) {
+                        return false;
+                    }
+                    callback.onRawContactScanned();
+                    lastRawContactId = rawContactId;
+                }
+                RawContactInfo info = rawContacts.get(positions.get(rawContactId));
+                String mimeType = cursor.getString(ENTITY_MIMETYPE);
+                String data1 = cursor.getString(ENTITY_DATA1);
+                if (CommonDataKinds.Photo.CONTENT_ITEM_TYPE.equals(mimeType)) {
+                    info.photoId = cursor.getLong(ENTITY_DATA_ID);
+                } else if (CommonDataKinds.Phone.CONTENT_ITEM_TYPE.equals(mimeType)) {
+                    info.phones.add(data1);
+                } else if (CommonDataKinds.Email.CONTENT_ITEM_TYPE.equals(mimeType)) {
+                    info.emails.add(data1);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return !callback.isCancelled();
+    }
+
+    /**
+     * Joins the raw contacts with the same name. Raw contacts sharing a phone number or an email
+     * are only joined if their names match too, or if one of them has no name of its own. A
+     * group never gets two different names, so people sharing a home line or a mailbox are not
+     * merged, not even through an unnamed raw contact with that number.
+     */
+    @VisibleForTesting
+    static UnionFind joinDuplicates(ArrayList<RawContactInfo> rawContacts) {
+        final UnionFind groups = new UnionFind(rawContacts.size());
+        // the name of every group, at the position of its root. Null if it has no name yet.
+        final String[] names = new String[rawContacts.size()];
+        final HashMap<String, List<Integer>> nameBlocks = new HashMap<>();
+        final HashMap<String, List<PhoneEntry>> phoneBlocks = new HashMap<>();
+        final HashMap<String, List<Integer>> emailBlocks = new HashMap<>();
+        for (int i = 0; i < rawContacts.size(); i++) {
+            RawContactInfo info = rawContacts.get(i);
+            names[i] = getOwnName(info);
+            if (names[i] != null) {
+                addToBlock(nameBlocks, names[i], i, groups, names);
+            }
+            for (String number : info.phones) {
+                String key = PhoneNumberIndex.getKey(number);
+                if (key != null) {
+                    addToPhoneBlock(phoneBlocks, key, number, i, groups, names);
+                }
+            }
+            for (String email : info.emails) {
+                if (!TextUtils.isEmpty(email)) {
+                    addToBlock(emailBlocks, email.trim().toLowerCase(Locale.ROOT), i, groups,
+                            names);
+                }
+            }
+        }
+        return groups;
+    }
+
+    /**
+     * Joins the groups of both raw contacts unless they have different names.
+     *
+     * @return true if both raw contacts are in the same group.
+     */
+    private static boolean join(UnionFind groups, String[] names, int first, int second) {
+        final int firstRoot = groups.find(first);
+        final int secondRoot = groups.find(second);
+        if (firstRoot == secondRoot) {
+            return true;
+        }
+        final String firstName = names[firstRoot];
+        final String secondName = names[secondRoot];
+        if (firstName != null && secondName != null && !firstName.equals(secondName)) {
+            return false;
+        }
+        names[groups.union(firstRoot, secondRoot)] = firstName != null ? firstName : secondName;
+        return true;
+    }
+
+    /**
+     * Reports the groups of raw contacts, as soon as the contacts of
+     * {@link #QUERY_CHUNK_SIZE} raw contacts have been resolved.
+     */
+    private boolean emitMergeContacts(Account account, ArrayList<RawContactInfo> rawContacts,
+            UnionFind groups, Callback callback) {
+        final HashMap<Integer, ArrayList<RawContactInfo>> components = new HashMap<>();
+        for (int i = 0; i < rawContacts.size(); i++) {
+            int root = groups.find(i);
+            ArrayList<RawContactInfo> component = components.get(root);
+            if (component == null) {
+                component = new ArrayList<>();
+                components.put(root, component);
+            }
+            component.add(rawContacts.get(i));
+        }
+
+        final boolean isSimAccount = SimContactsConstants.ACCOUNT_TYPE_SIM.equals(account.type);
+        int oneSimAnrCount = -1;
+        int oneSimEmailCount = -1;
+        final ArrayList<ArrayList<RawContactInfo>> candidates = new ArrayList<>();
+        final ArrayList<Long> contactIds = new ArrayList<>();
+        for (ArrayList<RawContactInfo> component : components.values()) {
+            if (component.size() < 2) {
+                continue;
+            }
+            // for sim contacts, analyse if it can be merged.
+            if (isSimAccount) {
+                if (oneSimAnrCount < 0) {
+                    // all the contacts of the account are stored in the same sim card.
+                    int subscription = new SimContactsOperation(mContext)
+                            .getSimSubscription(component.get(0).contactId);
+                    oneSimAnrCount = MoreContactUtils.getOneSimAnrCount(mContext, subscription);
+                    oneSimEmailCount = MoreContactUtils.getOneSimEmailCount(mContext,
+                            subscription);
+                }
+                if (countDistinctPhones(component) > oneSimAnrCount + 1
+                        || countDistinctEmails(component) > oneSimEmailCount) {
+                    continue;
+                }
+            }
+            // keep the same order as before, the newest rawContact is kept when merging.
+            Collections.sort(component, new Comparator<RawContactInfo>() {
+                @Override
+                public int compare(RawContactInfo lhs, RawContactInfo rhs) {
+                    return Long.compare(rhs.rawContactId, lhs.rawContactId);
+                }
+            });
+            candidates.add(component);
+            for (RawContactInfo info : component) {
+                contactIds.add(info.contactId);
+            }
+            if (contactIds.size() >= QUERY_CHUNK_SIZE) {
+                if (!emitCandidates(account, candidates, contactIds, callback)) {
+                    return false;
+                }
+            }
+        }
+        return emitCandidates(account, candidates, contactIds, callback);
+    }
+
+    /**
+     * Resolves the contacts of the candidates, reports them and clears both lists.
+     */
+    private boolean emitCandidates(Account account,
+            ArrayList<ArrayList<RawContactInfo>> candidates, ArrayList<Long> contactIds,
+            Callback callback) {
+        if (callback.isCancelled()) {
+            return false;
+        }
+        final HashMap<Long, String[]> contacts = queryContacts(contactIds);
+        for (ArrayList<RawContactInfo> component : candidates) {
+            ArrayList<DuplicatesUtils.ContactsInfo> infos = new ArrayList<>();
+            for (RawContactInfo info : component) {
+                String[] contact = contacts.get(info.contactId);
+                if (contact == null) {
+                    // the contact has been deleted in the meantime.
+                    continue;
+                }
+                infos.add(new DuplicatesUtils.ContactsInfo(info.contactId, contact[0],
+                        info.photoId, contact[1], info.phones, info.emails, info.rawContactId));
+            }
+            if (infos.size() >= 2) {
+                callback.onMergeContactsFound(
+                        new DuplicatesUtils.MergeContacts(account.name, account.type, infos));
+            }
+        }
+        candidates.clear();
+        contactIds.clear();
+        return !callback.isCancelled();
+    }
+
+    /**
+     * @return the lookup key and display name of the given contacts, keyed by contact id.
+     */
+    private HashMap<Long, String[]> queryContacts(List<Long> contactIds) {
+        final HashMap<Long, String[]> contacts = new HashMap<>();
+        if (contactIds.isEmpty()) {
+            return contacts;
+        }
+        Cursor cursor = mResolver.query(Contacts.CONTENT_URI, CONTACTS_PROJECTION,
+                Contacts._ID + " IN (" + TextUtils.join(",", contactIds) + ")", null, null);
+        if (cursor == null) {
+            return contacts;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                contacts.put(cursor.getLong(CONTACT_ID), new String[] {
+                        cursor.getString(CONTACT_LOOKUP_KEY),
+                        cursor.getString(CONTACT_DISPLAY_NAME)});
+            }
+        } finally {
+            cursor.close();
+        }
+        return contacts;
+    }
+
+    private static int countDistinctPhones(List<RawContactInfo> component) {
+        final PhoneNumberIndex numbers = new PhoneNumberIndex();
+        for (RawContactInfo info : component) {
+            for (String number : info.phones) {
+                numbers.add(number);
+            }
+        }
+        return numbers.size();
+    }
+
+    private static int countDistinctEmails(List<RawContactInfo> component) {
+        final List<String> emails = new ArrayList<>();
+        for (RawContactInfo info : component) {
+            for (String email : info.emails) {
+                if (!emails.contains(email)) {
+                    emails.add(email);
+                }
+            }
+        }
+        return emails.size();
+    }
+
+    /**
+     * The position is only kept in the block if it could not be joined with any of the
+     * positions already there, so a block holds one position per differently named group.
+     */
+    private static void addToBlock(HashMap<String, List<Integer>> blocks, String key,
+            int position, UnionFind groups, String[] names) {
+        List<Integer> block = blocks.get(key);
+        if (block == null) {
+            block = new ArrayList<>(1);
+            blocks.put(key, block);
+        }
+        boolean joined = false;
+        for (int i = 0; i < block.size(); i++) {
+            joined |= join(groups, names, block.get(i), position);
+        }
+        if (!joined) {
+            block.add(position);
+        }
+    }
+
+    /**
+     * Numbers with the same {@link PhoneNumberIndex#getKey} may still be different numbers, so
+     * they are only joined when {@link PhoneNumberUtils#compare} says they are equal.
+     */
+    private static void addToPhoneBlock(HashMap<String, List<PhoneEntry>> blocks, String key,
+            String number, int position, UnionFind groups, String[] names) {
+        List<PhoneEntry> block = blocks.get(key);
+        if (block == null) {
+            block = new ArrayList<>();
+            blocks.put(key, block);
+        }
+        boolean joined = false;
+        for (int i = 0; i < block.size(); i++) {
+            PhoneEntry entry = block.get(i);
+            if (PhoneNumberUtils.compare(number, entry.number)) {
+                joined |= join(groups, names, entry.position, position);
+            }
+        }
+        if (!joined) {
+            block.add(new PhoneEntry(number, position));
+        }
+    }
+
+    /**
+     * @return the normalized name of the raw contact, or null if it has no name of its own:
+     * the display name of a raw contact without a structured name is one of its numbers or
+     * emails.
+     */
+    private static String getOwnName(RawContactInfo info) {
+        final String name = normalizeName(info.name);
+        if (name == null) {
+            return null;
+        }
+        for (String number : info.phones) {
+            if (number != null && name.equals(normalizeName(number))) {
+                return null;
+            }
+        }
+        for (String email : info.emails) {
+            if (email != null && name.equals(normalizeName(email))) {
+                return null;
+            }
+        }
+        return name;
+    }
+
+    /**
+     * @return the lower case name without redundant spaces, or null if the name is empty.
+     */
+    static String normalizeName(String name) {
+        if (TextUtils.isEmpty(name)) {
+            return null;
+        }
+        String normalized = name.trim().replaceAll("\\s+", " ").toLowerCase();
+        return normalized.isEmpty() ? null : normalized;
+    }
+
+    @VisibleForTesting
+    static class RawContactInfo {
+        final long rawContactId;
+        final long contactId;
+        final String name;
+        final int version;
+        final ArrayList<String> phones = new ArrayList<>();
+        final ArrayList<String> emails = new ArrayList<>();
+        long photoId;
+
+        RawContactInfo(long rawContactId, long contactId, String name, int version) {
+            this.rawContactId = rawContactId;
+            this.contactId = contactId;
+            this.name = name;
+            this.version = version;
+        }
+    }
+
+    private static class PhoneEntry {
+        final String number;
+        final int position;
+
+        PhoneEntry(String number, int position) {
+            this.number = number;
+            this.position = position;
+        }
+    }
+
+    /**
+     * Disjoint sets of raw contact positions, with path compression.
+     */
+    @VisibleForTesting
+    static class UnionFind {
+        private final int[] mParents;
+
+        UnionFind(int size) {
+            mParents = new int[size];
+            for (int i = 0; i < size; i++) {
+                mParents[i] = i;
+            }
+        }
+
+        int find(int position) {
+            int root = position;
+            while (mParents[root] != root) {
+                root = mParents[root];
+            }
+            while (mParents[position] != root) {
+                int next = mParents[position];
+                mParents[position] = root;
+                position = next;
+            }
+            return root;
+        }
+
+        /**
+         * @return the root of the joined set.
+         */
+        int union(int first, int second) {
+            int firstRoot = find(first);
+            int secondRoot = find(second);
+            int root = Math.min(firstRoot, secondRoot);
+            mParents[Math.max(firstRoot, secondRoot)] = root;
+            return root;
+        }
+    }
+}
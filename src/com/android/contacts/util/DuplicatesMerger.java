@@ -0,0 +1,282 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.util;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Entity;
+import android.content.EntityIterator;
+import android.database.Cursor;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.RawContacts;
+import android.provider.ContactsContract.RawContactsEntity;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Merges groups of duplicated raw contacts, each of them into its first raw contact.
+ *
+ * The entities of a chunk of groups are read in one query and diffed on a background thread
+ * while the operations of the previous chunk are written by a {@link BatchOperationExecutor}.
+ * The operations of one group are kept in one transaction unless they do not fit in one
+ * binder transaction or exceed {@link BatchOperationExecutor#MAX_BATCH_SIZE}, and a yield
+ * point is allowed between two groups.
+ */
+public class DuplicatesMerger {
+    private static final String TAG = "DuplicatesMerger";
+
+    /**
+     * Count of groups read and diffed together.
+     */
+    private static final int CHUNK_SIZE = 50;
+
+    /**
+     * Max count of raw contact ids in one "IN (...)" selection.
+     */
+    private static final int QUERY_CHUNK_SIZE = 500;
+
+    public interface Callback {
+        /**
+         * @return true if the merge should stop. The groups already diffed are still written.
+         */
+        boolean isCancelled();
+
+        /**
+         * Called, on the merging thread, each time the operations of a group have been applied.
+         */
+        void onGroupMerged(DuplicatesUtils.MergeContacts mergeContacts);
+    }
+
+    private final ContentResolver mResolver;
+    private final BatchOperationExecutor mExecutor;
+
+    public DuplicatesMerger(ContentResolver resolver) {
+        mResolver = resolver;
+        mExecutor = new BatchOperationExecutor(resolver, ContactsContract.AUTHORITY);
+    }
+
+    /**
+     * Merges groups of local contacts: the data of each raw contact is copied into the first
+     * raw contact of its group, then the raw contact is deleted.
+     *
+     * @return false if the operations could not be applied.
+     */
+    public boolean mergeLocalContacts(final List<DuplicatesUtils.MergeContacts> groups,
+            Callback callback) {
+        if (groups.isEmpty()) {
+            return true;
+        }
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        // the groups whose operations are queued but not applied yet.
+        final ArrayList<DuplicatesUtils.MergeContacts> pendingGroups = new ArrayList<>();
+        try {
+            Future<ArrayList<ArrayList<ContentProviderOperation>>> next =
+                    executor.submit(newDiffTask(groups, 0));
+            for (int start = 0; next != null; start += CHUNK_SIZE) {
+                ArrayList<ArrayList<ContentProviderOperation>> chunk = next.get();
+                // diff the next chunk while this one is being written.
+                next = null;
+                if (start + CHUNK_SIZE < groups.size() && !callback.isCancelled()) {
+                    next = executor.submit(newDiffTask(groups, start + CHUNK_SIZE));
+                }
+                for (int i = 0; i < chunk.size(); i++) {
+                    final int appliedBefore = mExecutor.getAppliedCount();
+                    if (!addGroupOperations(chunk.get(i))) {
+                        return false;
+                    }
+                    // the batch applied, if any, held all the groups pending before this one.
+                    if (mExecutor.getPendingCount() == 0) {
+                        pendingGroups.add(groups.get(start + i));
+                        notifyGroupsMerged(pendingGroups, callback);
+                    } else {
+                        if (mExecutor.getAppliedCount() != appliedBefore) {
+                            notifyGroupsMerged(pendingGroups, callback);
+                        }
+                        pendingGroups.add(groups.get(start + i));
+                    }
+                }
+            }
+            if (!flush()) {
+                return false;
+            }
+            notifyGroupsMerged(pendingGroups, callback);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Failed to diff duplicated contacts", e);
+            return false;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Builds the operations copying the data of a group of sim contacts into its first raw
+     * contact. The other raw contacts are not deleted, as they must only be deleted once they
+     * have been deleted from the sim card.
+     */
+    public ArrayList<ContentProviderOperation> buildSimGroupOperations(
+            DuplicatesUtils.MergeContacts group) {
+        final ArrayList<Long> rawIds = new ArrayList<>();
+        for (DuplicatesUtils.ContactsInfo info : group.getContacts()) {
+            rawIds.add(info.getRawContactId());
+        }
+        return buildGroupOperations(group, true, readEntities(rawIds));
+    }
+
+    /**
+     * Queues the operations of one group, the pending operations are applied first if the
+     * batch would become too large.
+     *
+     * @return false if the pending operations could not be applied.
+     */
+    public boolean addGroupOperations(ArrayList<ContentProviderOperation> operations) {
+        final int failedBefore = mExecutor.getFailedCount();
+        mExecutor.addAll(operations);
+        return mExecutor.getFailedCount() == failedBefore;
+    }
+
+    /**
+     * Applies the pending operations.
+     *
+     * @return false if they could not be applied.
+     */
+    public boolean flush() {
+        final int failedBefore = mExecutor.getFailedCount();
+        mExecutor.flush();
+        return mExecutor.getFailedCount() == failedBefore;
+    }
+
+    private static void notifyGroupsMerged(List<DuplicatesUtils.MergeContacts> groups,
+            Callback callback) {
+        for (DuplicatesUtils.MergeContacts group : groups) {
+            callback.onGroupMerged(group);
+        }
+        groups.clear();
+    }
+
+    private Callable<ArrayList<ArrayList<ContentProviderOperation>>> newDiffTask(
+            final List<DuplicatesUtils.MergeContacts> groups, final int start) {
+        return new Callable<ArrayList<ArrayList<ContentProviderOperation>>>() {
+            @Override
+            public ArrayList<ArrayList<ContentProviderOperation>> call() {
+                final List<DuplicatesUtils.MergeContacts> chunk = groups.subList(start,
+                        Math.min(start + CHUNK_SIZE, groups.size()));
+                final ArrayList<Long> rawIds = new ArrayList<>();
+                for (DuplicatesUtils.MergeContacts group : chunk) {
+                    for (DuplicatesUtils.ContactsInfo info : group.getContacts()) {
+                        rawIds.add(info.getRawContactId());
+                    }
+                }
+                final HashMap<Long, Entity> entities = readEntities(rawIds);
+                final ArrayList<ArrayList<ContentProviderOperation>> operations =
+                        new ArrayList<>(chunk.size());
+                for (DuplicatesUtils.MergeContacts group : chunk) {
+                    operations.add(buildGroupOperations(group, false, entities));
+                }
+                return operations;
+            }
+        };
+    }
+
+    private static ArrayList<ContentProviderOperation> buildGroupOperations(
+            DuplicatesUtils.MergeContacts group, boolean isSimAccount,
+            HashMap<Long, Entity> entities) {
+        final ArrayList<DuplicatesUtils.ContactsInfo> contactsInfos = group.getContacts();
+        // keep the first rawContact as the one which will be updated.
+        final long sourceId = contactsInfos.get(0).getRawContactId();
+        final ArrayList<Entity> others = new ArrayList<>();
+        for (int i = 1; i < contactsInfos.size(); i++) {
+            Entity entity = entities.get(contactsInfos.get(i).getRawContactId());
+            if (entity != null) {
+                others.add(entity);
+            }
+        }
+
+        final ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        // disable aggregation mode, the previous group may be committed before this one.
+        ContentValues values = new ContentValues();
+        values.put(RawContacts.AGGREGATION_MODE, RawContacts.AGGREGATION_MODE_DISABLED);
+        operations.add(ContentProviderOperation.newUpdate(RawContacts.CONTENT_URI)
+                .withValues(values).withSelection(RawContacts._ID.concat(" = ?"),
+                        new String[]{String.valueOf(sourceId)})
+                .withYieldAllowed(true).build());
+        // build the differences among the source rawContact with the remaining ones.
+        operations.addAll(DuplicatesUtils.diffRawEntity(isSimAccount, sourceId,
+                DuplicatesUtils.buildSource(entities.get(sourceId)), others));
+        //for sim card, do delete itself.
+        //it should delete local only when it deletes sim successfully.
+        for (int i = 1; !isSimAccount && i < contactsInfos.size(); i++) {
+            operations.add(ContentProviderOperation.newDelete(ContentUris.withAppendedId(
+                    RawContacts.CONTENT_URI, contactsInfos.get(i).getRawContactId())).build());
+        }
+        return operations;
+    }
+
+    /**
+     * @return the entities of the given raw contacts keyed by raw contact id.
+     */
+    private HashMap<Long, Entity> readEntities(List<Long> rawIds) {
+        final HashMap<Long, Entity> entities = new HashMap<>();
+        for (int start = 0; start < rawIds.size(); start += QUERY_CHUNK_SIZE) {
+            List<Long> chunk = rawIds.subList(start,
+                    Math.min(start + QUERY_CHUNK_SIZE, rawIds.size()));
+            Cursor cursor = mResolver.query(RawContactsEntity.CONTENT_URI, null,
+                    RawContactsEntity._ID + " IN (" + TextUtils.join(",", chunk) + ")", null,
+                    RawContactsEntity._ID + " DESC");
+            if (cursor == null) {
+                continue;
+            }
+            EntityIterator iterator = RawContacts.newEntityIterator(cursor);
+            try {
+                while (iterator.hasNext()) {
+                    Entity entity = iterator.next();
+                    entities.put(entity.getEntityValues().getAsLong(RawContacts._ID), entity);
+                }
+            } finally {
+                iterator.close();
+            }
+        }
+        return entities;
+    }
+}
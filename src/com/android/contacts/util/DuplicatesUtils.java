@@ -38,23 +38,26 @@ import android.content.Context;
 import android.content.Entity;
 import android.content.EntityIterator;
 import android.database.Cursor;
+import android.os.Handler;
+import android.os.Looper;
 import android.provider.ContactsContract.CommonDataKinds;
-import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.RawContacts;
 import android.provider.ContactsContract.Data;
 import android.provider.ContactsContract.RawContactsEntity;
-import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
-
-import com.android.contacts.common.MoreContactUtils;
-import com.android.contacts.common.SimContactsConstants;
-import com.android.contacts.common.SimContactsOperation;
+import android.util.Log;
 
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class DuplicatesUtils {
 
@@ -73,57 +76,46 @@ public class DuplicatesUtils {
         mOtherMimeTypes.add(CommonDataKinds.GroupMembership.CONTENT_ITEM_TYPE);
     }
 
-    private static ArrayList<MergeContacts> mMergeRawContacts;
-
-    private static ProgressDialog mProgressDialog;
-
-    public static boolean mSearchState = false;
+    /**
+     * Listener notified on the main thread while duplicated contacts are being searched.
+     */
+    public interface SearchListener {
+        /**
+         * Called when a group of duplicated contacts has been found, after it has been added
+         * to {@link #getMergeRawContacts()}.
+         */
+        void onMergeContactsFound(MergeContacts mergeContacts);
+
+        /**
+         * Called once all the accounts have been searched, or the search failed, unless the
+         * search was stopped.
+         */
+        void onSearchComplete();
+    }
 
-    public static boolean mMergeState = false;
+    private static final String TAG = "DuplicatesUtils";
 
-    private static final String[] RAWCONTACTS_NAME_ID_PROJECTION = new String[]{
-            RawContacts.DISPLAY_NAME_PRIMARY, RawContacts._ID};
+    /**
+     * Max count of accounts searched at the same time.
+     */
+    private static final int MAX_SEARCH_THREADS = 3;
 
-    private static final String[] CONTACTS_PROJECTION = new String[]{Contacts.LOOKUP_KEY,
-            Contacts.DISPLAY_NAME_PRIMARY};
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
 
     /**
-     * get rawContacts with name and ids.
-     *
-     * @return the HashMap with key contact name and value rawContact ids.
+     * Incremented by every search, so the results of a stopped search can be dropped.
      */
-    public static HashMap<String, List<Long>> getRawNameWithIds(ContentResolver resolver,
-        String[] accountArgs) {
-        HashMap map = new HashMap();
-        String selection = RawContacts.DELETED + "= 0 AND "
-                + SimContactsConstants.ACCOUNT_NAME + "=? " + "AND "
-                + SimContactsConstants.ACCOUNT_TYPE + "=?";
-        Cursor cursor = resolver.query(RawContacts.CONTENT_URI,
-                RAWCONTACTS_NAME_ID_PROJECTION, selection, accountArgs, null);
-        if (cursor == null) {
-            return map;
-        }
-        while (cursor.moveToNext()) {
-            String name = cursor.getString(cursor.getColumnIndex(RawContacts
-                    .DISPLAY_NAME_PRIMARY));
-            long l = cursor.getLong(cursor.getColumnIndex(RawContacts._ID));
-            if (!TextUtils.isEmpty(name)) {
-                name = name.toLowerCase();
-            }
-            List lst = (List) map.get(name);
-            if (lst == null) {
-                lst = new ArrayList();
-                lst.add(Long.valueOf(l));
-                map.put(name, lst);
-            } else {
-                lst.add(Long.valueOf(l));
-            }
-        }
-        if (cursor != null) {
-            cursor.close();
-        }
-        return map;
-    }
+    private static final AtomicInteger sSearchGeneration = new AtomicInteger();
+
+    private static SearchListener sSearchListener;
+
+    private static ArrayList<MergeContacts> mMergeRawContacts;
+
+    private static ProgressDialog mProgressDialog;
+
+    public static volatile boolean mSearchState = false;
+
+    public static boolean mMergeState = false;
 
     public static EntityIterator getEntityByIds(ContentResolver resolver, List<Long> ids) {
         Cursor cursor = resolver.query(RawContactsEntity.CONTENT_URI, null, RawContactsEntity._ID
@@ -149,140 +141,113 @@ public class DuplicatesUtils {
 
     /**
      * calculate duplicate contacts which will be shown in UI.
+     * The accounts are searched in parallel, and each group of duplicated contacts is added to
+     * {@link #getMergeRawContacts()} and reported to the {@link SearchListener} as soon as it
+     * is found.
      * @return true if it calculates completely.
      */
     public static boolean calculateMergeRawContacts(Context context, List<Account> accounts,
         ContentResolver resolver) {
-        SimContactsOperation simContactsOperation = new SimContactsOperation(context);
-        mMergeRawContacts = new ArrayList<>();
-        int count = 0;
-        // contacts in different accounts are separated.
-        for (int i = 0; i < accounts.size() && mSearchState; i++) {
-            Account account = accounts.get(i);
-            HashMap<String, List<Long>> map = DuplicatesUtils.getRawNameWithIds(resolver,
-                    new String[]{account.name, account.type});
-            if (map != null && map.size() > 0) {
-                ArrayList<ContactsInfo> lst1;
-                Iterator<String> iterator = map.keySet().iterator();
-                while (mSearchState && iterator.hasNext()) {
-                    List<String> mergePhoneList = new ArrayList();
-                    List<String> mergeEmailList = new ArrayList();
-                    long contactId = -1;
-                    lst1 = new ArrayList<>();
-                    String keyName = iterator.next();
-                    List<Long> lst = map.get(keyName);
-                    if (lst.size() >= 2) {
-                        EntityIterator entityIterator = DuplicatesUtils.getEntityByIds(resolver,
-                                lst);
-                        if (entityIterator == null) {
-                            continue;
-                        }
-                        try {
-                            while (entityIterator.hasNext()) {
-                                ArrayList<String> phoneList = new ArrayList<>();
-                                ArrayList<String> emailList = new ArrayList<>();
-                                long photoId = 0;
-                                Entity next1 = entityIterator.next();
-                                ContentValues values = next1.getEntityValues();
-                                Long rawId = values.getAsLong(RawContacts._ID);
-                                String id = values.getAsString(RawContacts.CONTACT_ID);
-                                if (!TextUtils.isEmpty(id)) {
-                                    contactId = Long.parseLong(id);
-                                }
-                                Iterator<Entity.NamedContentValues> namedContentValuesIterator =
-                                        next1.getSubValues().iterator();
-                                while (namedContentValuesIterator.hasNext()) {
-                                    ContentValues values1 = namedContentValuesIterator
-                                            .next().values;
-                                    String mimeType = values1.getAsString(Data.MIMETYPE);
-                                    if (CommonDataKinds.StructuredName
-                                            .CONTENT_ITEM_TYPE.equals(mimeType)) {
-                                        continue;
-                                    }
-                                    if (CommonDataKinds.Photo.CONTENT_ITEM_TYPE
-                                            .equals(mimeType)) {
-                                        photoId = values1.getAsLong(CommonDataKinds.Photo._ID)
-                                                .longValue();
-                                        continue;
-                                    }
-                                    if (CommonDataKinds.Phone.CONTENT_ITEM_TYPE.equals(mimeType)) {
-                                        String data1 = values1
-                                                .getAsString(CommonDataKinds.Phone.DATA1);
-                                        phoneList.add(data1);
-                                        if (!TextUtils.isEmpty(data1)
-                                                && !mergePhoneList.contains(data1)) {
-                                            boolean contains = false;
-                                            for (int j = 0; j < mergePhoneList.size(); j++) {
-                                                if (PhoneNumberUtils.compare(data1,
-                                                        mergePhoneList.get(j))) {
-                                                    contains = true;
-                                                    break;
-                                                }
-                                            }
-                                            if (!contains) {
-                                                mergePhoneList.add(data1);
-                                            }
-                                            continue;
-                                        }
-                                    }
-                                    if (CommonDataKinds.Email.CONTENT_ITEM_TYPE.equals(mimeType)) {
-                                        String email = values1
-                                                .getAsString(CommonDataKinds.Email.DATA1);
-                                        emailList.add(email);
-                                        if (!mergeEmailList.contains(email)) {
-                                            mergeEmailList.add(email);
-                                        }
-                                        continue;
-                                    }
-                                }
-                                Cursor cursor = resolver.query(Contacts.CONTENT_URI,
-                                        CONTACTS_PROJECTION, Contacts._ID.concat(" = ?"),
-                                        new String[]{String.valueOf(contactId)}, null);
-
-                                if (cursor != null && cursor.moveToNext()) {
-                                    String lookUp = cursor.getString(cursor
-                                            .getColumnIndex(Contacts.LOOKUP_KEY));
-                                    String displayName = cursor.getString(cursor.getColumnIndex(
-                                            Contacts.DISPLAY_NAME_PRIMARY));
-                                    lst1.add(new ContactsInfo(contactId, lookUp, photoId,
-                                            displayName, phoneList, emailList, rawId));
-                                    cursor.close();
-                                }
-                            }
-                        } finally {
-                            if (entityIterator != null) {
-                                entityIterator.close();
-                            }
-                        }
-                        // for sim contacts, analyse if it can be merged.
-                        if (contactId != -1
-                                && account.type.equals(SimContactsConstants.ACCOUNT_TYPE_SIM)) {
-                            int subscription = simContactsOperation.getSimSubscription(contactId);
-                            int oneSimAnrCount = MoreContactUtils.getOneSimAnrCount(
-                                    context, subscription);
-                            int oneSimEmailCount = MoreContactUtils
-                                    .getOneSimEmailCount(context, subscription);
-                            if (mergePhoneList.size() > oneSimAnrCount + 1
-                                    || mergeEmailList.size() > oneSimEmailCount) {
-                                continue;
-                            }
+        final int generation = sSearchGeneration.incrementAndGet();
+        final DuplicatesFinder finder = new DuplicatesFinder(context, resolver);
+        final AtomicInteger count = new AtomicInteger();
+        final DuplicatesFinder.Callback callback = new DuplicatesFinder.Callback() {
+            @Override
+            public boolean isCancelled() {
+                return !mSearchState || generation != sSearchGeneration.get();
+            }
+
+            @Override
+            public void onRawContactScanned() {
+                ProgressDialog dialog = mProgressDialog;
+                if (dialog != null) {
+                    dialog.setProgress(count.incrementAndGet());
+                }
+            }
+
+            @Override
+            public void onMergeContactsFound(final MergeContacts mergeContacts) {
+                sMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != sSearchGeneration.get() || mMergeRawContacts == null) {
+                            return;
                         }
-                        if (mMergeRawContacts != null) {
-                            mMergeRawContacts.add(
-                                new MergeContacts(account.name, account.type, lst1));
+                        mMergeRawContacts.add(mergeContacts);
+                        if (sSearchListener != null) {
+                            sSearchListener.onMergeContactsFound(mergeContacts);
                         }
                     }
-                    count += lst.size();
-                    mProgressDialog.setProgress(count);
-                }
+                });
             }
+        };
+        mMergeRawContacts = new ArrayList<>();
+
+        // contacts in different accounts are separated, so each account is searched alone.
+        final ExecutorService executor = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(accounts.size(), MAX_SEARCH_THREADS)));
+        final List<Future<Boolean>> futures = new ArrayList<>();
+        for (final Account account : accounts) {
+            futures.add(executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return finder.findDuplicates(account, callback);
+                }
+            }));
         }
-        if (mSearchState) {
-            // search ended, change the flag.
+        executor.shutdown();
+        try {
+            for (Future<Boolean> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            mSearchState = false;
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Failed to search duplicated contacts", e);
             mSearchState = false;
-            return true;
         }
-        return false;
+
+        if (generation != sSearchGeneration.get()) {
+            // the search was stopped.
+            return false;
+        }
+        // search ended, change the flag.
+        final boolean completed = mSearchState;
+        mSearchState = false;
+        sMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (generation == sSearchGeneration.get() && sSearchListener != null) {
+                    sSearchListener.onSearchComplete();
+                }
+            }
+        });
+        return completed;
+    }
+
+    /**
+     * Stops the running search. The groups it has not reported yet are dropped.
+     */
+    public static void stopSearch() {
+        mSearchState = false;
+        sSearchGeneration.incrementAndGet();
+    }
+
+    /**
+     * Must be called on the main thread.
+     */
+    public static void setSearchListener(SearchListener listener) {
+        sSearchListener = listener;
+    }
+
+    /**
+     * Removes the listener, if it has not been replaced by another one yet.
+     */
+    public static void removeSearchListener(SearchListener listener) {
+        if (sSearchListener == listener) {
+            sSearchListener = null;
+        }
     }
 
     private static void addData(HashMap<String, List<String>> map, String key, String value) {
@@ -308,14 +273,7 @@ public class DuplicatesUtils {
                 return map;
             }
             while (entityIterator.hasNext()) {
-                Entity next1 = entityIterator.next();
-                Iterator<Entity.NamedContentValues> namedContentValuesIterator = next1
-                        .getSubValues().iterator();
-                while (namedContentValuesIterator.hasNext()) {
-                    ContentValues values1 = namedContentValuesIterator.next().values;
-                    String mimeType = values1.getAsString(Data.MIMETYPE);
-                    addData(map, mimeType, values1.getAsString(Data.DATA1));
-                }
+                addSourceData(map, entityIterator.next());
             }
         } finally {
             if (entityIterator != null) {
@@ -325,87 +283,114 @@ public class DuplicatesUtils {
         return map;
     }
 
+    /**
+     * build the source contact from its already loaded entity.
+     */
+    public static HashMap<String, List<String>> buildSource(Entity source) {
+        HashMap<String, List<String>> map = new HashMap<>();
+        if (source != null) {
+            addSourceData(map, source);
+        }
+        return map;
+    }
+
+    private static void addSourceData(HashMap<String, List<String>> map, Entity entity) {
+        Iterator<Entity.NamedContentValues> namedContentValuesIterator = entity
+                .getSubValues().iterator();
+        while (namedContentValuesIterator.hasNext()) {
+            ContentValues values1 = namedContentValuesIterator.next().values;
+            String mimeType = values1.getAsString(Data.MIMETYPE);
+            addData(map, mimeType, values1.getAsString(Data.DATA1));
+        }
+    }
+
     /**
      * compare the differences among rawContacts with rawContact ids.
      */
     public static ArrayList<ContentProviderOperation> diffRawEntity(boolean isSimAccount,
         ContentResolver resolver, long sourceId, HashMap<String, List<String>> hashMap,
         ArrayList<Long> rawIds) {
-        ArrayList<ContentProviderOperation> dataInsertOps = new ArrayList<>();
+        ArrayList<Entity> entities = new ArrayList<>();
         EntityIterator entityIterator = null;
         try {
             entityIterator = getEntityByIds(resolver, rawIds);
             if (entityIterator == null) {
-                return dataInsertOps;
+                return new ArrayList<>();
             }
             while (entityIterator.hasNext()) {
-                Iterator<Entity.NamedContentValues> iterator = entityIterator.next().getSubValues()
-                        .iterator();
-                while (iterator.hasNext()) {
-                    ContentValues values = iterator.next().values;
-                    String mimeType = values.getAsString(Data.MIMETYPE);
-                    boolean isNumber = false;
-                    boolean isFirst = false;
-                    if (CommonDataKinds.StructuredName.CONTENT_ITEM_TYPE.equals(mimeType)) {
-                        continue;
-                    }
-                    // for Photos, we just need to chose one for storing, except sim contacts.
-                    else if (!isSimAccount && CommonDataKinds.Photo
-                            .CONTENT_ITEM_TYPE.equals(mimeType) && !hashMap.containsKey(mimeType)) {
-                        dataInsertOps.add(buildDataInsertOperation(sourceId,
-                                getInsertContentValves(values), isSimAccount, isNumber, isFirst));
-                        addData(hashMap, mimeType,
-                                values.getAsString(Data._ID));
-                    } else if (CommonDataKinds.Phone.CONTENT_ITEM_TYPE
-                            .equals(mimeType)) {
-                        isNumber = true;
-                        List<String> numberList = hashMap.get(mimeType);
-                        // if the mimeType has not been saved in the hashMap, init the list.
-                        if (numberList == null) {
-                            numberList = new ArrayList<>();
-                        }
-                        String data1 = values.getAsString(Data.DATA1);
-                        // for numbers, it may have some different formats.
-                        // compare the numbers if it has already been added in the list.
-                        boolean containsNumber = false;
-                        for (int i = 0; i < numberList.size(); i++) {
-                            if (PhoneNumberUtils.compare(data1, numberList.get(i))) {
-                                containsNumber = true;
-                                break;
-                            }
-                        }
-                        if (!containsNumber) {
-                            addData(hashMap, mimeType, data1);
-                            List<String> list = hashMap.get(mimeType);
-                            if (isSimAccount && list == null) {
-                                isFirst = true;
-                            }
-                            dataInsertOps.add(buildDataInsertOperation(sourceId,
-                                    getInsertContentValves(values), isSimAccount,
-                                    isNumber, isFirst));
-                        }
-                    } else if (mOtherMimeTypes.contains(mimeType)) {
-                        List<String> list = hashMap.get(mimeType);
-                        // if the mimeType has not been saved in the hashMap, init the list.
-                        if (list == null) {
-                            list = new ArrayList<>();
-                        }
-                        String data1 = values.getAsString(Data.DATA1);
-                        if (!list.contains(data1)) {
-                            addData(hashMap, mimeType, data1);
-                            dataInsertOps.add(buildDataInsertOperation(sourceId,
-                                    getInsertContentValves(values), isSimAccount,
-                                    isNumber, isFirst));
-                        }
-                    }
-                }
+                entities.add(entityIterator.next());
             }
-            return dataInsertOps;
         } finally {
             if (entityIterator != null) {
                 entityIterator.close();
             }
         }
+        return diffRawEntity(isSimAccount, sourceId, hashMap, entities);
+    }
+
+    /**
+     * compare the differences among the already loaded rawContact entities.
+     */
+    public static ArrayList<ContentProviderOperation> diffRawEntity(boolean isSimAccount,
+        long sourceId, HashMap<String, List<String>> hashMap, List<Entity> entities) {
+        ArrayList<ContentProviderOperation> dataInsertOps = new ArrayList<>();
+        // for numbers, it may have some different formats.
+        // the index finds the numbers which have already been added in the list.
+        List<String> sourceNumbers = hashMap.get(CommonDataKinds.Phone.CONTENT_ITEM_TYPE);
+        PhoneNumberIndex numberIndex = new PhoneNumberIndex(sourceNumbers);
+        // the index ignores empty numbers, keep at most one of them as before.
+        boolean hasEmptyNumber = false;
+        for (int i = 0; sourceNumbers != null && i < sourceNumbers.size(); i++) {
+            hasEmptyNumber |= TextUtils.isEmpty(sourceNumbers.get(i));
+        }
+        for (Entity entity : entities) {
+            Iterator<Entity.NamedContentValues> iterator = entity.getSubValues().iterator();
+            while (iterator.hasNext()) {
+                ContentValues values = iterator.next().values;
+                String mimeType = values.getAsString(Data.MIMETYPE);
+                boolean isNumber = false;
+                boolean isFirst = false;
+                if (CommonDataKinds.StructuredName.CONTENT_ITEM_TYPE.equals(mimeType)) {
+                    continue;
+                }
+                // for Photos, we just need to chose one for storing, except sim contacts.
+                else if (!isSimAccount && CommonDataKinds.Photo
+                        .CONTENT_ITEM_TYPE.equals(mimeType) && !hashMap.containsKey(mimeType)) {
+                    dataInsertOps.add(buildDataInsertOperation(sourceId,
+                            getInsertContentValves(values), isSimAccount, isNumber, isFirst));
+                    addData(hashMap, mimeType,
+                            values.getAsString(Data._ID));
+                } else if (CommonDataKinds.Phone.CONTENT_ITEM_TYPE
+                        .equals(mimeType)) {
+                    isNumber = true;
+                    String data1 = values.getAsString(Data.DATA1);
+                    boolean isEmpty = TextUtils.isEmpty(data1);
+                    if (isEmpty ? !hasEmptyNumber : !numberIndex.contains(data1)) {
+                        isFirst = isSimAccount && numberIndex.isEmpty() && !hasEmptyNumber;
+                        numberIndex.add(data1);
+                        hasEmptyNumber |= isEmpty;
+                        addData(hashMap, mimeType, data1);
+                        dataInsertOps.add(buildDataInsertOperation(sourceId,
+                                getInsertContentValves(values), isSimAccount,
+                                isNumber, isFirst));
+                    }
+                } else if (mOtherMimeTypes.contains(mimeType)) {
+                    List<String> list = hashMap.get(mimeType);
+                    // if the mimeType has not been saved in the hashMap, init the list.
+                    if (list == null) {
+                        list = new ArrayList<>();
+                    }
+                    String data1 = values.getAsString(Data.DATA1);
+                    if (!list.contains(data1)) {
+                        addData(hashMap, mimeType, data1);
+                        dataInsertOps.add(buildDataInsertOperation(sourceId,
+                                getInsertContentValves(values), isSimAccount,
+                                isNumber, isFirst));
+                    }
+                }
+            }
+        }
+        return dataInsertOps;
     }
 
     /**
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.util;
+
+import android.telephony.PhoneNumberUtils;
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A set of phone numbers in which two numbers are the same if
+ * {@link PhoneNumberUtils#compare} says so.
+ *
+ * Numbers are bucketed by their last {@link #MIN_MATCH} digits, so looking up a number only
+ * compares it with the few numbers sharing its bucket instead of with every number of the set.
+ */
+public class PhoneNumberIndex {
+
+    /**
+     * Numbers considered equal by {@link PhoneNumberUtils#compare} always share this many
+     * trailing digits. Same as the caller id min match.
+     */
+    public static final int MIN_MATCH = 7;
+
+    private final HashMap<String, List<String>> mBuckets = new HashMap<>();
+    private int mSize = 0;
+
+    public PhoneNumberIndex() {
+    }
+
+    public PhoneNumberIndex(List<String> numbers) {
+        if (numbers != null) {
+            for (String number : numbers) {
+                add(number);
+            }
+        }
+    }
+
+    /**
+     * @return the bucket key of the number: its last {@link #MIN_MATCH} digits, or the number
+     * itself if it does not contain any digit. Null if the number is empty.
+     */
+    public static String getKey(String number) {
+        if (TextUtils.isEmpty(number)) {
+            return null;
+        }
+        String normalized = PhoneNumberUtils.normalizeNumber(number);
+        if (TextUtils.isEmpty(normalized)) {
+            return number;
+        }
+        return normalized.length() > MIN_MATCH
+                ? normalized.substring(normalized.length() - MIN_MATCH) : normalized;
+    }
+
+    /**
+     * @return the number of the set equal to the given one, or null if there is none.
+     */
+    public String find(String number) {
+        List<String> bucket = mBuckets.get(getKey(number));
+        if (bucket == null) {
+            return null;
+        }
+        for (int i = 0; i < bucket.size(); i++) {
+            String other = bucket.get(i);
+            if (TextUtils.equals(number, other) || PhoneNumberUtils.compare(number, other)) {
+                return other;
+            }
+        }
+        return null;
+    }
+
+    public boolean contains(String number) {
+        return find(number) != null;
+    }
+
+    /**
+     * Adds the number if the set does not contain an equal one yet. Empty numbers are ignored.
+     *
+     * @return true if the number was added.
+     */
+    public boolean add(String number) {
+        String key = getKey(number);
+        if (key == null) {
+            return false;
+        }
+        List<String> bucket = mBuckets.get(key);
+        if (bucket == null) {
+            bucket = new ArrayList<>(1);
+            mBuckets.put(key, bucket);
+        } else if (find(number) != null) {
+            return false;
+        }
+        bucket.add(number);
+        mSize++;
+        return true;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public void clear() {
+        mBuckets.clear();
+        mSize = 0;
+    }
+}
@@ -0,0 +1,509 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.util;
+
+import android.accounts.Account;
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.os.TransactionTooLargeException;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Email;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.CommonDataKinds.StructuredName;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.RawContacts;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.contacts.common.SimContactsConstants;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Imports contacts read from a sim card into an account.
+ *
+ * The operations of a batch of contacts are built on the calling thread while the previous
+ * batch is applied by a dedicated writer thread. A batch only holds whole contacts, whose data
+ * rows reference their raw contact by its position in the batch. Batches are sized, in
+ * contacts, so that applying one takes about {@link #TARGET_BATCH_MILLIS}. A batch too large
+ * for one binder transaction is built again in two halves.
+ *
+ * When merging into existing contacts, the contacts of the account are indexed by name and
+ * phone number before the import. A sim contact with the same name and number as a contact of
+ * the account is not inserted, only its numbers and email addresses missing from that contact
+ * are added to it. Importing the same contacts again is then harmless, which also makes an
+ * interrupted import safe to resume from any earlier position. Sim contacts repeated within the
+ * imported rows are each inserted, as the raw contact of the first one is not known yet when
+ * the next ones are planned.
+ */
+public class SimContactsImporter {
+    private static final String TAG = "SimContactsImporter";
+
+    /**
+     * Columns of the sim contact rows to import.
+     */
+    public static final int COLUMN_DISPLAY_NAME = 0;
+    public static final int COLUMN_NUMBER = 1;
+    public static final int COLUMN_EMAILS = 2;
+    public static final int COLUMN_ANRS = 3;
+
+    private static final int MIN_BATCH_CONTACTS = 5;
+    private static final int INITIAL_BATCH_CONTACTS = 50;
+
+    /**
+     * Max count of operations in one batch, providers refuse more than 500 operations between
+     * two yield points.
+     */
+    private static final int MAX_BATCH_OPERATIONS = 499;
+
+    /**
+     * A yield point is allowed before the first contact following this many operations.
+     */
+    private static final int YIELD_INTERVAL = 100;
+
+    private static final long TARGET_BATCH_MILLIS = 300;
+
+    public interface Callback {
+        /**
+         * @return true if the import should stop. The batches already built are still applied.
+         */
+        boolean isCancelled();
+
+        /**
+         * Called, on the writer thread, each time a batch of contacts has been applied.
+         * Batches are processed in order.
+         */
+        void onProgress(int count);
+
+        /**
+         * Called, on the writer thread, instead of {@link #onProgress} when a batch of
+         * contacts could not be applied.
+         */
+        void onFailure(int count);
+    }
+
+    private static final String[] EXISTING_PROJECTION = new String[] {
+            Data.RAW_CONTACT_ID, Data.MIMETYPE, Data.DATA1};
+
+    /**
+     * What to do with a row, decided once when its batch is first built.
+     */
+    private static class RowPlan {
+        /**
+         * The raw contact the row is merged into, or 0 if the row is inserted.
+         */
+        final long rawContactId;
+        /**
+         * The operations adding the data missing from that raw contact.
+         */
+        final ArrayList<ContentProviderOperation> mergeOperations;
+
+        RowPlan(long rawContactId, ArrayList<ContentProviderOperation> mergeOperations) {
+            this.rawContactId = rawContactId;
+            this.mergeOperations = mergeOperations;
+        }
+    }
+
+    private static final RowPlan INSERT = new RowPlan(0, null);
+
+    /**
+     * A contact of the account.
+     */
+    private static class ExistingContact {
+        final long rawContactId;
+        final PhoneNumberIndex numbers = new PhoneNumberIndex();
+        final HashSet<String> emails = new HashSet<>();
+
+        ExistingContact(long rawContactId) {
+            this.rawContactId = rawContactId;
+        }
+    }
+
+    private final ContentResolver mResolver;
+    private final Account mAccount;
+
+    /**
+     * Count of contacts in the next batch, updated by the writer thread.
+     */
+    private volatile int mBatchContacts = INITIAL_BATCH_CONTACTS;
+    private int mImportedCount = 0;
+
+    private boolean mMergeExisting = false;
+    /**
+     * The contacts of the account, keyed by lower case display name. Only used by the thread
+     * building the batches.
+     */
+    private HashMap<String, ArrayList<ExistingContact>> mExistingContacts;
+
+    public SimContactsImporter(ContentResolver resolver, Account account) {
+        mResolver = resolver;
+        mAccount = account;
+    }
+
+    /**
+     * Merges the sim contacts into the contacts of the account with the same name and number,
+     * instead of inserting them again. Only applies to imports into an account.
+     */
+    public void setMergeExisting(boolean mergeExisting) {
+        mMergeExisting = mergeExisting;
+    }
+
+    /**
+     * Imports the given rows, whose values are ordered as the COLUMN_ constants.
+     *
+     * @return the count of contacts imported, whether inserted or merged.
+     */
+    public int importContacts(List<String[]> rows, Callback callback) {
+        return importContacts(rows, 0, callback);
+    }
+
+    /**
+     * Imports the given rows from the given position, the previous rows are skipped.
+     *
+     * @return the count of contacts imported, whether inserted or merged.
+     */
+    public int importContacts(List<String[]> rows, int position, final Callback callback) {
+        final long startTime = SystemClock.elapsedRealtime();
+        if (mMergeExisting && mAccount != null) {
+            mExistingContacts = queryExistingContacts();
+        }
+        final RowPlan[] plans = new RowPlan[rows.size()];
+        final ExecutorService writer = Executors.newSingleThreadExecutor();
+        Future<?> pending = null;
+        int start = position;
+        try {
+            while (start < rows.size() && !callback.isCancelled()) {
+                final Batch batch = new Batch(rows, plans, start, mBatchContacts);
+                start = batch.end;
+                // wait for the previous batch, so at most one batch waits to be written.
+                if (pending != null) {
+                    pending.get();
+                }
+                pending = writer.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        apply(batch, callback);
+                        return null;
+                    }
+                });
+            }
+            if (pending != null) {
+                pending.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Failed to import sim contacts", e);
+        } finally {
+            writer.shutdown();
+        }
+
+        final long elapsed = Math.max(SystemClock.elapsedRealtime() - startTime, 1);
+        Log.d(TAG, "Imported " + mImportedCount + " of " + (start - position) + " contacts in "
+                + elapsed
+                + " ms, " + (mImportedCount * 1000L / elapsed) + " contacts/s");
+        return mImportedCount;
+    }
+
+    /**
+     * The operations inserting a range of rows.
+     */
+    private class Batch {
+        final List<String[]> rows;
+        final RowPlan[] plans;
+        final int start;
+        final int end;
+        final ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+
+        /**
+         * Builds the operations of at most maxContacts rows from start, fewer if they would
+         * exceed {@link #MAX_BATCH_OPERATIONS}. At least one row is always taken.
+         */
+        Batch(List<String[]> rows, RowPlan[] plans, int start, int maxContacts) {
+            this.rows = rows;
+            this.plans = plans;
+            this.start = start;
+            int end = start;
+            int lastYield = 0;
+            final ArrayList<ContentProviderOperation> contact = new ArrayList<>();
+            while (end < rows.size() && end - start < maxContacts) {
+                contact.clear();
+                boolean yield = operations.size() - lastYield >= YIELD_INTERVAL;
+                if (plans[end] == null) {
+                    plans[end] = planRow(rows.get(end));
+                }
+                if (plans[end] == INSERT) {
+                    buildContactOperations(rows.get(end), mAccount, operations.size(), yield,
+                            contact);
+                } else {
+                    contact.addAll(plans[end].mergeOperations);
+                }
+                if (end > start && operations.size() + contact.size() > MAX_BATCH_OPERATIONS) {
+                    break;
+                }
+                if (yield && plans[end] == INSERT) {
+                    lastYield = operations.size();
+                }
+                operations.addAll(contact);
+                end++;
+            }
+            this.end = end;
+        }
+    }
+
+    /**
+     * Applies a batch on the writer thread, and resizes the next batches from the time it took.
+     */
+    private void apply(Batch batch, Callback callback) {
+        if (batch.operations.isEmpty()) {
+            // every contact of the batch is already in the account.
+            mImportedCount += batch.end - batch.start;
+            callback.onProgress(batch.end - batch.start);
+            return;
+        }
+        final long startTime = SystemClock.elapsedRealtime();
+        try {
+            mResolver.applyBatch(ContactsContract.AUTHORITY, batch.operations);
+        } catch (TransactionTooLargeException e) {
+            // nothing has been applied yet, retry in two smaller batches.
+            final int count = batch.end - batch.start;
+            if (count == 1) {
+                Log.e(TAG, "Failed to import a sim contact", e);
+                callback.onFailure(1);
+                return;
+            }
+            mBatchContacts = Math.max(count / 2, MIN_BATCH_CONTACTS);
+            apply(new Batch(batch.rows, batch.plans, batch.start, count / 2), callback);
+            apply(new Batch(batch.rows, batch.plans, batch.start + count / 2,
+                    count - count / 2), callback);
+            return;
+        } catch (RemoteException | OperationApplicationException e) {
+            Log.e(TAG, "Failed to import " + (batch.end - batch.start) + " sim contacts", e);
+            callback.onFailure(batch.end - batch.start);
+            return;
+        }
+        mImportedCount += batch.end - batch.start;
+        callback.onProgress(batch.end - batch.start);
+
+        final long elapsed = SystemClock.elapsedRealtime() - startTime;
+        final int count = batch.end - batch.start;
+        if (elapsed < TARGET_BATCH_MILLIS / 2 && count >= mBatchContacts) {
+            mBatchContacts = count * 2;
+        } else if (elapsed > TARGET_BATCH_MILLIS) {
+            mBatchContacts = Math.max(count / 2, MIN_BATCH_CONTACTS);
+        }
+    }
+
+    /**
+     * Decides, on the thread building the batches, whether the row is inserted or merged into
+     * an existing contact.
+     */
+    private RowPlan planRow(String[] values) {
+        if (mExistingContacts == null) {
+            return INSERT;
+        }
+        final String name = values[COLUMN_DISPLAY_NAME];
+        final String phoneNumber = values[COLUMN_NUMBER];
+        final ArrayList<ExistingContact> sameName = mExistingContacts.get(getNameKey(name));
+        if (sameName == null) {
+            return INSERT;
+        }
+        ExistingContact match = null;
+        for (ExistingContact contact : sameName) {
+            if (TextUtils.isEmpty(phoneNumber) ? contact.numbers.isEmpty()
+                    : contact.numbers.contains(phoneNumber)) {
+                match = contact;
+                break;
+            }
+        }
+
+        if (match == null) {
+            return INSERT;
+        }
+
+        final ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        for (String anr : split(values[COLUMN_ANRS], SimContactsConstants.ANR_SEP)) {
+            if (match.numbers.add(anr)) {
+                operations.add(ContentProviderOperation.newInsert(Data.CONTENT_URI)
+                        .withValue(Phone.RAW_CONTACT_ID, match.rawContactId)
+                        .withValue(Data.MIMETYPE, Phone.CONTENT_ITEM_TYPE)
+                        .withValue(Phone.TYPE, Phone.TYPE_HOME)
+                        .withValue(Phone.NUMBER, anr)
+                        .build());
+            }
+        }
+        for (String email : split(values[COLUMN_EMAILS], ",")) {
+            if (match.emails.add(email.toLowerCase(Locale.ROOT))) {
+                operations.add(ContentProviderOperation.newInsert(Data.CONTENT_URI)
+                        .withValue(Email.RAW_CONTACT_ID, match.rawContactId)
+                        .withValue(Data.MIMETYPE, Email.CONTENT_ITEM_TYPE)
+                        .withValue(Email.TYPE, Email.TYPE_MOBILE)
+                        .withValue(Email.ADDRESS, email)
+                        .build());
+            }
+        }
+        return new RowPlan(match.rawContactId, operations);
+    }
+
+    /**
+     * Reads the name, numbers and email addresses of the contacts of the account.
+     */
+    private HashMap<String, ArrayList<ExistingContact>> queryExistingContacts() {
+        final HashMap<String, ArrayList<ExistingContact>> contacts = new HashMap<>();
+        final Cursor cursor = mResolver.query(Data.CONTENT_URI, EXISTING_PROJECTION,
+                RawContacts.ACCOUNT_NAME + "=? AND " + RawContacts.ACCOUNT_TYPE + "=? AND "
+                + RawContacts.DELETED + "=0 AND " + Data.MIMETYPE + " IN (?,?,?)",
+                new String[] {mAccount.name, mAccount.type, StructuredName.CONTENT_ITEM_TYPE,
+                        Phone.CONTENT_ITEM_TYPE, Email.CONTENT_ITEM_TYPE},
+                Data.RAW_CONTACT_ID);
+        if (cursor == null) {
+            return contacts;
+        }
+        try {
+            final HashMap<Long, ExistingContact> byId = new HashMap<>();
+            final HashMap<Long, String> names = new HashMap<>();
+            while (cursor.moveToNext()) {
+                long rawContactId = cursor.getLong(0);
+                String mimetype = cursor.getString(1);
+                String data = cursor.getString(2);
+                ExistingContact contact = byId.get(rawContactId);
+                if (contact == null) {
+                    contact = new ExistingContact(rawContactId);
+                    byId.put(rawContactId, contact);
+                }
+                if (StructuredName.CONTENT_ITEM_TYPE.equals(mimetype)) {
+                    names.put(rawContactId, data);
+                } else if (Phone.CONTENT_ITEM_TYPE.equals(mimetype)) {
+                    contact.numbers.add(data);
+                } else if (!TextUtils.isEmpty(data)) {
+                    contact.emails.add(data.toLowerCase(Locale.ROOT));
+                }
+            }
+            for (ExistingContact contact : byId.values()) {
+                String key = getNameKey(names.get(contact.rawContactId));
+                ArrayList<ExistingContact> sameName = contacts.get(key);
+                if (sameName == null) {
+                    sameName = new ArrayList<>(1);
+                    contacts.put(key, sameName);
+                }
+                sameName.add(contact);
+            }
+        } finally {
+            cursor.close();
+        }
+        return contacts;
+    }
+
+    private static String getNameKey(String name) {
+        return name == null ? "" : name.trim().toLowerCase(Locale.ROOT);
+    }
+
+    private static String[] split(String values, String separator) {
+        return TextUtils.isEmpty(values) ? new String[0] : values.split(separator);
+    }
+
+    /**
+     * Builds the operations inserting one sim contact into the account.
+     *
+     * @param backReference the position of the first operation in its batch.
+     * @param yieldAllowed whether a yield point is allowed before the first operation.
+     */
+    public static void buildContactOperations(String[] values, Account account,
+            int backReference, boolean yieldAllowed,
+            ArrayList<ContentProviderOperation> operationList) {
+        final String name = values[COLUMN_DISPLAY_NAME];
+        final String phoneNumber = values[COLUMN_NUMBER];
+        final String emailAddresses = values[COLUMN_EMAILS];
+        final String anrs = values[COLUMN_ANRS];
+
+        ContentProviderOperation.Builder builder = ContentProviderOperation
+                .newInsert(RawContacts.CONTENT_URI);
+        builder.withValue(RawContacts.AGGREGATION_MODE, RawContacts.AGGREGATION_MODE_SUSPENDED);
+        if (account != null) {
+            builder.withValue(RawContacts.ACCOUNT_NAME, account.name);
+            builder.withValue(RawContacts.ACCOUNT_TYPE, account.type);
+        }
+        builder.withYieldAllowed(yieldAllowed);
+        operationList.add(builder.build());
+
+        if (!TextUtils.isEmpty(name)) {
+            builder = ContentProviderOperation.newInsert(Data.CONTENT_URI);
+            builder.withValueBackReference(StructuredName.RAW_CONTACT_ID, backReference);
+            builder.withValue(Data.MIMETYPE, StructuredName.CONTENT_ITEM_TYPE);
+            builder.withValue(StructuredName.DISPLAY_NAME, name);
+            operationList.add(builder.build());
+        }
+
+        if (!TextUtils.isEmpty(phoneNumber)) {
+            builder = ContentProviderOperation.newInsert(Data.CONTENT_URI);
+            builder.withValueBackReference(Phone.RAW_CONTACT_ID, backReference);
+            builder.withValue(Data.MIMETYPE, Phone.CONTENT_ITEM_TYPE);
+            builder.withValue(Phone.TYPE, Phone.TYPE_MOBILE);
+            builder.withValue(Phone.NUMBER, phoneNumber);
+            builder.withValue(Data.IS_PRIMARY, 1);
+            operationList.add(builder.build());
+        }
+
+        if (!TextUtils.isEmpty(anrs)) {
+            for (String anr : anrs.split(SimContactsConstants.ANR_SEP)) {
+                builder = ContentProviderOperation.newInsert(Data.CONTENT_URI);
+                builder.withValueBackReference(Phone.RAW_CONTACT_ID, backReference);
+                builder.withValue(Data.MIMETYPE, Phone.CONTENT_ITEM_TYPE);
+                builder.withValue(Phone.TYPE, Phone.TYPE_HOME);
+                builder.withValue(Phone.NUMBER, anr);
+                operationList.add(builder.build());
+            }
+        }
+
+        if (!TextUtils.isEmpty(emailAddresses)) {
+            for (String emailAddress : emailAddresses.split(",")) {
+                builder = ContentProviderOperation.newInsert(Data.CONTENT_URI);
+                builder.withValueBackReference(Email.RAW_CONTACT_ID, backReference);
+                builder.withValue(Data.MIMETYPE, Email.CONTENT_ITEM_TYPE);
+                builder.withValue(Email.TYPE, Email.TYPE_MOBILE);
+                builder.withValue(Email.ADDRESS, emailAddress);
+                operationList.add(builder.build());
+            }
+        }
+    }
+}
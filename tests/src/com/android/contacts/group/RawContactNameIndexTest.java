@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.group;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Test cases for {@link RawContactNameIndex}.
+ *
+ * adb shell am instrument -w -e class com.android.contacts.group.RawContactNameIndexTest \
+ *   com.android.contacts.tests/android.test.InstrumentationTestRunner
+ */
+@SmallTest
+public class RawContactNameIndexTest extends AndroidTestCase {
+
+    private static RawContactNameIndex createIndex() {
+        return new RawContactNameIndex(Arrays.asList(
+                new RawContactNameIndex.Entry(1, 10, "Alice Smith", "Smith, Alice"),
+                new RawContactNameIndex.Entry(2, 20, "Bob Smith", "Smith, Bob"),
+                new RawContactNameIndex.Entry(3, 30, "Carol Jones", "Jones, Carol"),
+                new RawContactNameIndex.Entry(4, 30, "Caroline", null),
+                new RawContactNameIndex.Entry(5, 50, null, null)));
+    }
+
+    private static long[] rawContactIds(List<RawContactNameIndex.Entry> entries) {
+        long[] ids = new long[entries.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = entries.get(i).rawContactId;
+        }
+        return ids;
+    }
+
+    public void testFindMatchesBothNamesIgnoringCase() {
+        RawContactNameIndex index = createIndex();
+        assertEquals(5, index.size());
+        assertTrue(Arrays.equals(new long[] {1, 2},
+                rawContactIds(index.find("SMI", 5, Collections.<Long>emptySet()))));
+        assertTrue(Arrays.equals(new long[] {3, 4},
+                rawContactIds(index.find("car", 5, Collections.<Long>emptySet()))));
+        assertTrue(index.find("x", 5, Collections.<Long>emptySet()).isEmpty());
+        assertTrue(index.find("", 5, Collections.<Long>emptySet()).isEmpty());
+    }
+
+    public void testFindKeepsDisplayOrderAndLimit() {
+        RawContactNameIndex index = createIndex();
+        // only the alternative names start with "s".
+        assertTrue(Arrays.equals(new long[] {1},
+                rawContactIds(index.find("s", 1, Collections.<Long>emptySet()))));
+        assertTrue(Arrays.equals(new long[] {1, 2},
+                rawContactIds(index.find("s", 5, Collections.<Long>emptySet()))));
+    }
+
+    public void testFindSkipsExcludedContacts() {
+        RawContactNameIndex index = createIndex();
+        assertTrue(Arrays.equals(new long[] {2},
+                rawContactIds(index.find("smith", 5, new HashSet<Long>(Arrays.asList(10L))))));
+        assertTrue(index.find("car", 5, new HashSet<Long>(Arrays.asList(30L))).isEmpty());
+    }
+}
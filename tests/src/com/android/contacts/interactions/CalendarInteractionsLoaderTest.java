@@ -0,0 +1,30 @@
+package com.android.contacts.interactions;
+
+import android.test.AndroidTestCase;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests {@link CalendarInteractionsLoader}
+ */
+public class CalendarInteractionsLoaderTest extends AndroidTestCase {
+
+    public void testNormalizeEmails_removesDots() {
+        List<String> emails = CalendarInteractionsLoader.normalizeEmails(
+                Arrays.asList("first.last@example.com"));
+        assertEquals(Arrays.asList("firstlast@examplecom"), emails);
+    }
+
+    public void testNormalizeEmails_removesDuplicates() {
+        List<String> emails = CalendarInteractionsLoader.normalizeEmails(
+                Arrays.asList("a.b@example.com", "ab@example.com", "AB@Example.com"));
+        assertEquals(1, emails.size());
+    }
+
+    public void testNormalizeEmails_skipsNull() {
+        List<String> emails = CalendarInteractionsLoader.normalizeEmails(
+                Arrays.asList(null, "ab@example.com"));
+        assertEquals(Arrays.asList("ab@examplecom"), emails);
+    }
+}
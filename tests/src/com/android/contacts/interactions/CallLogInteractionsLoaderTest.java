@@ -17,10 +17,12 @@ public class CallLogInteractionsLoaderTest extends AndroidTestCase {
         int maxToRetrieve = 5;
 
         ContentValues interactionOneValues = new ContentValues();
+        interactionOneValues.put(Calls._ID, 1L);
         interactionOneValues.put(Calls.DATE, 1L);
         interactions.add(new CallLogInteraction(interactionOneValues));
 
         ContentValues interactionTwoValues = new ContentValues();
+        interactionTwoValues.put(Calls._ID, 1L);
         interactionTwoValues.put(Calls.DATE, 1L);
         interactions.add(new CallLogInteraction(interactionTwoValues));
 
@@ -34,10 +36,12 @@ public class CallLogInteractionsLoaderTest extends AndroidTestCase {
         int maxToRetrieve = 5;
 
         ContentValues interactionOneValues = new ContentValues();
+        interactionOneValues.put(Calls._ID, 1L);
         interactionOneValues.put(Calls.DATE, 1L);
         interactions.add(new CallLogInteraction(interactionOneValues));
 
         ContentValues interactionTwoValues = new ContentValues();
+        interactionTwoValues.put(Calls._ID, 2L);
         interactionTwoValues.put(Calls.DATE, 5L);
         interactions.add(new CallLogInteraction(interactionTwoValues));
 
@@ -46,15 +50,36 @@ public class CallLogInteractionsLoaderTest extends AndroidTestCase {
         assertEquals(2, interactions.size());
     }
 
+    public void testCallLogInteractions_pruneDuplicates_sameDateDifferentCalls() {
+        List<ContactInteraction> interactions = new ArrayList<>();
+        int maxToRetrieve = 5;
+
+        ContentValues interactionOneValues = new ContentValues();
+        interactionOneValues.put(Calls._ID, 1L);
+        interactionOneValues.put(Calls.DATE, 1L);
+        interactions.add(new CallLogInteraction(interactionOneValues));
+
+        ContentValues interactionTwoValues = new ContentValues();
+        interactionTwoValues.put(Calls._ID, 2L);
+        interactionTwoValues.put(Calls.DATE, 1L);
+        interactions.add(new CallLogInteraction(interactionTwoValues));
+
+        interactions = CallLogInteractionsLoader.pruneDuplicateCallLogInteractions(interactions,
+                maxToRetrieve);
+        assertEquals(2, interactions.size());
+    }
+
     public void testCallLogInteractions_maxToRetrieve() {
         List<ContactInteraction> interactions = new ArrayList<>();
         int maxToRetrieve = 1;
 
         ContentValues interactionOneValues = new ContentValues();
+        interactionOneValues.put(Calls._ID, 1L);
         interactionOneValues.put(Calls.DATE, 1L);
         interactions.add(new CallLogInteraction(interactionOneValues));
 
         ContentValues interactionTwoValues = new ContentValues();
+        interactionTwoValues.put(Calls._ID, 2L);
         interactionTwoValues.put(Calls.DATE, 5L);
         interactions.add(new CallLogInteraction(interactionTwoValues));
 
@@ -0,0 +1,34 @@
+package com.android.contacts.quickcontact;
+
+import android.test.AndroidTestCase;
+
+import com.android.contacts.common.util.MaterialColorMapUtils.MaterialPalette;
+
+/**
+ * Tests {@link PhotoPaletteCache}
+ */
+public class PhotoPaletteCacheTest extends AndroidTestCase {
+
+    public void testGetKey_emptyThumbnail() {
+        assertNull(PhotoPaletteCache.getKey(null));
+        assertNull(PhotoPaletteCache.getKey(new byte[0]));
+    }
+
+    public void testGetKey_dependsOnContent() {
+        assertEquals(PhotoPaletteCache.getKey(new byte[] {1, 2, 3}),
+                PhotoPaletteCache.getKey(new byte[] {1, 2, 3}));
+        assertFalse(PhotoPaletteCache.getKey(new byte[] {1, 2, 3}).equals(
+                PhotoPaletteCache.getKey(new byte[] {1, 2, 4})));
+    }
+
+    public void testPut_readBack() {
+        final PhotoPaletteCache cache = PhotoPaletteCache.getInstance(getContext());
+        final String key = PhotoPaletteCache.getKey(new byte[] {4, 5, 6});
+        cache.put(key, new MaterialPalette(0xff112233, 0xff445566));
+
+        final MaterialPalette palette = cache.get(key);
+        assertEquals(0xff112233, palette.mPrimaryColor);
+        assertEquals(0xff445566, palette.mSecondaryColor);
+        assertNotNull(cache.getFromMemory(key));
+    }
+}
@@ -0,0 +1,68 @@
+package com.android.contacts.quickcontact;
+
+import android.content.ContentValues;
+import android.provider.CallLog.Calls;
+import android.test.AndroidTestCase;
+
+import com.android.contacts.interactions.CallLogInteraction;
+import com.android.contacts.interactions.ContactInteraction;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests {@link QuickContactActivity#mergeRecentInteractions}
+ */
+public class QuickContactActivityTest extends AndroidTestCase {
+
+    public void testMergeRecentInteractions_sortsByDescendingDate() {
+        List<List<ContactInteraction>> loaderResults = new ArrayList<>();
+        loaderResults.add(interactions(9L, 4L, 1L));
+        loaderResults.add(interactions(8L, 7L));
+        loaderResults.add(interactions(5L));
+
+        List<ContactInteraction> merged =
+                QuickContactActivity.mergeRecentInteractions(loaderResults, 10);
+        assertEquals(Arrays.asList(9L, 8L, 7L, 5L, 4L, 1L), dates(merged));
+    }
+
+    public void testMergeRecentInteractions_stopsAtLimit() {
+        List<List<ContactInteraction>> loaderResults = new ArrayList<>();
+        loaderResults.add(interactions(9L, 4L, 1L));
+        loaderResults.add(interactions(8L, 7L));
+
+        List<ContactInteraction> merged =
+                QuickContactActivity.mergeRecentInteractions(loaderResults, 3);
+        assertEquals(Arrays.asList(9L, 8L, 7L), dates(merged));
+    }
+
+    public void testMergeRecentInteractions_emptyResults() {
+        List<List<ContactInteraction>> loaderResults = new ArrayList<>();
+        loaderResults.add(interactions());
+        loaderResults.add(interactions(3L));
+
+        List<ContactInteraction> merged =
+                QuickContactActivity.mergeRecentInteractions(loaderResults, 10);
+        assertEquals(Arrays.asList(3L), dates(merged));
+    }
+
+    private static List<ContactInteraction> interactions(long... dates) {
+        List<ContactInteraction> interactions = new ArrayList<>();
+        for (long date : dates) {
+            ContentValues values = new ContentValues();
+            values.put(Calls._ID, date);
+            values.put(Calls.DATE, date);
+            interactions.add(new CallLogInteraction(values));
+        }
+        return interactions;
+    }
+
+    private static List<Long> dates(List<ContactInteraction> interactions) {
+        List<Long> dates = new ArrayList<>();
+        for (ContactInteraction interaction : interactions) {
+            dates.add(interaction.getInteractionDate());
+        }
+        return dates;
+    }
+}
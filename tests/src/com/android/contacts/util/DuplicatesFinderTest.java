@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.util;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Test cases for {@link DuplicatesFinder}.
+ *
+ * adb shell am instrument -w -e class com.android.contacts.util.DuplicatesFinderTest \
+ *   com.android.contacts.tests/android.test.InstrumentationTestRunner
+ */
+@SmallTest
+public class DuplicatesFinderTest extends AndroidTestCase {
+
+    public void testJoinDuplicates_sameName() {
+        DuplicatesFinder.UnionFind groups = join(
+                newRawContact(1, "Alice  Smith", null, null),
+                newRawContact(2, "alice smith", null, null),
+                newRawContact(3, "Bob Smith", null, null));
+        assertEquals(groups.find(0), groups.find(1));
+        assertFalse(groups.find(0) == groups.find(2));
+    }
+
+    public void testJoinDuplicates_differentNamesSharingNumber() {
+        DuplicatesFinder.UnionFind groups = join(
+                newRawContact(1, "Alice Smith", "650-555-1234", null),
+                newRawContact(2, "Bob Smith", "(650) 555-1234", null));
+        assertFalse(groups.find(0) == groups.find(1));
+    }
+
+    public void testJoinDuplicates_differentNamesSharingEmail() {
+        DuplicatesFinder.UnionFind groups = join(
+                newRawContact(1, "Alice Smith", null, "home@example.com"),
+                newRawContact(2, "Bob Smith", null, "Home@Example.com"));
+        assertFalse(groups.find(0) == groups.find(1));
+    }
+
+    public void testJoinDuplicates_unnamedSharingNumber() {
+        DuplicatesFinder.UnionFind groups = join(
+                newRawContact(1, "Alice Smith", "650-555-1234", null),
+                newRawContact(2, "6505551234", "6505551234", null));
+        assertEquals(groups.find(0), groups.find(1));
+    }
+
+    public void testJoinDuplicates_unnamedDoesNotJoinDifferentNames() {
+        DuplicatesFinder.UnionFind groups = join(
+                newRawContact(1, "Alice Smith", "650-555-1234", null),
+                newRawContact(2, "Bob Smith", "650-555-1234", null),
+                newRawContact(3, "650-555-1234", "650-555-1234", "home@example.com"),
+                newRawContact(4, "Carol Smith", null, "home@example.com"));
+        assertFalse(groups.find(0) == groups.find(1));
+        assertFalse(groups.find(0) == groups.find(3));
+        assertFalse(groups.find(1) == groups.find(3));
+        assertEquals(groups.find(0), groups.find(2));
+    }
+
+    private static DuplicatesFinder.UnionFind join(DuplicatesFinder.RawContactInfo... infos) {
+        return DuplicatesFinder.joinDuplicates(new ArrayList<>(Arrays.asList(infos)));
+    }
+
+    private static DuplicatesFinder.RawContactInfo newRawContact(long rawContactId, String name,
+            String phone, String email) {
+        DuplicatesFinder.RawContactInfo info = new DuplicatesFinder.RawContactInfo(rawContactId,
+                rawContactId, name, 1);
+        if (phone != null) {
+            info.phones.add(phone);
+        }
+        if (email != null) {
+            info.emails.add(email);
+        }
+        return info;
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.util;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.Arrays;
+
+/**
+ * Test cases for {@link PhoneNumberIndex}.
+ *
+ * adb shell am instrument -w -e class com.android.contacts.util.PhoneNumberIndexTest \
+ *   com.android.contacts.tests/android.test.InstrumentationTestRunner
+ */
+@SmallTest
+public class PhoneNumberIndexTest extends AndroidTestCase {
+
+    public void testGetKey() {
+        assertNull(PhoneNumberIndex.getKey(null));
+        assertNull(PhoneNumberIndex.getKey(""));
+        assertEquals("5551234", PhoneNumberIndex.getKey("+1 (650) 555-1234"));
+        assertEquals("5551234", PhoneNumberIndex.getKey("650-555-1234"));
+        assertEquals("12345", PhoneNumberIndex.getKey("12345"));
+    }
+
+    public void testAddIgnoresEquivalentNumbers() {
+        PhoneNumberIndex index = new PhoneNumberIndex();
+        assertTrue(index.add("650-555-1234"));
+        assertFalse(index.add("(650) 555-1234"));
+        assertFalse(index.add("6505551234"));
+        assertTrue(index.add("650-555-4321"));
+        assertEquals(2, index.size());
+    }
+
+    public void testSameSuffixDifferentNumbers() {
+        PhoneNumberIndex index = new PhoneNumberIndex();
+        assertTrue(index.add("650-555-1234"));
+        assertTrue(index.add("408-555-1234"));
+        assertEquals(2, index.size());
+        assertEquals("408-555-1234", index.find("4085551234"));
+    }
+
+    public void testEmptyNumbersAreIgnored() {
+        PhoneNumberIndex index = new PhoneNumberIndex(Arrays.asList("", null, "12345"));
+        assertFalse(index.add(null));
+        assertFalse(index.contains(""));
+        assertTrue(index.contains("12345"));
+        assertEquals(1, index.size());
+    }
+}